@@ -0,0 +1,196 @@
+/*
+ * Copyright (C) 2011 GRL
+ *
+ * This library is free software. You can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package uk.ac.sanger.npg.bam.util;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.StringWriter;
+import java.util.List;
+import net.sf.picard.util.Log;
+import net.sf.samtools.SAMFileHeader;
+import net.sf.samtools.SAMSequenceRecord;
+import net.sf.samtools.SAMTextHeaderCodec;
+import net.sf.samtools.util.BinaryCodec;
+import net.sf.samtools.util.BlockCompressedInputStream;
+import net.sf.samtools.util.BlockCompressedOutputStream;
+import net.sf.samtools.util.BlockCompressedStreamConstants;
+
+/**
+ * Concatenate BAM files with the same sequence dictionary into one BAM file with a new header,
+ * copying compressed BGZF blocks of records without decompressing them.
+ *
+ * Only the records sharing a block with the header of each input are decompressed and compressed again.
+ *
+ * @author gq1@sanger.ac.uk
+ */
+public class BamBlockConcatenator {
+
+    private static final Log log = Log.getInstance(BamBlockConcatenator.class);
+
+    private static final byte [] BAM_MAGIC = {'B', 'A', 'M', 1};
+
+    private static final int COPY_BUFFER_SIZE = 1 << 20;
+
+    private BamBlockConcatenator(){
+    }
+
+    /**
+     *
+     * @param header header of the output
+     * @param inputs BAM files in output order
+     * @param output
+     * @param compressionLevel compression level of the header and the records recompressed
+     * @throws IOException
+     */
+    public static void concatenate(SAMFileHeader header, List<File> inputs, File output, int compressionLevel) throws IOException {
+
+        OutputStream fileOut = new BufferedOutputStream(new FileOutputStream(output), COPY_BUFFER_SIZE);
+        BlockCompressedOutputStream blockOut = new BlockCompressedOutputStream(fileOut, output, compressionLevel);
+        try {
+            writeHeader(blockOut, header);
+            blockOut.flush();
+
+            byte [] buffer = new byte[COPY_BUFFER_SIZE];
+            for (File input : inputs) {
+                log.info("Appending records in " + input);
+                appendRecords(input, blockOut, fileOut, buffer);
+            }
+        } finally {
+            //terminator block written here
+            blockOut.close();
+        }
+    }
+
+    /**
+     * append all records of one BAM file: the rest of the block where the header ends is recompressed,
+     * all following blocks but the terminator block copied as they are
+     *
+     * @param input
+     * @param blockOut compressed output stream, flushed to fileOut after use
+     * @param fileOut
+     * @param buffer
+     * @throws IOException
+     */
+    private static void appendRecords(File input, BlockCompressedOutputStream blockOut, OutputStream fileOut, byte [] buffer) throws IOException {
+
+        long recordsStart = readHeaderEnd(input);
+        long blockAddress = recordsStart >>> 16;
+        int offsetInBlock = (int) (recordsStart & 0xFFFF);
+
+        BlockCompressedInputStream.FileTermination termination = BlockCompressedInputStream.checkTermination(input);
+        if (termination == BlockCompressedInputStream.FileTermination.DEFECTIVE) {
+            throw new IOException("BAM file is truncated: " + input);
+        }
+        long fileLength = input.length();
+        long copyEnd = termination == BlockCompressedInputStream.FileTermination.HAS_TERMINATOR_BLOCK
+                ? fileLength - BlockCompressedStreamConstants.EMPTY_GZIP_BLOCK.length : fileLength;
+
+        RandomAccessFile raf = new RandomAccessFile(input, "r");
+        try {
+            long copyStart = blockAddress;
+            if (offsetInBlock != 0) {
+                //records in the same block as the end of header
+                raf.seek(blockAddress + BlockCompressedStreamConstants.BLOCK_LENGTH_OFFSET);
+                int blockSize = (raf.readUnsignedByte() | (raf.readUnsignedByte() << 8)) + 1;
+                raf.seek(blockAddress + blockSize - 4);
+                int uncompressedSize = Integer.reverseBytes(raf.readInt());
+
+                BlockCompressedInputStream blockIn = new BlockCompressedInputStream(input);
+                try {
+                    blockIn.seek(recordsStart);
+                    byte [] rest = new byte[uncompressedSize - offsetInBlock];
+                    new BinaryCodec(blockIn).readBytes(rest);
+                    blockOut.write(rest);
+                    blockOut.flush();
+                } finally {
+                    blockIn.close();
+                }
+                copyStart = blockAddress + blockSize;
+            }
+
+            raf.seek(copyStart);
+            long remaining = copyEnd - copyStart;
+            while (remaining > 0) {
+                int read = raf.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                if (read < 0) {
+                    throw new IOException("Unexpected end of BAM file: " + input);
+                }
+                fileOut.write(buffer, 0, read);
+                remaining -= read;
+            }
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     *
+     * @param input
+     * @return virtual file pointer of the first record
+     * @throws IOException
+     */
+    private static long readHeaderEnd(File input) throws IOException {
+
+        BlockCompressedInputStream blockIn = new BlockCompressedInputStream(input);
+        try {
+            BinaryCodec codec = new BinaryCodec(blockIn);
+            byte [] magic = new byte[BAM_MAGIC.length];
+            codec.readBytes(magic);
+            for (int i = 0; i < magic.length; i++) {
+                if (magic[i] != BAM_MAGIC[i]) {
+                    throw new IOException("Not a BAM file: " + input);
+                }
+            }
+            codec.readBytes(new byte[codec.readInt()]);
+            int numberOfReferences = codec.readInt();
+            for (int i = 0; i < numberOfReferences; i++) {
+                codec.readBytes(new byte[codec.readInt()]);
+                codec.readInt();
+            }
+            return blockIn.getFilePointer();
+        } finally {
+            blockIn.close();
+        }
+    }
+
+    /**
+     * write header in BAM binary format
+     *
+     * @param out
+     * @param header
+     */
+    static void writeHeader(OutputStream out, SAMFileHeader header){
+
+        StringWriter headerText = new StringWriter();
+        new SAMTextHeaderCodec().encode(headerText, header);
+
+        BinaryCodec codec = new BinaryCodec(out);
+        codec.writeBytes(BAM_MAGIC);
+        codec.writeString(headerText.toString(), true, false);
+        List<SAMSequenceRecord> sequences = header.getSequenceDictionary().getSequences();
+        codec.writeInt(sequences.size());
+        for (SAMSequenceRecord sequence : sequences) {
+            codec.writeString(sequence.getSequenceName(), true, true);
+            codec.writeInt(sequence.getSequenceLength());
+        }
+    }
+}
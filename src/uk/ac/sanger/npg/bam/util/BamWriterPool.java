@@ -0,0 +1,369 @@
+/*
+ * Copyright (C) 2011 GRL
+ *
+ * This library is free software. You can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package uk.ac.sanger.npg.bam.util;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import net.sf.picard.util.Log;
+import net.sf.samtools.BAMRecordCodec;
+import net.sf.samtools.SAMFileHeader;
+import net.sf.samtools.SAMRecord;
+import net.sf.samtools.util.BlockCompressedOutputStream;
+import net.sf.samtools.util.BlockCompressedStreamConstants;
+import net.sf.samtools.util.RuntimeIOException;
+
+/**
+ * Write records to many BAM files, e.g. one per barcode, without keeping all of them open.
+ *
+ * Records are kept in memory for each file and compressed into BGZF blocks in batches by a thread pool,
+ * with at most maxRecordsInRam records buffered or in batches not written yet.
+ * Compressed batches are appended to their file in the order they were flushed, with at most
+ * maxOpenFiles files open, the least recently used closed and opened again for appending when needed.
+ * The terminator block is appended to each file when the pool is closed.
+ *
+ * @author gq1@sanger.ac.uk
+ */
+public class BamWriterPool {
+
+    private static final Log log = Log.getInstance(BamWriterPool.class);
+
+    //records of one file compressed together
+    private static final int RECORDS_PER_BATCH = 10000;
+
+    private static final int OUTPUT_BUFFER_SIZE = 1 << 16;
+
+    private final int maxRecordsInRam;
+    private final int compressionLevel;
+    private final boolean createMd5File;
+
+    private final Map<String, PooledFile> files = new LinkedHashMap<String, PooledFile>();
+    private final OpenFiles openFiles;
+    //records buffered or in batches not written yet
+    private int bufferedRecords = 0;
+
+    private final ExecutorService compressors;
+    private final int maxPendingBatches;
+    private final Deque<PendingBatch> pendingBatches = new ArrayDeque<PendingBatch>();
+
+    private long batchesWritten = 0;
+    private long filesReopened = 0;
+
+    /**
+     *
+     * @param maxOpenFiles maximum number of output files open at the same time
+     * @param maxRecordsInRam maximum number of records kept in memory for all files, including batches being compressed
+     * @param compressionThreads number of threads compressing batches of records
+     * @param compressionLevel
+     * @param createMd5File write md5 file of each output file
+     */
+    public BamWriterPool(int maxOpenFiles, int maxRecordsInRam, int compressionThreads, int compressionLevel, boolean createMd5File){
+        if (maxOpenFiles < 1 || maxRecordsInRam < 1 || compressionThreads < 1) {
+            throw new IllegalArgumentException("Number of open files, records in memory and compression threads must be positive");
+        }
+        this.openFiles = new OpenFiles(maxOpenFiles);
+        this.maxRecordsInRam = maxRecordsInRam;
+        this.compressionLevel = compressionLevel;
+        this.createMd5File = createMd5File;
+        this.compressors = Executors.newFixedThreadPool(compressionThreads);
+        this.maxPendingBatches = 2 * compressionThreads;
+    }
+
+    /**
+     * create an output file and write its header
+     *
+     * @param key
+     * @param header
+     * @param output
+     */
+    public void addFile(String key, SAMFileHeader header, File output){
+
+        if (this.files.containsKey(key)) {
+            throw new IllegalArgumentException("Output file already added for " + key);
+        }
+        PooledFile file = new PooledFile(header, output);
+        this.files.put(key, file);
+
+        ByteArrayOutputStream headerBytes = new ByteArrayOutputStream();
+        BlockCompressedOutputStream blockOut = new BlockCompressedOutputStream(headerBytes, output, this.compressionLevel);
+        BamBlockConcatenator.writeHeader(blockOut, header);
+        try {
+            blockOut.flush();
+            OutputStream out = new FileOutputStream(output);
+            out.write(headerBytes.toByteArray());
+            out.close();
+        } catch (IOException ex) {
+            throw new RuntimeIOException("Problems to write header to " + output, ex);
+        }
+    }
+
+    /**
+     *
+     * @param key
+     * @param record
+     */
+    public void addAlignment(String key, SAMRecord record){
+
+        PooledFile file = this.files.get(key);
+        if (file == null) {
+            throw new IllegalArgumentException("No output file added for " + key);
+        }
+        file.records.add(record);
+        this.bufferedRecords++;
+        if (file.records.size() >= RECORDS_PER_BATCH) {
+            this.flush(file);
+        }
+        if (this.bufferedRecords >= this.maxRecordsInRam) {
+            for (PooledFile other : this.files.values()) {
+                this.flush(other);
+            }
+            try {
+                while (this.bufferedRecords >= this.maxRecordsInRam && !this.pendingBatches.isEmpty()) {
+                    this.writeOldestBatch();
+                }
+            } catch (IOException ex) {
+                throw new RuntimeIOException("Problems to write BAM file", ex);
+            }
+        }
+    }
+
+    /**
+     * write all records left and terminator blocks, close all files
+     */
+    public void close(){
+
+        try {
+            for (PooledFile file : this.files.values()) {
+                this.flush(file);
+            }
+            while (!this.pendingBatches.isEmpty()) {
+                this.writeOldestBatch();
+            }
+            for (PooledFile file : this.files.values()) {
+                this.getOutputStream(file).write(BlockCompressedStreamConstants.EMPTY_GZIP_BLOCK);
+            }
+            this.openFiles.closeAll();
+            if (this.createMd5File) {
+                for (PooledFile file : this.files.values()) {
+                    writeMd5File(file.output);
+                }
+            }
+        } catch (IOException ex) {
+            throw new RuntimeIOException("Problems to write BAM files", ex);
+        } finally {
+            this.compressors.shutdownNow();
+        }
+        log.info(this.files.size() + " BAM files written from " + this.batchesWritten + " compressed batches, files opened again "
+                + this.filesReopened + " times");
+    }
+
+    /**
+     * hand buffered records of one file to the compression threads
+     */
+    private void flush(final PooledFile file){
+
+        if (file.records.isEmpty()) {
+            return;
+        }
+        final List<SAMRecord> records = file.records;
+        file.records = new ArrayList<SAMRecord>();
+
+        try {
+            while (this.pendingBatches.size() >= this.maxPendingBatches) {
+                this.writeOldestBatch();
+            }
+        } catch (IOException ex) {
+            throw new RuntimeIOException("Problems to write BAM file", ex);
+        }
+
+        Future<byte []> compressed = this.compressors.submit(new Callable<byte []>() {
+            @Override
+            public byte [] call() {
+                return compress(file, records, compressionLevel);
+            }
+        });
+        this.pendingBatches.addLast(new PendingBatch(file, compressed, records.size()));
+    }
+
+    /**
+     * wait for the oldest batch to be compressed and append it to its file
+     */
+    private void writeOldestBatch() throws IOException {
+
+        PendingBatch batch = this.pendingBatches.removeFirst();
+        byte [] compressed;
+        try {
+            compressed = batch.compressed.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted compressing records for " + batch.file.output, ex);
+        } catch (ExecutionException ex) {
+            throw new IOException("Problems to compress records for " + batch.file.output, ex.getCause());
+        }
+        this.getOutputStream(batch.file).write(compressed);
+        this.bufferedRecords -= batch.records;
+        this.batchesWritten++;
+    }
+
+    /**
+     *
+     * @return BGZF blocks of records without terminator block
+     */
+    private static byte [] compress(PooledFile file, List<SAMRecord> records, int compressionLevel){
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        BlockCompressedOutputStream blockOut = new BlockCompressedOutputStream(bytes, file.output, compressionLevel);
+        BAMRecordCodec codec = new BAMRecordCodec(file.header);
+        codec.setOutputStream(blockOut, file.output.getName());
+        for (SAMRecord record : records) {
+            codec.encode(record);
+        }
+        try {
+            blockOut.flush();
+        } catch (IOException ex) {
+            throw new RuntimeIOException("Problems to compress records for " + file.output, ex);
+        }
+        return bytes.toByteArray();
+    }
+
+    private OutputStream getOutputStream(PooledFile file) throws IOException {
+
+        OutputStream out = this.openFiles.get(file);
+        if (out == null) {
+            if (file.opened) {
+                this.filesReopened++;
+            }
+            out = new BufferedOutputStream(new FileOutputStream(file.output, true), OUTPUT_BUFFER_SIZE);
+            file.opened = true;
+            this.openFiles.put(file, out);
+        }
+        return out;
+    }
+
+    private static void writeMd5File(File output) throws IOException {
+
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IOException("MD5 not available", ex);
+        }
+        byte [] buffer = new byte[OUTPUT_BUFFER_SIZE];
+        InputStream in = new FileInputStream(output);
+        try {
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                digest.update(buffer, 0, read);
+            }
+        } finally {
+            in.close();
+        }
+        String md5 = new BigInteger(1, digest.digest()).toString(16);
+        while (md5.length() < 32) {
+            md5 = "0" + md5;
+        }
+        PrintWriter md5Out = new PrintWriter(output.getPath() + ".md5");
+        md5Out.print(md5);
+        md5Out.close();
+    }
+
+    /**
+     * output file with records waiting to be compressed
+     */
+    private static class PooledFile {
+        final SAMFileHeader header;
+        final File output;
+        List<SAMRecord> records = new ArrayList<SAMRecord>();
+        boolean opened = false;
+
+        PooledFile(SAMFileHeader header, File output) {
+            this.header = header;
+            this.output = output;
+        }
+    }
+
+    /**
+     * batch of records of one file being compressed
+     */
+    private static class PendingBatch {
+        final PooledFile file;
+        final Future<byte []> compressed;
+        final int records;
+
+        PendingBatch(PooledFile file, Future<byte []> compressed, int records) {
+            this.file = file;
+            this.compressed = compressed;
+            this.records = records;
+        }
+    }
+
+    /**
+     * open output streams, least recently used closed when too many
+     */
+    private static class OpenFiles extends LinkedHashMap<PooledFile, OutputStream> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int maxOpenFiles;
+
+        OpenFiles(int maxOpenFiles) {
+            super(16, 0.75f, true);
+            this.maxOpenFiles = maxOpenFiles;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<PooledFile, OutputStream> eldest) {
+            if (this.size() <= this.maxOpenFiles) {
+                return false;
+            }
+            try {
+                eldest.getValue().close();
+            } catch (IOException ex) {
+                throw new RuntimeIOException("Problems to close " + eldest.getKey().output, ex);
+            }
+            return true;
+        }
+
+        void closeAll() throws IOException {
+            for (OutputStream out : this.values()) {
+                out.close();
+            }
+            this.clear();
+        }
+    }
+}
@@ -0,0 +1,245 @@
+/*
+ * Copyright (C) 2011 GRL
+ *
+ * This library is free software. You can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package uk.ac.sanger.npg.bam.util;
+
+import net.sf.samtools.BAMRecord;
+import net.sf.samtools.SAMRecord;
+import net.sf.samtools.util.StringUtil;
+
+/**
+ * Read a barcode tag of a record or a read pair as bytes into a buffer reused for every record,
+ * optionally with low quality bases converted to N by a quality tag.
+ *
+ * Tags of records read from a BAM file and not changed are found in the binary attributes of the record
+ * without decoding them into strings, other records fall back to their decoded attributes.
+ * The buffer returned is only valid until the next record is read, and one reader is used by one thread.
+ *
+ * @author gq1@sanger.ac.uk
+ */
+public class BarcodeTagReader {
+
+    private static final byte NO_CALL = 'N';
+    private static final int PHRED_OFFSET = 33;
+
+    private static final int NOT_FOUND = 0;
+    private static final int FOUND = 1;
+    //binary attributes not available or tag not a string
+    private static final int NOT_BINARY = 2;
+
+    private final String tagName;
+    private final String qualityTagName;
+    private final int maxLowQuality;
+    private final byte [] buffer;
+
+    private final TagValue tagValue = new TagValue();
+    private final TagValue pairedTagValue = new TagValue();
+    private final TagValue qualityValue = new TagValue();
+
+    /**
+     *
+     * @param tagName tag of barcode read
+     * @param qualityTagName tag of barcode quality, null if low quality bases not converted
+     * @param maxLowQuality max phred quality of bases converted to N
+     * @param length number of bases read from the start of the barcode read
+     */
+    public BarcodeTagReader(String tagName, String qualityTagName, int maxLowQuality, int length) {
+        this.tagName = tagName;
+        this.qualityTagName = qualityTagName;
+        this.maxLowQuality = maxLowQuality;
+        this.buffer = new byte[length];
+    }
+
+    /**
+     *
+     * @param recordGroup a record or a read pair
+     * @return barcode read bases cut to length, in the buffer of this reader
+     */
+    public byte [] read(SAMRecord [] recordGroup) {
+
+        SAMRecord record = recordGroup[0];
+        TagValue barcodeRead = findTag(record, this.tagName, this.tagValue) ? this.tagValue : null;
+
+        if (recordGroup.length == 2) {
+            SAMRecord pairedRecord = recordGroup[1];
+            boolean pairedFound = findTag(pairedRecord, this.tagName, this.pairedTagValue);
+            if (barcodeRead != null && pairedFound && !barcodeRead.sameBytes(this.pairedTagValue)) {
+                throw new RuntimeException("barcode read bases are different in paired two reads: "
+                        + barcodeRead + " " + this.pairedTagValue);
+            } else if (barcodeRead == null && pairedFound) {
+                barcodeRead = this.pairedTagValue;
+                record = pairedRecord;
+            }
+        }
+
+        if (barcodeRead == null) {
+            throw new RuntimeException("No barcode read found for record: " + recordGroup[0].getReadName());
+        }
+        if (barcodeRead.length < this.buffer.length) {
+            throw new RuntimeException("The barcode read length is less than barcode lenght: " + recordGroup[0].getReadName());
+        }
+        System.arraycopy(barcodeRead.bytes, barcodeRead.offset, this.buffer, 0, this.buffer.length);
+
+        if (this.qualityTagName != null && findTag(record, this.qualityTagName, this.qualityValue)) {
+            if (this.qualityValue.length != barcodeRead.length) {
+                throw new RuntimeException("Barcode read sequence not available or its lenght not match quality length ");
+            }
+            final byte [] qualities = this.qualityValue.bytes;
+            final int offset = this.qualityValue.offset;
+            for (int i = 0; i < this.buffer.length; i++) {
+                if (qualities[offset + i] <= this.maxLowQuality + PHRED_OFFSET) {
+                    this.buffer[i] = NO_CALL;
+                }
+            }
+        }
+        return this.buffer;
+    }
+
+    /**
+     *
+     * @param record
+     * @param tag
+     * @param value set to the bytes of the tag value if found
+     * @return true if found
+     */
+    private static boolean findTag(SAMRecord record, String tag, TagValue value) {
+
+        if (record instanceof BAMRecord) {
+            int found = findBinaryTag((BAMRecord) record, tag, value);
+            if (found != NOT_BINARY) {
+                return found == FOUND;
+            }
+        }
+        Object attribute = record.getAttribute(tag);
+        if (attribute == null) {
+            return false;
+        }
+        byte [] bytes = StringUtil.stringToBytes(attribute.toString());
+        value.set(bytes, 0, bytes.length);
+        return true;
+    }
+
+    /**
+     * find a string tag in the binary attributes of a record read from a BAM file
+     *
+     * @return FOUND, NOT_FOUND, or NOT_BINARY if the record has no binary attributes or the tag is not a string
+     */
+    static int findBinaryTag(BAMRecord record, String tag, TagValue value) {
+
+        final byte [] data = record.getVariableBinaryRepresentation();
+        final int attributesSize = record.getAttributesBinarySize();
+        if (data == null || attributesSize < 0) {
+            return NOT_BINARY;
+        }
+        final byte tag1 = (byte) tag.charAt(0);
+        final byte tag2 = (byte) tag.charAt(1);
+
+        int position = data.length - attributesSize;
+        while (position + 3 <= data.length) {
+            final boolean match = data[position] == tag1 && data[position + 1] == tag2;
+            final byte type = data[position + 2];
+            position += 3;
+            if (type == 'Z' || type == 'H') {
+                int end = position;
+                while (end < data.length && data[end] != 0) {
+                    end++;
+                }
+                if (match) {
+                    if (type == 'H') {
+                        return NOT_BINARY;
+                    }
+                    value.set(data, position, end - position);
+                    return FOUND;
+                }
+                position = end + 1;
+            } else if (match) {
+                return NOT_BINARY;
+            } else if (type == 'B') {
+                if (position + 5 > data.length) {
+                    return NOT_BINARY;
+                }
+                final int elementSize = valueSize(data[position]);
+                final int count = (data[position + 1] & 0xff) | (data[position + 2] & 0xff) << 8
+                        | (data[position + 3] & 0xff) << 16 | (data[position + 4] & 0xff) << 24;
+                if (elementSize < 0 || count < 0) {
+                    return NOT_BINARY;
+                }
+                position += 5 + count * elementSize;
+            } else {
+                final int size = valueSize(type);
+                if (size < 0) {
+                    return NOT_BINARY;
+                }
+                position += size;
+            }
+        }
+        return NOT_FOUND;
+    }
+
+    /**
+     * @return size in bytes of a fixed size tag value type, -1 if not fixed size
+     */
+    private static int valueSize(byte type) {
+        switch (type) {
+            case 'A':
+            case 'c':
+            case 'C':
+                return 1;
+            case 's':
+            case 'S':
+                return 2;
+            case 'i':
+            case 'I':
+            case 'f':
+                return 4;
+            default:
+                return -1;
+        }
+    }
+
+    /**
+     * bytes of a tag value in an array
+     */
+    static class TagValue {
+        byte [] bytes;
+        int offset;
+        int length;
+
+        void set(byte [] bytes, int offset, int length) {
+            this.bytes = bytes;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        boolean sameBytes(TagValue other) {
+            if (this.length != other.length) {
+                return false;
+            }
+            for (int i = 0; i < this.length; i++) {
+                if (this.bytes[this.offset + i] != other.bytes[other.offset + i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public String toString() {
+            return StringUtil.bytesToString(this.bytes, this.offset, this.length);
+        }
+    }
+}
@@ -0,0 +1,406 @@
+/*
+ * Copyright (C) 2011 GRL
+ *
+ * This library is free software. You can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *
+ */
+package uk.ac.sanger.npg.illumina;
+
+import com.fasterxml.jackson.core.JsonGenerationException;
+import com.fasterxml.jackson.databind.JsonMappingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import net.sf.picard.util.Log;
+
+/**
+ * Per tile, per read and per cycle base composition and quality distribution,
+ * separately for PF and non-PF clusters, collected during conversion
+ *
+ * @author gq1@sanger.ac.uk
+ */
+public class CycleMetric {
+
+    private final Log log = Log.getInstance(CycleMetric.class);
+
+    /**
+     * base order in base count arrays, no-calls last
+     */
+    public static final String BASES = "ACGTN";
+
+    /**
+     * number of quality values in quality count arrays
+     */
+    public static final int QUALITY_BINS = 64;
+
+    private String programName;
+    private String programCommand;
+    private String programVersion;
+
+    private final TreeMap<Integer, TileCycles> tileMap = new TreeMap<Integer, TileCycles>();
+
+    /**
+     * add counts of a tile or part of a tile
+     *
+     * @param tileCycles
+     */
+    public synchronized void addTile(TileCycles tileCycles){
+
+        TileCycles existing = this.tileMap.get(tileCycles.getTile());
+        if(existing == null){
+            this.tileMap.put(tileCycles.getTile(), tileCycles);
+        }else{
+            existing.merge(tileCycles);
+        }
+    }
+
+    /**
+     * write metrics as json
+     *
+     * @param outJson
+     */
+    public void output(File outJson){
+
+        log.info("Writing cycle metrics for " + this.tileMap.size() + " tiles: " + outJson);
+
+        ObjectMapper mapper = new ObjectMapper();
+        try {
+            mapper.writeValue(outJson, this);
+        } catch (JsonGenerationException ex) {
+            log.error(ex);
+        } catch (JsonMappingException ex) {
+            log.error(ex);
+        } catch (IOException ex) {
+            log.error(ex);
+        }
+    }
+
+    /**
+     * @return tiles in tile number order
+     */
+    public synchronized List<TileCycles> getTiles() {
+        return new ArrayList<TileCycles>(this.tileMap.values());
+    }
+
+    /**
+     * @return the base order in base counts
+     */
+    public String getBases() {
+        return BASES;
+    }
+
+    /**
+     * @return the programName
+     */
+    public String getProgramName() {
+        return programName;
+    }
+
+    /**
+     * @param programName the programName to set
+     */
+    public void setProgramName(String programName) {
+        this.programName = programName;
+    }
+
+    /**
+     * @return the programCommand
+     */
+    public String getProgramCommand() {
+        return programCommand;
+    }
+
+    /**
+     * @param programCommand the programCommand to set
+     */
+    public void setProgramCommand(String programCommand) {
+        this.programCommand = programCommand;
+    }
+
+    /**
+     * @return the programVersion
+     */
+    public String getProgramVersion() {
+        return programVersion;
+    }
+
+    /**
+     * @param programVersion the programVersion to set
+     */
+    public void setProgramVersion(String programVersion) {
+        this.programVersion = programVersion;
+    }
+
+    /**
+     * counts of all reads of one tile
+     */
+    public static class TileCycles {
+
+        private final int tile;
+        private final List<ReadCycles> reads;
+        private final Map<String, ReadCycles> readMap;
+
+        /**
+         *
+         * @param tile tile number
+         * @param cyclesByRead cycles of each read
+         */
+        public TileCycles(int tile, Map<String, int[]> cyclesByRead){
+
+            this.tile = tile;
+            this.reads = new ArrayList<ReadCycles>(cyclesByRead.size());
+            this.readMap = new HashMap<String, ReadCycles>(cyclesByRead.size());
+            for(Map.Entry<String, int[]> entry : cyclesByRead.entrySet()){
+                ReadCycles readCycles = new ReadCycles(entry.getKey(), entry.getValue());
+                this.reads.add(readCycles);
+                this.readMap.put(entry.getKey(), readCycles);
+            }
+            Collections.sort(this.reads, new Comparator<ReadCycles>() {
+                @Override
+                public int compare(ReadCycles r1, ReadCycles r2) {
+                    return r1.getCycles()[0] - r2.getCycles()[0];
+                }
+            });
+        }
+
+        /**
+         *
+         * @param read read name, e.g. read1 or readIndex
+         * @return counts of this read, null if not available
+         */
+        public ReadCycles getRead(String read){
+            return this.readMap.get(read);
+        }
+
+        /**
+         * add counts of another part of the same tile
+         * @param other
+         */
+        public void merge(TileCycles other){
+            for(ReadCycles readCycles : other.reads){
+                this.readMap.get(readCycles.getRead()).merge(readCycles);
+            }
+        }
+
+        /**
+         * @return the tile
+         */
+        public int getTile() {
+            return tile;
+        }
+
+        /**
+         * @return the reads in cycle order
+         */
+        public List<ReadCycles> getReads() {
+            return reads;
+        }
+    }
+
+    /**
+     * counts of each cycle of one read
+     */
+    public static class ReadCycles {
+
+        private final String read;
+        private final int [] cycles;
+
+        private long pfClusters;
+        private long nonPfClusters;
+
+        private final long [][] pfBaseCounts;
+        private final long [][] nonPfBaseCounts;
+        private final long [][] pfQualityCounts;
+        private final long [][] nonPfQualityCounts;
+
+        /**
+         *
+         * @param read
+         * @param cycles cycle numbers of this read in order
+         */
+        public ReadCycles(String read, int [] cycles){
+
+            this.read = read;
+            this.cycles = cycles;
+
+            this.pfBaseCounts       = new long[cycles.length][BASES.length()];
+            this.nonPfBaseCounts    = new long[cycles.length][BASES.length()];
+            this.pfQualityCounts    = new long[cycles.length][QUALITY_BINS];
+            this.nonPfQualityCounts = new long[cycles.length][QUALITY_BINS];
+        }
+
+        /**
+         * count bases and qualities of one cluster
+         *
+         * @param baseQuals bases and qualities of this read for one cluster
+         * @param pf true if cluster passed filter
+         */
+        public void add(byte [][] baseQuals, boolean pf){
+
+            long [][] baseCounts;
+            long [][] qualityCounts;
+            if(pf){
+                this.pfClusters++;
+                baseCounts = this.pfBaseCounts;
+                qualityCounts = this.pfQualityCounts;
+            }else{
+                this.nonPfClusters++;
+                baseCounts = this.nonPfBaseCounts;
+                qualityCounts = this.nonPfQualityCounts;
+            }
+
+            byte [] bases = baseQuals[0];
+            byte [] quals = baseQuals[1];
+            for(int i = 0; i < bases.length; i++){
+                baseCounts[i][baseIndex(bases[i])]++;
+                qualityCounts[i][quals[i] & (QUALITY_BINS - 1)]++;
+            }
+        }
+
+        /**
+         *
+         * @param base
+         * @return index of base in base counts
+         */
+        private static int baseIndex(byte base){
+            switch (base) {
+                case 'A': return 0;
+                case 'C': return 1;
+                case 'G': return 2;
+                case 'T': return 3;
+                default:  return 4;
+            }
+        }
+
+        /**
+         * add counts of the same read from another part of the tile
+         * @param other
+         */
+        public void merge(ReadCycles other){
+
+            this.pfClusters    += other.pfClusters;
+            this.nonPfClusters += other.nonPfClusters;
+            addArray(this.pfBaseCounts, other.pfBaseCounts);
+            addArray(this.nonPfBaseCounts, other.nonPfBaseCounts);
+            addArray(this.pfQualityCounts, other.pfQualityCounts);
+            addArray(this.nonPfQualityCounts, other.nonPfQualityCounts);
+        }
+
+        private static void addArray(long [][] to, long [][] from){
+            for(int i = 0; i < to.length; i++){
+                for(int j = 0; j < to[i].length; j++){
+                    to[i][j] += from[i][j];
+                }
+            }
+        }
+
+        /**
+         *
+         * @param qualityCounts
+         * @return mean quality of each cycle
+         */
+        private static double [] meanQuality(long [][] qualityCounts){
+
+            double [] means = new double[qualityCounts.length];
+            for(int i = 0; i < qualityCounts.length; i++){
+                long sum = 0;
+                long count = 0;
+                for(int q = 0; q < QUALITY_BINS; q++){
+                    sum += q * qualityCounts[i][q];
+                    count += qualityCounts[i][q];
+                }
+                means[i] = count == 0 ? 0 : (double) sum / count;
+            }
+            return means;
+        }
+
+        /**
+         * @return the read
+         */
+        public String getRead() {
+            return read;
+        }
+
+        /**
+         * @return the cycle numbers
+         */
+        public int[] getCycles() {
+            return cycles;
+        }
+
+        /**
+         * @return the pfClusters
+         */
+        public long getPfClusters() {
+            return pfClusters;
+        }
+
+        /**
+         * @return the nonPfClusters
+         */
+        public long getNonPfClusters() {
+            return nonPfClusters;
+        }
+
+        /**
+         * @return PF base counts by cycle in ACGTN order
+         */
+        public long[][] getPfBaseCounts() {
+            return pfBaseCounts;
+        }
+
+        /**
+         * @return non-PF base counts by cycle in ACGTN order
+         */
+        public long[][] getNonPfBaseCounts() {
+            return nonPfBaseCounts;
+        }
+
+        /**
+         * @return PF quality counts by cycle and quality value
+         */
+        public long[][] getPfQualityCounts() {
+            return pfQualityCounts;
+        }
+
+        /**
+         * @return non-PF quality counts by cycle and quality value
+         */
+        public long[][] getNonPfQualityCounts() {
+            return nonPfQualityCounts;
+        }
+
+        /**
+         * @return PF mean quality by cycle
+         */
+        public double[] getPfMeanQuality() {
+            return meanQuality(pfQualityCounts);
+        }
+
+        /**
+         * @return non-PF mean quality by cycle
+         */
+        public double[] getNonPfMeanQuality() {
+            return meanQuality(nonPfQualityCounts);
+        }
+    }
+}
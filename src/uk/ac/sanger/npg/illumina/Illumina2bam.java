@@ -20,16 +20,21 @@
 package uk.ac.sanger.npg.illumina;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.List;
 import net.sf.picard.cmdline.Option;
 import net.sf.picard.cmdline.Usage;
 import net.sf.picard.io.IoUtil;
+import net.sf.picard.metrics.MetricsFile;
 import net.sf.picard.util.Log;
-import net.sf.samtools.SAMFileWriter;
 import net.sf.samtools.SAMReadGroupRecord;
 import net.sf.samtools.util.Iso8601Date;
+import uk.ac.sanger.npg.illumina.sink.CountingSink;
+import uk.ac.sanger.npg.illumina.sink.OutputSink;
+import uk.ac.sanger.npg.picard.IndexDecoder;
 import uk.ac.sanger.npg.picard.PicardCommandLine;
 
 /**
@@ -60,12 +65,15 @@ public class Illumina2bam extends PicardCommandLine {
     @Option(shortName="L", doc="Lane number.")
     public Integer LANE;
 
-    @Option(shortName="O", doc="Output file name.")
+    @Option(shortName="O", doc="Output file name.", mutex = {"BARCODE_METRICS_FILE"})
     public File OUTPUT;
 
     @Option(shortName="E2", doc="Including second base call or not, default false.", optional=true)
     public boolean GENERATE_SECONDARY_BASE_CALLS = false;
 
+    @Option(shortName="E2_PACKED", doc="Tag name for second base calls as an unsigned byte array, four bases to a byte with the first base in the highest two bits and A, C, G, T as 0 to 3, written instead of E2 if given.", optional=true)
+    public String PACKED_SECOND_CALL_TAG_NAME;
+
     @Option(shortName="PF", doc="Filter cluster or not, default true.", optional=true)
     public boolean PF_FILTER = true;
 
@@ -115,10 +123,20 @@ public class Illumina2bam extends PicardCommandLine {
     @Option(shortName="SEC_BC_QUAL", doc="Tag name for second barcode quality.", optional=true)
     public String SECOND_BARCODE_QUALITY_TAG_NAME;  
 
+    @Option(shortName="UMI_SEQ", doc="Tag name for molecular barcode sequence from the M segments of READ_STRUCTURE, segments separated by hyphen.")
+    public String UMI_SEQUENCE_TAG_NAME = "RX";
+
+    @Option(shortName="UMI_QUAL", doc="Tag name for molecular barcode quality, segments separated by space.")
+    public String UMI_QUALITY_TAG_NAME = "QX";
+
     @Option(doc="Which read (1 or 2) should the second barcode sequence and quality be added to?", optional=true)
     public Integer SEC_BC_READ;
 
 
+    @Option(shortName="RS", doc="Read structure of the run, e.g. 151T8B8B151T or 8M143T8B8B151T, with template (T), sample barcode (B), molecular barcode (M) and skipped (S) segments. Overwrites read and cycle information from config files, can not be used together with FIRST.",
+            optional = true)
+        public String READ_STRUCTURE;
+
     @Option(shortName="FIRST", doc="First cycle for each standard (non-index) read.  Can be specified multiple times, for runs with multiple reads.  If this option is used, both a first and last cycle must be specified for all reads (including index reads).",
             optional = true)
         public ArrayList<Integer> FIRST_CYCLE;
@@ -136,13 +154,67 @@ public class Illumina2bam extends PicardCommandLine {
             optional = true)
         public ArrayList<Integer> FINAL_INDEX_CYCLE;
 
+    @Option(doc="Barcode census mode: only read filter and index read BCL files, decode barcodes and write barcode metrics to this file instead of a BAM file.", mutex = {"OUTPUT"})
+    public File BARCODE_METRICS_FILE;
+
+    @Option(doc="Barcode sequence for barcode census mode.  These must be unique, and all the same length.", mutex = {"BARCODE_FILE"}, optional=true)
+    public List<String> BARCODE = new ArrayList<String>();
+
+    @Option(doc="Tab-delimited file of barcode sequences for barcode census mode, see BamIndexDecoder.", mutex = {"BARCODE"}, optional=true)
+    public File BARCODE_FILE;
+
+    @Option(doc="Maximum mismatches for a barcode to be considered a match in barcode census mode.")
+    public int MAX_MISMATCHES = 1;
+
+    @Option(doc="Minimum difference between number of mismatches in the best and second best barcodes for a barcode to be considered a match in barcode census mode.")
+    public int MIN_MISMATCH_DELTA = 1;
+
+    @Option(doc="Maximum allowable number of no-calls in a barcode read before it is considered unmatchable in barcode census mode.")
+    public int MAX_NO_CALLS = 2;
+
+    @Option(doc="Number of threads to convert tiles split into cluster ranges, default 1 to process tile by tile.")
+    public int NUM_THREADS = 1;
+
+    @Option(doc="Maximum number of clusters in one cluster range converted by a thread when NUM_THREADS is more than 1.")
+    public int CLUSTERS_PER_CHUNK = 200000;
+
+    @Option(doc="Check headers and sizes of all filter, position, BCL and SCL files of the lane in parallel before conversion, reporting all problems at once. Only filter and index read BCL files are checked in barcode census mode.")
+    public Boolean CHECK_BASECALL_FILES = true;
+
+    @Option(doc="Where records go: BAM_FILE for SAM or BAM OUTPUT file, UNCOMPRESSED_STREAM for BAM without compression to OUTPUT, e.g. a pipe, TILE_SEGMENTS for one BAM file per tile named by OUTPUT with tile number added, COUNT to only count records.")
+    public OutputSink.Type OUTPUT_SINK = OutputSink.Type.BAM_FILE;
+
+    @Option(doc="Memory budget in megabytes for cluster ranges converted or waiting to be written when NUM_THREADS is more than 1, including base call files each thread keeps open. Ranges are only started while their estimated total stays in the budget, one at a time if needed. No limit if not given.", optional=true)
+    public Integer MEMORY_BUDGET;
+
+    @Option(doc="Directory to cache run information read from config, runParameters and RunInfo xml files, named by their checksum, so later runs with the same files do not parse them again. No cache if not given.", optional=true)
+    public File RUN_METADATA_CACHE_DIR;
+
+    @Option(doc="Convert only a random sample of this fraction of clusters in each tile for a quick look, between 0 and 1.", optional=true)
+    public Double SAMPLE_FRACTION;
+
+    @Option(doc="Convert only a random sample of at most this many clusters in each tile for a quick look.", optional=true)
+    public Integer MAX_CLUSTERS_PER_TILE;
+
+    @Option(doc="Random seed for SAMPLE_FRACTION and MAX_CLUSTERS_PER_TILE, the same seed always selects the same clusters.")
+    public long SAMPLE_SEED = 1;
+
+    @Option(doc="Per tile, per read and per cycle base and quality counts for PF and non-PF clusters written to this json file if given.", optional=true)
+    public File CYCLE_METRICS_FILE;
+
+    private IndexDecoder indexDecoder;
+
     //TODO: add command option to skip adding ci tag
     
 
     @Override
     protected int doWork() {
 
-        IoUtil.assertFileIsWritable(OUTPUT);
+        if(this.BARCODE_METRICS_FILE != null){
+            IoUtil.assertFileIsWritable(BARCODE_METRICS_FILE);
+        }else{
+            IoUtil.assertFileIsWritable(OUTPUT);
+        }
         
         IoUtil.assertDirectoryIsReadable(this.INTENSITY_DIR);
         
@@ -173,6 +245,10 @@ public class Illumina2bam extends PicardCommandLine {
             log.warn("Both SECOND_BARCODE_SEQUENCE_TAG_NAME and SECOND_BARCODE_QUALITY_TAG_NAME need to be given togeter or both missing");
         }
 
+        if( this.RUN_METADATA_CACHE_DIR != null ){
+           IoUtil.assertDirectoryIsWritable(this.RUN_METADATA_CACHE_DIR);
+        }
+
         Lane lane = new Lane(this.INTENSITY_DIR.getAbsolutePath(),
                 this.BASECALLS_DIR.getAbsolutePath(),
                 runfolderPath,
@@ -183,7 +259,8 @@ public class Illumina2bam extends PicardCommandLine {
                 this.BARCODE_SEQUENCE_TAG_NAME,
                 this.BARCODE_QUALITY_TAG_NAME,
                 this.SECOND_BARCODE_SEQUENCE_TAG_NAME,
-                this.SECOND_BARCODE_QUALITY_TAG_NAME);
+                this.SECOND_BARCODE_QUALITY_TAG_NAME,
+                this.RUN_METADATA_CACHE_DIR);
 
         // update cycle range with command line options (if appropriate)
         if (!FIRST_CYCLE.isEmpty()) {
@@ -197,6 +274,21 @@ public class Illumina2bam extends PicardCommandLine {
                 return status;
             }
         }
+
+        if (this.READ_STRUCTURE != null) {
+            if (!FIRST_CYCLE.isEmpty()) {
+                log.error("READ_STRUCTURE and FIRST_CYCLE can not be given together");
+                return 1;
+            }
+            try {
+                ReadStructure readStructure = new ReadStructure(this.READ_STRUCTURE);
+                log.info("Setting cycle ranges using read structure " + readStructure);
+                lane.setReadStructure(readStructure);
+            } catch (IllegalArgumentException ex) {
+                log.error(ex.getMessage());
+                return 1;
+            }
+        }
         
         log.info("Generating illumina2bam program record");
         lane.setIllumina2bamProgram(this.getThisProgramRecord(this.programName, this.programDS));
@@ -240,10 +332,92 @@ public class Illumina2bam extends PicardCommandLine {
         }
 
         lane.set_bc_read(this.BC_READ);
+        lane.setUmiSeqTagName(this.UMI_SEQUENCE_TAG_NAME);
+        lane.setUmiQualTagName(this.UMI_QUALITY_TAG_NAME);
         lane.set_sec_bc_read(this.SEC_BC_READ);
 
-        log.info("Generating bam or sam file output stream with header");
-        SAMFileWriter outBam = lane.generateOutputSamStream();
+        if (this.PACKED_SECOND_CALL_TAG_NAME != null) {
+            if (this.PACKED_SECOND_CALL_TAG_NAME.length() != 2) {
+                log.error("PACKED_SECOND_CALL_TAG_NAME must be two characters: " + this.PACKED_SECOND_CALL_TAG_NAME);
+                return 1;
+            }
+            if (!this.GENERATE_SECONDARY_BASE_CALLS) {
+                log.warn("PACKED_SECOND_CALL_TAG_NAME ignored without GENERATE_SECONDARY_BASE_CALLS");
+            }
+            lane.setPackedSecondCallTagName(this.PACKED_SECOND_CALL_TAG_NAME);
+        }
+
+        if (this.NUM_THREADS < 1 || this.CLUSTERS_PER_CHUNK < 1) {
+            log.error("NUM_THREADS and CLUSTERS_PER_CHUNK must be positive");
+            return 1;
+        }
+        lane.setNumThreads(this.NUM_THREADS);
+        lane.setClustersPerChunk(this.CLUSTERS_PER_CHUNK);
+
+        if (this.MEMORY_BUDGET != null) {
+            if (this.MEMORY_BUDGET < 1) {
+                log.error("MEMORY_BUDGET must be positive");
+                return 1;
+            }
+            long memoryBudget = this.MEMORY_BUDGET * 1024L * 1024L;
+            if (memoryBudget > Runtime.getRuntime().maxMemory()) {
+                log.warn("MEMORY_BUDGET larger than the maximum heap size " + (Runtime.getRuntime().maxMemory() >> 20) + "MB");
+            }
+            lane.setMemoryBudget(memoryBudget);
+        }
+
+        if (this.SAMPLE_FRACTION != null && (this.SAMPLE_FRACTION < 0 || this.SAMPLE_FRACTION > 1)) {
+            log.error("SAMPLE_FRACTION must be between 0 and 1");
+            return 1;
+        }
+        if (this.MAX_CLUSTERS_PER_TILE != null && this.MAX_CLUSTERS_PER_TILE < 0) {
+            log.error("MAX_CLUSTERS_PER_TILE must not be negative");
+            return 1;
+        }
+        lane.setSampleFraction(this.SAMPLE_FRACTION);
+        lane.setMaxClustersPerTile(this.MAX_CLUSTERS_PER_TILE);
+        lane.setSampleSeed(this.SAMPLE_SEED);
+
+        if (this.CHECK_BASECALL_FILES) {
+            log.info("Checking base call files before conversion");
+            try {
+                //barcode census only reads filter and index read files
+                List<String> problems = lane.checkBaseCallFiles(this.BARCODE_METRICS_FILE != null);
+                for (String problem : problems) {
+                    log.error(problem);
+                }
+                if (!problems.isEmpty()) {
+                    log.error(problems.size() + " problems found in base call files");
+                    return 1;
+                }
+            } catch (Exception ex) {
+                log.error(ex, "Problems to check base call files");
+                return 1;
+            }
+        }
+
+        if(this.BARCODE_METRICS_FILE != null){
+            return this.doBarcodeCensus(lane);
+        }
+
+        CycleMetric cycleMetric = null;
+        if (this.CYCLE_METRICS_FILE != null) {
+            IoUtil.assertFileIsWritable(this.CYCLE_METRICS_FILE);
+            cycleMetric = new CycleMetric();
+            cycleMetric.setProgramName(this.programName);
+            cycleMetric.setProgramCommand(this.getCommandLine());
+            cycleMetric.setProgramVersion(this.getProgramVersion());
+            lane.setCycleMetric(cycleMetric);
+        }
+
+        log.info("Generating output with header: " + this.OUTPUT_SINK);
+        OutputSink outBam;
+        try {
+            outBam = lane.generateOutputSink(this.OUTPUT_SINK);
+        } catch (IOException ex) {
+            log.error(ex, "Problems to open output " + this.OUTPUT);
+            return 1;
+        }
         
         log.info("Writing Basecall files to bam");
         try {
@@ -254,6 +428,15 @@ public class Illumina2bam extends PicardCommandLine {
         }
 
         outBam.close();
+
+        if (outBam instanceof CountingSink) {
+            CountingSink countingSink = (CountingSink) outBam;
+            log.info(countingSink.getRecords() + " records with " + countingSink.getBases() + " bases counted");
+        }
+
+        if (cycleMetric != null) {
+            cycleMetric.output(this.CYCLE_METRICS_FILE);
+        }
         
         log.info("BAM or SAM file generated: " + this.OUTPUT);
 
@@ -261,6 +444,60 @@ public class Illumina2bam extends PicardCommandLine {
     }
 
 
+    /**
+     * count barcodes from index reads only and write barcode metrics
+     * 
+     * @param lane
+     * @return 0 if successful
+     */
+    private int doBarcodeCensus(Lane lane){
+
+        log.info("Counting barcodes from index reads only");
+        long totalClusters;
+        try {
+            totalClusters = lane.processTilesBarcodeCensus(indexDecoder);
+        } catch (Exception ex) {
+            log.error(ex, "Problems to count barcodes ");
+            return 1;
+        }
+        log.info("Barcodes counted for " + totalClusters + " clusters");
+
+        log.info("Writing out barcode metrics file");
+        final MetricsFile<IndexDecoder.BarcodeMetric, Integer> metrics = getMetricsFile();
+        indexDecoder.writeMetrics(metrics, BARCODE_METRICS_FILE);
+
+        log.info("Barcode metrics file generated: " + this.BARCODE_METRICS_FILE);
+
+        return 0;
+    }
+
+    @Override
+    protected String[] customCommandLineValidation() {
+
+        if(this.BARCODE_METRICS_FILE == null){
+            return null;
+        }
+
+        final ArrayList<String> messages = new ArrayList<String>();
+
+        if (BARCODE_FILE != null) {
+            this.indexDecoder = new IndexDecoder(BARCODE_FILE);
+        } else {
+            this.indexDecoder = new IndexDecoder(BARCODE);
+        }
+
+        indexDecoder.setMaxMismatches(this.MAX_MISMATCHES);
+        indexDecoder.setMaxNoCalls(this.MAX_NO_CALLS);
+        indexDecoder.setMinMismatchDelta(this.MIN_MISMATCH_DELTA);
+
+        indexDecoder.prepareDecode(messages);
+
+        if (messages.isEmpty()) {
+            return null;
+        }
+        return messages.toArray(new String[messages.size()]);
+    }
+
     /**
      * Generate read group record
      * 
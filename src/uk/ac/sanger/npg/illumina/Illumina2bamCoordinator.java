@@ -0,0 +1,332 @@
+/*
+ * Copyright (C) 2011 GRL
+ *
+ * This library is free software. You can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package uk.ac.sanger.npg.illumina;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import net.sf.picard.cmdline.Option;
+import net.sf.picard.cmdline.Usage;
+import net.sf.picard.io.IoUtil;
+import net.sf.picard.util.Log;
+import net.sf.samtools.SAMFileHeader;
+import net.sf.samtools.SAMFileReader;
+import net.sf.samtools.util.BlockCompressedInputStream;
+import uk.ac.sanger.npg.bam.util.BamBlockConcatenator;
+import uk.ac.sanger.npg.picard.PicardCommandLine;
+
+/**
+ * Convert one lane with several local Illumina2bam worker processes,
+ * each converting a partition of the tile list through FIRST_TILE and TILE_LIMIT.
+ *
+ * Failed partitions are run again, and the partial BAM files are concatenated
+ * block by block into one BAM file with a single header.
+ *
+ * @author gq1@sanger.ac.uk
+ */
+public class Illumina2bamCoordinator extends PicardCommandLine {
+
+    private final Log log = Log.getInstance(Illumina2bamCoordinator.class);
+
+    private final String programName = "Illumina2bamCoordinator";
+    private final String programDS = "Convert Illumina BCL to BAM file with several local Illumina2bam processes";
+
+    //options set for each worker by the coordinator
+    private static final String [] COORDINATOR_OPTIONS = {"INTENSITY_DIR", "I", "BASECALLS_DIR", "B", "RUN_FOLDER", "R",
+        "LANE", "L", "OUTPUT", "O", "FIRST_TILE", "TILE_LIMIT", "COMPRESSION_LEVEL", "TMP_DIR",
+        "RUN_METADATA_CACHE_DIR"};
+
+    @Usage(programVersion=version)
+    public final String USAGE = this.getStandardUsagePreamble() + this.programDS + ". ";
+
+    @Option(shortName="R", doc="Illumina runfolder directory including runParameters xml file under it, upwards two levels from Intensities directory if not given.", optional=true)
+    public File RUN_FOLDER;
+
+    @Option(shortName="I", doc="Illumina intensities directory including config xml file, and clocs, locs or pos files under lane directory.")
+    public File INTENSITY_DIR;
+
+    @Option(shortName="B", doc="Illumina basecalls directory, using BaseCalls directory under intensities if not given.", optional=true)
+    public File BASECALLS_DIR;
+
+    @Option(shortName="L", doc="Lane number.")
+    public Integer LANE;
+
+    @Option(shortName="O", doc="Output BAM file name.")
+    public File OUTPUT;
+
+    @Option(doc="If set, this is the first tile to be processed.", optional=true)
+    public Integer FIRST_TILE;
+
+    @Option(doc="If set, process no more than this many tiles.", optional=true)
+    public Integer TILE_LIMIT;
+
+    @Option(doc="Number of worker processes running at the same time.")
+    public Integer NUM_WORKERS = 2;
+
+    @Option(doc="Number of tile partitions, NUM_WORKERS if not given.", optional=true)
+    public Integer PARTITIONS;
+
+    @Option(doc="How many times a failed partition is run again.")
+    public Integer MAX_RETRIES = 1;
+
+    @Option(shortName="WORKER_OPTION", doc="Illumina2bam option given to each worker, e.g. PF_FILTER=false. Can be given multiple times.", optional=true)
+    public List<String> WORKER_OPTIONS = new ArrayList<String>();
+
+    @Option(shortName="JVM_OPTION", doc="Java virtual machine option for each worker, e.g. -Xmx2g. Can be given multiple times.", optional=true)
+    public List<String> WORKER_JVM_OPTIONS = new ArrayList<String>();
+
+    @Option(doc="Directory to cache run information read from xml files, used by the coordinator and all workers.", optional=true)
+    public File RUN_METADATA_CACHE_DIR;
+
+    @Option(doc="Keep partial BAM files and worker log files.")
+    public Boolean KEEP_PARTIAL_FILES = false;
+
+    @Override
+    protected int doWork() {
+
+        IoUtil.assertDirectoryIsReadable(this.INTENSITY_DIR);
+        IoUtil.assertFileIsWritable(this.OUTPUT);
+        if(this.RUN_METADATA_CACHE_DIR != null){
+            IoUtil.assertDirectoryIsWritable(this.RUN_METADATA_CACHE_DIR);
+        }
+
+        if(this.BASECALLS_DIR == null){
+            this.BASECALLS_DIR = new File(this.INTENSITY_DIR, "BaseCalls");
+        }
+        if(this.RUN_FOLDER == null && this.INTENSITY_DIR.getAbsoluteFile().getParentFile() != null){
+            this.RUN_FOLDER = this.INTENSITY_DIR.getAbsoluteFile().getParentFile().getParentFile();
+        }
+
+        log.info("Reading tile list of lane " + this.LANE);
+        Lane lane = new Lane(this.INTENSITY_DIR.getAbsolutePath(),
+                this.BASECALLS_DIR.getAbsolutePath(),
+                this.RUN_FOLDER == null ? null : this.RUN_FOLDER.getAbsolutePath(),
+                this.LANE, false, true, this.OUTPUT, "BC", "QT", null, null, this.RUN_METADATA_CACHE_DIR);
+        if( this.FIRST_TILE != null || this.TILE_LIMIT != null ){
+            lane.reduceTileList(this.FIRST_TILE, this.TILE_LIMIT);
+        }
+        int [] tileList = lane.getTileList();
+        for(int i = 1; i < tileList.length; i++){
+            if(tileList[i] <= tileList[i - 1]){
+                log.error("Tile list not in ascending order, can not be partitioned by FIRST_TILE and TILE_LIMIT");
+                return 1;
+            }
+        }
+
+        List<Partition> partitions = this.makePartitions(tileList);
+        log.info(tileList.length + " tiles in " + partitions.size() + " partitions, running " + this.NUM_WORKERS + " workers");
+
+        ExecutorService workers = Executors.newFixedThreadPool(this.NUM_WORKERS);
+        List<Future<File>> results = new ArrayList<Future<File>>(partitions.size());
+        for(Partition partition : partitions){
+            results.add(workers.submit(partition));
+        }
+        workers.shutdown();
+
+        List<File> partialBams = new ArrayList<File>(partitions.size());
+        try {
+            for(Future<File> result : results){
+                partialBams.add(result.get());
+            }
+        } catch (InterruptedException ex) {
+            workers.shutdownNow();
+            log.error(ex, "Interrupted while waiting for workers");
+            return 1;
+        } catch (ExecutionException ex) {
+            workers.shutdownNow();
+            log.error(ex.getCause(), "Problem to convert lane");
+            return 1;
+        }
+
+        log.info("Merging " + partialBams.size() + " partial BAM files into " + this.OUTPUT);
+        try {
+            SAMFileReader reader = new SAMFileReader(partialBams.get(0));
+            SAMFileHeader header = reader.getFileHeader();
+            reader.close();
+            this.addProgramRecordToHead(header, this.getThisProgramRecord(this.programName, this.programDS));
+
+            BamBlockConcatenator.concatenate(header, partialBams, this.OUTPUT, this.COMPRESSION_LEVEL);
+        } catch (IOException ex) {
+            log.error(ex, "Problem to merge partial BAM files");
+            return 1;
+        }
+
+        if(!this.KEEP_PARTIAL_FILES){
+            for(Partition partition : partitions){
+                partition.output.delete();
+                partition.logFile.delete();
+            }
+        }
+
+        return 0;
+    }
+
+    /**
+     * split tile list into continuous partitions with sizes differing by one at most
+     *
+     * @param tileList
+     * @return partitions
+     */
+    private List<Partition> makePartitions(int [] tileList){
+
+        int numberOfPartitions = this.PARTITIONS == null ? this.NUM_WORKERS : this.PARTITIONS;
+        numberOfPartitions = Math.min(numberOfPartitions, tileList.length);
+
+        List<Partition> partitions = new ArrayList<Partition>(numberOfPartitions);
+        int firstIndex = 0;
+        for(int i = 0; i < numberOfPartitions; i++){
+            int size = tileList.length / numberOfPartitions + (i < tileList.length % numberOfPartitions ? 1 : 0);
+            partitions.add(new Partition(i, tileList[firstIndex], size));
+            firstIndex += size;
+        }
+        return partitions;
+    }
+
+    /**
+     * one worker process converting a continuous range of tiles, run again if failed
+     */
+    private class Partition implements Callable<File> {
+
+        private final int index;
+        private final int firstTile;
+        private final int tileLimit;
+        private final File output;
+        private final File logFile;
+
+        Partition(int index, int firstTile, int tileLimit){
+            this.index = index;
+            this.firstTile = firstTile;
+            this.tileLimit = tileLimit;
+            this.output = new File(OUTPUT.getPath() + ".part" + index + ".bam");
+            this.logFile = new File(OUTPUT.getPath() + ".part" + index + ".log");
+        }
+
+        /**
+         * @return worker command line
+         */
+        private List<String> getCommand(){
+
+            List<String> command = new ArrayList<String>();
+            command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+            command.addAll(WORKER_JVM_OPTIONS);
+            command.add("-cp");
+            command.add(System.getProperty("java.class.path"));
+            command.add(Illumina2bam.class.getName());
+            command.add("INTENSITY_DIR=" + INTENSITY_DIR.getAbsolutePath());
+            command.add("BASECALLS_DIR=" + BASECALLS_DIR.getAbsolutePath());
+            if(RUN_FOLDER != null){
+                command.add("RUN_FOLDER=" + RUN_FOLDER.getAbsolutePath());
+            }
+            command.add("LANE=" + LANE);
+            command.add("OUTPUT=" + this.output.getAbsolutePath());
+            command.add("FIRST_TILE=" + this.firstTile);
+            command.add("TILE_LIMIT=" + this.tileLimit);
+            command.add("COMPRESSION_LEVEL=" + COMPRESSION_LEVEL);
+            for(File tmpDir : TMP_DIR){
+                command.add("TMP_DIR=" + tmpDir.getAbsolutePath());
+            }
+            if(RUN_METADATA_CACHE_DIR != null){
+                command.add("RUN_METADATA_CACHE_DIR=" + RUN_METADATA_CACHE_DIR.getAbsolutePath());
+            }
+            command.addAll(WORKER_OPTIONS);
+            return command;
+        }
+
+        @Override
+        public File call() throws Exception {
+
+            List<String> command = this.getCommand();
+            for(int attempt = 0; attempt <= MAX_RETRIES; attempt++){
+
+                log.info("Starting partition " + this.index + " from tile " + this.firstTile + " with "
+                        + this.tileLimit + " tiles, attempt " + (attempt + 1) + ", log in " + this.logFile);
+                this.output.delete();
+
+                ProcessBuilder processBuilder = new ProcessBuilder(command);
+                processBuilder.redirectErrorStream(true);
+                processBuilder.redirectOutput(attempt == 0 ? ProcessBuilder.Redirect.to(this.logFile)
+                        : ProcessBuilder.Redirect.appendTo(this.logFile));
+                Process process = processBuilder.start();
+                int exitValue;
+                try {
+                    exitValue = process.waitFor();
+                } finally {
+                    //only does something if interrupted
+                    process.destroy();
+                }
+
+                if(exitValue == 0 && this.output.exists()
+                        && BlockCompressedInputStream.checkTermination(this.output)
+                           == BlockCompressedInputStream.FileTermination.HAS_TERMINATOR_BLOCK){
+                    log.info("Partition " + this.index + " finished");
+                    return this.output;
+                }
+                log.warn("Partition " + this.index + " failed with exit value " + exitValue);
+            }
+            throw new RuntimeException("Partition " + this.index + " failed after " + (MAX_RETRIES + 1)
+                    + " attempts, see " + this.logFile);
+        }
+    }
+
+    @Override
+    protected String[] customCommandLineValidation() {
+
+        final ArrayList<String> messages = new ArrayList<String>();
+
+        if(this.NUM_WORKERS < 1){
+            messages.add("NUM_WORKERS must be positive");
+        }
+        if(this.PARTITIONS != null && this.PARTITIONS < 1){
+            messages.add("PARTITIONS must be positive");
+        }
+        if(this.MAX_RETRIES < 0){
+            messages.add("MAX_RETRIES must not be negative");
+        }
+        if(!this.OUTPUT.getName().endsWith(".bam")){
+            messages.add("OUTPUT must be a BAM file: " + this.OUTPUT);
+        }
+        for(String workerOption : this.WORKER_OPTIONS){
+            String optionName = workerOption.split("=", 2)[0];
+            for(String coordinatorOption : COORDINATOR_OPTIONS){
+                if(optionName.equals(coordinatorOption)){
+                    messages.add("Worker option set by coordinator: " + workerOption);
+                }
+            }
+        }
+
+        if (messages.isEmpty()) {
+            return null;
+        }
+        return messages.toArray(new String[messages.size()]);
+    }
+
+    /**
+     * example: INTENSITY_DIR=Data/Intensities LANE=1 OUTPUT=1.bam NUM_WORKERS=4 WORKER_OPTION=PF_FILTER=false JVM_OPTION=-Xmx2g
+     * @param args
+     */
+    public static void main(final String[] args) {
+
+        System.exit(new Illumina2bamCoordinator().instanceMain(args));
+    }
+}
@@ -18,23 +18,27 @@
 
 package uk.ac.sanger.npg.illumina;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.Map.Entry;
 import java.util.*;
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.xpath.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import net.sf.picard.util.Log;
 import net.sf.samtools.*;
-import org.w3c.dom.Document;
-import org.w3c.dom.NamedNodeMap;
-import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
-import org.xml.sax.SAXException;
+import uk.ac.sanger.npg.illumina.file.reader.FilterFileReader;
+import uk.ac.sanger.npg.illumina.sink.CountingSink;
+import uk.ac.sanger.npg.illumina.sink.OutputSink;
+import uk.ac.sanger.npg.illumina.sink.SAMFileWriterSink;
+import uk.ac.sanger.npg.illumina.sink.TileSegmentSink;
+import uk.ac.sanger.npg.picard.IndexDecoder;
 
 /**
  * Process an illumina run lane
@@ -65,28 +69,46 @@ public class Lane {
     private String secondBarcodeSeqTagName;
     private String secondBarcodeQualTagName;
 
+    private String umiSeqTagName;
+    private String umiQualTagName;
+
+    private String packedSecondCallTagName;
+
     private int bc_read;
     private int sec_bc_read;
+
+    //parallel processing of cluster ranges of tiles
+    private int numThreads = 1;
+    private int clustersPerChunk = 200000;
+    //estimated bytes of cluster ranges in memory at the same time, no limit if null
+    private Long memoryBudget;
+
+    //rough heap sizes for memory estimates: buffered reader per open file, record overhead
+    private static final long BYTES_PER_OPEN_FILE = 9 * 1024;
+    private static final long BYTES_PER_RECORD = 400;
+
+    //random sample of clusters in each tile, not sampling if both null
+    private Double sampleFraction;
+    private Integer maxClustersPerTile;
+    private long sampleSeed = 1;
+    private final Map<Integer, int[]> clusterSampleByTile = new HashMap<Integer, int[]>();
+
+    //per tile and per cycle counts, not collected if null
+    private CycleMetric cycleMetric;
   
-    //config xml file name and XML Documetns
+    //config xml file names and run information read from them
     private final String baseCallsConfig;
     private final String intensityConfig ;
     private final String runParametersFile;
     private final String runInfoFile;
     
-    private Document baseCallsConfigDoc = null;
-    private Document intensityConfigDoc = null;
-    private Document runParametersDoc = null;
-    private Document runInfoDoc = null;
-    
-    //run config information from basecall config,
-    //or from intersity config if not available there
-    private Node runConfigXmlNode = null;
+    private final RunMetadata runMetadata;
 
 
     //read from config file
     private String id;
     private HashMap<String, int[]> cycleRangeByRead;
+    private ReadStructure readStructure;
     private int [] tileList;
     private SAMProgramRecord baseCallProgram;
     private SAMProgramRecord instrumentProgram;
@@ -98,8 +120,6 @@ public class Lane {
     private SAMProgramRecord illumina2bamProgram;
     private SAMReadGroupRecord readGroup;
 
-    private final XPath xpath;
-
     /**
      *
      * @param intensityDir Illumina intensities directory including config xml file and clocs files under lane directory. Required.
@@ -114,6 +134,7 @@ public class Lane {
      * @param barcodeQualTagName  
      * @param secondBarcodeSeqTagName
      * @param secondBarcodeQualTagName  
+     * @param runMetadataCacheDir directory to cache run information read from xml files, no cache if null
      */
     public Lane(String intensityDir,
                 String baseCallDir,
@@ -125,7 +146,8 @@ public class Lane {
                 String barcodeSeqTagName,
                 String barcodeQualTagName,
                 String secondBarcodeSeqTagName,
-                String secondBarcodeQualTagName){
+                String secondBarcodeQualTagName,
+                File runMetadataCacheDir){
 
         this.intensityDir      = intensityDir;
         this.baseCallDir       = baseCallDir;
@@ -165,10 +187,11 @@ public class Lane {
         
         }
 
-        XPathFactory factory = XPathFactory.newInstance();
-        xpath = factory.newXPath();
-
-        this.initConfigsDoc();
+        this.runMetadata = RunMetadata.read(new File(this.baseCallsConfig),
+                new File(this.intensityConfig),
+                this.runParametersFile == null ? null : new File(this.runParametersFile),
+                this.runInfoFile == null ? null : new File(this.runInfoFile),
+                runMetadataCacheDir);
         try {
             log.info("Reading config xml files");
             readConfigs();
@@ -177,6 +200,36 @@ public class Lane {
         }
     }
 
+    /**
+     *
+     * @param intensityDir Illumina intensities directory including config xml file and clocs files under lane directory. Required.
+     * @param baseCallDir Illumina basecalls directory including config xml file, and filter files, bcl, maybe scl 
+     * files under lane cycle directory, using BaseCalls directory under intensities if not given.
+     * @param runFolder Illumina runfolder directory, upwards two levels from Intensities directory if not given
+     * @param laneNumber lane number
+     * @param secondCall including second base call or not, default false.
+     * @param pfFilter Filter cluster or not, default true.
+     * @param output Output file
+     * @param barcodeSeqTagName
+     * @param barcodeQualTagName  
+     * @param secondBarcodeSeqTagName
+     * @param secondBarcodeQualTagName  
+     */
+    public Lane(String intensityDir,
+                String baseCallDir,
+                String runFolder,
+                int laneNumber,
+                boolean secondCall,
+                boolean pfFilter,
+                File output,
+                String barcodeSeqTagName,
+                String barcodeQualTagName,
+                String secondBarcodeSeqTagName,
+                String secondBarcodeQualTagName){
+        this(intensityDir, baseCallDir, runFolder, laneNumber, secondCall, pfFilter, output,
+             barcodeSeqTagName, barcodeQualTagName, secondBarcodeSeqTagName, secondBarcodeQualTagName, (File)null);
+    }
+
     /**
      *
      * @param intensityDir Illumina intensities directory including config xml file and clocs files under lane directory. Required.
@@ -239,6 +292,27 @@ public class Lane {
         return outputSam;
     }
 
+    /**
+     *
+     * @param type
+     * @return output sink with header to write bam records
+     * @throws IOException
+     */
+    public OutputSink generateOutputSink(OutputSink.Type type) throws IOException {
+
+        switch (type) {
+            case UNCOMPRESSED_STREAM:
+                return SAMFileWriterSink.uncompressedBamStream(this.generateHeader(),
+                        new BufferedOutputStream(new FileOutputStream(this.output)));
+            case TILE_SEGMENTS:
+                return new TileSegmentSink(this.generateHeader(), this.output);
+            case COUNT:
+                return new CountingSink(this.generateHeader());
+            default:
+                return new SAMFileWriterSink(this.generateOutputSamStream());
+        }
+    }
+
     /**
      * write BCL file to output stream tile by tile
      * 
@@ -248,28 +322,41 @@ public class Lane {
      */
     public boolean processTiles(SAMFileWriter outputSam) throws Exception{
 
+        return this.processTiles(new SAMFileWriterSink(outputSam));
+    }
+
+    /**
+     * write BCL file to output sink tile by tile
+     * 
+     * @param outputSam
+     * @return true if successfully
+     * @throws Exception
+     */
+    public boolean processTiles(OutputSink outputSam) throws Exception{
+
+        if(this.numThreads > 1){
+            return this.processClusterRanges(outputSam);
+        }
+
         for(int tileNumber : this.tileList){
             
             log.info("Tile: " + tileNumber);
             
-            Tile tile = new Tile(intensityDir, baseCallDir, id, laneNumber, tileNumber,
-                                 cycleRangeByRead,
-                                 this.includeSecondCall, this.pfFilter,
-                                 this.barcodeSeqTagName, this.barcodeQualTagName);
-            
-            if(this.secondBarcodeSeqTagName != null && this.secondBarcodeQualTagName != null){
-                tile.setSecondBarcodeQualTagName(secondBarcodeQualTagName);
-                tile.setSecondBarcodeSeqTagName(secondBarcodeSeqTagName);
+            Tile tile = this.createTile(tileNumber);
+            if(this.isSampling()){
+                tile.setClusterSample(this.getClusterSample(tileNumber, this.readTotalClusters(tile)));
             }
-            
-            tile.set_bc_read(this.bc_read);
-            tile.set_sec_bc_read(this.sec_bc_read);
 
             log.info("Opening all basecall files");
             tile.openBaseCallFiles();
             
             log.info("Reading all base call files");
+            outputSam.startTile(tileNumber);
             tile.processTile(outputSam);
+            outputSam.endTile(tileNumber);
+            if(this.cycleMetric != null){
+                this.cycleMetric.addTile(tile.getCycleMetric());
+            }
             
             log.info("Closing base call files");
             tile.closeBaseCallFiles();
@@ -279,90 +366,529 @@ public class Lane {
     }
 
     /**
-     * initial XML document
+     * check headers and sizes of all filter, position, BCL and SCL files of the lane in parallel,
+     * before any conversion
+     *
+     * @return all problems found in tile list order, empty if none
+     * @throws Exception
+     */
+    public List<String> checkBaseCallFiles() throws Exception {
+        return this.checkBaseCallFiles(false);
+    }
+
+    /**
+     * check headers and sizes of base call files of the lane in parallel, before any conversion
+     *
+     * @param indexReadsOnly only check filter and index read BCL files, for barcode census
+     * @return all problems found in tile list order, empty if none
+     * @throws Exception
+     */
+    public List<String> checkBaseCallFiles(final boolean indexReadsOnly) throws Exception {
+
+        int threads = Math.min(this.tileList.length, Math.max(this.numThreads, Runtime.getRuntime().availableProcessors()));
+        log.info("Checking base call files of " + this.tileList.length + " tiles with " + threads + " threads");
+
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(threads, 1));
+        List<Future<List<String>>> results = new ArrayList<Future<List<String>>>(this.tileList.length);
+        try {
+            for (int tileNumber : this.tileList) {
+                final Tile tile = this.createTile(tileNumber);
+                results.add(executor.submit(new Callable<List<String>>() {
+                    @Override
+                    public List<String> call() throws Exception {
+                        return tile.checkBaseCallFiles(indexReadsOnly);
+                    }
+                }));
+            }
+
+            List<String> problems = new ArrayList<String>();
+            for (Future<List<String>> result : results) {
+                problems.addAll(result.get());
+            }
+            return problems;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * write BCL files to output stream by splitting tiles into cluster ranges,
+     * which are converted by a pool of threads largest first and written out in tile list order,
+     * each thread keeps the base call files of its last tile open for its next range of that tile
+     * 
+     * @param outputSam
+     * @return true if successfully
+     * @throws Exception
+     */
+    private boolean processClusterRanges(final OutputSink outputSam) throws Exception{
+
+        final List<int[]> clusterRanges = this.splitTilesIntoClusterRanges();
+        log.info(clusterRanges.size() + " cluster ranges to process with " + this.numThreads + " threads");
+
+        //longest processing time first, ranges with the same size in tile list order
+        final long [] work = new long[clusterRanges.size()];
+        Integer [] submitOrder = new Integer[clusterRanges.size()];
+        for (int i = 0; i < work.length; i++) {
+            work[i] = this.getClustersToProcess(clusterRanges.get(i));
+            submitOrder[i] = i;
+        }
+        Arrays.sort(submitOrder, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer r1, Integer r2) {
+                if (work[r1] != work[r2]) {
+                    return work[r1] > work[r2] ? -1 : 1;
+                }
+                return r1 - r2;
+            }
+        });
+
+        //ranges submitted but not written yet, including finished ones waiting in the reorder buffer
+        int maxOutstanding = 2 * this.numThreads;
+
+        //base call files kept open by each thread, whether converting or not
+        long readerMemory = this.numThreads * this.estimateReaderMemory();
+        final long [] memory = new long[clusterRanges.size()];
+        long largestRangeMemory = 0;
+        for (int i = 0; i < memory.length; i++) {
+            memory[i] = this.estimateRangeMemory(work[i]);
+            largestRangeMemory = Math.max(largestRangeMemory, memory[i]);
+        }
+        if (this.memoryBudget != null) {
+            log.info("Base call files open in " + this.numThreads + " threads estimated to use " + (readerMemory >> 20)
+                    + "MB, largest cluster range " + (largestRangeMemory >> 20)
+                    + "MB, memory budget " + (this.memoryBudget >> 20) + "MB");
+            if (readerMemory + largestRangeMemory > this.memoryBudget) {
+                log.warn("Memory budget smaller than the estimate for one cluster range, processing ranges one at a time");
+            }
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(this.numThreads);
+        OpenTiles openTiles = new OpenTiles();
+        List<Future<List<SAMRecord>>> futures = new ArrayList<Future<List<SAMRecord>>>(
+                Collections.<Future<List<SAMRecord>>>nCopies(clusterRanges.size(), null));
+        Integer currentTile = null;
+        try {
+            int outstanding = 0;
+            long outstandingMemory = 0;
+            int nextSubmit = 0;
+            for (int nextWrite = 0; nextWrite < clusterRanges.size(); nextWrite++) {
+
+                //the range to write next must always run, otherwise the buffer could fill up with later ranges
+                if (futures.get(nextWrite) == null) {
+                    futures.set(nextWrite, this.submitClusterRange(executor, openTiles, outputSam.getFileHeader(), clusterRanges.get(nextWrite)));
+                    outstanding++;
+                    outstandingMemory += memory[nextWrite];
+                }
+                while (nextSubmit < submitOrder.length && outstanding < maxOutstanding) {
+                    int rangeIndex = submitOrder[nextSubmit];
+                    if (futures.get(rangeIndex) == null) {
+                        //admit more ranges only while the estimate stays in the budget
+                        if (this.memoryBudget != null && readerMemory + outstandingMemory + memory[rangeIndex] > this.memoryBudget) {
+                            break;
+                        }
+                        futures.set(rangeIndex, this.submitClusterRange(executor, openTiles, outputSam.getFileHeader(), clusterRanges.get(rangeIndex)));
+                        outstanding++;
+                        outstandingMemory += memory[rangeIndex];
+                    }
+                    nextSubmit++;
+                }
+
+                List<SAMRecord> records;
+                try {
+                    records = futures.get(nextWrite).get();
+                } catch (ExecutionException ex) {
+                    if (ex.getCause() instanceof Exception) {
+                        throw (Exception) ex.getCause();
+                    }
+                    throw ex;
+                }
+                futures.set(nextWrite, null);
+                outstanding--;
+                outstandingMemory -= memory[nextWrite];
+                int tileNumber = clusterRanges.get(nextWrite)[0];
+                if (currentTile == null || currentTile != tileNumber) {
+                    if (currentTile != null) {
+                        outputSam.endTile(currentTile);
+                    }
+                    outputSam.startTile(tileNumber);
+                    currentTile = tileNumber;
+                }
+                for (SAMRecord record : records) {
+                    outputSam.addAlignment(record);
+                }
+            }
+            if (currentTile != null) {
+                outputSam.endTile(currentTile);
+            }
+        } finally {
+            executor.shutdownNow();
+            openTiles.closeAll();
+        }
+
+        return true;
+    }
+
+    /**
      * 
-     * covert basecalls and intensity config file, runInfo and runParameters xml file into xml document
+     * @param executor
+     * @param openTiles
+     * @param header
+     * @param range
+     * @return records of this range when converted
+     */
+    private Future<List<SAMRecord>> submitClusterRange(ExecutorService executor, final OpenTiles openTiles,
+            final SAMFileHeader header, final int[] range){
+
+        return executor.submit(new Callable<List<SAMRecord>>() {
+            @Override
+            public List<SAMRecord> call() throws Exception {
+                return processClusterRange(openTiles, header, range);
+            }
+        });
+    }
+
+    /**
      * 
-     * try to get runConfigXmlNode from  basecalls or intensity config file.
+     * @param range tile number, first cluster and number of clusters
+     * @return number of clusters to be converted in this range, only sampled ones if sampling
+     */
+    private long getClustersToProcess(int[] range){
+
+        if(!this.isSampling()){
+            return range[2];
+        }
+        int [] sample = this.clusterSampleByTile.get(range[0]);
+        return lowerBound(sample, range[1] + range[2]) - lowerBound(sample, range[1]);
+    }
+
+    /**
+     * estimate heap used by the base call files of one tile open in a converting thread,
+     * from open BCL and SCL files and the packed second calls of the largest cluster range read from each SCL file
+     *
+     * @return estimated bytes
+     */
+    private long estimateReaderMemory(){
+
+        long cycles = this.countCycles(true) + this.countCycles(false);
+
+        //filter, position and all cycle files, twice for second calls
+        long openFiles = 2 + cycles * (this.includeSecondCall ? 2 : 1);
+
+        //four second calls in each byte
+        long secondCallBytes = 0;
+        if (this.includeSecondCall) {
+            secondCallBytes = cycles * ((this.clustersPerChunk + 3) / 4 + 1);
+        }
+
+        return openFiles * BYTES_PER_OPEN_FILE + secondCallBytes;
+    }
+
+    /**
+     * estimate heap used by keeping the records of one cluster range until written,
+     * from record sizes given by the cycles of each read
+     *
+     * @param clusters number of clusters converted in the range
+     * @return estimated bytes
+     */
+    private long estimateRangeMemory(long clusters){
+
+        long templateCycles = this.countCycles(true);
+        long otherCycles = this.countCycles(false);
+        int records = this.getReadStructure().getSegments(ReadStructure.TEMPLATE).size();
+
+        //bases and qualities, two bytes per char for E2 and tag strings
+        long secondCallBytes = 0;
+        if (this.includeSecondCall) {
+            secondCallBytes = this.packedSecondCallTagName == null ? templateCycles * 2 : templateCycles / 4 + records;
+        }
+        long bytesPerCluster = records * BYTES_PER_RECORD
+                + templateCycles * 2 + secondCallBytes
+                + otherCycles * 4;
+
+        return clusters * bytesPerCluster;
+    }
+
+    /**
      * 
+     * @param template count template cycles, otherwise cycles of all other segments not skipped
+     * @return number of cycles
      */
-    private void initConfigsDoc(){
+    private long countCycles(boolean template){
+
+        long cycles = 0;
+        for (ReadStructure.Segment segment : this.getReadStructure().getSegments()) {
+            if (segment.getType() == ReadStructure.TEMPLATE) {
+                cycles += template ? segment.getLength() : 0;
+            } else if (segment.getType() != ReadStructure.SKIP) {
+                cycles += template ? 0 : segment.getLength();
+            }
+        }
+        return cycles;
+    }
 
-        DocumentBuilderFactory dbf =
-                DocumentBuilderFactory.newInstance();
+    /**
+     * 
+     * @param sorted
+     * @param value
+     * @return index of the first element not less than value
+     */
+    private static int lowerBound(int [] sorted, int value){
+        int index = Arrays.binarySearch(sorted, value);
+        return index < 0 ? -index - 1 : index;
+    }
 
-        DocumentBuilder db = null;
+    /**
+     * convert one cluster range of a tile into a list of records,
+     * with the base call files this thread opened for an earlier range of the tile if any
+     * 
+     * @param openTiles tiles with base call files open in each thread
+     * @param header output header
+     * @param range tile number, first cluster and number of clusters
+     * @return records of this range in cluster order
+     * @throws Exception
+     */
+    private List<SAMRecord> processClusterRange(OpenTiles openTiles, SAMFileHeader header, int[] range) throws Exception {
+
+        log.info("Tile: " + range[0] + " clusters " + range[1] + "-" + (range[1] + range[2]));
+
+        Tile tile = openTiles.get();
+        RecordCollector collector = new RecordCollector(header, range[2] * (this.cycleRangeByRead.containsKey("read2") ? 2 : 1));
         try {
-            db = dbf.newDocumentBuilder();
-        } catch (ParserConfigurationException ex) {
-            log.error(ex, "Problem generating XML DocumentBuilder");
+            if (tile == null || tile.getTileNumber() != range[0]) {
+                if (tile != null) {
+                    openTiles.close(tile);
+                }
+                tile = this.createTile(range[0]);
+                if(this.isSampling()){
+                    tile.setClusterSample(this.clusterSampleByTile.get(range[0]));
+                }
+                openTiles.open(tile);
+            }
+            tile.processTile(collector, range[1], range[2]);
+        } catch (Exception ex) {
+            if (tile != null) {
+                openTiles.close(tile);
+            }
+            throw ex;
+        }
+        if(this.cycleMetric != null){
+            this.cycleMetric.addTile(tile.getCycleMetric());
         }
+        return collector.records;
+    }
 
-        File baseCallsConfigFile = new File(this.baseCallsConfig);
-        
-        if (baseCallsConfigFile.exists()) {
-            try {
-                baseCallsConfigDoc = db.parse(baseCallsConfigFile);
-            } catch (SAXException ex) {
-                log.error(ex, "Problem parsing basecalls config xml file " + this.baseCallsConfig);
-            } catch (IOException ex) {
-                log.error(ex, "Problem reading basecall config file " + this.baseCallsConfig);
+    /**
+     * split tiles into cluster ranges in tile list order,
+     * reading the number of clusters from each filter file header
+     * 
+     * @return a list of tile number, first cluster and number of clusters
+     * @throws Exception
+     */
+    private List<int[]> splitTilesIntoClusterRanges() throws Exception {
+
+        List<int[]> clusterRanges = new ArrayList<int[]>();
+        for(int tileNumber : this.tileList){
+            int totalClusters = this.readTotalClusters(this.createTile(tileNumber));
+            if(this.isSampling()){
+                this.clusterSampleByTile.put(tileNumber, this.getClusterSample(tileNumber, totalClusters));
             }
 
-            NodeList runNodeList = baseCallsConfigDoc.getElementsByTagName("Run");
-            if(runNodeList.getLength() == 1){
-                this.runConfigXmlNode = runNodeList.item(0);
+            int firstCluster = 0;
+            do {
+                int numberOfClusters = Math.min(this.clustersPerChunk, totalClusters - firstCluster);
+                clusterRanges.add(new int[]{tileNumber, firstCluster, numberOfClusters});
+                firstCluster += numberOfClusters;
+            } while (firstCluster < totalClusters);
+        }
+        return clusterRanges;
+    }
+
+    /**
+     * 
+     * @param tile
+     * @return number of clusters in the filter file header of this tile
+     * @throws Exception
+     */
+    private int readTotalClusters(Tile tile) throws Exception {
+
+        FilterFileReader filterFileReader = new FilterFileReader(tile.getFilterFileName());
+        int totalClusters = filterFileReader.getTotalClusters();
+        filterFileReader.close();
+        return totalClusters;
+    }
+
+    /**
+     * 
+     * @return true if only a random sample of clusters to be processed
+     */
+    private boolean isSampling(){
+        return this.sampleFraction != null || this.maxClustersPerTile != null;
+    }
+
+    /**
+     * select clusters of a tile, the same seed and tile always give the same sample
+     * 
+     * @param tileNumber
+     * @param totalClusters
+     * @return sorted zero based indices of selected clusters
+     */
+    private int[] getClusterSample(int tileNumber, int totalClusters){
+
+        int sampleSize = totalClusters;
+        if(this.sampleFraction != null){
+            sampleSize = (int) Math.round(totalClusters * this.sampleFraction);
+        }
+        if(this.maxClustersPerTile != null){
+            sampleSize = Math.min(sampleSize, this.maxClustersPerTile);
+        }
+        Random random = new Random(this.sampleSeed * 31 + tileNumber);
+        int[] sample = Tile.selectClusterSample(totalClusters, sampleSize, random);
+        log.info("Tile " + tileNumber + ": " + sample.length + " clusters selected out of " + totalClusters);
+        return sample;
+    }
+
+    /**
+     * 
+     * @param tileNumber
+     * @return a tile object with tag names and barcode reads set
+     */
+    private Tile createTile(int tileNumber){
+
+        Tile tile = new Tile(intensityDir, baseCallDir, id, laneNumber, tileNumber,
+                             this.getReadStructure(),
+                             this.includeSecondCall, this.pfFilter,
+                             this.barcodeSeqTagName, this.barcodeQualTagName);
+
+        if(this.secondBarcodeSeqTagName != null && this.secondBarcodeQualTagName != null){
+            tile.setSecondBarcodeQualTagName(secondBarcodeQualTagName);
+            tile.setSecondBarcodeSeqTagName(secondBarcodeSeqTagName);
+        }
+
+        tile.setUmiSeqTagName(this.umiSeqTagName);
+        tile.setUmiQualTagName(this.umiQualTagName);
+        tile.setPackedSecondCallTagName(this.packedSecondCallTagName);
+
+        tile.set_bc_read(this.bc_read);
+        tile.set_sec_bc_read(this.sec_bc_read);
+
+        tile.setCollectCycleMetric(this.cycleMetric != null);
+
+        return tile;
+    }
+
+    /**
+     * tile with base call files open in each converting thread,
+     * kept for the next cluster range of the same tile and all closed at the end
+     */
+    private static class OpenTiles extends ThreadLocal<Tile> {
+
+        private final List<Tile> tiles = new ArrayList<Tile>();
+
+        /**
+         * open base call files of a tile for cluster ranges in this thread
+         * 
+         * @param tile
+         * @throws Exception
+         */
+        void open(Tile tile) throws Exception {
+
+            synchronized (this.tiles) {
+                this.tiles.add(tile);
             }
+            this.set(tile);
+            tile.openBaseCallFilesForRanges();
         }
 
-        File intensityConfigFile = new File(this.intensityConfig);
-        
-        if (intensityConfigFile.exists()) {
-            try {
-                intensityConfigDoc = db.parse(intensityConfigFile);
-            } catch (SAXException ex) {
-                log.error(ex, "Problems to parsing intensity config xml file " + this.intensityConfig);
-            } catch (IOException ex) {
-                log.error(ex, "Problems to read intensity config xml file " + this.intensityConfig);
+        /**
+         * close base call files of a tile opened in this thread
+         * 
+         * @param tile
+         */
+        void close(Tile tile) {
+
+            synchronized (this.tiles) {
+                this.tiles.remove(tile);
             }
-            if( this.runConfigXmlNode == null ){
-                NodeList runNodeList = intensityConfigDoc.getElementsByTagName("Run");
-                if(runNodeList.getLength() == 1){
-                   this.runConfigXmlNode = runNodeList.item(0);
+            this.remove();
+            tile.closeBaseCallFiles();
+        }
+
+        /**
+         * close base call files of tiles still open in any thread
+         */
+        void closeAll() {
+
+            synchronized (this.tiles) {
+                for (Tile tile : this.tiles) {
+                    tile.closeBaseCallFiles();
                 }
+                this.tiles.clear();
             }
         }
-   
-        if( this.runConfigXmlNode == null ){
-            log.info("Neither Intensities nor BaseCalls config files are available or they have unrecognised formats");
+    }
+
+    /**
+     * keep records of a cluster range in memory until they can be written in order
+     */
+    private static class RecordCollector implements SAMFileWriter {
+
+        private final SAMFileHeader header;
+        private final List<SAMRecord> records;
+
+        RecordCollector(SAMFileHeader header, int expectedRecords){
+            this.header = header;
+            this.records = new ArrayList<SAMRecord>(expectedRecords);
+        }
+
+        @Override
+        public void addAlignment(SAMRecord record) {
+            this.records.add(record);
+        }
+
+        @Override
+        public SAMFileHeader getFileHeader() {
+            return this.header;
+        }
+
+        @Override
+        public void close() {
         }
-        
-        this.runParametersDoc = this.fromXmlToDocument(this.runParametersFile, db);
-        
-        this.runInfoDoc       = this.fromXmlToDocument(this.runInfoFile, db);
-        
     }
-    
-    private Document fromXmlToDocument(String xmlFileName, DocumentBuilder db) {
 
-        Document doc = null;
-        if (xmlFileName != null) {
-            File xmlFileObj = new File(xmlFileName);
-            if (xmlFileObj.exists()) {
-                try {
-                    doc = db.parse(xmlFileObj);
-                } catch (SAXException ex) {
-                    log.error(ex, "Problems to parsing runParameters xml file " + xmlFileName);
-                } catch (IOException ex) {
-                    log.error(ex, "Problems to read run parameters xml file " + xmlFileName);
-                }
-            } else {
-                log.warn("XML file not exists " + xmlFileName);
-            }
+    /**
+     * count barcodes tile by tile only reading filter and index read BCL files
+     * 
+     * @param indexDecoder decoder with barcode list prepared
+     * @return total number of clusters counted
+     * @throws Exception
+     */
+    public long processTilesBarcodeCensus(IndexDecoder indexDecoder) throws Exception{
+
+        long totalClusters = 0;
+        for(int tileNumber : this.tileList){
+            
+            log.info("Tile: " + tileNumber);
+            
+            Tile tile = new Tile(intensityDir, baseCallDir, id, laneNumber, tileNumber,
+                                 this.getReadStructure(),
+                                 false, this.pfFilter,
+                                 this.barcodeSeqTagName, this.barcodeQualTagName);
+
+            log.info("Opening index read basecall files");
+            tile.openIndexBaseCallFiles();
+            
+            log.info("Counting barcodes");
+            totalClusters += tile.processTileBarcodeCensus(indexDecoder);
+            
+            log.info("Closing base call files");
+            tile.closeBaseCallFiles();
         }
-        return doc;
+
+        return totalClusters;
     }
 
+    
+
     /**
      * read base calls configure XML file for basecalls Program Record
      * 
@@ -372,14 +898,14 @@ public class Lane {
         
         log.info("Reading BaseCalls config xml file " + this.baseCallsConfig);
 
-        if (baseCallsConfigDoc == null && this.runParametersDoc == null) {
+        if (!this.runMetadata.hasBaseCallsConfig() && !this.runMetadata.hasRunParameters()) {
             log.info("No parse of baseCalls config or runParameters files");
             this.baseCallProgram = new SAMProgramRecord("basecalling");
             return;
         }
 
         //read basecall software name and version
-        if(this.baseCallsConfigDoc != null){
+        if(this.runMetadata.hasBaseCallsConfig()){
             log.info("Reading BaseCalls config XML file for basecalling program record " + this.baseCallsConfig );
             this.baseCallProgram = this.readBaseCallProgramRecord();
         }else{
@@ -400,14 +926,14 @@ public class Lane {
      */
     private void readIntensityConfig() throws Exception {
 
-        if (intensityConfigDoc == null && this.runParametersDoc == null) {
+        if (!this.runMetadata.hasIntensityConfig() && !this.runMetadata.hasRunParameters()) {
             log.info("No parse of Intensity config or runParameters files");
             this.instrumentProgram = new SAMProgramRecord("SCS");
             return;
         }
 
         //read instrument software name and version
-        if(this.runParametersDoc != null){
+        if(this.runMetadata.hasRunParameters()){
             log.info("Reading runParameters XML file for instrument program record " + this.runParametersFile );
             this.instrumentProgram = this.readInstrumentProgramRecordFromRunParameterFile();
         }else{
@@ -457,7 +983,7 @@ public class Lane {
         }
         
         runfolderConfig = readRunfolder();
-        if(runfolderConfig == null && runParametersDoc != null){
+        if(runfolderConfig == null && this.runMetadata.hasRunParameters()){
             runfolderConfig = this.readRunfolderFromRunParametersFile();
         }
         if(runfolderConfig != null ){
@@ -465,7 +991,7 @@ public class Lane {
         }
         
         runDateConfig = readRunDate();
-        if(runDateConfig == null && runParametersDoc != null){
+        if(runDateConfig == null && this.runMetadata.hasRunParameters()){
             runDateConfig = this.readRunDateFromRunParametersFile();
         }
         if(runDateConfig != null){
@@ -473,12 +999,12 @@ public class Lane {
         }
         
         //try different file for cycle and read information
-        if(this.cycleRangeByRead == null && this.runInfoDoc != null){
+        if(this.cycleRangeByRead == null && this.runMetadata.hasRunInfo()){
             log.info("Check cycle range per read from RunInfo file");
             this.cycleRangeByRead = this.getCycleRangeByReadFromRunInfoFile();
         }
         
-        if(this.cycleRangeByRead == null && this.runParametersDoc != null){
+        if(this.cycleRangeByRead == null && this.runMetadata.hasRunParameters()){
            log.info("Check cycle reange per read from runParameter file");
            this.cycleRangeByRead = this.getCycleRangeByReadFromRunParametersFile();
         }
@@ -526,18 +1052,15 @@ public class Lane {
      */
     public int [] calcTileList(){
 //     <FlowcellLayout LaneCount="8" SurfaceCount="2" SwathCount="2" TileCount="24">
-        Node nodeLayout;
-        try {
-            XPathExpression expr = xpath.compile("/RunInfo/Run/FlowcellLayout");
-            nodeLayout = (Node) expr.evaluate(runInfoDoc, XPathConstants.NODE);
-        } catch (XPathExpressionException ex) {
-            log.error(ex, "Problems parsing RunInfo /RunInfo/Run/FlowcellLayout");
+        int [] layout = this.runMetadata.getFlowcellLayout();
+        if(layout == null){
+            log.error("Problems parsing RunInfo /RunInfo/Run/FlowcellLayout");
             return null;
         }
 
-        int numSurfaces =  Integer.parseInt(nodeLayout.getAttributes().getNamedItem("SurfaceCount").getNodeValue());
-        int numSwaths = Integer.parseInt(nodeLayout.getAttributes().getNamedItem("SwathCount").getNodeValue());
-        int numTilesPerSwath = Integer.parseInt(nodeLayout.getAttributes().getNamedItem("TileCount").getNodeValue());
+        int numSurfaces =  layout[0];
+        int numSwaths = layout[1];
+        int numTilesPerSwath = layout[2];
         int[] calcedList = new int[numSwaths * numTilesPerSwath * numSurfaces];
         int count = 0;
         for (int isur = 1; isur <= numSurfaces; ++isur){
@@ -557,19 +1080,13 @@ public class Lane {
      */
     public SAMProgramRecord readBaseCallProgramRecord (){
 
-        Node nodeSoftware;
-        try {
-            XPathExpression exprBaseCallSoftware = xpath.compile("/BaseCallAnalysis/Run/Software");
-            nodeSoftware = (Node) exprBaseCallSoftware.evaluate(baseCallsConfigDoc, XPathConstants.NODE);
-        } catch (XPathExpressionException ex) {
-            log.error(ex, "Problems to read base calling program /BaseCallAnalysis/Run/Software");
+        String softwareName = this.runMetadata.getBaseCallSoftwareName();
+        String softwareVersion = this.runMetadata.getBaseCallSoftwareVersion();
+    
+        if(softwareName == null && softwareVersion == null){
+            log.error("Problems to read base calling program /BaseCallAnalysis/Run/Software");
             return null;
         }
-
-        NamedNodeMap nodeMapSoftware = nodeSoftware.getAttributes();
-        String softwareName = nodeMapSoftware.getNamedItem("Name").getNodeValue();
-        String softwareVersion = nodeMapSoftware.getNamedItem("Version").getNodeValue();
-    
         if(softwareName == null || softwareVersion == null){
             log.warn("No base calling program name or version returned");
         }
@@ -588,15 +1105,7 @@ public class Lane {
      */
     public SAMProgramRecord readBaseCallProgramRecordFromRunParameterFile (){
 
-        Node nodeRTAVersion;
-        try {
-            XPathExpression exprBaseCallSoftware = xpath.compile("/RunParameters/Setup/RTAVersion/text()");
-            nodeRTAVersion = (Node) exprBaseCallSoftware.evaluate(this.runParametersDoc, XPathConstants.NODE);
-        } catch (XPathExpressionException ex) {
-            log.error(ex, "Problems readind base calling program RTA version /RunParameters/Setup/RTAVersion from run parameter file");
-            return null;
-        }
-        String softwareVersion = nodeRTAVersion.getNodeValue();
+        String softwareVersion = this.runMetadata.getRtaVersion();
     
         if(softwareVersion == null){
             log.warn("No base calling program name or version returned");
@@ -616,22 +1125,9 @@ public class Lane {
      */
     public int[] readTileList() {
 
-        if(this.runConfigXmlNode == null) {return null;}
-        int[] tileListConfig = null;
-        
-        NodeList tilesForLane;
-        try {
-            XPathExpression exprLane = xpath.compile("TileSelection/Lane[@Index=" + this.laneNumber + "]/Tile/text()");
-            tilesForLane = (NodeList) exprLane.evaluate(this.runConfigXmlNode, XPathConstants.NODESET);
-        } catch (XPathExpressionException ex) {
-            log.error(ex, "Problem getting a list of tiles from config files." );
-            return null;
-        }       
-        tileListConfig = new int[tilesForLane.getLength()];
-        for (int i = 0; i < tilesForLane.getLength(); i++) {
-            Node tile = tilesForLane.item(i);
-            tileListConfig[i] = Integer.parseInt(tile.getNodeValue());
-        }
+        if(!this.runMetadata.hasRunConfig()) {return null;}
+
+        int[] tileListConfig = this.runMetadata.getTiles(this.laneNumber);
         
         //TODO: the order of tile numbers
         Arrays.sort(tileListConfig);
@@ -647,25 +1143,14 @@ public class Lane {
      */
     public int[] readTileRange() {
 
-        if(this.runConfigXmlNode == null) {return null;}
+        if(!this.runMetadata.hasRunConfig()) {return null;}
         int[] tileRangeConfig = null;
         
-        NodeList tileRangeList;
-        try {
-            XPathExpression exprLane = xpath.compile("TileSelection/Lane[@Index=" + this.laneNumber + "]/TileRange");
-            tileRangeList = (NodeList) exprLane.evaluate(this.runConfigXmlNode, XPathConstants.NODESET);
-        } catch (XPathExpressionException ex) {
-            log.error(ex, "Problem getting a list of tile ranges from config files." );
-            return null;
-        }
-        
         ArrayList<Integer> tileArrayList = new ArrayList<Integer>(); 
-        for (int j = 0; j < tileRangeList.getLength(); j++) {
+        for (int [] tileRange : this.runMetadata.getTileRanges(this.laneNumber)) {
             
-            Node tileRangeForLane = tileRangeList.item(j);
-            NamedNodeMap rangeAttributes = tileRangeForLane.getAttributes();
-            int minTileNumber = Integer.parseInt(rangeAttributes.getNamedItem("Min").getNodeValue());
-            int maxTileNumber = Integer.parseInt(rangeAttributes.getNamedItem("Max").getNodeValue());
+            int minTileNumber = tileRange[0];
+            int maxTileNumber = tileRange[1];
 
             int numberOfTiles = maxTileNumber - minTileNumber + 1;
             for (int i = 0; i < numberOfTiles; i++) {
@@ -689,21 +1174,11 @@ public class Lane {
 
         String runID      = null;
         String instrument = null;
-        if(this.runConfigXmlNode != null){
-          try {
-            XPathExpression e = xpath.compile("RunParameters/RunFolderId/text()");
-            Node n = (Node) e.evaluate(this.runConfigXmlNode, XPathConstants.NODE);
-            if (n != null) {
-                runID = n.getNodeValue();
-                e = xpath.compile("RunParameters/Instrument/text()");
-                n = (Node) e.evaluate(this.runConfigXmlNode, XPathConstants.NODE);
-                if (n != null) {
-                    instrument = n.getNodeValue();
-                }
+        if(this.runMetadata.hasRunConfig()){
+            runID = this.runMetadata.getRunFolderId();
+            if (runID != null) {
+                instrument = this.runMetadata.getInstrument();
             }
-          } catch (XPathExpressionException ex) {
-            log.error("Problems to read instrument name and id run from config file: " + ex.getMessage() );
-          }
         }
         if(runID == null || instrument == null) {
             log.warn("No instrument name or id run returned.");
@@ -717,11 +1192,11 @@ public class Lane {
      * @return
      */
     public HashMap<String, int[]> getCycleRangeByReadFromRunInfoFile() {
-        if(this.runInfoDoc == null) {
+        if(!this.runMetadata.hasRunInfo()) {
             return null;
         }
 
-        TreeMap<Integer, NamedNodeMap> readAttributesList = this.getReadInfoFromRunParametersOrRunInfoFile("RunInfo/Run/Reads/Read", this.runInfoDoc);
+        List<int[]> readAttributesList = this.runMetadata.getRunInfoReads();
         if(readAttributesList == null || readAttributesList.isEmpty()){
             return null;
         }
@@ -729,47 +1204,41 @@ public class Lane {
     }
         
     /**
+     * reads under Setup for HiSeq run, or RunInfoRead for MiSeq run
      * 
      * @return
      */
     public HashMap<String, int[]> getCycleRangeByReadFromRunParametersFile(){
         
-        HashMap<String, int[]> cycleRangeByReadMap;
-        
-        TreeMap<Integer,NamedNodeMap> readAttributesList;
-        
-        //for HiSeq run
-        readAttributesList= this.getReadInfoFromRunParametersOrRunInfoFile("RunParameters/Setup/Reads/Read", this.runParametersDoc);
-       
-        if(readAttributesList== null || readAttributesList.isEmpty()){
-            
-            //if not, try MiSeq format
-            readAttributesList = this.getReadInfoFromRunParametersOrRunInfoFile("RunParameters/Reads/RunInfoRead", this.runParametersDoc);            
+        List<int[]> readAttributesList = this.runMetadata.getRunParametersReads();
+        if(readAttributesList == null){
+            return null;
         }
-        
-        cycleRangeByReadMap = this.readCycleRangeByReadMap(readAttributesList);
    
-        return cycleRangeByReadMap;
+        return this.readCycleRangeByReadMap(readAttributesList);
     }
     
-    private HashMap<String, int[]> readCycleRangeByReadMap(TreeMap<Integer, NamedNodeMap> readAttributesList) {
+    /**
+     * 
+     * @param readAttributesList read number, number of cycles and 1 for index read, of each read in read number order
+     * @return 
+     */
+    private HashMap<String, int[]> readCycleRangeByReadMap(List<int[]> readAttributesList) {
         
         HashMap<String, int[]> cycleRangeByReadMap = new HashMap<String, int[]>();
         
         int readCount = 0;
         int indexReadCount = 0;
         int cycleCount = 1;
-        for (Entry<Integer, NamedNodeMap> entry : readAttributesList.entrySet()) {
-
-            NamedNodeMap namedNodeMap = entry.getValue();
+        for (int [] readAttributes : readAttributesList) {
 
-            int readNumCycles = Integer.parseInt(namedNodeMap.getNamedItem("NumCycles").getNodeValue());
-            String isIndexedRead = namedNodeMap.getNamedItem("IsIndexedRead").getNodeValue();
+            int readNumCycles = readAttributes[1];
+            boolean isIndexedRead = readAttributes[2] == 1;
 
             int[] cycleRange = {cycleCount, cycleCount + readNumCycles - 1};
             cycleCount += readNumCycles;
 
-            if (!isIndexedRead.equalsIgnoreCase("Y")) {
+            if (!isIndexedRead) {
                 readCount++;
                 cycleRangeByReadMap.put(getReadName(readCount, false), 
                                         cycleRange);
@@ -885,41 +1354,6 @@ public class Lane {
     }
 
     
-    /**
-     * From runParameters file:
-     * "RunParameters/Setup/Reads/Read" for HiSeq, "RunParameters/Reads/RunInfoRead" for MiSeq and no file for GA
-     * 
-     * From RunInfo file: "RunInfo/Run/Reads/Read" only for HiSeq and MiSeq, not cope with GA
-     * 
-     * @param readInfoPath
-     * 
-     * @param xmlDoc 
-     * @return
-     */
-    public TreeMap<Integer,NamedNodeMap> getReadInfoFromRunParametersOrRunInfoFile(String readInfoPath, Document xmlDoc){
-
-        TreeMap<Integer, NamedNodeMap> readAttributesList = new TreeMap<Integer, NamedNodeMap>();
-
-        try {
-            XPathExpression exprReadList = xpath.compile(readInfoPath);
-            NodeList readNodeList = (NodeList) exprReadList.evaluate(xmlDoc, XPathConstants.NODESET);
-            for (int i = 0; i < readNodeList.getLength(); i++) {
-                Node readNode = readNodeList.item(i);
-                NamedNodeMap readAttributes = readNode.getAttributes();
-                Node numberAttributeNode = readAttributes.getNamedItem("Number");
-                if (numberAttributeNode == null) {
-                    return null;
-                } else {
-                    int readNumber = Integer.parseInt(numberAttributeNode.getNodeValue());
-                    readAttributesList.put(readNumber, readAttributes);
-                }
-            }
-        }catch (XPathExpressionException ex) {
-            log.error(ex, "Problems to get reads information from runParameters file based on xpath " + readInfoPath, ex);
-        }
-
-        return readAttributesList;
-    }
 
     /**
      *
@@ -979,33 +1413,12 @@ public class Lane {
 
         log.info("Reading cycle numbers for each read");
         
-        int [][] cycleRangeByReadConfig = null;
-        NodeList readList = null;
-        try {
-            XPathExpression exprReads = xpath.compile("RunParameters/Reads");
-            readList = (NodeList) exprReads.evaluate(this.runConfigXmlNode, XPathConstants.NODESET);
-
-            cycleRangeByReadConfig = new int [readList.getLength()][2];
-
-            for(int i = 0; i<readList.getLength(); i++){
-
-                Node readNode = readList.item(i);
-
-                int readIndex = Integer.parseInt(readNode.getAttributes().getNamedItem("Index").getNodeValue());
-                readIndex--;
-
-                XPathExpression exprFirstCycle= xpath.compile("FirstCycle/text()");
-                Node firstCycleNode = (Node) exprFirstCycle.evaluate(readNode, XPathConstants.NODE);
-                cycleRangeByReadConfig[readIndex][0] = Integer.parseInt(firstCycleNode.getNodeValue());
-
-                XPathExpression exprLastCycle= xpath.compile("LastCycle/text()");
-                Node lastCycleNode = (Node) exprLastCycle.evaluate(readNode, XPathConstants.NODE);
-                cycleRangeByReadConfig[readIndex][1] = Integer.parseInt(lastCycleNode.getNodeValue());
-            }
-
-        } catch (XPathExpressionException ex) {
-            log.error(ex, "Problem reading cycle numbers from config xml files");
-            return null;
+        Map<Integer, int[]> readList = this.runMetadata.getConfigReads();
+        int [][] cycleRangeByReadConfig = new int [readList.size()][2];
+        for(Entry<Integer, int[]> entry : readList.entrySet()){
+            int readIndex = entry.getKey();
+            readIndex--;
+            cycleRangeByReadConfig[readIndex] = entry.getValue();
         }
         return cycleRangeByReadConfig;
     }
@@ -1018,21 +1431,12 @@ public class Lane {
         
         log.info("Reading barcode indexing cycle numbers");
         
-        int [] barCodeCycleList = null;
-        try {
-            XPathExpression exprBarCode = xpath.compile("RunParameters/Barcode/Cycle/text()");
-            NodeList barCodeNodeList = (NodeList) exprBarCode.evaluate(this.runConfigXmlNode, XPathConstants.NODESET);
-            if(barCodeNodeList.getLength() == 0){
-                return null;
-            }
-            barCodeCycleList = new int[barCodeNodeList.getLength()];
-            for(int i=0; i<barCodeNodeList.getLength(); i++){
-                barCodeCycleList[i] = Integer.parseInt(barCodeNodeList.item(i).getNodeValue());
-            }
-            Arrays.sort(barCodeCycleList);
-        } catch (XPathExpressionException ex) {
+        int [] barCodeCycleList = this.runMetadata.getBarcodeCycles();
+        if(barCodeCycleList.length == 0){
             log.info("There is no bar code cycle");
+            return null;
         }
+        Arrays.sort(barCodeCycleList);
         return barCodeCycleList;
     }
 
@@ -1042,18 +1446,13 @@ public class Lane {
      */
     public SAMProgramRecord readInstrumentProgramRecord(){
 
-        Node nodeSoftware = null;
-        try {
-            XPathExpression exprBaseCallSoftware = xpath.compile("/ImageAnalysis/Run/Software");
-            nodeSoftware = (Node) exprBaseCallSoftware.evaluate(intensityConfigDoc, XPathConstants.NODE);
-        } catch (XPathExpressionException ex) {
-            log.error(ex, "Problems to read instrument software from intensity config file");
-        }
-
-        NamedNodeMap nodeMapSoftware = nodeSoftware.getAttributes();
-        String softwareName = nodeMapSoftware.getNamedItem("Name").getNodeValue();
-        String softwareVersion = nodeMapSoftware.getNamedItem("Version").getNodeValue();
+        String softwareName = this.runMetadata.getImageAnalysisSoftwareName();
+        String softwareVersion = this.runMetadata.getImageAnalysisSoftwareVersion();
         
+        if(softwareName == null && softwareVersion == null){
+            log.error("Problems to read instrument software from intensity config file");
+            return null;
+        }
         if(softwareName == null || softwareVersion == null){
             log.warn("No instrument software name or version returned");
         }
@@ -1072,23 +1471,8 @@ public class Lane {
      */
     public SAMProgramRecord readInstrumentProgramRecordFromRunParameterFile(){
 
-        String applicationName = null;
-        try {
-            XPathExpression exprApplicationName = xpath.compile("/RunParameters/Setup/ApplicationName/text()");
-            Node nodeApplicationName = (Node) exprApplicationName.evaluate(this.runParametersDoc, XPathConstants.NODE);
-            applicationName = nodeApplicationName.getNodeValue();
-        } catch (XPathExpressionException ex) {
-            log.error(ex, "Problems to read instrument software from run parameter file");
-        }
-
-        String applicationVersion = null;
-        try {
-            XPathExpression exprApplicationVersion = xpath.compile("/RunParameters/Setup/ApplicationVersion/text()");
-            Node nodeApplicationVersion = (Node) exprApplicationVersion.evaluate(this.runParametersDoc, XPathConstants.NODE);
-            applicationVersion = nodeApplicationVersion.getNodeValue();
-        } catch (XPathExpressionException ex) {
-            log.error(ex, "Problems to read instrument software from run parameter file");
-        }    
+        String applicationName = this.runMetadata.getApplicationName();
+        String applicationVersion = this.runMetadata.getApplicationVersion();
         
         if(applicationName == null || applicationVersion == null){
             log.warn("No instrument software name or version returned from run paramaters file");
@@ -1107,21 +1491,10 @@ public class Lane {
      */
     public String readRunfolder(){
         
-        String runfolder = null;
-        if(this.runConfigXmlNode != null){
-          try {
-            XPathExpression exprRunfolder = xpath.compile("RunParameters/RunFolder/text()");
-            Node runfolderNode = (Node) exprRunfolder.evaluate(this.runConfigXmlNode, XPathConstants.NODE);
-            if(runfolderNode == null){
-                return null;
-            }
-            runfolder = runfolderNode.getNodeValue();
-          } catch (XPathExpressionException ex) {
-            log.warn(ex, "Problem reading runfolder");
-          }
+        if(!this.runMetadata.hasRunConfig()){
+            return null;
         }
-        
-        return runfolder;
+        return this.runMetadata.getRunFolder();
     }
     
     /**
@@ -1130,19 +1503,7 @@ public class Lane {
      */
     public String readRunfolderFromRunParametersFile(){
         
-        String runfolder = null;
-        try {
-            XPathExpression exprRunfolder = xpath.compile("RunParameters/Setup/RunID/text()");
-            Node runfolderNode = (Node) exprRunfolder.evaluate(this.runParametersDoc, XPathConstants.NODE);
-            if(runfolderNode == null){
-                return null;
-            }
-            runfolder = runfolderNode.getNodeValue();
-        } catch (XPathExpressionException ex) {
-            log.warn(ex, "Problem reading runfolder from RunID in run paramaters file");
-        }
-        
-        return runfolder;
+        return this.runMetadata.getRunId();
     }
 
     /**
@@ -1152,21 +1513,17 @@ public class Lane {
     public Date readRunDate(){
 
         Date runDate = null;
-        if(this.runConfigXmlNode != null){
-          try {
-            XPathExpression exprRunDate = xpath.compile("RunParameters/RunFolderDate/text()");
-            Node runDateNode = (Node) exprRunDate.evaluate(this.runConfigXmlNode, XPathConstants.NODE);
-            if(runDateNode == null){
+        if(this.runMetadata.hasRunConfig()){
+            String runDateString = this.runMetadata.getRunFolderDate();
+            if(runDateString == null){
                 return null;
             }
-            String runDateString = runDateNode.getNodeValue();
-            SimpleDateFormat formatter = new SimpleDateFormat("yyMMdd");
-            runDate = formatter.parse(runDateString);
-          } catch (ParseException ex) {
-            log.warn(ex, "Problems parsing run date");
-          } catch (XPathExpressionException ex) {
-            log.warn(ex, "Problems reading run date");
-          }
+            try {
+                SimpleDateFormat formatter = new SimpleDateFormat("yyMMdd");
+                runDate = formatter.parse(runDateString);
+            } catch (ParseException ex) {
+                log.warn(ex, "Problems parsing run date");
+            }
         }  
 
         return runDate;
@@ -1179,19 +1536,15 @@ public class Lane {
     public Date readRunDateFromRunParametersFile(){
 
         Date runDate = null;
+        String runDateString = this.runMetadata.getRunStartDate();
+        if(runDateString == null){
+            return null;
+        }
         try {
-            XPathExpression exprRunDate = xpath.compile("RunParameters/Setup/RunStartDate/text()");
-            Node runDateNode = (Node) exprRunDate.evaluate(this.runParametersDoc, XPathConstants.NODE);
-            if(runDateNode == null){
-                return null;
-            }
-            String runDateString = runDateNode.getNodeValue();
             SimpleDateFormat formatter = new SimpleDateFormat("yyMMdd");
             runDate = formatter.parse(runDateString);
         } catch (ParseException ex) {
             log.warn(ex, "Problems parsing run date in run paramaters file");
-        } catch (XPathExpressionException ex) {
-            log.warn(ex, "Problems reading run date in run paramaters file");
         }  
 
         return runDate;
@@ -1275,6 +1628,26 @@ public class Lane {
      */
     public void setCycleRangeByRead(HashMap<String, int[]> cycleRangeByRead) {
         this.cycleRangeByRead = cycleRangeByRead;
+        this.readStructure = null;
+    }
+
+    /**
+     * @return the read structure given, or one derived from cycleRangeByRead
+     */
+    public ReadStructure getReadStructure() {
+        if(this.readStructure == null){
+            this.readStructure = new ReadStructure(this.cycleRangeByRead);
+        }
+        return this.readStructure;
+    }
+
+    /**
+     * Overwrites cycleRangeByRead with the segments of the given read structure
+     * @param readStructure the readStructure to set
+     */
+    public void setReadStructure(ReadStructure readStructure) {
+        this.readStructure = readStructure;
+        this.cycleRangeByRead = readStructure.getCycleRangeByRead();
     }
 
     /**
@@ -1354,6 +1727,27 @@ public class Lane {
         this.secondBarcodeQualTagName = secondBarcodeQualTagName;
     }
 
+    /**
+     * @param umiSeqTagName the umiSeqTagName to set
+     */
+    public void setUmiSeqTagName(String umiSeqTagName) {
+        this.umiSeqTagName = umiSeqTagName;
+    }
+
+    /**
+     * @param umiQualTagName the umiQualTagName to set
+     */
+    public void setUmiQualTagName(String umiQualTagName) {
+        this.umiQualTagName = umiQualTagName;
+    }
+
+    /**
+     * @param packedSecondCallTagName tag name for second base calls packed four to a byte instead of E2, null for E2
+     */
+    public void setPackedSecondCallTagName(String packedSecondCallTagName) {
+        this.packedSecondCallTagName = packedSecondCallTagName;
+    }
+
     /**
      * @param bc_read which read should the barcode tag sit on?
      */
@@ -1368,6 +1762,55 @@ public class Lane {
         this.sec_bc_read = sec_bc_read;
     }
 
+    /**
+     * @param numThreads number of threads to convert cluster ranges of tiles, 1 to process tile by tile
+     */
+    public void setNumThreads(int numThreads) {
+        this.numThreads = numThreads;
+    }
+
+    /**
+     * @param cycleMetric per tile and per cycle counts to collect during conversion, null not to collect
+     */
+    public void setCycleMetric(CycleMetric cycleMetric) {
+        this.cycleMetric = cycleMetric;
+    }
+
+    /**
+     * @param sampleFraction fraction of clusters to sample in each tile, null not to sample by fraction
+     */
+    public void setSampleFraction(Double sampleFraction) {
+        this.sampleFraction = sampleFraction;
+    }
+
+    /**
+     * @param maxClustersPerTile maximum number of clusters to sample in each tile, null for no limit
+     */
+    public void setMaxClustersPerTile(Integer maxClustersPerTile) {
+        this.maxClustersPerTile = maxClustersPerTile;
+    }
+
+    /**
+     * @param sampleSeed seed for random sample of clusters
+     */
+    public void setSampleSeed(long sampleSeed) {
+        this.sampleSeed = sampleSeed;
+    }
+
+    /**
+     * @param clustersPerChunk maximum number of clusters in one cluster range when using more than one thread
+     */
+    public void setClustersPerChunk(int clustersPerChunk) {
+        this.clustersPerChunk = clustersPerChunk;
+    }
+
+    /**
+     * @param memoryBudget estimated bytes of cluster ranges converted or waiting to be written at the same time, no limit if null
+     */
+    public void setMemoryBudget(Long memoryBudget) {
+        this.memoryBudget = memoryBudget;
+    }
+
     /**
      * @return the cycleRangeByRead
      */
@@ -0,0 +1,273 @@
+/*
+ * Copyright (C) 2011 GRL
+ *
+ * This library is free software. You can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *
+ */
+package uk.ac.sanger.npg.illumina;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Layout of cycles of a run, e.g. 151T8B8B151T or 8M143T8B8B151T,
+ * as a list of template (T), barcode (B), molecular barcode (M) and skip (S) segments.
+ *
+ * Template segments are named read1 and read2, barcode segments readIndex, readIndex2 and so on,
+ * molecular barcode segments readUmi, readUmi2 and so on.
+ *
+ * @author gq1@sanger.ac.uk
+ */
+public class ReadStructure {
+
+    /**
+     * template segment type
+     */
+    public static final char TEMPLATE = 'T';
+
+    /**
+     * sample barcode segment type
+     */
+    public static final char BARCODE = 'B';
+
+    /**
+     * molecular barcode segment type
+     */
+    public static final char MOLECULAR_BARCODE = 'M';
+
+    /**
+     * skipped segment type
+     */
+    public static final char SKIP = 'S';
+
+    private static final Pattern SEGMENT_PATTERN = Pattern.compile("(\\d+)([TBMS])");
+
+    private final List<Segment> segments;
+
+    /**
+     *
+     * @param readStructure read structure string, e.g. 151T8B8B151T
+     */
+    public ReadStructure(String readStructure){
+
+        if(readStructure == null || readStructure.isEmpty()){
+            throw new IllegalArgumentException("Read structure must be given");
+        }
+
+        String structure = readStructure.toUpperCase();
+        Matcher matcher = SEGMENT_PATTERN.matcher(structure);
+
+        this.segments = new ArrayList<Segment>();
+        int nextCycle = 1;
+        int end = 0;
+        int [] countByType = new int[128];
+        while(matcher.find()){
+            if(matcher.start() != end){
+                throw new IllegalArgumentException("Invalid read structure: " + readStructure);
+            }
+            end = matcher.end();
+
+            int length = Integer.parseInt(matcher.group(1));
+            if(length < 1){
+                throw new IllegalArgumentException("Segment length must be positive in read structure: " + readStructure);
+            }
+            char type = matcher.group(2).charAt(0);
+            int count = ++countByType[type];
+
+            this.segments.add(new Segment(type, segmentName(type, count), nextCycle, nextCycle + length - 1));
+            nextCycle += length;
+        }
+        if(end != structure.length()){
+            throw new IllegalArgumentException("Invalid read structure: " + readStructure);
+        }
+
+        if(countByType[TEMPLATE] < 1 || countByType[TEMPLATE] > 2){
+            throw new IllegalArgumentException("Read structure must have one or two template segments: " + readStructure);
+        }
+    }
+
+    /**
+     * read structure from cycle ranges keyed by read name, cycles not in any read are skipped
+     *
+     * @param cycleRangeByRead
+     */
+    public ReadStructure(Map<String, int[]> cycleRangeByRead){
+
+        List<Map.Entry<String, int[]>> reads = new ArrayList<Map.Entry<String, int[]>>(cycleRangeByRead.entrySet());
+        Collections.sort(reads, new Comparator<Map.Entry<String, int[]>>() {
+            @Override
+            public int compare(Map.Entry<String, int[]> r1, Map.Entry<String, int[]> r2) {
+                return r1.getValue()[0] - r2.getValue()[0];
+            }
+        });
+
+        this.segments = new ArrayList<Segment>();
+        int nextCycle = 1;
+        for(Map.Entry<String, int[]> read : reads){
+            int [] cycleRange = read.getValue();
+            if(cycleRange[0] < nextCycle){
+                throw new IllegalArgumentException("Cycle ranges of reads overlap: " + read.getKey());
+            }
+            if(cycleRange[0] > nextCycle){
+                this.segments.add(new Segment(SKIP, null, nextCycle, cycleRange[0] - 1));
+            }
+            char type = read.getKey().startsWith("readIndex") ? BARCODE : TEMPLATE;
+            this.segments.add(new Segment(type, read.getKey(), cycleRange[0], cycleRange[1]));
+            nextCycle = cycleRange[1] + 1;
+        }
+    }
+
+    /**
+     *
+     * @param type
+     * @param count number of segments of this type so far
+     * @return segment name
+     */
+    private static String segmentName(char type, int count){
+
+        switch (type) {
+            case TEMPLATE:
+                return "read" + count;
+            case BARCODE:
+                return count == 1 ? "readIndex" : "readIndex" + count;
+            case MOLECULAR_BARCODE:
+                return count == 1 ? "readUmi" : "readUmi" + count;
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * @return all segments in cycle order
+     */
+    public List<Segment> getSegments() {
+        return Collections.unmodifiableList(segments);
+    }
+
+    /**
+     *
+     * @param type
+     * @return segments of one type in cycle order
+     */
+    public List<Segment> getSegments(char type) {
+
+        List<Segment> segmentsOfType = new ArrayList<Segment>();
+        for(Segment segment : this.segments){
+            if(segment.type == type){
+                segmentsOfType.add(segment);
+            }
+        }
+        return segmentsOfType;
+    }
+
+    /**
+     *
+     * @return cycle range keyed by segment name for all segments not skipped
+     */
+    public HashMap<String, int[]> getCycleRangeByRead(){
+
+        HashMap<String, int[]> cycleRangeByRead = new HashMap<String, int[]>();
+        for(Segment segment : this.segments){
+            if(segment.type != SKIP){
+                int [] cycleRange = {segment.firstCycle, segment.lastCycle};
+                cycleRangeByRead.put(segment.name, cycleRange);
+            }
+        }
+        return cycleRangeByRead;
+    }
+
+    /**
+     * @return number of cycles including skipped ones
+     */
+    public int getTotalCycles(){
+        return this.segments.isEmpty() ? 0 : this.segments.get(this.segments.size() - 1).lastCycle;
+    }
+
+    @Override
+    public String toString(){
+
+        StringBuilder structure = new StringBuilder();
+        for(Segment segment : this.segments){
+            structure.append(segment.getLength()).append(segment.type);
+        }
+        return structure.toString();
+    }
+
+    /**
+     * a continuous range of cycles with one type
+     */
+    public static class Segment {
+
+        private final char type;
+        private final String name;
+        private final int firstCycle;
+        private final int lastCycle;
+
+        /**
+         *
+         * @param type
+         * @param name
+         * @param firstCycle
+         * @param lastCycle
+         */
+        public Segment(char type, String name, int firstCycle, int lastCycle){
+            this.type = type;
+            this.name = name;
+            this.firstCycle = firstCycle;
+            this.lastCycle = lastCycle;
+        }
+
+        /**
+         * @return the type
+         */
+        public char getType() {
+            return type;
+        }
+
+        /**
+         * @return the name, null for skipped segment
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return the firstCycle
+         */
+        public int getFirstCycle() {
+            return firstCycle;
+        }
+
+        /**
+         * @return the lastCycle
+         */
+        public int getLastCycle() {
+            return lastCycle;
+        }
+
+        /**
+         * @return number of cycles
+         */
+        public int getLength() {
+            return lastCycle - firstCycle + 1;
+        }
+    }
+}
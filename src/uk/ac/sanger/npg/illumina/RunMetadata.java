@@ -0,0 +1,969 @@
+/*
+ * Copyright (C) 2011 GRL
+ *
+ * This library is free software. You can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package uk.ac.sanger.npg.illumina;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import net.sf.picard.util.Log;
+
+/**
+ * Run information needed by Lane from BaseCalls and Intensities config xml files,
+ * runParameters and RunInfo xml files, each file read in one streaming pass.
+ *
+ * Not changed once read, and can be cached in a small binary file
+ * named by the checksum of the xml files.
+ *
+ * @author gq1@sanger.ac.uk
+ */
+public class RunMetadata {
+
+    private static final Log log = Log.getInstance(RunMetadata.class);
+
+    private static final int CACHE_FORMAT_VERSION = 1;
+    private static final String CACHE_FILE_SUFFIX = ".runmetadata";
+
+    //BaseCalls and Intensities config files
+    private boolean baseCallsConfigRead;
+    private boolean intensityConfigRead;
+    private String baseCallSoftwareName;
+    private String baseCallSoftwareVersion;
+    private String imageAnalysisSoftwareName;
+    private String imageAnalysisSoftwareVersion;
+
+    //the Run element of BaseCalls config, or Intensities config if not available there
+    private boolean runConfigRead;
+    private final TreeMap<Integer, List<Integer>> tilesByLane = new TreeMap<Integer, List<Integer>>();
+    private final TreeMap<Integer, List<int[]>> tileRangesByLane = new TreeMap<Integer, List<int[]>>();
+    private String runFolderId;
+    private String instrument;
+    private String runFolder;
+    private String runFolderDate;
+    private final TreeMap<Integer, int[]> configReads = new TreeMap<Integer, int[]>();
+    private final List<Integer> barcodeCycles = new ArrayList<Integer>();
+
+    //runParameters file
+    private boolean runParametersRead;
+    private String rtaVersion;
+    private String applicationName;
+    private String applicationVersion;
+    private String runId;
+    private String runStartDate;
+    private List<int[]> runParametersReads;
+
+    //RunInfo file
+    private boolean runInfoRead;
+    private int [] flowcellLayout;
+    private List<int[]> runInfoReads;
+
+    private RunMetadata(){
+    }
+
+    /**
+     * read run information from the xml files, any file may be null or missing
+     *
+     * @param baseCallsConfig
+     * @param intensityConfig
+     * @param runParameters
+     * @param runInfo
+     * @return run information
+     */
+    public static RunMetadata read(File baseCallsConfig, File intensityConfig, File runParameters, File runInfo){
+
+        RunMetadata metadata = new RunMetadata();
+        RunConfig baseCallsRun = null;
+        RunConfig intensityRun = null;
+
+        if(baseCallsConfig != null && baseCallsConfig.exists()){
+            try {
+                baseCallsRun = metadata.readConfig(baseCallsConfig, true);
+                metadata.baseCallsConfigRead = true;
+            } catch (Exception ex) {
+                log.error(ex, "Problem parsing basecalls config xml file " + baseCallsConfig);
+            }
+        }
+        if(intensityConfig != null && intensityConfig.exists()){
+            try {
+                intensityRun = metadata.readConfig(intensityConfig, false);
+                metadata.intensityConfigRead = true;
+            } catch (Exception ex) {
+                log.error(ex, "Problems to parsing intensity config xml file " + intensityConfig);
+            }
+        }
+        if(baseCallsRun != null && baseCallsRun.runElements == 1){
+            metadata.useRunConfig(baseCallsRun);
+        }else if(intensityRun != null && intensityRun.runElements == 1){
+            metadata.useRunConfig(intensityRun);
+        }
+
+        if(runParameters != null){
+            if(runParameters.exists()){
+                try {
+                    metadata.readRunParameters(runParameters);
+                    metadata.runParametersRead = true;
+                } catch (Exception ex) {
+                    log.error(ex, "Problems to parsing runParameters xml file " + runParameters);
+                }
+            }else{
+                log.warn("XML file not exists " + runParameters);
+            }
+        }
+        if(runInfo != null){
+            if(runInfo.exists()){
+                try {
+                    metadata.readRunInfo(runInfo);
+                    metadata.runInfoRead = true;
+                } catch (Exception ex) {
+                    log.error(ex, "Problems to parsing RunInfo xml file " + runInfo);
+                }
+            }else{
+                log.warn("XML file not exists " + runInfo);
+            }
+        }
+
+        return metadata;
+    }
+
+    /**
+     * read run information from cache directory if there is a cache file for the same xml files,
+     * otherwise read the xml files and write a cache file
+     *
+     * @param baseCallsConfig
+     * @param intensityConfig
+     * @param runParameters
+     * @param runInfo
+     * @param cacheDir
+     * @return run information
+     */
+    public static RunMetadata read(File baseCallsConfig, File intensityConfig, File runParameters, File runInfo, File cacheDir){
+
+        if(cacheDir == null){
+            return read(baseCallsConfig, intensityConfig, runParameters, runInfo);
+        }
+
+        File cacheFile;
+        try {
+            cacheFile = new File(cacheDir, checksum(baseCallsConfig, intensityConfig, runParameters, runInfo) + CACHE_FILE_SUFFIX);
+        } catch (IOException ex) {
+            log.warn(ex, "Problem working out checksum of run xml files, not using cache");
+            return read(baseCallsConfig, intensityConfig, runParameters, runInfo);
+        }
+
+        if(cacheFile.exists()){
+            try {
+                RunMetadata metadata = readCache(cacheFile);
+                log.info("Run information read from cache file " + cacheFile);
+                return metadata;
+            } catch (IOException ex) {
+                log.warn(ex, "Problem reading cache file " + cacheFile + ", reading xml files again");
+            }
+        }
+
+        RunMetadata metadata = read(baseCallsConfig, intensityConfig, runParameters, runInfo);
+        try {
+            metadata.writeCache(cacheFile);
+            log.info("Run information written to cache file " + cacheFile);
+        } catch (IOException ex) {
+            log.warn(ex, "Problem writing cache file " + cacheFile);
+        }
+        return metadata;
+    }
+
+    /**
+     *
+     * @param files
+     * @return md5 of the content of all files in the given order, missing files included as such
+     * @throws IOException
+     */
+    static String checksum(File... files) throws IOException {
+
+        MessageDigest md5;
+        try {
+            md5 = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IOException(ex);
+        }
+        byte [] buffer = new byte[8192];
+        for(File file : files){
+            if(file == null || !file.exists()){
+                md5.update((byte) 0);
+                continue;
+            }
+            md5.update((byte) 1);
+            InputStream in = new DigestInputStream(new FileInputStream(file), md5);
+            try {
+                while(in.read(buffer) != -1){
+                    //digest updated by stream
+                }
+            } finally {
+                in.close();
+            }
+            //content length separates the files
+            md5.update(Long.toString(file.length()).getBytes("US-ASCII"));
+        }
+        md5.update((byte) CACHE_FORMAT_VERSION);
+
+        StringBuilder hex = new StringBuilder(32);
+        for(byte b : md5.digest()){
+            hex.append(String.format("%02x", b & 0xFF));
+        }
+        return hex.toString();
+    }
+
+    /**
+     * content of the Run element of a config file
+     */
+    private static class RunConfig {
+        private int runElements;
+        private final TreeMap<Integer, List<Integer>> tilesByLane = new TreeMap<Integer, List<Integer>>();
+        private final TreeMap<Integer, List<int[]>> tileRangesByLane = new TreeMap<Integer, List<int[]>>();
+        private String runFolderId;
+        private String instrument;
+        private String runFolder;
+        private String runFolderDate;
+        private final TreeMap<Integer, int[]> reads = new TreeMap<Integer, int[]>();
+        private final List<Integer> barcodeCycles = new ArrayList<Integer>();
+    }
+
+    private void useRunConfig(RunConfig runConfig){
+        this.runConfigRead = true;
+        this.tilesByLane.putAll(runConfig.tilesByLane);
+        this.tileRangesByLane.putAll(runConfig.tileRangesByLane);
+        this.runFolderId = runConfig.runFolderId;
+        this.instrument = runConfig.instrument;
+        this.runFolder = runConfig.runFolder;
+        this.runFolderDate = runConfig.runFolderDate;
+        this.configReads.putAll(runConfig.reads);
+        this.barcodeCycles.addAll(runConfig.barcodeCycles);
+    }
+
+    /**
+     * read software and the first Run element of a BaseCalls or Intensities config file
+     *
+     * @param configFile
+     * @param baseCalls true for BaseCalls config file
+     * @return content of the first Run element
+     * @throws IOException
+     * @throws XMLStreamException
+     */
+    private RunConfig readConfig(File configFile, boolean baseCalls) throws IOException, XMLStreamException {
+
+        String softwarePath = baseCalls ? "BaseCallAnalysis/Run/Software" : "ImageAnalysis/Run/Software";
+        RunConfig runConfig = new RunConfig();
+
+        XmlPathReader reader = new XmlPathReader(configFile);
+        try {
+            String runPath = null;
+            int lane = 0;
+            int [] read = null;
+            while(reader.nextElement()){
+
+                String path = reader.getPath();
+                if(reader.getLocalName().equals("Run")){
+                    runConfig.runElements++;
+                    if(runPath == null){
+                        runPath = path + "/";
+                    }
+                }
+
+                if(path.equals(softwarePath)){
+                    if(baseCalls && this.baseCallSoftwareName == null && this.baseCallSoftwareVersion == null){
+                        this.baseCallSoftwareName = reader.getAttribute("Name");
+                        this.baseCallSoftwareVersion = reader.getAttribute("Version");
+                    }else if(!baseCalls && this.imageAnalysisSoftwareName == null && this.imageAnalysisSoftwareVersion == null){
+                        this.imageAnalysisSoftwareName = reader.getAttribute("Name");
+                        this.imageAnalysisSoftwareVersion = reader.getAttribute("Version");
+                    }
+                    continue;
+                }
+
+                if(runPath == null || !path.startsWith(runPath)){
+                    continue;
+                }
+                String runChildPath = path.substring(runPath.length());
+
+                if(runChildPath.equals("TileSelection/Lane")){
+                    lane = reader.getIntAttribute("Index");
+                }else if(runChildPath.equals("TileSelection/Lane/Tile")){
+                    addToList(runConfig.tilesByLane, lane, Integer.parseInt(reader.getElementText().trim()));
+                }else if(runChildPath.equals("TileSelection/Lane/TileRange")){
+                    int [] range = {reader.getIntAttribute("Min"), reader.getIntAttribute("Max")};
+                    addToList(runConfig.tileRangesByLane, lane, range);
+                }else if(runChildPath.equals("RunParameters/RunFolderId") && runConfig.runFolderId == null){
+                    runConfig.runFolderId = reader.getElementText();
+                }else if(runChildPath.equals("RunParameters/Instrument") && runConfig.instrument == null){
+                    runConfig.instrument = reader.getElementText();
+                }else if(runChildPath.equals("RunParameters/RunFolder") && runConfig.runFolder == null){
+                    runConfig.runFolder = reader.getElementText();
+                }else if(runChildPath.equals("RunParameters/RunFolderDate") && runConfig.runFolderDate == null){
+                    runConfig.runFolderDate = reader.getElementText();
+                }else if(runChildPath.equals("RunParameters/Reads")){
+                    read = new int[2];
+                    runConfig.reads.put(reader.getIntAttribute("Index"), read);
+                }else if(runChildPath.equals("RunParameters/Reads/FirstCycle")){
+                    read[0] = Integer.parseInt(reader.getElementText().trim());
+                }else if(runChildPath.equals("RunParameters/Reads/LastCycle")){
+                    read[1] = Integer.parseInt(reader.getElementText().trim());
+                }else if(runChildPath.equals("RunParameters/Barcode/Cycle")){
+                    runConfig.barcodeCycles.add(Integer.parseInt(reader.getElementText().trim()));
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return runConfig;
+    }
+
+    /**
+     * read software, run id, run date and reads of runParameters file,
+     * reads under Setup for HiSeq and RunInfoRead for MiSeq
+     *
+     * @param runParametersFile
+     * @throws IOException
+     * @throws XMLStreamException
+     */
+    private void readRunParameters(File runParametersFile) throws IOException, XMLStreamException {
+
+        List<int[]> hiSeqReads = new ArrayList<int[]>();
+        List<int[]> miSeqReads = new ArrayList<int[]>();
+
+        XmlPathReader reader = new XmlPathReader(runParametersFile);
+        try {
+            while(reader.nextElement()){
+
+                String path = reader.getPath();
+                if(path.equals("RunParameters/Setup/RTAVersion") && this.rtaVersion == null){
+                    this.rtaVersion = reader.getElementText();
+                }else if(path.equals("RunParameters/Setup/ApplicationName") && this.applicationName == null){
+                    this.applicationName = reader.getElementText();
+                }else if(path.equals("RunParameters/Setup/ApplicationVersion") && this.applicationVersion == null){
+                    this.applicationVersion = reader.getElementText();
+                }else if(path.equals("RunParameters/Setup/RunID") && this.runId == null){
+                    this.runId = reader.getElementText();
+                }else if(path.equals("RunParameters/Setup/RunStartDate") && this.runStartDate == null){
+                    this.runStartDate = reader.getElementText();
+                }else if(path.equals("RunParameters/Setup/Reads/Read")){
+                    addRead(hiSeqReads, reader);
+                }else if(path.equals("RunParameters/Reads/RunInfoRead")){
+                    addRead(miSeqReads, reader);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+
+        this.runParametersReads = sortReads(hiSeqReads);
+        if(this.runParametersReads == null || this.runParametersReads.isEmpty()){
+            this.runParametersReads = sortReads(miSeqReads);
+        }
+    }
+
+    /**
+     * read flowcell layout and reads of RunInfo file
+     *
+     * @param runInfoFile
+     * @throws IOException
+     * @throws XMLStreamException
+     */
+    private void readRunInfo(File runInfoFile) throws IOException, XMLStreamException {
+
+        List<int[]> reads = new ArrayList<int[]>();
+
+        XmlPathReader reader = new XmlPathReader(runInfoFile);
+        try {
+            while(reader.nextElement()){
+
+                String path = reader.getPath();
+                if(path.equals("RunInfo/Run/FlowcellLayout") && this.flowcellLayout == null){
+                    //<FlowcellLayout LaneCount="8" SurfaceCount="2" SwathCount="2" TileCount="24">
+                    this.flowcellLayout = new int[]{
+                        reader.getIntAttribute("SurfaceCount"),
+                        reader.getIntAttribute("SwathCount"),
+                        reader.getIntAttribute("TileCount")
+                    };
+                }else if(path.equals("RunInfo/Run/Reads/Read")){
+                    addRead(reads, reader);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+
+        this.runInfoReads = sortReads(reads);
+    }
+
+    /**
+     * add read number, number of cycles and index flag of a read element, null read number if not given
+     *
+     * @param reads
+     * @param reader
+     */
+    private static void addRead(List<int[]> reads, XmlPathReader reader){
+
+        String number = reader.getAttribute("Number");
+        String numCycles = reader.getAttribute("NumCycles");
+        String isIndexedRead = reader.getAttribute("IsIndexedRead");
+        if(number == null){
+            reads.add(null);
+            return;
+        }
+        reads.add(new int[]{
+            Integer.parseInt(number.trim()),
+            numCycles == null ? 0 : Integer.parseInt(numCycles.trim()),
+            "Y".equalsIgnoreCase(isIndexedRead) ? 1 : 0
+        });
+    }
+
+    /**
+     *
+     * @param reads
+     * @return reads in read number order, null if any read without read number
+     */
+    private static List<int[]> sortReads(List<int[]> reads){
+
+        TreeMap<Integer, int[]> sorted = new TreeMap<Integer, int[]>();
+        for(int [] read : reads){
+            if(read == null){
+                return null;
+            }
+            sorted.put(read[0], read);
+        }
+        return new ArrayList<int[]>(sorted.values());
+    }
+
+    private static <T> void addToList(TreeMap<Integer, List<T>> map, int key, T value){
+        List<T> list = map.get(key);
+        if(list == null){
+            list = new ArrayList<T>();
+            map.put(key, list);
+        }
+        list.add(value);
+    }
+
+    /**
+     * StAX reader keeping the path of the current element from the root element, such as RunInfo/Run/Reads/Read
+     */
+    private static class XmlPathReader {
+
+        private static final XMLInputFactory factory = XMLInputFactory.newInstance();
+
+        private final InputStream in;
+        private final XMLStreamReader reader;
+        private final List<Integer> pathLengths = new ArrayList<Integer>();
+        private final StringBuilder path = new StringBuilder();
+        private boolean textRead = false;
+
+        XmlPathReader(File xmlFile) throws IOException, XMLStreamException {
+            this.in = new BufferedInputStream(new FileInputStream(xmlFile));
+            synchronized (factory) {
+                this.reader = factory.createXMLStreamReader(this.in);
+            }
+        }
+
+        /**
+         * move to the start of next element
+         *
+         * @return false at the end of document
+         * @throws XMLStreamException
+         */
+        boolean nextElement() throws XMLStreamException {
+
+            if(this.textRead){
+                //getElementText moved to the end of the element already
+                this.popElement();
+                this.textRead = false;
+            }
+            while(this.reader.hasNext()){
+                int event = this.reader.next();
+                if(event == XMLStreamConstants.START_ELEMENT){
+                    this.pathLengths.add(this.path.length());
+                    if(this.path.length() > 0){
+                        this.path.append('/');
+                    }
+                    this.path.append(this.reader.getLocalName());
+                    return true;
+                }else if(event == XMLStreamConstants.END_ELEMENT){
+                    this.popElement();
+                }
+            }
+            return false;
+        }
+
+        private void popElement(){
+            this.path.setLength(this.pathLengths.remove(this.pathLengths.size() - 1));
+        }
+
+        String getPath(){
+            return this.path.toString();
+        }
+
+        String getLocalName(){
+            return this.reader.getLocalName();
+        }
+
+        String getAttribute(String name){
+            return this.reader.getAttributeValue(null, name);
+        }
+
+        int getIntAttribute(String name){
+            String value = this.getAttribute(name);
+            if(value == null){
+                throw new IllegalArgumentException("No attribute " + name + " for element " + this.getPath());
+            }
+            return Integer.parseInt(value.trim());
+        }
+
+        /**
+         *
+         * @return text of current element, which must not have child elements
+         * @throws XMLStreamException
+         */
+        String getElementText() throws XMLStreamException {
+            this.textRead = true;
+            return this.reader.getElementText();
+        }
+
+        void close() throws IOException {
+            try {
+                this.reader.close();
+            } catch (XMLStreamException ex) {
+                log.warn(ex, "Problem closing xml stream");
+            }
+            this.in.close();
+        }
+    }
+
+    /**
+     * write cache file, to a temporary file first then renamed
+     *
+     * @param cacheFile
+     * @throws IOException
+     */
+    void writeCache(File cacheFile) throws IOException {
+
+        File tempFile = File.createTempFile(cacheFile.getName(), ".tmp", cacheFile.getAbsoluteFile().getParentFile());
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+        try {
+            out.writeInt(CACHE_FORMAT_VERSION);
+
+            out.writeBoolean(this.baseCallsConfigRead);
+            out.writeBoolean(this.intensityConfigRead);
+            writeString(out, this.baseCallSoftwareName);
+            writeString(out, this.baseCallSoftwareVersion);
+            writeString(out, this.imageAnalysisSoftwareName);
+            writeString(out, this.imageAnalysisSoftwareVersion);
+
+            out.writeBoolean(this.runConfigRead);
+            out.writeInt(this.tilesByLane.size());
+            for(Map.Entry<Integer, List<Integer>> entry : this.tilesByLane.entrySet()){
+                out.writeInt(entry.getKey());
+                out.writeInt(entry.getValue().size());
+                for(int tile : entry.getValue()){
+                    out.writeInt(tile);
+                }
+            }
+            out.writeInt(this.tileRangesByLane.size());
+            for(Map.Entry<Integer, List<int[]>> entry : this.tileRangesByLane.entrySet()){
+                out.writeInt(entry.getKey());
+                writeIntArrays(out, entry.getValue());
+            }
+            writeString(out, this.runFolderId);
+            writeString(out, this.instrument);
+            writeString(out, this.runFolder);
+            writeString(out, this.runFolderDate);
+            out.writeInt(this.configReads.size());
+            for(Map.Entry<Integer, int[]> entry : this.configReads.entrySet()){
+                out.writeInt(entry.getKey());
+                out.writeInt(entry.getValue()[0]);
+                out.writeInt(entry.getValue()[1]);
+            }
+            out.writeInt(this.barcodeCycles.size());
+            for(int cycle : this.barcodeCycles){
+                out.writeInt(cycle);
+            }
+
+            out.writeBoolean(this.runParametersRead);
+            writeString(out, this.rtaVersion);
+            writeString(out, this.applicationName);
+            writeString(out, this.applicationVersion);
+            writeString(out, this.runId);
+            writeString(out, this.runStartDate);
+            writeIntArrays(out, this.runParametersReads);
+
+            out.writeBoolean(this.runInfoRead);
+            out.writeBoolean(this.flowcellLayout != null);
+            if(this.flowcellLayout != null){
+                for(int value : this.flowcellLayout){
+                    out.writeInt(value);
+                }
+            }
+            writeIntArrays(out, this.runInfoReads);
+        } finally {
+            out.close();
+        }
+
+        if(!tempFile.renameTo(cacheFile)){
+            tempFile.delete();
+            throw new IOException("Problem renaming " + tempFile + " to " + cacheFile);
+        }
+    }
+
+    /**
+     *
+     * @param cacheFile
+     * @return run information from cache file
+     * @throws IOException
+     */
+    static RunMetadata readCache(File cacheFile) throws IOException {
+
+        RunMetadata metadata = new RunMetadata();
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(cacheFile)));
+        try {
+            int version = in.readInt();
+            if(version != CACHE_FORMAT_VERSION){
+                throw new IOException("Unknown cache file version " + version + " in " + cacheFile);
+            }
+
+            metadata.baseCallsConfigRead = in.readBoolean();
+            metadata.intensityConfigRead = in.readBoolean();
+            metadata.baseCallSoftwareName = readString(in);
+            metadata.baseCallSoftwareVersion = readString(in);
+            metadata.imageAnalysisSoftwareName = readString(in);
+            metadata.imageAnalysisSoftwareVersion = readString(in);
+
+            metadata.runConfigRead = in.readBoolean();
+            int lanes = in.readInt();
+            for(int i = 0; i < lanes; i++){
+                int lane = in.readInt();
+                int tiles = in.readInt();
+                List<Integer> tileList = new ArrayList<Integer>(tiles);
+                for(int j = 0; j < tiles; j++){
+                    tileList.add(in.readInt());
+                }
+                metadata.tilesByLane.put(lane, tileList);
+            }
+            lanes = in.readInt();
+            for(int i = 0; i < lanes; i++){
+                int lane = in.readInt();
+                metadata.tileRangesByLane.put(lane, readIntArrays(in));
+            }
+            metadata.runFolderId = readString(in);
+            metadata.instrument = readString(in);
+            metadata.runFolder = readString(in);
+            metadata.runFolderDate = readString(in);
+            int reads = in.readInt();
+            for(int i = 0; i < reads; i++){
+                int index = in.readInt();
+                metadata.configReads.put(index, new int[]{in.readInt(), in.readInt()});
+            }
+            int cycles = in.readInt();
+            for(int i = 0; i < cycles; i++){
+                metadata.barcodeCycles.add(in.readInt());
+            }
+
+            metadata.runParametersRead = in.readBoolean();
+            metadata.rtaVersion = readString(in);
+            metadata.applicationName = readString(in);
+            metadata.applicationVersion = readString(in);
+            metadata.runId = readString(in);
+            metadata.runStartDate = readString(in);
+            metadata.runParametersReads = readIntArrays(in);
+
+            metadata.runInfoRead = in.readBoolean();
+            if(in.readBoolean()){
+                metadata.flowcellLayout = new int[]{in.readInt(), in.readInt(), in.readInt()};
+            }
+            metadata.runInfoReads = readIntArrays(in);
+        } finally {
+            in.close();
+        }
+        return metadata;
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if(value != null){
+            out.writeUTF(value);
+        }
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    private static void writeIntArrays(DataOutputStream out, List<int[]> arrays) throws IOException {
+        if(arrays == null){
+            out.writeInt(-1);
+            return;
+        }
+        out.writeInt(arrays.size());
+        for(int [] array : arrays){
+            out.writeInt(array.length);
+            for(int value : array){
+                out.writeInt(value);
+            }
+        }
+    }
+
+    private static List<int[]> readIntArrays(DataInputStream in) throws IOException {
+        int size = in.readInt();
+        if(size < 0){
+            return null;
+        }
+        List<int[]> arrays = new ArrayList<int[]>(size);
+        for(int i = 0; i < size; i++){
+            int [] array = new int[in.readInt()];
+            for(int j = 0; j < array.length; j++){
+                array[j] = in.readInt();
+            }
+            arrays.add(array);
+        }
+        return arrays;
+    }
+
+    /**
+     * @return true if BaseCalls config file read
+     */
+    public boolean hasBaseCallsConfig() {
+        return baseCallsConfigRead;
+    }
+
+    /**
+     * @return true if Intensities config file read
+     */
+    public boolean hasIntensityConfig() {
+        return intensityConfigRead;
+    }
+
+    /**
+     * @return true if a config file with one Run element read
+     */
+    public boolean hasRunConfig() {
+        return runConfigRead;
+    }
+
+    /**
+     * @return true if runParameters file read
+     */
+    public boolean hasRunParameters() {
+        return runParametersRead;
+    }
+
+    /**
+     * @return true if RunInfo file read
+     */
+    public boolean hasRunInfo() {
+        return runInfoRead;
+    }
+
+    /**
+     * @return the base call software name in BaseCalls config file
+     */
+    public String getBaseCallSoftwareName() {
+        return baseCallSoftwareName;
+    }
+
+    /**
+     * @return the base call software version in BaseCalls config file
+     */
+    public String getBaseCallSoftwareVersion() {
+        return baseCallSoftwareVersion;
+    }
+
+    /**
+     * @return the image analysis software name in Intensities config file
+     */
+    public String getImageAnalysisSoftwareName() {
+        return imageAnalysisSoftwareName;
+    }
+
+    /**
+     * @return the image analysis software version in Intensities config file
+     */
+    public String getImageAnalysisSoftwareVersion() {
+        return imageAnalysisSoftwareVersion;
+    }
+
+    /**
+     * @param lane
+     * @return tiles listed for a lane in config file in file order, empty if none
+     */
+    public int [] getTiles(int lane) {
+        List<Integer> tiles = this.tilesByLane.get(lane);
+        if(tiles == null){
+            return new int[0];
+        }
+        int [] tileArray = new int[tiles.size()];
+        for(int i = 0; i < tileArray.length; i++){
+            tileArray[i] = tiles.get(i);
+        }
+        return tileArray;
+    }
+
+    /**
+     * @param lane
+     * @return tile ranges, minimum and maximum tile number, for a lane in config file
+     */
+    public List<int[]> getTileRanges(int lane) {
+        List<int[]> ranges = this.tileRangesByLane.get(lane);
+        List<int[]> copy = new ArrayList<int[]>();
+        if(ranges != null){
+            for(int [] range : ranges){
+                copy.add(range.clone());
+            }
+        }
+        return copy;
+    }
+
+    /**
+     * @return the run folder id in config file
+     */
+    public String getRunFolderId() {
+        return runFolderId;
+    }
+
+    /**
+     * @return the instrument in config file
+     */
+    public String getInstrument() {
+        return instrument;
+    }
+
+    /**
+     * @return the run folder in config file
+     */
+    public String getRunFolder() {
+        return runFolder;
+    }
+
+    /**
+     * @return the run folder date in config file, yyMMdd
+     */
+    public String getRunFolderDate() {
+        return runFolderDate;
+    }
+
+    /**
+     * @return first and last cycle of each read in config file by read index
+     */
+    public Map<Integer, int[]> getConfigReads() {
+        TreeMap<Integer, int[]> copy = new TreeMap<Integer, int[]>();
+        for(Map.Entry<Integer, int[]> entry : this.configReads.entrySet()){
+            copy.put(entry.getKey(), entry.getValue().clone());
+        }
+        return copy;
+    }
+
+    /**
+     * @return barcode cycles in config file in file order
+     */
+    public int [] getBarcodeCycles() {
+        int [] cycles = new int[this.barcodeCycles.size()];
+        for(int i = 0; i < cycles.length; i++){
+            cycles[i] = this.barcodeCycles.get(i);
+        }
+        return cycles;
+    }
+
+    /**
+     * @return the RTA version in runParameters file
+     */
+    public String getRtaVersion() {
+        return rtaVersion;
+    }
+
+    /**
+     * @return the application name in runParameters file
+     */
+    public String getApplicationName() {
+        return applicationName;
+    }
+
+    /**
+     * @return the application version in runParameters file
+     */
+    public String getApplicationVersion() {
+        return applicationVersion;
+    }
+
+    /**
+     * @return the run id in runParameters file
+     */
+    public String getRunId() {
+        return runId;
+    }
+
+    /**
+     * @return the run start date in runParameters file, yyMMdd
+     */
+    public String getRunStartDate() {
+        return runStartDate;
+    }
+
+    /**
+     * @return read number, number of cycles and 1 for index read, of each read in runParameters file
+     * in read number order, null if any read without number
+     */
+    public List<int[]> getRunParametersReads() {
+        return copyReads(runParametersReads);
+    }
+
+    /**
+     * @return surface, swath and tile count of flowcell layout in RunInfo file, null if not available
+     */
+    public int [] getFlowcellLayout() {
+        return flowcellLayout == null ? null : flowcellLayout.clone();
+    }
+
+    /**
+     * @return read number, number of cycles and 1 for index read, of each read in RunInfo file
+     * in read number order, null if any read without number
+     */
+    public List<int[]> getRunInfoReads() {
+        return copyReads(runInfoReads);
+    }
+
+    private static List<int[]> copyReads(List<int[]> reads){
+        if(reads == null){
+            return null;
+        }
+        List<int[]> copy = new ArrayList<int[]>(reads.size());
+        for(int [] read : reads){
+            copy.add(Arrays.copyOf(read, read.length));
+        }
+        return copy;
+    }
+}
@@ -20,13 +20,19 @@ package uk.ac.sanger.npg.illumina;
 
 import java.io.File;
 import java.text.DecimalFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
 import net.sf.picard.util.Log;
 import net.sf.samtools.*;
+import net.sf.samtools.util.StringUtil;
 import uk.ac.sanger.npg.bam.util.BamUtils;
 import uk.ac.sanger.npg.illumina.file.reader.*;
+import uk.ac.sanger.npg.picard.IndexDecoder;
 
 /**
  * Process an illumina tile
@@ -51,14 +57,53 @@ public class Tile {
     private String secondBarcodeSeqTagName;
     private String secondBarcodeQualTagName;
 
+    private String umiSeqTagName;
+    private String umiQualTagName;
+
+    private String packedSecondCallTagName;
+
     private int bc_read;
     private int sec_bc_read;
 
+    //sorted zero based indices of clusters to process, all clusters if null
+    private int[] clusterSample;
+
+    //per cycle counts of processed clusters
+    private boolean collectCycleMetric = false;
+    private CycleMetric.TileCycles cycleMetric;
+
+    private final ReadStructure readStructure;
     private final HashMap<String, int[]> cycleRangeByRead;
 
+    //output of each cycle in the cycle to segment dispatch table
+    private static final int TARGET_READ1 = 0;
+    private static final int TARGET_READ2 = 1;
+    private static final int TARGET_BARCODE = 2;
+    private static final int TARGET_BARCODE2 = 3;
+    private static final int TARGET_UMI = 4;
+    private static final String [] TARGET_NAMES = {"read1", "read2", "readIndex", "readIndex2", "readUmi"};
+
+    //cycle to segment dispatch table, compiled when base call files opened
+    private BCLFileReader [] dispatchReaders;
+    private int [] dispatchTarget;
+    private int [] dispatchOffset;
+    private int [] targetLength;
+    //end of each molecular barcode segment in the molecular barcode output
+    private int [] umiSegmentEnds;
+
     private final boolean includeSecondCall;
     private final boolean pfFilter;
 
+    //record template: header and record with the attributes shared by all records of this tile, cloned for each record
+    private SAMFileHeader templateHeader;
+    private SAMRecord templateRecord;
+
+    //constant flags by paired and first read, all reads unmapped
+    private static final int FLAGS_UNPAIRED = 0x4;
+    private static final int FLAGS_FIRST_OF_PAIR  = 0x1 | 0x4 | 0x8 | 0x40;
+    private static final int FLAGS_SECOND_OF_PAIR = 0x1 | 0x4 | 0x8 | 0x80;
+    private static final int FLAG_QC_FAIL = 0x200;
+
     //temp fields    
     private final String laneSubDir;
     private final String tileName;
@@ -77,6 +122,12 @@ public class Tile {
     private final HashMap<String, BCLFileReader[]> bclFileReaderListByRead;
     private final HashMap<String, SCLFileReader[]> sclFileReaderListByRead;
 
+    //base call files opened for several cluster ranges in turn:
+    //filter and position files kept open between ranges, SCL bases loaded for each range
+    private boolean openForRanges = false;
+    private FilterFileReader rangeFilterFileReader;
+    private PositionFileReader rangePositionReader;
+
     /**
      * 
      * @param intensityDir intensities directory
@@ -101,6 +152,52 @@ public class Tile {
             String barcodeSeqTagName,
             String barcodeQualTagName) {
 
+        this(intensityDir, baseCallDir, id, laneNumber, tileNumber,
+             new ReadStructure(cycleRangeByRead), cycleRangeByRead,
+             secondCall, pfFilter, barcodeSeqTagName, barcodeQualTagName);
+    }
+
+    /**
+     * 
+     * @param intensityDir intensities directory
+     * @param baseCallDir 
+     * @param id instrument with run id, which will be used for read name
+     * @param laneNumber the run laneNumber number
+     * @param tileNumber this tile number
+     * @param readStructure template, barcode, molecular barcode and skipped segments of cycles
+     * @param secondCall include second base call or not
+     * @param pfFilter include PF filtered reads or not
+     * @param barcodeSeqTagName
+     * @param barcodeQualTagName  
+     */
+    public Tile(String intensityDir,
+            String baseCallDir,
+            String id,
+            int laneNumber,
+            int tileNumber,
+            ReadStructure readStructure,
+            boolean secondCall,
+            boolean pfFilter,
+            String barcodeSeqTagName,
+            String barcodeQualTagName) {
+
+        this(intensityDir, baseCallDir, id, laneNumber, tileNumber,
+             readStructure, readStructure.getCycleRangeByRead(),
+             secondCall, pfFilter, barcodeSeqTagName, barcodeQualTagName);
+    }
+
+    private Tile(String intensityDir,
+            String baseCallDir,
+            String id,
+            int laneNumber,
+            int tileNumber,
+            ReadStructure readStructure,
+            HashMap<String, int[]> cycleRangeByRead,
+            boolean secondCall,
+            boolean pfFilter,
+            String barcodeSeqTagName,
+            String barcodeQualTagName) {
+
         this.id = id;
         this.laneNumber = laneNumber;
         this.tileNumber = tileNumber;
@@ -113,6 +210,7 @@ public class Tile {
         this.includeSecondCall = secondCall;
         this.pfFilter = pfFilter;
 
+        this.readStructure = readStructure;
         this.cycleRangeByRead = cycleRangeByRead;
 
         int numOfReads = this.cycleRangeByRead.size();
@@ -171,39 +269,35 @@ public class Tile {
      * @throws Exception
      */
     public void processTile(SAMFileWriter outputSam) throws Exception {
+        this.processTile(outputSam, 0, -1);
+    }
+
+    /**
+     * process a range of clusters of this tile,
+     * all files are moved to the first cluster of the range before reading,
+     * unless already there after the previous range
+     * 
+     * @param outputSam
+     * @param firstCluster zero based index of the first cluster
+     * @param numberOfClusters number of clusters to process, negative for the rest of the tile
+     * @throws Exception
+     */
+    public void processTile(SAMFileWriter outputSam, int firstCluster, int numberOfClusters) throws Exception {
         
-        if(this.dualIndexed && (this.secondBarcodeQualTagName == null || this.secondBarcodeSeqTagName == null)){
-            throw new RuntimeException("Dual index run but tag names for second barcode not given.");
+        if(this.dispatchReaders == null){
+            throw new RuntimeException("Base call files not opened for tile " + this.tileNumber);
         }
         
-        log.info("Open filter file: " + this.getFilterFileName());
-        FilterFileReader filterFileReader = new FilterFileReader(this.getFilterFileName());
-        
-        File clocsFile = new File( this.getcLocsFileName() );
-        File locsFile = new File( this.getLocsFileName() );
-        File posFile = new File( this.getPosFileName() );
-        
-        PositionFileReader positionReader = null;
-
-        if(clocsFile.exists()){
-
-           log.info("open clocs file: " + this.getcLocsFileName());
-           positionReader = new CLocsFileReader(this.getcLocsFileName());
-        }else if(locsFile.exists()){
-            
-           log.info("open locs file: " + this.getLocsFileName()) ;
-           positionReader = new LocsFileReader(this.getLocsFileName());
-        }else if( posFile.exists() ) {
-            
-           log.info("open pos file: " + this.getPosFileName());
-           positionReader = new PosFileReader(this.getPosFileName());
-        }else{
-            
-            String errorMessage = "clocs, locs and pos files are not available for this tile: "
-                    + this.getcLocsFileName() + " "
-                    + this.getPosFileName();
-            log.error(errorMessage);
-            throw new RuntimeException(errorMessage);
+        FilterFileReader filterFileReader = this.rangeFilterFileReader;
+        PositionFileReader positionReader = this.rangePositionReader;
+        if (filterFileReader == null) {
+            log.info("Open filter file: " + this.getFilterFileName());
+            filterFileReader = new FilterFileReader(this.getFilterFileName());
+            positionReader = this.openPositionFile();
+            if (this.openForRanges) {
+                this.rangeFilterFileReader = filterFileReader;
+                this.rangePositionReader = positionReader;
+            }
         }
 
         SAMFileHeader samFileHeader = outputSam.getFileHeader();
@@ -217,9 +311,64 @@ public class Tile {
             this.checkSCLClusterNumber(totalClusterInTile);
         }
 
+        boolean wholeTile = (firstCluster == 0 && numberOfClusters < 0);
+        int lastCluster = numberOfClusters < 0 ? totalClusterInTile : firstCluster + numberOfClusters;
+        if (firstCluster < 0 || lastCluster > totalClusterInTile || firstCluster > lastCluster) {
+            throw new IllegalArgumentException("Cluster range " + firstCluster + "-" + lastCluster
+                    + " out of range in tile " + this.tileNumber + ": " + totalClusterInTile);
+        }
+        if (this.openForRanges && this.includeSecondCall) {
+            this.loadSecondCalls(firstCluster, lastCluster - firstCluster);
+        }
+        if (filterFileReader.getCurrentCluster() != firstCluster) {
+            log.info("Moving to cluster " + firstCluster);
+            this.seekToCluster(firstCluster);
+            filterFileReader.seekToCluster(firstCluster);
+            positionReader.seekToCluster(firstCluster);
+        }
+        int pfClustersBefore = filterFileReader.getCurrentPFClusters();
+
+        //next cluster in the sample
+        int sampleIndex = 0;
+        if (this.clusterSample != null) {
+            sampleIndex = Arrays.binarySearch(this.clusterSample, firstCluster);
+            if (sampleIndex < 0) {
+                sampleIndex = -sampleIndex - 1;
+            }
+        }
+
+        CycleMetric.ReadCycles [] targetMetrics = null;
+        if (this.collectCycleMetric) {
+            this.cycleMetric = new CycleMetric.TileCycles(this.tileNumber, this.getCyclesByTarget());
+            targetMetrics = new CycleMetric.ReadCycles[TARGET_NAMES.length];
+            for (int target = 0; target < TARGET_NAMES.length; target++) {
+                targetMetrics[target] = this.cycleMetric.getRead(TARGET_NAMES[target]);
+            }
+        }
+
+        SCLFileReader [] sclFileListRead1 = null;
+        SCLFileReader [] sclFileListRead2 = null;
+        if (this.includeSecondCall) {
+            sclFileListRead1 = this.getSclFileReaderListByRead().get("read1");
+            sclFileListRead2 = this.getSclFileReaderListByRead().get("read2");
+        }
+
         log.info("Reading cluster one by one");
-        int clusterIndex = 0;
-        while (filterFileReader.hasNext()) {
+        int clusterIndex = firstCluster;
+        while (filterFileReader.hasNext() && clusterIndex < lastCluster) {
+
+            if (this.clusterSample != null) {
+                if (sampleIndex >= this.clusterSample.length || this.clusterSample[sampleIndex] >= lastCluster) {
+                    break;
+                }
+                int nextCluster = this.clusterSample[sampleIndex++];
+                if (nextCluster > clusterIndex) {
+                    this.seekToCluster(nextCluster);
+                    filterFileReader.seekToCluster(nextCluster);
+                    positionReader.seekToCluster(nextCluster);
+                    clusterIndex = nextCluster;
+                }
+            }
 
             clusterIndex++;
 
@@ -231,34 +380,37 @@ public class Tile {
             //filtered
             int filtered = (Integer) filterFileReader.next();
 
-            //read 1
-            byte [][] basesQuals1 = this.getNextClusterBaseQuals("read1");
-
-            //read 2
-            byte [][] basesQuals2 = null;
-            if(this.isPairedRead()){
-                basesQuals2 = this.getNextClusterBaseQuals("read2");
-            }
-            
-            //index read
-            byte [][] basesQualsIndex = null;
-            if(this.isIndexed()){
-                 basesQualsIndex = this.getNextClusterBaseQuals("readIndex");
-            }
-            
-            //second index read
-            byte [][] basesQualsIndex2 = null;
-            if( this.dualIndexed ){
-                 basesQualsIndex2 = this.getNextClusterBaseQuals("readIndex2");
+            //all reads through the dispatch table
+            byte [][][] clusterBaseQuals = this.getNextClusterBaseQuals();
+            byte [][] basesQuals1      = clusterBaseQuals[TARGET_READ1];
+            byte [][] basesQuals2      = clusterBaseQuals[TARGET_READ2];
+            byte [][] basesQualsIndex  = clusterBaseQuals[TARGET_BARCODE];
+            byte [][] basesQualsIndex2 = clusterBaseQuals[TARGET_BARCODE2];
+            byte [][] basesQualsUmi    = clusterBaseQuals[TARGET_UMI];
+
+            if(targetMetrics != null){
+                boolean pf = (filtered == 1);
+                for (int target = 0; target < clusterBaseQuals.length; target++) {
+                    if (clusterBaseQuals[target] != null) {
+                        targetMetrics[target].add(clusterBaseQuals[target], pf);
+                    }
+                }
             }
 
             //second call
             String secondBases1 = null;
             String secondBases2 = null;
-            if(this.includeSecondCall){
-                secondBases1 = this.getNextClusterSecondBases("read1");
-                if(this.isPairedRead()){
-                   secondBases2 = this.getNextClusterSecondBases("read2");
+            byte [] packedSecondBases1 = null;
+            byte [] packedSecondBases2 = null;
+            if(this.includeSecondCall && this.packedSecondCallTagName != null){
+                packedSecondBases1 = this.getNextClusterPackedSecondBases(sclFileListRead1);
+                if(sclFileListRead2 != null){
+                   packedSecondBases2 = this.getNextClusterPackedSecondBases(sclFileListRead2);
+                }
+            }else if(this.includeSecondCall){
+                secondBases1 = this.getNextClusterSecondBases(sclFileListRead1);
+                if(sclFileListRead2 != null){
+                   secondBases2 = this.getNextClusterSecondBases(sclFileListRead2);
                 }
             }
 
@@ -276,15 +428,43 @@ public class Tile {
                 if (this.sec_bc_read == 1) { read1_qi2 = basesQualsIndex2; } 
                 else                       { read2_qi2 = basesQualsIndex2; }
 
+                String [] umiTags = null;
+                if (basesQualsUmi != null && this.umiSeqTagName != null && this.umiQualTagName != null) {
+                    umiTags = this.getUmiTags(basesQualsUmi);
+                }
+
                 SAMRecord recordRead1 = this.getSAMRecord(samFileHeader, readName, clusterIndex, basesQuals1, secondBases1, read1_qi1, read1_qi2, filtered, pairedRead, true);
+                this.addUmiTags(recordRead1, umiTags);
+                this.addPackedSecondCallTag(recordRead1, packedSecondBases1);
                 this.writeToBam(outputSam, recordRead1);
                 if(this.pairedRead){
                     SAMRecord recordRead2 = this.getSAMRecord(samFileHeader, readName, clusterIndex, basesQuals2, secondBases2, read2_qi1, read2_qi2, filtered, pairedRead, false);
+                    this.addUmiTags(recordRead2, umiTags);
+                    this.addPackedSecondCallTag(recordRead2, packedSecondBases2);
                     this.writeToBam(outputSam, recordRead2);
                 }
             }
         }
 
+        if(this.clusterSample != null){
+            log.info((filterFileReader.getCurrentPFClusters() - pfClustersBefore) + " PF clusters in sample of " + this.clusterSample.length
+                    + " clusters of total " + totalClusterInTile);
+            this.closeTileFiles(filterFileReader, positionReader);
+            return;
+        }
+
+        if(!wholeTile){
+            if(lastCluster != filterFileReader.getCurrentCluster()
+                    || lastCluster != positionReader.getCurrentTotalClusters()){
+                throw new Exception("Cluster range " + firstCluster + "-" + lastCluster
+                        + " of tile " + this.tileNumber + " not completely processed");
+            }
+            log.info((filterFileReader.getCurrentPFClusters() - pfClustersBefore) + " PF clusters in cluster range "
+                    + firstCluster + "-" + lastCluster + " of total " + totalClusterInTile);
+            this.closeTileFiles(filterFileReader, positionReader);
+            return;
+        }
+
         //check number of clusters from filter header is correct
 
         if(totalClusterInTile != filterFileReader.getCurrentCluster()){
@@ -312,10 +492,130 @@ public class Tile {
         log.info(filterFileReader.getCurrentPFClusters() + " PF clusters in this tile out of total " + totalClusterInTile);
 
         //close clocs or pos,  and filter file
-        positionReader.close();
-        filterFileReader.close();
+        this.closeTileFiles(filterFileReader, positionReader);
+    }
+
+    /**
+     * 
+     * @return reader of the clocs, locs or pos file of this tile, whichever available first
+     * @throws Exception
+     */
+    private PositionFileReader openPositionFile() throws Exception {
+
+        File clocsFile = new File( this.getcLocsFileName() );
+        File locsFile = new File( this.getLocsFileName() );
+        File posFile = new File( this.getPosFileName() );
+        
+        PositionFileReader positionReader = null;
+
+        if(clocsFile.exists()){
+
+           log.info("open clocs file: " + this.getcLocsFileName());
+           positionReader = new CLocsFileReader(this.getcLocsFileName());
+        }else if(locsFile.exists()){
+            
+           log.info("open locs file: " + this.getLocsFileName()) ;
+           positionReader = new LocsFileReader(this.getLocsFileName());
+        }else if( posFile.exists() ) {
+            
+           log.info("open pos file: " + this.getPosFileName());
+           positionReader = new PosFileReader(this.getPosFileName());
+        }else{
+            
+            String errorMessage = "clocs, locs and pos files are not available for this tile: "
+                    + this.getcLocsFileName() + " "
+                    + this.getPosFileName();
+            log.error(errorMessage);
+            throw new RuntimeException(errorMessage);
+        }
+        return positionReader;
+    }
+
+    /**
+     * close filter and position files after processing, unless kept open for the next cluster range
+     * 
+     * @param filterFileReader
+     * @param positionReader
+     */
+    private void closeTileFiles(FilterFileReader filterFileReader, PositionFileReader positionReader) {
+
+        if (!this.openForRanges) {
+            positionReader.close();
+            filterFileReader.close();
+        }
     }
     
+    /**
+     * count barcodes of this tile against the barcode list, only reading
+     * filter file and index read BCL files
+     *
+     * @param indexDecoder decoder with barcode list prepared
+     * @return number of clusters counted
+     * @throws Exception
+     */
+    public int processTileBarcodeCensus(IndexDecoder indexDecoder) throws Exception {
+
+        if( !this.isIndexed() ){
+            throw new RuntimeException("No index read available for barcode census in this run.");
+        }
+
+        log.info("Open filter file: " + this.getFilterFileName());
+        FilterFileReader filterFileReader = new FilterFileReader(this.getFilterFileName());
+
+        int totalClusterInTile = filterFileReader.getTotalClusters();
+        this.checkBCLClusterNumber(totalClusterInTile);
+
+        int barcodeLength = indexDecoder.getBarcodeLength();
+        byte [] barcodeRead = null;
+
+        int countedClusters = 0;
+        while (filterFileReader.hasNext()) {
+
+            int filtered = (Integer) filterFileReader.next();
+
+            byte [][] basesQualsIndex = this.getNextClusterBaseQuals("readIndex");
+            byte [] bases = basesQualsIndex[0];
+            if( this.dualIndexed ){
+                byte [][] basesQualsIndex2 = this.getNextClusterBaseQuals("readIndex2");
+                byte [] bothBases = new byte[bases.length + basesQualsIndex2[0].length];
+                System.arraycopy(bases, 0, bothBases, 0, bases.length);
+                System.arraycopy(basesQualsIndex2[0], 0, bothBases, bases.length, basesQualsIndex2[0].length);
+                bases = bothBases;
+            }
+
+            if(this.pfFilter && filtered == 0){
+                continue;
+            }
+
+            if(bases.length < barcodeLength){
+                throw new RuntimeException("Index read length " + bases.length
+                        + " shorter than barcode length " + barcodeLength);
+            }
+            if(bases.length > barcodeLength){
+                if(barcodeRead == null){
+                    barcodeRead = new byte[barcodeLength];
+                }
+                System.arraycopy(bases, 0, barcodeRead, 0, barcodeLength);
+                bases = barcodeRead;
+            }
+
+            indexDecoder.extractBarcode(bases, filtered != 0);
+            countedClusters++;
+        }
+
+        if(totalClusterInTile != filterFileReader.getCurrentCluster()){
+            throw new Exception("Number of clusters in filter file "
+                    + filterFileReader.getFileName()
+                    + " is incorrect");
+        }
+
+        log.info(filterFileReader.getCurrentPFClusters() + " PF clusters in this tile out of total " + totalClusterInTile);
+
+        filterFileReader.close();
+
+        return countedClusters;
+    }
+
     /**
      * 
      * @param outputSam where to write bam record
@@ -377,6 +677,116 @@ public class Tile {
         return true;
     }
     
+    /**
+     * check headers and sizes of filter, position, BCL and SCL files of this tile without opening them for conversion,
+     * cluster numbers must match the filter file and uncompressed files must have the size given by their headers
+     *
+     * @return all problems found, empty if none
+     */
+    public List<String> checkBaseCallFiles(){
+        return this.checkBaseCallFiles(false);
+    }
+
+    /**
+     * check headers and sizes of base call files of this tile without opening them for conversion
+     *
+     * @param indexReadsOnly only check filter file and index read BCL files, as read by barcode census
+     * @return all problems found, empty if none
+     */
+    public List<String> checkBaseCallFiles(boolean indexReadsOnly){
+
+        List<String> problems = new ArrayList<String>();
+
+        if(this.filterFileName == null){
+            problems.add("No filter file for tile " + this.tileNumber);
+            return problems;
+        }
+        int totalClusters;
+        try {
+            FilterFileReader filterFileReader = new FilterFileReader(this.filterFileName);
+            totalClusters = filterFileReader.getTotalClusters();
+            checkFileSize(filterFileReader, filterFileReader.getExpectedFileSize(), problems);
+            filterFileReader.close();
+        } catch (Exception ex) {
+            problems.add("Filter file " + this.filterFileName + ": " + ex.getMessage());
+            return problems;
+        }
+
+        //position files not read by barcode census
+        if(!indexReadsOnly){
+            try {
+                if(new File(this.cLocsFileName).exists()){
+                    new CLocsFileReader(this.cLocsFileName).close();
+                }else if(new File(this.locsFileName).exists()){
+                    //only clusters in filter file are read from locs file
+                    LocsFileReader locsFileReader = new LocsFileReader(this.locsFileName);
+                    long size = locsFileReader.getFileSize();
+                    long expectedSize = 12 + 8L * totalClusters;
+                    if(size >= 0 && size < expectedSize){
+                        problems.add("Size of " + this.locsFileName + " " + size
+                                + " bytes too small for the clusters in filter file: " + expectedSize);
+                    }
+                    locsFileReader.close();
+                }else if(!new File(this.posFileName).exists()){
+                    problems.add("clocs, locs and pos files are not available for tile " + this.tileNumber);
+                }
+            } catch (Exception ex) {
+                problems.add("Position file of tile " + this.tileNumber + ": " + ex.getMessage());
+            }
+        }
+
+        for (Map.Entry<String, int[]> entry : this.cycleRangeByRead.entrySet()) {
+            if(indexReadsOnly && !entry.getKey().startsWith("readIndex")){
+                continue;
+            }
+            int [] cycleRange = entry.getValue();
+            for (int cycle = cycleRange[0]; cycle <= cycleRange[1]; cycle++) {
+
+                String bclFileName = this.getBaseCallFileName(cycle, true);
+                try {
+                    BCLFileReader bclFileReader = new BCLFileReader(bclFileName);
+                    checkClusterNumber(bclFileReader, bclFileReader.getTotalClusters(), totalClusters, problems);
+                    checkFileSize(bclFileReader, bclFileReader.getExpectedFileSize(), problems);
+                    bclFileReader.close();
+                } catch (Exception ex) {
+                    problems.add("BCL file " + bclFileName + ": " + ex.getMessage());
+                }
+
+                if(!this.includeSecondCall || indexReadsOnly){
+                    continue;
+                }
+                //SCL reader loads all bases, only header read here
+                String sclFileName = this.getBaseCallFileName(cycle, false);
+                try {
+                    IlluminaFileReader sclFileReader = new IlluminaFileReader(sclFileName);
+                    int sclClusters = sclFileReader.readFourBytes();
+                    checkClusterNumber(sclFileReader, sclClusters, totalClusters, problems);
+                    checkFileSize(sclFileReader, 4 + (sclClusters + 3L) / 4, problems);
+                    sclFileReader.close();
+                } catch (Exception ex) {
+                    problems.add("SCL file " + sclFileName + ": " + ex.getMessage());
+                }
+            }
+        }
+
+        return problems;
+    }
+
+    private static void checkClusterNumber(IlluminaFileReader reader, int clusters, int expectedClusters, List<String> problems){
+        if(clusters != expectedClusters){
+            problems.add("Number of clusters in " + reader.getFileName() + " " + clusters
+                    + " not as expected from filter file: " + expectedClusters);
+        }
+    }
+
+    private static void checkFileSize(IlluminaFileReader reader, long expectedSize, List<String> problems){
+        long size = reader.getFileSize();
+        if(size >= 0 && size != expectedSize){
+            problems.add("Size of " + reader.getFileName() + " " + size
+                    + " bytes not as expected from its header: " + expectedSize);
+        }
+    }
+
     /**
      * open all BCL or SCL files
      *
@@ -401,6 +811,230 @@ public class Tile {
             }
         }
 
+        this.compileDispatchTable();
+    }
+
+    /**
+     * 
+     * @return true if a second barcode goes to its own tags, otherwise all barcode segments are concatenated
+     */
+    private boolean hasSecondBarcodeTags(){
+        return this.secondBarcodeSeqTagName != null && this.secondBarcodeQualTagName != null;
+    }
+
+    /**
+     * 
+     * @param type segment type
+     * @param countOfType number of segments of this type before this one
+     * @return dispatch target of a segment
+     */
+    private int getTarget(char type, int countOfType){
+
+        switch (type) {
+            case ReadStructure.TEMPLATE:
+                return countOfType == 0 ? TARGET_READ1 : TARGET_READ2;
+            case ReadStructure.BARCODE:
+                return (countOfType == 0 || !this.hasSecondBarcodeTags()) ? TARGET_BARCODE : TARGET_BARCODE2;
+            default:
+                return TARGET_UMI;
+        }
+    }
+
+    /**
+     * 
+     * @return cycles of each dispatch target keyed by target name, for targets with cycles
+     */
+    public LinkedHashMap<String, int[]> getCyclesByTarget(){
+
+        int [] lengths = new int[TARGET_NAMES.length];
+        int [][] cycles = new int[TARGET_NAMES.length][this.readStructure.getTotalCycles()];
+        int [] countByType = new int[128];
+        for (ReadStructure.Segment segment : this.readStructure.getSegments()) {
+            if (segment.getType() == ReadStructure.SKIP) {
+                continue;
+            }
+            int target = this.getTarget(segment.getType(), countByType[segment.getType()]++);
+            for (int cycle = segment.getFirstCycle(); cycle <= segment.getLastCycle(); cycle++) {
+                cycles[target][lengths[target]++] = cycle;
+            }
+        }
+
+        LinkedHashMap<String, int[]> cyclesByTarget = new LinkedHashMap<String, int[]>();
+        for (int target = 0; target < TARGET_NAMES.length; target++) {
+            if (lengths[target] > 0) {
+                cyclesByTarget.put(TARGET_NAMES[target], Arrays.copyOf(cycles[target], lengths[target]));
+            }
+        }
+        return cyclesByTarget;
+    }
+
+    /**
+     * compile the read structure into a flat table of BCL file reader,
+     * output and position in output for each cycle not skipped
+     */
+    private void compileDispatchTable(){
+
+        int numberOfCycles = 0;
+        for (ReadStructure.Segment segment : this.readStructure.getSegments()) {
+            if (segment.getType() != ReadStructure.SKIP) {
+                numberOfCycles += segment.getLength();
+            }
+        }
+
+        this.dispatchReaders = new BCLFileReader[numberOfCycles];
+        this.dispatchTarget  = new int[numberOfCycles];
+        this.dispatchOffset  = new int[numberOfCycles];
+        this.targetLength    = new int[TARGET_NAMES.length];
+        this.umiSegmentEnds  = new int[this.readStructure.getSegments(ReadStructure.MOLECULAR_BARCODE).size()];
+
+        int index = 0;
+        int umiSegment = 0;
+        int [] countByType = new int[128];
+        for (ReadStructure.Segment segment : this.readStructure.getSegments()) {
+            if (segment.getType() == ReadStructure.SKIP) {
+                continue;
+            }
+            int target = this.getTarget(segment.getType(), countByType[segment.getType()]++);
+            BCLFileReader [] readers = this.getBclFileReaderListByRead().get(segment.getName());
+            for (BCLFileReader reader : readers) {
+                this.dispatchReaders[index] = reader;
+                this.dispatchTarget[index]  = target;
+                this.dispatchOffset[index]  = this.targetLength[target]++;
+                index++;
+            }
+            if (target == TARGET_UMI) {
+                this.umiSegmentEnds[umiSegment++] = this.targetLength[target];
+            }
+        }
+    }
+
+    /**
+     * molecular barcode sequence and quality tag values straight from the per cluster arrays,
+     * with segments separated by hyphen in the sequence and by space in the quality
+     *
+     * @param baseQualsUmi bases and qualities of all molecular barcode cycles of one cluster
+     * @return sequence and quality tag values
+     */
+    public String [] getUmiTags(byte [][] baseQualsUmi){
+
+        int length = baseQualsUmi[0].length + this.umiSegmentEnds.length - 1;
+        byte [] seq  = new byte[length];
+        byte [] qual = new byte[length];
+
+        int pos = 0;
+        int start = 0;
+        for (int segment = 0; segment < this.umiSegmentEnds.length; segment++) {
+            if (segment > 0) {
+                seq[pos]  = '-';
+                qual[pos] = ' ';
+                pos++;
+            }
+            for (int i = start; i < this.umiSegmentEnds[segment]; i++, pos++) {
+                seq[pos]  = baseQualsUmi[0][i];
+                qual[pos] = (byte) (baseQualsUmi[1][i] + 33);
+            }
+            start = this.umiSegmentEnds[segment];
+        }
+
+        String [] umiTags = {StringUtil.bytesToString(seq), StringUtil.bytesToString(qual)};
+        return umiTags;
+    }
+
+    /**
+     * 
+     * @param samRecord
+     * @param umiTags molecular barcode sequence and quality, nothing added if null
+     */
+    private void addUmiTags(SAMRecord samRecord, String [] umiTags){
+        if (umiTags != null) {
+            samRecord.setAttribute(this.umiSeqTagName, umiTags[0]);
+            samRecord.setAttribute(this.umiQualTagName, umiTags[1]);
+        }
+    }
+
+    /**
+     *
+     * @param samRecord
+     * @param packedSecondBases written as unsigned byte array tag, nothing added if null
+     */
+    private void addPackedSecondCallTag(SAMRecord samRecord, byte [] packedSecondBases){
+        if (packedSecondBases != null) {
+            samRecord.setUnsignedArrayAttribute(this.packedSecondCallTagName, packedSecondBases);
+        }
+    }
+
+    /**
+     * read bases and qualities for next cluster of all reads through the dispatch table
+     * 
+     * @return bases and qualities of read 1, read 2, barcode, second barcode and molecular barcode,
+     * null if not available
+     * @throws Exception
+     */
+    public byte [][][] getNextClusterBaseQuals() throws Exception {
+
+        byte [][][] clusterBaseQuals = new byte[TARGET_NAMES.length][][];
+        for (int target = 0; target < TARGET_NAMES.length; target++) {
+            if (this.targetLength[target] > 0) {
+                clusterBaseQuals[target] = new byte[2][this.targetLength[target]];
+            }
+        }
+
+        for (int i = 0; i < this.dispatchReaders.length; i++) {
+            byte [] cluster = this.dispatchReaders[i].next();
+            byte [][] baseQuals = clusterBaseQuals[this.dispatchTarget[i]];
+            baseQuals[0][this.dispatchOffset[i]] = cluster[0];
+            baseQuals[1][this.dispatchOffset[i]] = cluster[1];
+        }
+
+        return clusterBaseQuals;
+    }
+
+    /**
+     * open all BCL or SCL files to process several cluster ranges in turn,
+     * filter and position files stay open between ranges and SCL files only read the range processed
+     *
+     * @throws Exception
+     */
+    public void openBaseCallFilesForRanges() throws Exception {
+
+        this.openForRanges = true;
+        this.openBaseCallFiles();
+    }
+
+    /**
+     * read second calls of a cluster range from all SCL files opened for cluster ranges
+     *
+     * @param firstCluster zero based index of the first cluster
+     * @param numberOfClusters
+     * @throws Exception
+     */
+    private void loadSecondCalls(int firstCluster, int numberOfClusters) throws Exception {
+
+        for (SCLFileReader[] list : this.getSclFileReaderListByRead().values()) {
+            for (SCLFileReader fileReader : list) {
+                fileReader.loadClusters(firstCluster, numberOfClusters);
+            }
+        }
+    }
+
+    /**
+     * open BCL files for index reads only
+     *
+     * @throws Exception
+     */
+    public void openIndexBaseCallFiles() throws Exception {
+
+        for (Map.Entry<String, int[]> entry : this.cycleRangeByRead.entrySet()) {
+
+            String read = entry.getKey();
+            if( !read.startsWith("readIndex") ){
+                continue;
+            }
+
+            log.info("Opening BCL Files for " + read );
+            BCLFileReader[] bclFileReaderListRead = this.openBCLFileByCycles(entry.getValue());
+            this.getBclFileReaderListByRead().put(read, bclFileReaderListRead);
+        }
     }
 
     /**
@@ -439,18 +1073,26 @@ public class Tile {
 
         int index = 0;
         for (int cycle = start; cycle <= end; cycle++) {
-            sclFileReaderList[index] = new SCLFileReader(this.getBaseCallFileName(cycle, false));
+            sclFileReaderList[index] = new SCLFileReader(this.getBaseCallFileName(cycle, false), !this.openForRanges);
             index++;
         }
         return sclFileReaderList;
     }
 
     /**
-     * close all BCL or SCL file in not closed yet
+     * close all BCL or SCL file in not closed yet,
+     * and filter and position files kept open for cluster ranges
      *
      */
     public void closeBaseCallFiles() {
 
+        if (this.rangeFilterFileReader != null) {
+            this.rangeFilterFileReader.close();
+            this.rangePositionReader.close();
+            this.rangeFilterFileReader = null;
+            this.rangePositionReader = null;
+        }
+
         if (this.getBclFileReaderListByRead() != null) {
             for (BCLFileReader[] list : this.getBclFileReaderListByRead().values()) {
                 this.closeFileReaderList(list);
@@ -474,6 +1116,29 @@ public class Tile {
         }
     }
 
+    /**
+     * move all opened BCL and SCL files to a cluster
+     * 
+     * @param cluster zero based cluster index
+     * @throws Exception
+     */
+    public void seekToCluster(int cluster) throws Exception {
+
+        for (BCLFileReader[] list : this.getBclFileReaderListByRead().values()) {
+            for (BCLFileReader fileReader : list) {
+                fileReader.seekToCluster(cluster);
+            }
+        }
+
+        if (this.getSclFileReaderListByRead() != null) {
+            for (SCLFileReader[] list : this.getSclFileReaderListByRead().values()) {
+                for (SCLFileReader fileReader : list) {
+                    fileReader.seekToCluster(cluster);
+                }
+            }
+        }
+    }
+
     /**
      * read bases and qualities for next cluster of one read
      * @param read
@@ -538,6 +1203,22 @@ public class Tile {
         return bases.toString();
     }
 
+    /**
+     * read second bases for next cluster of one read, packed four to a byte in cycle order,
+     * first base in the highest two bits and A, C, G, T as 0 to 3, the same as in SCL files
+     *
+     * @param sclFileList
+     * @return packed second bases, unused bits of the last byte zero
+     */
+    public byte [] getNextClusterPackedSecondBases(SCLFileReader[] sclFileList) {
+
+        byte [] packed = new byte[(sclFileList.length + 3) / 4];
+        for (int i = 0; i < sclFileList.length; i++) {
+            packed[i >> 2] |= sclFileList[i].nextCode() << (6 - 2 * (i & 3));
+        }
+        return packed;
+    }
+
 
     /**
      * write all together for one SAM Record
@@ -566,42 +1247,27 @@ public class Tile {
             boolean paired,
             boolean firstRead) {
 
-        SAMRecord samRecord = new SAMRecord(fileHeader);
+        if(this.templateRecord == null || fileHeader != this.templateHeader){
+            this.prepareRecordTemplate(fileHeader);
+        }
+
+        SAMRecord samRecord;
+        try {
+            samRecord = (SAMRecord) this.templateRecord.clone();
+        } catch (CloneNotSupportedException ex) {
+            throw new RuntimeException("Failed to copy record template", ex);
+        }
 
         samRecord.setReadName(readName);
         samRecord.setAttribute("ci", clusterIndex);
         samRecord.setReadBases(baseQuals[0]);
         samRecord.setBaseQualities(baseQuals[1]);
-        samRecord.setReadUnmappedFlag(true);
-        
-        
-        String rgId = "1";
-        
-        List<SAMReadGroupRecord> readGroupList = null;
-        if(fileHeader != null) {
-            readGroupList = fileHeader.getReadGroups();
-        }
-
-        if (readGroupList != null && !readGroupList.isEmpty()) {
-            SAMReadGroupRecord readGroup = readGroupList.get(0);
-            rgId = readGroup.getId();
-        }
-        
-        samRecord.setAttribute("RG", rgId);
 
+        int flags = paired ? (firstRead ? FLAGS_FIRST_OF_PAIR : FLAGS_SECOND_OF_PAIR) : FLAGS_UNPAIRED;
         if(filter == 0){
-            samRecord.setReadFailsVendorQualityCheckFlag(true);
-        }
-
-        if(paired){
-           samRecord.setReadPairedFlag(paired);
-           samRecord.setMateUnmappedFlag(true);
-           if(firstRead){
-               samRecord.setFirstOfPairFlag(firstRead);
-           }else{
-               samRecord.setSecondOfPairFlag(true);
-           }
+            flags |= FLAG_QC_FAIL;
         }
+        samRecord.setFlags(flags);
 
         if( secondBases != null ){
             samRecord.setAttribute("E2", secondBases);
@@ -622,6 +1288,33 @@ public class Tile {
         return samRecord;
     }
 
+    /**
+     * build a record with the fields shared by all records of this tile once per header,
+     * so far the read group attribute
+     *
+     * @param fileHeader
+     */
+    private void prepareRecordTemplate(SAMFileHeader fileHeader){
+
+        String rgId = "1";
+
+        List<SAMReadGroupRecord> readGroupList = null;
+        if(fileHeader != null) {
+            readGroupList = fileHeader.getReadGroups();
+        }
+
+        if (readGroupList != null && !readGroupList.isEmpty()) {
+            SAMReadGroupRecord readGroup = readGroupList.get(0);
+            rgId = readGroup.getId();
+        }
+
+        SAMRecord template = new SAMRecord(fileHeader);
+        template.setAttribute("RG", rgId);
+
+        this.templateHeader = fileHeader;
+        this.templateRecord = template;
+    }
+
     /**
      * form read name for one cluster, read id is optional
      *
@@ -711,6 +1404,13 @@ public class Tile {
         return filterFileName;
     }
 
+    /**
+     * @return the tileNumber
+     */
+    public int getTileNumber() {
+        return tileNumber;
+    }
+
     /**
      * @return the pairedRead
      */
@@ -813,6 +1513,27 @@ public class Tile {
         this.secondBarcodeQualTagName = secondBarcodeQualTagName;
     }
 
+    /**
+     * @param umiSeqTagName the umiSeqTagName to set
+     */
+    public void setUmiSeqTagName(String umiSeqTagName) {
+        this.umiSeqTagName = umiSeqTagName;
+    }
+
+    /**
+     * @param umiQualTagName the umiQualTagName to set
+     */
+    public void setUmiQualTagName(String umiQualTagName) {
+        this.umiQualTagName = umiQualTagName;
+    }
+
+    /**
+     * @param packedSecondCallTagName tag name for second base calls packed four to a byte instead of E2, null for E2
+     */
+    public void setPackedSecondCallTagName(String packedSecondCallTagName) {
+        this.packedSecondCallTagName = packedSecondCallTagName;
+    }
+
     /**
      * @param bc_read the read to put the barcode tag on
      */
@@ -827,4 +1548,46 @@ public class Tile {
         this.sec_bc_read = sec_bc_read;
     }
 
+    /**
+     * @param clusterSample sorted zero based indices of clusters to process, null to process all clusters
+     */
+    public void setClusterSample(int[] clusterSample) {
+        this.clusterSample = clusterSample;
+    }
+
+    /**
+     * @param collectCycleMetric collect per cycle counts of processed clusters or not
+     */
+    public void setCollectCycleMetric(boolean collectCycleMetric) {
+        this.collectCycleMetric = collectCycleMetric;
+    }
+
+    /**
+     * @return per cycle counts of processed clusters
+     */
+    public CycleMetric.TileCycles getCycleMetric() {
+        return cycleMetric;
+    }
+
+    /**
+     * select a random sample of clusters by selection sampling
+     * 
+     * @param totalClusters number of clusters in tile
+     * @param sampleSize number of clusters to select
+     * @param random
+     * @return sorted zero based indices of selected clusters
+     */
+    public static int[] selectClusterSample(int totalClusters, int sampleSize, Random random) {
+
+        int size = Math.min(sampleSize, totalClusters);
+        int[] sample = new int[size];
+        int selected = 0;
+        for (int cluster = 0; cluster < totalClusters && selected < size; cluster++) {
+            if (random.nextInt(totalClusters - cluster) < size - selected) {
+                sample[selected++] = cluster;
+            }
+        }
+        return sample;
+    }
+
 }
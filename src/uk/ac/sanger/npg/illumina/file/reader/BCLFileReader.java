@@ -33,6 +33,7 @@ public class BCLFileReader extends IlluminaFileReader {
     
     private final byte[] BASE_ARRAY = {65, 67, 71, 84}; //A C G T
     private final byte UNKNOWN_BASE = 78;
+    private final int HEADER_SIZE = 4;
     private int currentCluster = 0;
     private int totalClusters = 0;
 
@@ -123,6 +124,23 @@ public class BCLFileReader extends IlluminaFileReader {
         return null;
     }
 
+    /**
+     * move to a cluster, one byte per cluster after the four byte header
+     * 
+     * @param cluster zero based cluster index, total clusters to move to the end
+     * @throws IOException
+     */
+    public void seekToCluster(int cluster) throws IOException {
+
+        if (cluster < 0 || cluster > this.getTotalClusters()) {
+            throw new IllegalArgumentException("Cluster " + cluster
+                    + " out of range in BCL file " + this.getFileName()
+                    + ": " + this.getTotalClusters());
+        }
+        this.moveToByte(HEADER_SIZE + (long) this.currentCluster, HEADER_SIZE + (long) cluster);
+        this.currentCluster = cluster;
+    }
+
     /**
      * @return the currentCluster
      */
@@ -137,6 +155,13 @@ public class BCLFileReader extends IlluminaFileReader {
         return totalClusters;
     }
 
+    /**
+     * @return uncompressed file size given by the number of clusters in the header
+     */
+    public long getExpectedFileSize() {
+        return HEADER_SIZE + (long) totalClusters;
+    }
+
     /**
      * 
      * @param args
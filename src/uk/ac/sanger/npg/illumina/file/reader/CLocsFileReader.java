@@ -18,6 +18,8 @@
  */
 package uk.ac.sanger.npg.illumina.file.reader;
 
+import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import net.sf.picard.util.Log;
 
@@ -39,6 +41,12 @@ public class CLocsFileReader extends PositionFileReader {
     private int currentBlock = 0;
     private int currentBlockUnreadClusters;
 
+    //block index built when seeking: clusters before each block and byte offset of each block
+    private int[] clustersBeforeBlock;
+    private long[] blockOffset;
+    private int totalClusters = -1;
+    private static final int MAX_CLUSTERS_TO_READ_THROUGH = 4096;
+
     /**
      * Constructor
      *
@@ -141,6 +149,108 @@ public class CLocsFileReader extends PositionFileReader {
         return null;
     }
 
+    /**
+     * move to a cluster using a block index, which is built when first called
+     * 
+     * @param cluster zero based cluster index, total clusters to move to the end
+     * @throws IOException
+     */
+    @Override
+    public void seekToCluster(int cluster) throws IOException {
+
+        //read through for short moves forward
+        if (cluster >= this.currentTotalClusters && cluster - this.currentTotalClusters <= MAX_CLUSTERS_TO_READ_THROUGH) {
+            while (this.currentTotalClusters < cluster) {
+                if (this.next() == null) {
+                    throw new EOFException("No more clusters in clocs file " + this.getFileName());
+                }
+            }
+            return;
+        }
+
+        if (this.clustersBeforeBlock == null) {
+            this.buildBlockIndex();
+        }
+
+        if (cluster < 0 || cluster > this.totalClusters) {
+            throw new IllegalArgumentException("Cluster " + cluster
+                    + " out of range in clocs file " + this.getFileName()
+                    + ": " + this.totalClusters);
+        }
+
+        if (this.totalBlocks == 0) {
+            return;
+        }
+
+        //last block with clusters before or at this cluster
+        int low = 0;
+        int high = this.totalBlocks - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (this.clustersBeforeBlock[mid] <= cluster) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        int blockIndex = low;
+        int clustersInBlock = this.getClustersInBlock(blockIndex);
+        int clusterInBlock = cluster - this.clustersBeforeBlock[blockIndex];
+
+        //the count byte of the block is already read
+        this.seekToByte(this.blockOffset[blockIndex] + 1 + 2L * clusterInBlock);
+        this.currentBlock = blockIndex + 1;
+        this.currentBlockUnreadClusters = clustersInBlock - clusterInBlock;
+        this.currentTotalClusters = cluster;
+    }
+
+    /**
+     * scan all block count bytes to build the block index
+     * @throws IOException
+     */
+    private void buildBlockIndex() throws IOException {
+
+        this.clustersBeforeBlock = new int[this.totalBlocks + 1];
+        this.blockOffset = new long[this.totalBlocks];
+
+        DataInputStream indexStream = this.openIndependentInputStream();
+        try {
+            //version byte and four bytes of block count
+            long offset = 5;
+            indexStream.skipBytes(5);
+            int clusters = 0;
+            for (int block = 0; block < this.totalBlocks; block++) {
+                this.blockOffset[block] = offset;
+                this.clustersBeforeBlock[block] = clusters;
+                int count = indexStream.readUnsignedByte();
+                int toSkip = 2 * count;
+                while (toSkip > 0) {
+                    int skipped = indexStream.skipBytes(toSkip);
+                    if (skipped <= 0) {
+                        throw new EOFException("Block " + block + " not complete in clocs file " + this.getFileName());
+                    }
+                    toSkip -= skipped;
+                }
+                offset += 1 + 2 * count;
+                clusters += count;
+            }
+            this.clustersBeforeBlock[this.totalBlocks] = clusters;
+            this.totalClusters = clusters;
+        } finally {
+            indexStream.close();
+        }
+        log.debug("Block index built with total clusters " + this.totalClusters);
+    }
+
+    /**
+     * 
+     * @param blockIndex zero based block index
+     * @return number of clusters in this block
+     */
+    private int getClustersInBlock(int blockIndex) {
+        return this.clustersBeforeBlock[blockIndex + 1] - this.clustersBeforeBlock[blockIndex];
+    }
+
     /**
      * @return the totalBlocks
      */
@@ -35,6 +35,7 @@ public class FilterFileReader extends IlluminaFileReader {
     private int currentCluster = 0;
     private int totalClusters = 0;
     private int currentPFClusters = 0;
+    private int headerSize = 12;
 
     /**
      *
@@ -60,6 +61,7 @@ public class FilterFileReader extends IlluminaFileReader {
             
             log.warn("The first four bytes are not zero: " + emptyBytes + ". This is an old format filter file.");
             this.totalClusters = emptyBytes;
+            this.headerSize = 4;
             return;
         }
 
@@ -107,6 +109,25 @@ public class FilterFileReader extends IlluminaFileReader {
         return null;
     }
 
+    /**
+     * move to a cluster, one byte per cluster after the header,
+     * PF cluster count is restarted from this cluster
+     * 
+     * @param cluster zero based cluster index, total clusters to move to the end
+     * @throws IOException
+     */
+    public void seekToCluster(int cluster) throws IOException {
+
+        if (cluster < 0 || cluster > this.getTotalClusters()) {
+            throw new IllegalArgumentException("Cluster " + cluster
+                    + " out of range in filter file " + this.getFileName()
+                    + ": " + this.getTotalClusters());
+        }
+        this.moveToByte(this.headerSize + (long) this.currentCluster, this.headerSize + (long) cluster);
+        this.currentCluster = cluster;
+        this.currentPFClusters = 0;
+    }
+
     /**
      * @return the currentCluster
      */
@@ -121,6 +142,13 @@ public class FilterFileReader extends IlluminaFileReader {
         return totalClusters;
     }
 
+    /**
+     * @return uncompressed file size given by the number of clusters in the header
+     */
+    public long getExpectedFileSize() {
+        return this.headerSize + (long) totalClusters;
+    }
+
     /**
      * @return the currentPFClusters
      */
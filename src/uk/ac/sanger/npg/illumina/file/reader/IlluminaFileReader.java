@@ -37,6 +37,13 @@ public class IlluminaFileReader implements Iterator<Object>, Closeable {
     protected final String fileName;
     protected DataInputStream inputStream;
 
+    private File file;
+    private boolean gzip;
+    private FileInputStream fileInputStream;
+
+    //skip bytes in the buffered stream rather than repositioning the file for short moves forward
+    private static final long MAX_BYTES_TO_SKIP = 64 * 1024;
+
     /**
      *
      * @param fileName bcl, scl, clocs, locs, pos and filter etc Illumina file name
@@ -82,16 +89,99 @@ public class IlluminaFileReader implements Iterator<Object>, Closeable {
                 throw new FileNotFoundException("Input cannot be read: " 
                                                 + fileName);
             } else {
-                InputStream inputBase;
-                if (gzip) {
-                    // constructor may throw IOException
-                    inputBase = new GZIPInputStream(new FileInputStream(file));
-                } else {
-                    inputBase = new FileInputStream(file);
+                this.file = file;
+                this.gzip = gzip;
+                this.inputStream = this.openDataInputStream();
+            }
+        }
+    }
+
+    /**
+     * open a new data input stream from the start of this file,
+     * the stream of an uncompressed file is kept for seeking
+     * 
+     * @return data input stream
+     * @throws IOException
+     */
+    private DataInputStream openDataInputStream() throws IOException {
+
+        InputStream inputBase;
+        if (gzip) {
+            // constructor may throw IOException
+            inputBase = new GZIPInputStream(new FileInputStream(file));
+        } else {
+            this.fileInputStream = new FileInputStream(file);
+            inputBase = this.fileInputStream;
+        }
+        return new DataInputStream(new BufferedInputStream(inputBase));
+    }
+
+    /**
+     * open a separate data input stream from the start of this file,
+     * which is not affected by reading or seeking of this reader
+     * 
+     * @return data input stream, caller to close it
+     * @throws IOException
+     */
+    protected DataInputStream openIndependentInputStream() throws IOException {
+
+        InputStream inputBase;
+        if (gzip) {
+            inputBase = new GZIPInputStream(new FileInputStream(file));
+        } else {
+            inputBase = new FileInputStream(file);
+        }
+        return new DataInputStream(new BufferedInputStream(inputBase));
+    }
+
+    /**
+     * move the input stream to a byte offset from the start of this file,
+     * gzipped file has to be reopened and skipped to the offset
+     * 
+     * @param byteOffset
+     * @throws IOException
+     */
+    protected void seekToByte(long byteOffset) throws IOException {
+
+        if (gzip) {
+            this.inputStream.close();
+            this.inputStream = this.openDataInputStream();
+            long toSkip = byteOffset;
+            while (toSkip > 0) {
+                long skipped = this.inputStream.skip(toSkip);
+                if (skipped <= 0) {
+                    throw new EOFException("Can not skip to byte " + byteOffset + " in file " + this.fileName);
                 }
-                this.inputStream = 
-                    new DataInputStream(new BufferedInputStream(inputBase));
+                toSkip -= skipped;
+            }
+        } else {
+            this.fileInputStream.getChannel().position(byteOffset);
+            this.inputStream = new DataInputStream(new BufferedInputStream(this.fileInputStream));
+        }
+    }
+
+    /**
+     * move the input stream from its current byte offset to another one,
+     * short moves forward and all moves forward in a gzipped file skip bytes,
+     * otherwise the file is repositioned
+     * 
+     * @param currentOffset current byte offset of the input stream
+     * @param byteOffset
+     * @throws IOException
+     */
+    protected void moveToByte(long currentOffset, long byteOffset) throws IOException {
+
+        long toSkip = byteOffset - currentOffset;
+        if (toSkip < 0 || (!gzip && toSkip > MAX_BYTES_TO_SKIP)) {
+            this.seekToByte(byteOffset);
+            return;
+        }
+        while (toSkip > 0) {
+            long skipped = this.inputStream.skip(toSkip);
+            if (skipped <= 0) {
+                throw new EOFException("Can not skip to byte " + byteOffset + " in file " + this.fileName);
             }
+            toSkip -= skipped;
         }
     }
 
@@ -160,4 +250,11 @@ public class IlluminaFileReader implements Iterator<Object>, Closeable {
     public String getFileName() {
         return fileName;
     }
+
+    /**
+     * @return size of the file on disk, -1 if gzipped because the uncompressed size is not known
+     */
+    public long getFileSize() {
+        return this.gzip ? -1 : this.file.length();
+    }
 }
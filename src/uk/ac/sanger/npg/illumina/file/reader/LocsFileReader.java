@@ -108,6 +108,24 @@ public class LocsFileReader extends PositionFileReader {
         return null;
     }
  
+    /**
+     * move to a cluster, eight bytes per cluster after the twelve byte header
+     * 
+     * @param cluster zero based cluster index, total clusters to move to the end
+     * @throws IOException
+     */
+    @Override
+    public void seekToCluster(int cluster) throws IOException {
+
+        if (cluster < 0 || cluster > this.totalCluster) {
+            throw new IllegalArgumentException("Cluster " + cluster
+                    + " out of range in locs file " + this.getFileName()
+                    + ": " + this.totalCluster);
+        }
+        this.moveToByte(12 + 8L * this.currentTotalClusters, 12 + 8L * cluster);
+        this.currentTotalClusters = cluster;
+    }
+
     /**
      * @return the totalCluster
      */
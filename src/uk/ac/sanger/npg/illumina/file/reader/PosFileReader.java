@@ -89,6 +89,33 @@ public class PosFileReader extends PositionFileReader  {
         return new PositionFileReader.Position(pos[0], pos[1]);
     }
 
+    /**
+     * move to a cluster, lines are skipped from the start of file if moving backwards
+     * 
+     * @param cluster zero based cluster index
+     * @throws IOException
+     */
+    @Override
+    public void seekToCluster(int cluster) throws IOException {
+
+        if (cluster < 0 || cluster > this.totalCluster) {
+            throw new IllegalArgumentException("Cluster " + cluster
+                    + " out of range in pos file " + this.getFileName()
+                    + ": " + this.totalCluster);
+        }
+        if (cluster < this.currentTotalClusters) {
+            this.fileReader.close();
+            this.fileReader = new BufferedReader(new FileReader(this.fileName));
+            this.currentTotalClusters = 0;
+        }
+        while (this.currentTotalClusters < cluster) {
+            if (this.fileReader.readLine() == null) {
+                throw new EOFException("No more lines in pos file " + this.getFileName());
+            }
+            this.currentTotalClusters++;
+        }
+    }
+
     @Override
     public boolean hasNext() {
           return (this.currentTotalClusters < this.totalCluster) ? true : false;
@@ -41,6 +41,14 @@ public abstract class PositionFileReader extends IlluminaFileReader {
     
     @Override
     public abstract Position next(); 
+
+    /**
+     * move to a cluster, the current total cluster number will be this cluster index
+     * 
+     * @param cluster zero based cluster index
+     * @throws IOException
+     */
+    public abstract void seekToCluster(int cluster) throws IOException;
     
     /**
      * @return the currentTotalClusters
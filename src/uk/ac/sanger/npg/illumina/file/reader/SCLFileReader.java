@@ -18,6 +18,7 @@
  */
 package uk.ac.sanger.npg.illumina.file.reader;
 
+import java.io.EOFException;
 import java.io.IOException;
 import net.sf.picard.util.Log;
 
@@ -31,27 +32,46 @@ public class SCLFileReader extends IlluminaFileReader {
     
     private final Log log = Log.getInstance(SCLFileReader.class);
     
-    private final char[] BASE_ARRAY = {'A', 'C', 'G', 'T'};
-    private char[] bases;
+    private static final char[] BASE_ARRAY = {'A', 'C', 'G', 'T'};
+    private static final int HEADER_SIZE = 4;
+    private byte[] baseBytes;
     private int currentCluster = 0;
     private int totalClusters = 0;
 
+    //clusters in memory: the first one is at the start of baseBytes, the end is exclusive
+    private int firstLoadedCluster = 0;
+    private int endLoadedCluster = 0;
+    //offset of the input stream after the header, while kept open to load cluster ranges
+    private long streamOffset = 0;
+
     /**
      * constructor to generate scl file input stream,
      * and read the number of clusters
-     * and read all bases to an array
+     * and read all bases packed four to a byte as they are in the file
      *
      * @param sclFileName scl file name
      * @throws Exception
      */
     public SCLFileReader(String sclFileName) throws Exception {
+        this(sclFileName, true);
+    }
+
+    /**
+     * constructor to generate scl file input stream and read the number of clusters,
+     * either read all bases or keep the file open to load cluster ranges
+     *
+     * @param sclFileName scl file name
+     * @param allClusters read all bases now, otherwise only the ranges given to loadClusters
+     * @throws Exception
+     */
+    public SCLFileReader(String sclFileName, boolean allClusters) throws Exception {
 
         super(sclFileName);
 
         this.readFileHeader();
-        //TODO: stop read all bases to memory if using too much memory
-        this.readBases();
-
+        if (allClusters) {
+            this.readBases();
+        }
     }
 
     /**
@@ -66,45 +86,65 @@ public class SCLFileReader extends IlluminaFileReader {
     }
 
     /**
-     * read all bases into an array
+     * read all bases into an array, two bits for each base
      * @throws IOException
      */
     private void readBases() throws Exception {
 
-        this.bases = new char[this.getTotalClusters()];
-
         int numberBaseBytes = (int) Math.ceil(this.getTotalClusters() / 4.0);
-        byte[] baseBytes = new byte[numberBaseBytes];
+        this.baseBytes = new byte[numberBaseBytes];
 
-        int read = this.inputStream.read(baseBytes);
+        int read = this.inputStream.read(this.baseBytes);
 
         if (read == -1) {
             log.error("The file does not have the required number of clusters: " + this.getTotalClusters());
             throw new Exception("The file does not have the required number of clusters");
         }
 
+        this.endLoadedCluster = this.getTotalClusters();
+
         this.close();
         this.inputStream = null;
+    }
 
-        for (int b = 0; b < this.getTotalClusters(); b++) {
-            int i = b / 4;
-            int j = b % 4;
-            switch (j) {
-                case 0:
-                    bases[b] = BASE_ARRAY[(baseBytes[i] >> 6) & 3];
-                    break;
-                case 1:
-                    bases[b] = BASE_ARRAY[(baseBytes[i] >> 4) & 3];
-                    break;
-                case 2:
-                    bases[b] = BASE_ARRAY[(baseBytes[i] >> 2) & 3];
-                    break;
-                case 3:
-                    bases[b] = BASE_ARRAY[(baseBytes[i]) & 3];
-                    break;
-            }
+    /**
+     * read the bases of a range of clusters into memory, replacing the range read before,
+     * and move to the first cluster of the range
+     *
+     * @param firstCluster zero based index of the first cluster
+     * @param numberOfClusters
+     * @throws Exception
+     */
+    public void loadClusters(int firstCluster, int numberOfClusters) throws Exception {
 
+        if (this.inputStream == null) {
+            throw new IllegalStateException("All clusters already read from SCL file " + this.getFileName());
         }
+        int endCluster = firstCluster + numberOfClusters;
+        if (firstCluster < 0 || numberOfClusters < 0 || endCluster > this.getTotalClusters()) {
+            throw new IllegalArgumentException("Cluster range " + firstCluster + "-" + endCluster
+                    + " out of range in SCL file " + this.getFileName()
+                    + ": " + this.getTotalClusters());
+        }
+
+        //four bases in each byte, the range starts at the beginning of a byte
+        int firstByte = firstCluster >> 2;
+        int endByte = (endCluster + 3) >> 2;
+        this.moveToByte(HEADER_SIZE + this.streamOffset, HEADER_SIZE + firstByte);
+
+        byte[] bytes = new byte[endByte - firstByte];
+        try {
+            this.inputStream.readFully(bytes);
+        } catch (EOFException ex) {
+            log.error("The file does not have the required number of clusters: " + this.getTotalClusters());
+            throw new Exception("The file does not have the required number of clusters");
+        }
+        this.streamOffset = endByte;
+
+        this.baseBytes = bytes;
+        this.firstLoadedCluster = firstByte << 2;
+        this.endLoadedCluster = endCluster;
+        this.currentCluster = firstCluster;
     }
 
     /**
@@ -114,7 +154,7 @@ public class SCLFileReader extends IlluminaFileReader {
     @Override
     public boolean hasNext() {
 
-        return (this.getCurrentCluster() < this.getTotalClusters()) ? true : false;
+        return (this.getCurrentCluster() < this.endLoadedCluster) ? true : false;
     }
 
     /**
@@ -129,7 +169,48 @@ public class SCLFileReader extends IlluminaFileReader {
             return null;
         }
 
-        return this.bases[currentCluster++];
+        return BASE_ARRAY[this.nextCode()];
+    }
+
+    /**
+     *
+     * @return next second base call as two bit code, 0 to 3 for A, C, G and T
+     */
+    public int nextCode() {
+
+        int b = this.currentCluster++ - this.firstLoadedCluster;
+        return (this.baseBytes[b >> 2] >> (6 - 2 * (b & 3))) & 3;
+    }
+
+    /**
+     * unpack second base calls packed four to a byte, first base in the highest two bits
+     *
+     * @param packed
+     * @param length number of bases
+     * @return bases as string
+     */
+    public static String unpackBases(byte[] packed, int length) {
+
+        StringBuilder bases = new StringBuilder(length);
+        for (int b = 0; b < length; b++) {
+            bases.append(BASE_ARRAY[(packed[b >> 2] >> (6 - 2 * (b & 3))) & 3]);
+        }
+        return bases.toString();
+    }
+
+    /**
+     * move to a cluster, its bases must already be in memory
+     * 
+     * @param cluster zero based cluster index, end of the clusters in memory to move to the end
+     */
+    public void seekToCluster(int cluster) {
+
+        if (cluster < this.firstLoadedCluster || cluster > this.endLoadedCluster) {
+            throw new IllegalArgumentException("Cluster " + cluster
+                    + " out of range in SCL file " + this.getFileName()
+                    + ": " + this.firstLoadedCluster + "-" + this.endLoadedCluster);
+        }
+        this.currentCluster = cluster;
     }
 
     /**
@@ -162,9 +243,9 @@ public class SCLFileReader extends IlluminaFileReader {
 
         System.out.println(scl.getTotalClusters());
 
-        char[] bases = scl.bases;
+        String bases = unpackBases(scl.baseBytes, scl.getTotalClusters());
         int count = 0;
-        for (char b : bases) {
+        for (char b : bases.toCharArray()) {
             count++;
             if ((count % 1000 == 1) || (count == 2609912)) {
                 System.out.println(b);
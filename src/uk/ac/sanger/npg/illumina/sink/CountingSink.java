@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2011 GRL
+ *
+ * This library is free software. You can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package uk.ac.sanger.npg.illumina.sink;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import net.sf.samtools.SAMFileHeader;
+import net.sf.samtools.SAMRecord;
+
+/**
+ * Sink only counting records and bases, to measure conversion without output costs
+ *
+ * @author gq1@sanger.ac.uk
+ */
+public class CountingSink implements OutputSink {
+
+    private final SAMFileHeader header;
+    private final Map<Integer, Long> recordsByTile = new LinkedHashMap<Integer, Long>();
+
+    private long records;
+    private long bases;
+    private long tileRecords;
+
+    /**
+     *
+     * @param header
+     */
+    public CountingSink(SAMFileHeader header){
+        this.header = header;
+    }
+
+    @Override
+    public void startTile(int tileNumber) {
+        this.tileRecords = 0;
+    }
+
+    @Override
+    public void endTile(int tileNumber) {
+        this.recordsByTile.put(tileNumber, this.tileRecords);
+    }
+
+    @Override
+    public void addAlignment(SAMRecord record) {
+        this.records++;
+        this.tileRecords++;
+        this.bases += record.getReadLength();
+    }
+
+    @Override
+    public SAMFileHeader getFileHeader() {
+        return this.header;
+    }
+
+    @Override
+    public void close() {
+    }
+
+    /**
+     * @return the number of records
+     */
+    public long getRecords() {
+        return records;
+    }
+
+    /**
+     * @return the number of bases in all records
+     */
+    public long getBases() {
+        return bases;
+    }
+
+    /**
+     * @return the number of records of each tile in tile order
+     */
+    public Map<Integer, Long> getRecordsByTile() {
+        return recordsByTile;
+    }
+}
@@ -0,0 +1,57 @@
+/*
+ * Copyright (C) 2011 GRL
+ *
+ * This library is free software. You can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package uk.ac.sanger.npg.illumina.sink;
+
+import net.sf.samtools.SAMFileWriter;
+
+/**
+ * Where converted records go. Records of each tile are written between startTile and endTile,
+ * tiles in tile list order.
+ *
+ * @author gq1@sanger.ac.uk
+ */
+public interface OutputSink extends SAMFileWriter {
+
+    /**
+     * kinds of sink available from command line
+     */
+    public enum Type {
+        /** SAM or BAM file depending on file name extension */
+        BAM_FILE,
+        /** BAM without compression, e.g. to a pipe */
+        UNCOMPRESSED_STREAM,
+        /** one BAM file for each tile */
+        TILE_SEGMENTS,
+        /** records only counted */
+        COUNT
+    }
+
+    /**
+     * called before the first record of a tile
+     *
+     * @param tileNumber
+     */
+    public void startTile(int tileNumber);
+
+    /**
+     * called after the last record of a tile
+     *
+     * @param tileNumber
+     */
+    public void endTile(int tileNumber);
+}
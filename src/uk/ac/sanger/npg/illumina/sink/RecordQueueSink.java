@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2011 GRL
+ *
+ * This library is free software. You can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package uk.ac.sanger.npg.illumina.sink;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import net.sf.samtools.SAMFileHeader;
+import net.sf.samtools.SAMRecord;
+
+/**
+ * Sink handing records to a consumer thread through a bounded queue,
+ * conversion waits while the queue is full
+ *
+ * @author gq1@sanger.ac.uk
+ */
+public class RecordQueueSink implements OutputSink {
+
+    //put in the queue by close
+    private static final SAMRecord END_OF_RECORDS = new SAMRecord(null);
+
+    private final SAMFileHeader header;
+    private final BlockingQueue<SAMRecord> queue;
+    private boolean ended = false;
+
+    /**
+     *
+     * @param header
+     * @param capacity maximum number of records waiting in the queue
+     */
+    public RecordQueueSink(SAMFileHeader header, int capacity){
+        this.header = header;
+        this.queue = new ArrayBlockingQueue<SAMRecord>(capacity);
+    }
+
+    @Override
+    public void startTile(int tileNumber) {
+    }
+
+    @Override
+    public void endTile(int tileNumber) {
+    }
+
+    @Override
+    public void addAlignment(SAMRecord record) {
+        this.put(record);
+    }
+
+    @Override
+    public SAMFileHeader getFileHeader() {
+        return this.header;
+    }
+
+    /**
+     * end of records for the consumer
+     */
+    @Override
+    public void close() {
+        this.put(END_OF_RECORDS);
+    }
+
+    private void put(SAMRecord record) {
+        try {
+            this.queue.put(record);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted waiting for space in record queue", ex);
+        }
+    }
+
+    /**
+     * wait for the next record, to be called by one consumer thread
+     *
+     * @return next record, null after the sink is closed and all records taken
+     * @throws InterruptedException
+     */
+    public SAMRecord take() throws InterruptedException {
+        if (this.ended) {
+            return null;
+        }
+        SAMRecord record = this.queue.take();
+        if (record == END_OF_RECORDS) {
+            this.ended = true;
+            return null;
+        }
+        return record;
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2011 GRL
+ *
+ * This library is free software. You can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package uk.ac.sanger.npg.illumina.sink;
+
+import java.io.File;
+import java.io.OutputStream;
+import net.sf.samtools.BAMFileWriter;
+import net.sf.samtools.SAMFileHeader;
+import net.sf.samtools.SAMFileWriter;
+import net.sf.samtools.SAMFileWriterFactory;
+import net.sf.samtools.SAMRecord;
+
+/**
+ * Sink writing all records to one Picard SAM or BAM writer, tile boundaries ignored
+ *
+ * @author gq1@sanger.ac.uk
+ */
+public class SAMFileWriterSink implements OutputSink {
+
+    private final SAMFileWriter writer;
+
+    /**
+     *
+     * @param writer records written to, closed with this sink
+     */
+    public SAMFileWriterSink(SAMFileWriter writer){
+        this.writer = writer;
+    }
+
+    /**
+     *
+     * @param header
+     * @param output SAM or BAM file depending on file name extension
+     * @return sink writing to a file
+     */
+    public static SAMFileWriterSink bamFile(SAMFileHeader header, File output){
+        return new SAMFileWriterSink(new SAMFileWriterFactory().makeSAMOrBAMWriter(header, false, output));
+    }
+
+    /**
+     *
+     * @param header
+     * @param out stream to write BAM without compression, closed with this sink
+     * @return sink writing to a stream
+     */
+    public static SAMFileWriterSink uncompressedBamStream(SAMFileHeader header, OutputStream out){
+        BAMFileWriter writer = new BAMFileWriter(out, null, 0);
+        writer.setSortOrder(header.getSortOrder(), false);
+        writer.setHeader(header);
+        return new SAMFileWriterSink(writer);
+    }
+
+    @Override
+    public void startTile(int tileNumber) {
+    }
+
+    @Override
+    public void endTile(int tileNumber) {
+    }
+
+    @Override
+    public void addAlignment(SAMRecord record) {
+        this.writer.addAlignment(record);
+    }
+
+    @Override
+    public SAMFileHeader getFileHeader() {
+        return this.writer.getFileHeader();
+    }
+
+    @Override
+    public void close() {
+        this.writer.close();
+    }
+}
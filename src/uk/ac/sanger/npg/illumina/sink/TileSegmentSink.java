@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2011 GRL
+ *
+ * This library is free software. You can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package uk.ac.sanger.npg.illumina.sink;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import net.sf.samtools.SAMFileHeader;
+import net.sf.samtools.SAMFileWriter;
+import net.sf.samtools.SAMFileWriterFactory;
+import net.sf.samtools.SAMRecord;
+
+/**
+ * Sink writing records of each tile to its own BAM file, named by the output file with tile number added,
+ * for example 1234_1.bam to 1234_1_1101.bam
+ *
+ * @author gq1@sanger.ac.uk
+ */
+public class TileSegmentSink implements OutputSink {
+
+    private final SAMFileHeader header;
+    private final File output;
+    private final List<File> segments = new ArrayList<File>();
+
+    private SAMFileWriter writer;
+
+    /**
+     *
+     * @param header header of each segment
+     * @param output name of output file segment names are based on
+     */
+    public TileSegmentSink(SAMFileHeader header, File output){
+        this.header = header;
+        this.output = output;
+    }
+
+    /**
+     *
+     * @param tileNumber
+     * @return segment file of a tile
+     */
+    public File getSegmentFile(int tileNumber){
+
+        String name = this.output.getName();
+        if (name.endsWith(".bam")) {
+            name = name.substring(0, name.length() - ".bam".length());
+        }
+        return new File(this.output.getAbsoluteFile().getParentFile(), name + "_" + tileNumber + ".bam");
+    }
+
+    @Override
+    public void startTile(int tileNumber) {
+        if (this.writer != null) {
+            throw new IllegalStateException("Tile " + tileNumber + " started before the previous tile ended");
+        }
+        File segment = this.getSegmentFile(tileNumber);
+        this.writer = new SAMFileWriterFactory().makeBAMWriter(this.header, false, segment);
+        this.segments.add(segment);
+    }
+
+    @Override
+    public void endTile(int tileNumber) {
+        if (this.writer != null) {
+            this.writer.close();
+            this.writer = null;
+        }
+    }
+
+    @Override
+    public void addAlignment(SAMRecord record) {
+        if (this.writer == null) {
+            throw new IllegalStateException("Record written outside a tile: " + record.getReadName());
+        }
+        this.writer.addAlignment(record);
+    }
+
+    @Override
+    public SAMFileHeader getFileHeader() {
+        return this.header;
+    }
+
+    @Override
+    public void close() {
+        this.endTile(-1);
+    }
+
+    /**
+     * @return segment files in tile order
+     */
+    public List<File> getSegments() {
+        return segments;
+    }
+}
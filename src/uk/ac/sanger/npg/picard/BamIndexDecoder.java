@@ -20,8 +20,17 @@ package uk.ac.sanger.npg.picard;
 
 import java.io.File;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import net.sf.picard.cmdline.Option;
 import net.sf.picard.cmdline.StandardOptionDefinitions;
 import net.sf.picard.cmdline.Usage;
@@ -29,6 +38,8 @@ import net.sf.picard.io.IoUtil;
 import net.sf.picard.metrics.MetricsFile;
 import net.sf.picard.util.Log;
 import net.sf.samtools.*;
+import uk.ac.sanger.npg.bam.util.BamWriterPool;
+import uk.ac.sanger.npg.bam.util.BarcodeTagReader;
 
 /**
  * This class is used decode the multiplexed bam file.
@@ -60,16 +71,16 @@ public class BamIndexDecoder extends PicardCommandLine {
     @Option(shortName= StandardOptionDefinitions.INPUT_SHORT_NAME, doc="The input SAM or BAM file to decode.")
     public File INPUT;
     
-    @Option(shortName=StandardOptionDefinitions.OUTPUT_SHORT_NAME, doc="The output file after decoding.", mutex = {"OUTPUT_DIR"} )
+    @Option(shortName=StandardOptionDefinitions.OUTPUT_SHORT_NAME, doc="The output file after decoding.", mutex = {"OUTPUT_DIR"}, optional=true)
     public File OUTPUT;
     
-    @Option(doc="The output directory for bam files for each barcode if you want to split the output", mutex = {"OUTPUT"})
+    @Option(doc="The output directory for bam files for each barcode if you want to split the output", mutex = {"OUTPUT"}, optional=true)
     public File OUTPUT_DIR;
     
-    @Option(doc="The prefix for bam or sam file when you want to split output by barcodes", mutex = {"OUTPUT"})
+    @Option(doc="The prefix for bam or sam file when you want to split output by barcodes", mutex = {"OUTPUT"}, optional=true)
     public String OUTPUT_PREFIX;
     
-    @Option(doc="The extension name for split file when you want to split output by barcodes: bam or sam", mutex = {"OUTPUT"})
+    @Option(doc="The extension name for split file when you want to split output by barcodes: bam or sam", mutex = {"OUTPUT"}, optional=true)
     public String OUTPUT_FORMAT;
     
     @Option(shortName="BC_SEQ", doc="The tag name used to store barcode read in bam records")
@@ -104,12 +115,56 @@ public class BamIndexDecoder extends PicardCommandLine {
     @Option(doc="Max low quality phred value to convert bases in barcode read to Ns .")
     private int MAX_LOW_QUALITY_TO_CONVERT = 15;
 
+    @Option(doc="Number of threads decoding records, with one more thread writing them in input order.")
+    public int NUM_THREADS = 1;
+
+    @Option(doc="Number of reads or read pairs decoded together by one thread when NUM_THREADS is more than one.")
+    public int BATCH_SIZE = 10000;
+
+    @Option(doc="Maximum number of split bam files open at the same time. If given, records are kept in memory per barcode"
+            + " up to MAX_RECORDS_IN_RAM in total and appended to the files in compressed batches by NUM_THREADS threads,"
+            + " for splitting into many barcodes.", optional=true)
+    public Integer MAX_OPEN_FILES;
+
+    @Option(doc="Length of the second index at the end of each barcode for dual index barcodes. If given, the first and second"
+            + " index of a read are decoded against their own index sequences, MAX_MISMATCHES and MAX_NO_CALLS applying to the first"
+            + " index, and the pair of indexes must be one of the barcodes.", optional=true)
+    public Integer SECOND_INDEX_LENGTH;
+
+    @Option(doc="The tag name used to store second index read, if not in the barcode read after the first index.", optional=true)
+    public String SECOND_BARCODE_TAG_NAME;
+
+    @Option(doc="Tag name for second index quality.", optional=true)
+    public String SECOND_BARCODE_QUALITY_TAG_NAME;
+
+    @Option(doc="Maximum mismatches for the second index to be considered a match, MAX_MISMATCHES if not given.", optional=true)
+    public Integer SECOND_INDEX_MAX_MISMATCHES;
+
+    @Option(doc="Maximum allowable number of no-calls in the second index read, MAX_NO_CALLS if not given.", optional=true)
+    public Integer SECOND_INDEX_MAX_NO_CALLS;
+
+    @Option(doc="Only write metrics, no OUTPUT or OUTPUT_DIR. Only barcode tags are read from records, which are not validated.")
+    public boolean METRICS_ONLY = false;
+
+    @Option(doc="Other maximum mismatches counted in the same pass, for each of them and each MIN_MISMATCH_DELTA_GRID value"
+            + " metrics are written to METRICS_FILE.max_mismatches_<MAX_MISMATCHES>.min_mismatch_delta_<MIN_MISMATCH_DELTA>."
+            + " MAX_MISMATCHES if only MIN_MISMATCH_DELTA_GRID given.", optional=true)
+    public List<Integer> MAX_MISMATCHES_GRID = new ArrayList<Integer>();
+
+    @Option(doc="Other minimum mismatch deltas counted in the same pass with each MAX_MISMATCHES_GRID value,"
+            + " MIN_MISMATCH_DELTA if only MAX_MISMATCHES_GRID given.", optional=true)
+    public List<Integer> MIN_MISMATCH_DELTA_GRID = new ArrayList<Integer>();
+
     private int barcodeLength;
+    private int secondIndexLength;
     
     private IndexDecoder indexDecoder;
+    //max mismatches and min mismatch delta of each threshold setting in the grid
+    private final List<int []> thresholdGrid = new ArrayList<int []>();
     
     private SAMFileWriter out;
     private HashMap<String, SAMFileWriter> outputList;
+    private BamWriterPool outputPool;
     private HashMap<String, String> barcodeNameList;
     
     public BamIndexDecoder() {
@@ -132,7 +187,12 @@ public class BamIndexDecoder extends PicardCommandLine {
         final SAMFileReader in  = new SAMFileReader(INPUT);        
         final SAMFileHeader header = in.getFileHeader();
         
-        this.generateOutputFile(header);
+        if (METRICS_ONLY) {
+            //records not validated so that only their barcode tags are decoded
+            in.setValidationStringency(SAMFileReader.ValidationStringency.SILENT);
+        } else {
+            this.generateOutputFile(header);
+        }
         List<SAMReadGroupRecord> readGroupList = header.getReadGroups();
         String readGroupOnlyIdInHeader = null;
         if(readGroupList.size() == 1){
@@ -141,107 +201,17 @@ public class BamIndexDecoder extends PicardCommandLine {
                 
         log.info("Decoding records");        
         SAMRecordIterator inIterator = in.iterator();
-        while(inIterator.hasNext()){
-            
-            String barcodeRead = null;
-            String barcodeQual = null;
-
-            SAMRecord record = inIterator.next();            
-            String readName = record.getReadName();
-            boolean isPaired = record.getReadPairedFlag();
-            boolean isPf = ! record.getReadFailsVendorQualityCheckFlag();
-
-            Object barcodeReadObject = record.getAttribute(this.BARCODE_TAG_NAME);
-            if(barcodeReadObject != null){
-                    barcodeRead = barcodeReadObject.toString();
-            }
-
-            if( this.CONVERT_LOW_QUALITY_TO_NO_CALL ){
-               Object barcodeQualObject = record.getAttribute( this.BARCODE_QUALITY_TAG_NAME );
-               if(barcodeQualObject != null){
-                    barcodeQual = barcodeQualObject.toString();
-               }
-            }
-            
-            SAMRecord pairedRecord = null;
-            
-            if(isPaired){
-                
-                pairedRecord = inIterator.next();
-                String readName2 = pairedRecord.getReadName();
-                boolean isPaired2 = pairedRecord.getReadPairedFlag();
-                
-                if( !readName.equals(readName2) || !isPaired2 ){
-                    throw new RuntimeException("The paired reads are not together: " + readName + " " + readName2);
-                }
-                
-                Object barcodeReadObject2= pairedRecord.getAttribute(this.BARCODE_TAG_NAME);
-                if(barcodeReadObject != null
-                        && barcodeReadObject2 != null
-                        && ! barcodeReadObject.equals(barcodeReadObject2) ){
-                    
-                    throw new RuntimeException("barcode read bases are different in paired two reads: "
-                            + barcodeReadObject + " " + barcodeReadObject2);
-                } else if( barcodeRead == null && barcodeReadObject2 != null ){
-                    
-                    barcodeRead = barcodeReadObject2.toString();
-                    
-                    if (this.CONVERT_LOW_QUALITY_TO_NO_CALL) {
-                        Object barcodeQualObject2 = pairedRecord.getAttribute(this.BARCODE_QUALITY_TAG_NAME);
-                        if (barcodeQualObject2 != null) {
-                            barcodeQual = barcodeQualObject2.toString();
-                        }
-                    }
-                }                
-            }
-            
-            if(barcodeRead == null ){
-                throw new RuntimeException("No barcode read found for record: " + readName );
-            }
-
-            if (this.CONVERT_LOW_QUALITY_TO_NO_CALL) {
-               
-               barcodeRead = this.checkBarcodeQuality(barcodeRead, barcodeQual);
-            }
-
-            if(barcodeRead.length() < this.barcodeLength){
-                throw new RuntimeException("The barcode read length is less than barcode lenght: " + readName );
-            }else{            
-                barcodeRead = barcodeRead.substring(0, this.barcodeLength);
-            }
-
-            IndexDecoder.BarcodeMatch match = this.indexDecoder.extractBarcode(barcodeRead, isPf);
-            String barcode = match.barcode;
-            
-            if( match.matched ) {
-               barcode = barcode.toUpperCase();
-            } else {
-               barcode = "";
-            }
-            
-            //String barcodeName = this.barcodeNameList.get(barcode);
-            //15.1.2016 GEO/SRA now checks read names in fastq files. Should only contain the barcode. 
-            this.markBarcode(record, barcode, readGroupOnlyIdInHeader);
-            
-            if (isPaired) {
-                this.markBarcode(pairedRecord, barcode, readGroupOnlyIdInHeader);
-            }
-            
-            if( OUTPUT != null ){
-                out.addAlignment(record);
-                if(isPaired){
-                    out.addAlignment(pairedRecord);
-                }
-            } else {
-                
-                SAMFileWriter outPerBarcode = this.outputList.get(barcode);
-                outPerBarcode.addAlignment(record);
-                if(isPaired){
-                    outPerBarcode.addAlignment(pairedRecord);
-                }                
+        if (this.NUM_THREADS > 1) {
+            this.decodeInParallel(inIterator, readGroupOnlyIdInHeader);
+        } else {
+            RecordGroupDecoder decoder = new RecordGroupDecoder();
+            while(inIterator.hasNext()){
+                SAMRecord [] recordGroup = this.nextRecordGroup(inIterator);
+                String barcode = this.decodeRecordGroup(recordGroup, decoder, readGroupOnlyIdInHeader);
+                this.writeRecordGroup(recordGroup, barcode);
             }
-            
         }
+        inIterator.close();
         
         if(out != null){
            out.close();
@@ -254,12 +224,223 @@ public class BamIndexDecoder extends PicardCommandLine {
         log.info("Writing out metrhics file");        
         final MetricsFile<IndexDecoder.BarcodeMetric, Integer> metrics = getMetricsFile();        
         indexDecoder.writeMetrics(metrics, METRICS_FILE);
+        for (int i = 0; i < this.thresholdGrid.size(); i++) {
+            final int [] thresholds = this.thresholdGrid.get(i);
+            final MetricsFile<IndexDecoder.BarcodeMetric, Integer> gridMetrics = getMetricsFile();
+            indexDecoder.writeMetrics(i + 1, gridMetrics, this.getGridMetricsFile(thresholds[0], thresholds[1]));
+        }
         
         log.info("All finished");
 
         return 0;
     }
     
+    /**
+     * 
+     * @param maxMismatches
+     * @param minMismatchDelta
+     * @return metrics file of a threshold setting in the grid
+     */
+    public File getGridMetricsFile(int maxMismatches, int minMismatchDelta) {
+        return new File(METRICS_FILE.getPath() + ".max_mismatches_" + maxMismatches + ".min_mismatch_delta_" + minMismatchDelta);
+    }
+
+    /**
+     * 
+     * @param inIterator
+     * @return next record, with its pair if paired
+     */
+    private SAMRecord [] nextRecordGroup(SAMRecordIterator inIterator) {
+
+        SAMRecord record = inIterator.next();
+        if (!record.getReadPairedFlag()) {
+            return new SAMRecord[]{record};
+        }
+
+        SAMRecord pairedRecord = inIterator.next();
+        String readName = record.getReadName();
+        String readName2 = pairedRecord.getReadName();
+        if( !readName.equals(readName2) || !pairedRecord.getReadPairedFlag() ){
+            throw new RuntimeException("The paired reads are not together: " + readName + " " + readName2);
+        }
+        return new SAMRecord[]{record, pairedRecord};
+    }
+
+    /**
+     * decode barcode read of a record or a read pair and mark records with the barcode
+     * 
+     * @param recordGroup
+     * @param decoder
+     * @param readGroupOnlyIdInHeader
+     * @return barcode matched, empty if not matched
+     */
+    private String decodeRecordGroup(SAMRecord [] recordGroup, RecordGroupDecoder decoder, String readGroupOnlyIdInHeader) {
+
+        SAMRecord record = recordGroup[0];
+        boolean isPaired = recordGroup.length == 2;
+        boolean isPf = ! record.getReadFailsVendorQualityCheckFlag();
+
+        byte [] barcodeRead = decoder.barcodeReader.read(recordGroup);
+
+        IndexDecoder.BarcodeMatch match;
+        if (decoder.secondIndexReader != null) {
+            byte [] secondIndexRead = decoder.secondIndexReader.read(recordGroup);
+            match = decoder.worker.extractBarcode(barcodeRead, secondIndexRead, isPf);
+        } else {
+            match = decoder.worker.extractBarcode(barcodeRead, isPf);
+        }
+        String barcode = match.barcode;
+        
+        if( match.matched ) {
+           barcode = barcode.toUpperCase();
+        } else {
+           barcode = "";
+        }
+        
+        if (METRICS_ONLY) {
+            return barcode;
+        }
+        
+        //String barcodeName = this.barcodeNameList.get(barcode);
+        //15.1.2016 GEO/SRA now checks read names in fastq files. Should only contain the barcode. 
+        this.markBarcode(record, barcode, readGroupOnlyIdInHeader);
+        
+        if (isPaired) {
+            this.markBarcode(recordGroup[1], barcode, readGroupOnlyIdInHeader);
+        }
+        
+        return barcode;
+    }
+
+    /**
+     * index decoder worker and barcode tag readers with their buffers, used by one thread
+     */
+    private class RecordGroupDecoder {
+
+        private final IndexDecoder.Worker worker = indexDecoder.newWorker();
+        private final BarcodeTagReader barcodeReader = newBarcodeTagReader(BARCODE_TAG_NAME, BARCODE_QUALITY_TAG_NAME, barcodeLength);
+        private final BarcodeTagReader secondIndexReader = SECOND_BARCODE_TAG_NAME == null ? null
+                : newBarcodeTagReader(SECOND_BARCODE_TAG_NAME, SECOND_BARCODE_QUALITY_TAG_NAME, secondIndexLength);
+    }
+
+    private BarcodeTagReader newBarcodeTagReader(String tagName, String qualityTagName, int length) {
+        return new BarcodeTagReader(tagName, this.CONVERT_LOW_QUALITY_TO_NO_CALL ? qualityTagName : null,
+                this.MAX_LOW_QUALITY_TO_CONVERT, length);
+    }
+
+    /**
+     * 
+     * @param recordGroup
+     * @param barcode
+     */
+    private void writeRecordGroup(SAMRecord [] recordGroup, String barcode) {
+
+        if (METRICS_ONLY) {
+            return;
+        }
+        if (this.outputPool != null) {
+            for (SAMRecord record : recordGroup) {
+                this.outputPool.addAlignment(barcode, record);
+            }
+            return;
+        }
+        SAMFileWriter writer = OUTPUT != null ? out : this.outputList.get(barcode);
+        for (SAMRecord record : recordGroup) {
+            writer.addAlignment(record);
+        }
+    }
+
+    /**
+     * read records in this thread, decode batches of records with NUM_THREADS threads
+     * and write them in input order with one writer thread, with bounded number of batches waiting
+     * 
+     * @param inIterator
+     * @param readGroupOnlyIdInHeader
+     */
+    private void decodeInParallel(SAMRecordIterator inIterator, final String readGroupOnlyIdInHeader) {
+
+        log.info("Decoding with " + this.NUM_THREADS + " threads in batches of " + this.BATCH_SIZE + " reads or read pairs");
+
+        final ThreadLocal<RecordGroupDecoder> recordGroupDecoders = new ThreadLocal<RecordGroupDecoder>() {
+            @Override
+            protected RecordGroupDecoder initialValue() {
+                return new RecordGroupDecoder();
+            }
+        };
+        final BlockingQueue<Future<DecodeBatch>> batches = new ArrayBlockingQueue<Future<DecodeBatch>>(2 * this.NUM_THREADS);
+        ExecutorService decoders = Executors.newFixedThreadPool(this.NUM_THREADS);
+        ExecutorService writerThread = Executors.newSingleThreadExecutor();
+        try {
+            Future<Void> writer = writerThread.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    while (true) {
+                        DecodeBatch batch = batches.take().get();
+                        if (batch.recordGroups.isEmpty()) {
+                            return null;
+                        }
+                        for (int i = 0; i < batch.recordGroups.size(); i++) {
+                            writeRecordGroup(batch.recordGroups.get(i), batch.barcodes[i]);
+                        }
+                    }
+                }
+            });
+
+            boolean more = true;
+            while (more) {
+                final DecodeBatch batch = new DecodeBatch(this.BATCH_SIZE);
+                while (inIterator.hasNext() && batch.recordGroups.size() < this.BATCH_SIZE) {
+                    batch.recordGroups.add(this.nextRecordGroup(inIterator));
+                }
+                more = !batch.recordGroups.isEmpty();
+                Future<DecodeBatch> decoded = decoders.submit(new Callable<DecodeBatch>() {
+                    @Override
+                    public DecodeBatch call() {
+                        RecordGroupDecoder decoder = recordGroupDecoders.get();
+                        batch.barcodes = new String[batch.recordGroups.size()];
+                        for (int i = 0; i < batch.recordGroups.size(); i++) {
+                            batch.barcodes[i] = decodeRecordGroup(batch.recordGroups.get(i), decoder, readGroupOnlyIdInHeader);
+                        }
+                        return batch;
+                    }
+                });
+                while (!batches.offer(decoded, 1, TimeUnit.SECONDS)) {
+                    if (writer.isDone()) {
+                        break;
+                    }
+                }
+                if (writer.isDone()) {
+                    break;
+                }
+            }
+            writer.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted decoding records", ex);
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause() instanceof ExecutionException ? ex.getCause().getCause() : ex.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new RuntimeException("Problems to decode records", cause);
+        } finally {
+            decoders.shutdownNow();
+            writerThread.shutdownNow();
+        }
+    }
+
+    /**
+     * reads or read pairs decoded by one thread, an empty batch ends the output
+     */
+    private static class DecodeBatch {
+        final List<SAMRecord []> recordGroups;
+        String [] barcodes;
+
+        DecodeBatch(int size) {
+            this.recordGroups = new ArrayList<SAMRecord []>(size);
+        }
+    }
+    
     private SAMRecord markBarcode(SAMRecord record, String barcodeName, String readGroupOnlyIdInHeader) {
 
         String readName = record.getReadName();
@@ -290,7 +471,12 @@ public class BamIndexDecoder extends PicardCommandLine {
         
         if (OUTPUT_DIR != null) {
             log.info("Open a list of output bam/sam file per barcode");
-            outputList = new HashMap<String, SAMFileWriter>();
+            if (this.MAX_OPEN_FILES != null) {
+                this.outputPool = new BamWriterPool(this.MAX_OPEN_FILES, this.MAX_RECORDS_IN_RAM,
+                        this.NUM_THREADS, this.COMPRESSION_LEVEL, this.CREATE_MD5_FILE);
+            } else {
+                outputList = new HashMap<String, SAMFileWriter>();
+            }
         }
         final SAMFileHeader outputHeader = header.clone();
         final SAMProgramRecord programRecord = this.addProgramRecordToHead(outputHeader, this.getThisProgramRecord(programName, programDS));
@@ -348,8 +534,12 @@ public class BamIndexDecoder extends PicardCommandLine {
                         + OUTPUT_FORMAT;
                 final SAMFileHeader perBarcodeOutputHeader = outputHeader.clone();
                 perBarcodeOutputHeader.setReadGroups(readGroupList);
-                final SAMFileWriter outPerBarcode = new SAMFileWriterFactory().makeSAMOrBAMWriter(perBarcodeOutputHeader, true, new File(barcodeBamOutputName));
-                outputList.put(barcode, outPerBarcode);
+                if (this.outputPool != null) {
+                    this.outputPool.addFile(barcode, perBarcodeOutputHeader, new File(barcodeBamOutputName));
+                } else {
+                    final SAMFileWriter outPerBarcode = new SAMFileWriterFactory().makeSAMOrBAMWriter(perBarcodeOutputHeader, true, new File(barcodeBamOutputName));
+                    outputList.put(barcode, outPerBarcode);
+                }
             }
             barcodeNameList.put(barcode, barcodeName);
         }
@@ -371,6 +561,9 @@ public class BamIndexDecoder extends PicardCommandLine {
                 writer.close();
             }
         }
+        if (this.outputPool != null) {
+            this.outputPool.close();
+        }
     }
 
     /**
@@ -392,9 +585,52 @@ public class BamIndexDecoder extends PicardCommandLine {
         indexDecoder.setMaxMismatches(this.MAX_MISMATCHES);
         indexDecoder.setMaxNoCalls(MAX_NO_CALLS);
         indexDecoder.setMinMismatchDelta(this.MIN_MISMATCH_DELTA);
+
+        if (this.METRICS_ONLY) {
+            if (this.OUTPUT != null || this.OUTPUT_DIR != null) {
+                messages.add("OUTPUT and OUTPUT_DIR are not written with METRICS_ONLY");
+            }
+        } else if (this.OUTPUT == null && this.OUTPUT_DIR == null) {
+            messages.add("OUTPUT or OUTPUT_DIR must be given unless METRICS_ONLY");
+        } else if (this.OUTPUT_DIR != null && (this.OUTPUT_PREFIX == null || this.OUTPUT_FORMAT == null)) {
+            messages.add("OUTPUT_PREFIX and OUTPUT_FORMAT must be given with OUTPUT_DIR");
+        }
+
+        if (!this.MAX_MISMATCHES_GRID.isEmpty() || !this.MIN_MISMATCH_DELTA_GRID.isEmpty()) {
+            List<Integer> maxMismatchesGrid = this.MAX_MISMATCHES_GRID.isEmpty()
+                    ? Collections.singletonList(this.MAX_MISMATCHES) : this.MAX_MISMATCHES_GRID;
+            List<Integer> minMismatchDeltaGrid = this.MIN_MISMATCH_DELTA_GRID.isEmpty()
+                    ? Collections.singletonList(this.MIN_MISMATCH_DELTA) : this.MIN_MISMATCH_DELTA_GRID;
+            for (int maxMismatches : maxMismatchesGrid) {
+                for (int minMismatchDelta : minMismatchDeltaGrid) {
+                    this.thresholdGrid.add(new int[]{maxMismatches, minMismatchDelta});
+                    indexDecoder.addThresholdSetting(maxMismatches, minMismatchDelta);
+                }
+            }
+        }
         
+        if (this.MAX_OPEN_FILES != null) {
+            if (this.OUTPUT_DIR == null || !"bam".equalsIgnoreCase(this.OUTPUT_FORMAT)) {
+                messages.add("MAX_OPEN_FILES only applies to split bam output with OUTPUT_DIR and OUTPUT_FORMAT bam");
+            } else if (this.MAX_OPEN_FILES < 1) {
+                messages.add("MAX_OPEN_FILES must be positive");
+            }
+        }
+
+        if (this.SECOND_INDEX_LENGTH != null) {
+            indexDecoder.setSecondIndex(this.SECOND_INDEX_LENGTH,
+                    this.SECOND_INDEX_MAX_MISMATCHES != null ? this.SECOND_INDEX_MAX_MISMATCHES : this.MAX_MISMATCHES,
+                    this.SECOND_INDEX_MAX_NO_CALLS != null ? this.SECOND_INDEX_MAX_NO_CALLS : this.MAX_NO_CALLS);
+        } else if (this.SECOND_BARCODE_TAG_NAME != null) {
+            messages.add("SECOND_INDEX_LENGTH must be given with SECOND_BARCODE_TAG_NAME");
+        }
+
         indexDecoder.prepareDecode(messages);
         this.barcodeLength = indexDecoder.getBarcodeLength();
+        if (this.SECOND_BARCODE_TAG_NAME != null) {
+            this.barcodeLength = indexDecoder.getFirstIndexLength();
+            this.secondIndexLength = indexDecoder.getSecondIndexLength();
+        }
 
         if (messages.isEmpty()) {
             return null;
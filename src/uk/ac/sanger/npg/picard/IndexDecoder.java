@@ -20,14 +20,20 @@ package uk.ac.sanger.npg.picard;
 
 import java.io.File;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import net.sf.picard.metrics.MetricBase;
 import net.sf.picard.metrics.MetricsFile;
+import net.sf.picard.metrics.StringHeader;
 import net.sf.picard.util.Log;
 import net.sf.picard.util.TabbedTextFileWithHeaderParser;
 import net.sf.samtools.util.SequenceUtil;
+import net.sf.samtools.util.StringUtil;
 
 /**
  * This class was separated from Picard ExtractIlluminaBarcodes class,
@@ -74,6 +80,67 @@ public class IndexDecoder {
     private List<BarcodeMetric> barcodeMetrics = new ArrayList<BarcodeMetric>();
     private BarcodeMetric noMatchBarcodeMetric; 
 
+    private static final byte [] BASES = {'A', 'C', 'G', 'T'};
+    private static final byte NO_CALL = 'N';
+
+    //two bit code of each base byte, NO_CALL_CODE for no-calls and -1 for others
+    private static final int NO_CALL_CODE = 4;
+    private static final int [] BASE_CODES = new int[256];
+    static {
+        Arrays.fill(BASE_CODES, -1);
+        for (int i = 0; i < BASES.length; i++) {
+            BASE_CODES[BASES[i]] = i;
+            BASE_CODES[Character.toLowerCase(BASES[i])] = i;
+        }
+        BASE_CODES['N'] = NO_CALL_CODE;
+        BASE_CODES['n'] = NO_CALL_CODE;
+        BASE_CODES['.'] = NO_CALL_CODE;
+    }
+    private static final long LOW_BITS = 0x5555555555555555L;
+    private static final int MAX_PACKED_LENGTH = 32;
+
+    //barcodes packed two bits per base in the order of barcode metrics, null if not all can be packed
+    private long [] packedBarcodes;
+
+    //sequences near barcodes to their result of comparing with all barcodes
+    private Map<String, MatchOutcome> neighbourhoodIndex;
+    private int maxNeighbourhoodSize = 500000;
+
+    private int matchCacheSize = 10000;
+
+    //number of most frequent unmatched barcode reads reported, each worker counting this many times more in fixed memory
+    private int topUnmatchedBarcodes = 20;
+    private static final int UNMATCHED_COUNTER_FACTOR = 50;
+
+    //positions of counts of each barcode in worker counters
+    private static final int READS = 0;
+    private static final int PF_READS = 1;
+    private static final int PERFECT_MATCHES = 2;
+    private static final int PF_PERFECT_MATCHES = 3;
+    private static final int ONE_MISMATCH_MATCHES = 4;
+    private static final int PF_ONE_MISMATCH_MATCHES = 5;
+    private static final int COUNTERS = 6;
+
+    //dual index: length of the second index at the end of each barcode, 0 for single index
+    private int secondIndexLength = 0;
+    private int secondIndexMaxMismatches = 1;
+    private int secondIndexMaxNoCalls = 2;
+    //decoders of distinct first and second index sequences, with their own thresholds
+    private IndexDecoder firstIndexDecoder;
+    private IndexDecoder secondIndexDecoder;
+    //barcode metric index of each first and second index pair, -1 if not a barcode
+    private int [] pairTable;
+    //name of the sequences decoded in log messages
+    private String indexName = "barcode";
+
+    //max mismatches and min mismatch delta of threshold settings counted besides the decoder thresholds
+    private final List<int []> thresholdSettings = new ArrayList<int []>();
+
+    //all workers created, counts merged into barcode metrics by writeMetrics
+    private final List<Worker> workers = new ArrayList<Worker>();
+    //worker used by extractBarcode methods of the decoder itself
+    private Worker defaultWorker;
+
     /**
      * default constructor
      */
@@ -132,6 +199,101 @@ public class IndexDecoder {
         }
 
         noMatchBarcodeMetric = new BarcodeMetric(new NamedBarcode(noMatchBarcode.toString()));
+
+        if (this.secondIndexLength > 0) {
+            if (!this.thresholdSettings.isEmpty()) {
+                messages.add("Other threshold settings can not be counted for dual index barcodes");
+            }
+            this.prepareIndexDecoders(messages);
+            return;
+        }
+        this.packBarcodes();
+        this.buildNeighbourhoodIndex();
+    }
+
+    /**
+     * Split barcodes into first and second index, decode each index against its distinct sequences
+     * and combine the two through a table of pairs, so a read is compared with N + M index sequences
+     * rather than N x M barcodes.
+     *
+     * @param messages
+     */
+    private void prepareIndexDecoders(ArrayList<String> messages){
+
+        final int firstIndexLength = this.barcodeLength - this.secondIndexLength;
+        if (firstIndexLength < 1) {
+            messages.add("Second index length " + this.secondIndexLength + " must be less than barcode length " + this.barcodeLength);
+            return;
+        }
+
+        final List<String> firstIndexes = new ArrayList<String>();
+        final List<String> secondIndexes = new ArrayList<String>();
+        final Map<String, Integer> firstPositions = new HashMap<String, Integer>();
+        final Map<String, Integer> secondPositions = new HashMap<String, Integer>();
+        for (final BarcodeMetric barcodeMetric : barcodeMetrics) {
+            final String barcode = barcodeMetric.BARCODE.toUpperCase();
+            addIndex(barcode.substring(0, firstIndexLength), firstIndexes, firstPositions);
+            addIndex(barcode.substring(firstIndexLength), secondIndexes, secondPositions);
+        }
+
+        this.firstIndexDecoder = this.newIndexDecoder(firstIndexes, this.maxMismatches, this.maxNoCalls, "first index");
+        this.secondIndexDecoder = this.newIndexDecoder(secondIndexes, this.secondIndexMaxMismatches, this.secondIndexMaxNoCalls, "second index");
+        this.firstIndexDecoder.prepareDecode(messages);
+        this.secondIndexDecoder.prepareDecode(messages);
+
+        this.pairTable = new int[firstIndexes.size() * secondIndexes.size()];
+        Arrays.fill(this.pairTable, -1);
+        for (int i = 0; i < barcodeMetrics.size(); i++) {
+            final String barcode = barcodeMetrics.get(i).BARCODE.toUpperCase();
+            final int first = firstPositions.get(barcode.substring(0, firstIndexLength));
+            final int second = secondPositions.get(barcode.substring(firstIndexLength));
+            this.pairTable[first * secondIndexes.size() + second] = i;
+        }
+        log.info("Dual index barcodes decoded as pairs of " + firstIndexes.size() + " first and "
+                + secondIndexes.size() + " second index sequences");
+    }
+
+    private static void addIndex(final String index, final List<String> indexes, final Map<String, Integer> positions){
+        if (!positions.containsKey(index)) {
+            positions.put(index, indexes.size());
+            indexes.add(index);
+        }
+    }
+
+    private IndexDecoder newIndexDecoder(final List<String> indexes, final int maxMismatchesOfIndex, final int maxNoCallsOfIndex, final String name){
+        final IndexDecoder decoder = new IndexDecoder();
+        for (final String index : indexes) {
+            decoder.namedBarcodes.add(new NamedBarcode(index));
+        }
+        decoder.setMaxMismatches(maxMismatchesOfIndex);
+        decoder.setMaxNoCalls(maxNoCallsOfIndex);
+        decoder.setMinMismatchDelta(this.minMismatchDelta);
+        decoder.setMatchCacheSize(this.matchCacheSize);
+        decoder.setMaxNeighbourhoodSize(this.maxNeighbourhoodSize);
+        decoder.setTopUnmatchedBarcodes(0);
+        decoder.indexName = name;
+        return decoder;
+    }
+
+    /**
+     * @return worker of the decoder itself, created when first used
+     */
+    private Worker getDefaultWorker(){
+        if (this.defaultWorker == null) {
+            this.defaultWorker = this.newWorker();
+        }
+        return this.defaultWorker;
+    }
+
+    /**
+     * a new worker for decoding in another thread, after barcodes prepared
+     *
+     * @return worker with its own counters and match cache
+     */
+    public synchronized Worker newWorker(){
+        final Worker worker = new Worker();
+        this.workers.add(worker);
+        return worker;
     }
 
     /**
@@ -141,7 +303,30 @@ public class IndexDecoder {
      * @return
      */
     public BarcodeMatch extractBarcode(String barcodeRead, boolean isPf){
-        final BarcodeMatch match = findBestBarcode(barcodeRead, isPf);
+        final BarcodeMatch match = this.getDefaultWorker().extractBarcode(barcodeRead, isPf);
+        return match;
+    } 
+
+    /**
+     * 
+     * @param barcodeRead barcode read bases as bytes, e.g. straight from BCL files
+     * @param isPf
+     * @return
+     */
+    public BarcodeMatch extractBarcode(byte [] barcodeRead, boolean isPf){
+        final BarcodeMatch match = this.getDefaultWorker().extractBarcode(barcodeRead, isPf);
+        return match;
+    } 
+
+    /**
+     * 
+     * @param firstIndexRead
+     * @param secondIndexRead
+     * @param isPf
+     * @return
+     */
+    public BarcodeMatch extractBarcode(String firstIndexRead, String secondIndexRead, boolean isPf){
+        final BarcodeMatch match = this.getDefaultWorker().extractBarcode(firstIndexRead, secondIndexRead, isPf);
         return match;
     } 
 
@@ -152,10 +337,54 @@ public class IndexDecoder {
      */
     public void writeMetrics(final MetricsFile<BarcodeMetric, Integer> metrics, File metricsFile) {
 
+        this.mergeWorkerCounts();
+        this.logDecodeStatistics();
+
+        final SpaceSavingCounter unmatched = this.mergeUnmatchedBarcodes();
+        if (unmatched != null && unmatched.size() > 0) {
+            metrics.addHeader(new StringHeader("Most frequent of " + unmatched.getTotal()
+                    + " unmatched barcode reads with approximate read count and maximum overcount"));
+            for (final SpaceSavingCounter.Entry entry : unmatched.getTop(this.topUnmatchedBarcodes)) {
+                metrics.addHeader(new StringHeader("UNMATCHED_BARCODE\t" + entry.item + "\t" + entry.count + "\t" + entry.error));
+            }
+        }
+
+        this.writeMetrics(metrics, metricsFile, this.barcodeMetrics, this.noMatchBarcodeMetric);
+    }
+
+    /**
+     * write metrics of reads matched with a threshold setting added by addThresholdSetting,
+     * after all workers finished
+     * 
+     * @param setting
+     * @param metrics
+     * @param metricsFile 
+     */
+    public void writeMetrics(final int setting, final MetricsFile<BarcodeMetric, Integer> metrics, File metricsFile) {
+
+        if (setting < 1 || setting > this.thresholdSettings.size()) {
+            throw new IllegalArgumentException("No threshold setting " + setting);
+        }
+        final List<BarcodeMetric> settingBarcodeMetrics = new ArrayList<BarcodeMetric>();
+        for (final NamedBarcode namedBarcode : this.getNamedBarcodes()) {
+            settingBarcodeMetrics.add(new BarcodeMetric(namedBarcode));
+        }
+        final BarcodeMetric settingNoMatchBarcodeMetric = new BarcodeMetric(new NamedBarcode(this.noMatchBarcodeMetric.BARCODE));
+        IndexDecoder.setCounts(this.sumWorkerCounts(setting), settingBarcodeMetrics, settingNoMatchBarcodeMetric);
+
+        final int [] thresholds = this.thresholdSettings.get(setting - 1);
+        metrics.addHeader(new StringHeader("Barcode metrics with MAX_MISMATCHES=" + thresholds[0]
+                + " MIN_MISMATCH_DELTA=" + thresholds[1] + " MAX_NO_CALLS=" + this.maxNoCalls));
+        this.writeMetrics(metrics, metricsFile, settingBarcodeMetrics, settingNoMatchBarcodeMetric);
+    }
+
+    private void writeMetrics(final MetricsFile<BarcodeMetric, Integer> metrics, File metricsFile,
+            final List<BarcodeMetric> barcodeMetrics, final BarcodeMetric noMatchBarcodeMetric) {
+
         // Finish metrics tallying.
-        int totalReads = noMatchBarcodeMetric.READS;
-        int totalPfReads = noMatchBarcodeMetric.PF_READS;
-        int totalPfReadsAssigned = 0;
+        long totalReads = noMatchBarcodeMetric.READS;
+        long totalPfReads = noMatchBarcodeMetric.PF_READS;
+        long totalPfReadsAssigned = 0;
         for (final BarcodeMetric barcodeMetric : barcodeMetrics) {
             totalReads += barcodeMetric.READS;
             totalPfReads += barcodeMetric.PF_READS;
@@ -218,88 +447,381 @@ public class IndexDecoder {
     }
 
     /**
-     * Find the best barcode match for the given read sequence, and accumulate metrics
-     * @param readSubsequence portion of read containing barcode
-     * @param passingFilter PF flag for the current read
-     * @return perfect barcode string, if there was a match within tolerance, or null if not.
+     * Decodes barcode reads in one thread, counting matches into its own counters
+     * which writeMetrics merges, so several workers can decode at the same time without locking.
      */
-    private BarcodeMatch findBestBarcode(final String readSubsequence, final boolean passingFilter) {
+    public class Worker {
+
+        //for the decoder thresholds and each other threshold setting,
+        //COUNTERS counts for each barcode in barcode metric order, followed by counts of reads not matched
+        private final long [][] counts = new long[1 + thresholdSettings.size()][(barcodeMetrics.size() + 1) * COUNTERS];
+
+        //recently seen read sequences not in the neighbourhood index to their result
+        private final MatchCache matchCache = matchCacheSize > 0 ? new MatchCache(matchCacheSize) : null;
+
+        //most frequent barcode reads not matched
+        private final SpaceSavingCounter unmatchedBarcodes = topUnmatchedBarcodes > 0
+                ? new SpaceSavingCounter(topUnmatchedBarcodes * UNMATCHED_COUNTER_FACTOR) : null;
+
+        //workers of the index decoders for dual index barcodes
+        private final Worker firstIndexWorker = firstIndexDecoder != null ? firstIndexDecoder.newWorker() : null;
+        private final Worker secondIndexWorker = secondIndexDecoder != null ? secondIndexDecoder.newWorker() : null;
+
+        private long neighbourhoodIndexHits = 0;
+        private long matchCacheHits = 0;
+        private long barcodeScans = 0;
+
+        private Worker() {
+        }
+
+        /**
+         * 
+         * @param barcodeRead
+         * @param isPf
+         * @return
+         */
+        public BarcodeMatch extractBarcode(String barcodeRead, boolean isPf){
+            return this.extractBarcode(StringUtil.stringToBytes(barcodeRead), isPf);
+        }
+
+        /**
+         * 
+         * @param barcodeRead barcode read bases as bytes, e.g. straight from BCL files
+         * @param isPf
+         * @return
+         */
+        public BarcodeMatch extractBarcode(byte [] barcodeRead, boolean isPf){
+            if (this.firstIndexWorker != null) {
+                final int firstIndexLength = barcodeLength - secondIndexLength;
+                return this.findBestBarcodePair(Arrays.copyOfRange(barcodeRead, 0, firstIndexLength),
+                        Arrays.copyOfRange(barcodeRead, firstIndexLength, barcodeLength), isPf);
+            }
+            return this.findBestBarcode(barcodeRead, isPf);
+        }
+
+        /**
+         * 
+         * @param firstIndexRead
+         * @param secondIndexRead
+         * @param isPf
+         * @return
+         */
+        public BarcodeMatch extractBarcode(String firstIndexRead, String secondIndexRead, boolean isPf){
+            if (this.firstIndexWorker == null) {
+                return this.extractBarcode(firstIndexRead + secondIndexRead, isPf);
+            }
+            return this.findBestBarcodePair(StringUtil.stringToBytes(firstIndexRead), StringUtil.stringToBytes(secondIndexRead), isPf);
+        }
+
+        /**
+         * 
+         * @param firstIndexRead first index read bases as bytes
+         * @param secondIndexRead second index read bases as bytes
+         * @param isPf
+         * @return
+         */
+        public BarcodeMatch extractBarcode(byte [] firstIndexRead, byte [] secondIndexRead, boolean isPf){
+            if (this.firstIndexWorker == null) {
+                final byte [] barcodeRead = Arrays.copyOf(firstIndexRead, firstIndexRead.length + secondIndexRead.length);
+                System.arraycopy(secondIndexRead, 0, barcodeRead, firstIndexRead.length, secondIndexRead.length);
+                return this.findBestBarcode(barcodeRead, isPf);
+            }
+            return this.findBestBarcodePair(firstIndexRead, secondIndexRead, isPf);
+        }
+
+        /**
+         * Find the best barcode match for the given read sequence, and accumulate metrics
+         * @param readBytes portion of read containing barcode
+         * @param passingFilter PF flag for the current read
+         * @return perfect barcode string, if there was a match within tolerance, or null if not.
+         */
+        private BarcodeMatch findBestBarcode(final byte[] readBytes, final boolean passingFilter) {
+            return this.countMatch(this.findOutcome(readBytes), readBytes, passingFilter);
+        }
+
+        /**
+         * Find the best first and second index of the read, a match if both match within the thresholds
+         * of their index and the pair is one of the barcodes, and accumulate metrics
+         * @param firstIndexRead
+         * @param secondIndexRead
+         * @param passingFilter PF flag for the current read
+         * @return barcode match of the read
+         */
+        private BarcodeMatch findBestBarcodePair(final byte[] firstIndexRead, final byte[] secondIndexRead, final boolean passingFilter) {
+
+            final MatchOutcome first = this.firstIndexWorker.findOutcome(firstIndexRead);
+            final MatchOutcome second = this.secondIndexWorker.findOutcome(secondIndexRead);
+
+            int barcodeIndex = -1;
+            if (firstIndexDecoder.isMatch(first) && secondIndexDecoder.isMatch(second)) {
+                barcodeIndex = pairTable[first.bestIndex * secondIndexDecoder.barcodeMetrics.size() + second.bestIndex];
+            }
+
+            final BarcodeMatch match = new BarcodeMatch();
+            match.mismatches = first.mismatches + second.mismatches;
+            match.mismatchesToSecondBest = Math.min(first.mismatches + second.mismatchesToSecondBest,
+                    first.mismatchesToSecondBest + second.mismatches);
+            if (barcodeIndex >= 0) {
+                match.matched = true;
+                match.barcode = barcodeMetrics.get(barcodeIndex).BARCODE;
+            } else if (first.bestBarcodeMetric != null && second.bestBarcodeMetric != null) {
+                match.barcode = (first.bestBarcodeMetric.BARCODE + second.bestBarcodeMetric.BARCODE).toLowerCase();
+            } else {
+                match.barcode = "";
+            }
+            if (barcodeIndex < 0 && this.unmatchedBarcodes != null) {
+                this.unmatchedBarcodes.add(StringUtil.bytesToString(firstIndexRead) + StringUtil.bytesToString(secondIndexRead));
+            }
+            this.count(this.counts[0], barcodeIndex, match.mismatches, passingFilter);
+            return match;
+        }
+
+        /**
+         * Look up the read sequence in the neighbourhood index and match cache, or compare it with all barcodes
+         * @param readBytes portion of read containing barcode
+         * @return best and second best barcode mismatches
+         */
+        private MatchOutcome findOutcome(final byte[] readBytes) {
+
+            MatchOutcome outcome = null;
+            String key = null;
+            if (neighbourhoodIndex != null && readBytes.length == barcodeLength) {
+                key = StringUtil.bytesToString(readBytes);
+                outcome = neighbourhoodIndex.get(key);
+                if (outcome != null) {
+                    this.neighbourhoodIndexHits++;
+                }
+            }
+            if (outcome == null && this.matchCache != null) {
+                if (key == null) {
+                    key = StringUtil.bytesToString(readBytes);
+                }
+                outcome = this.matchCache.get(key);
+                if (outcome != null) {
+                    this.matchCacheHits++;
+                }
+            }
+            if (outcome == null) {
+                outcome = scanBarcodes(readBytes);
+                this.barcodeScans++;
+                if (this.matchCache != null) {
+                    this.matchCache.put(key, outcome);
+                }
+            }
+            return outcome;
+        }
+
+        /**
+         * Decide whether the best barcode matches within tolerance, and accumulate metrics
+         * @param outcome result of comparing the read with all barcodes
+         * @param readBytes portion of read containing barcode
+         * @param passingFilter PF flag for the current read
+         * @return barcode match of the read
+         */
+        private BarcodeMatch countMatch(final MatchOutcome outcome, final byte[] readBytes, final boolean passingFilter) {
+            final int readLength = readBytes.length;
+            final BarcodeMetric bestBarcodeMetric = outcome.bestBarcodeMetric;
+            final int numMismatchesInBestBarcode = outcome.mismatches;
+            final int numMismatchesInSecondBestBarcode = outcome.mismatchesToSecondBest;
+            final int numNoCalls = outcome.noCalls;
+
+            final boolean matched = isMatch(outcome);
+
+            final BarcodeMatch match = new BarcodeMatch();
+
+            if (numNoCalls + numMismatchesInBestBarcode < readLength) {
+                match.mismatches = numMismatchesInBestBarcode;
+                match.mismatchesToSecondBest = numMismatchesInSecondBestBarcode;
+                match.barcode = bestBarcodeMetric.BARCODE.toLowerCase();
+            }
+            else {
+                match.mismatches = readLength;
+                match.mismatchesToSecondBest = readLength;
+                match.barcode = "";
+            }
+
+            if (matched) {
+                match.matched = true;
+                match.barcode = bestBarcodeMetric.BARCODE;
+            } else if (this.unmatchedBarcodes != null) {
+                this.unmatchedBarcodes.add(StringUtil.bytesToString(readBytes));
+            }
+            this.count(this.counts[0], matched ? outcome.bestIndex : -1, numMismatchesInBestBarcode, passingFilter);
+            for (int setting = 1; setting < this.counts.length; setting++) {
+                final int [] thresholds = thresholdSettings.get(setting - 1);
+                final boolean matchedInSetting = isMatch(outcome, thresholds[0], maxNoCalls, thresholds[1]);
+                this.count(this.counts[setting], matchedInSetting ? outcome.bestIndex : -1, numMismatchesInBestBarcode, passingFilter);
+            }
+            return match;
+        }
+
+        /**
+         * Accumulate metrics of a read
+         * @param counts counters of one threshold setting
+         * @param barcodeIndex index of the barcode matched, -1 if not matched
+         * @param mismatches mismatches to the barcode matched
+         * @param passingFilter PF flag for the current read
+         */
+        private void count(final long [] counts, final int barcodeIndex, final int mismatches, final boolean passingFilter) {
+
+            if (barcodeIndex >= 0) {
+                final int offset = barcodeIndex * COUNTERS;
+                ++counts[offset + READS];
+                if (passingFilter) {
+                    ++counts[offset + PF_READS];
+                }
+                if (mismatches == 0) {
+                    ++counts[offset + PERFECT_MATCHES];
+                    if (passingFilter) {
+                        ++counts[offset + PF_PERFECT_MATCHES];
+                    }
+                } else if (mismatches == 1) {
+                    ++counts[offset + ONE_MISMATCH_MATCHES];
+                    if (passingFilter) {
+                        ++counts[offset + PF_ONE_MISMATCH_MATCHES];
+                    }
+                }
+            }
+            else {
+                final int offset = barcodeMetrics.size() * COUNTERS;
+                ++counts[offset + READS];
+                if (passingFilter) {
+                    ++counts[offset + PF_READS];
+                }
+            }
+        }
+    }
+
+    /**
+     * @param outcome
+     * @return true if the best barcode matches within the thresholds of this decoder
+     */
+    private boolean isMatch(final MatchOutcome outcome) {
+        return isMatch(outcome, this.maxMismatches, this.maxNoCalls, this.minMismatchDelta);
+    }
+
+    private static boolean isMatch(final MatchOutcome outcome, final int maxMismatches, final int maxNoCalls, final int minMismatchDelta) {
+        return outcome.bestBarcodeMetric != null &&
+                outcome.noCalls <= maxNoCalls &&
+                outcome.mismatches <= maxMismatches &&
+                outcome.mismatchesToSecondBest - outcome.mismatches >= minMismatchDelta;
+    }
+
+    /**
+     * Compare the read sequence with all barcodes
+     * @param readBytes portion of read containing barcode
+     * @return best and second best barcode mismatches
+     */
+    private MatchOutcome scanBarcodes(final byte[] readBytes) {
         BarcodeMetric bestBarcodeMetric = null;
-        int numMismatchesInBestBarcode = readSubsequence.length();
-        int numMismatchesInSecondBestBarcode = readSubsequence.length();
+        int bestIndex = -1;
+        int numMismatchesInBestBarcode = readBytes.length;
+        int numMismatchesInSecondBestBarcode = readBytes.length;
 
-        final byte[] readBytes = net.sf.samtools.util.StringUtil.stringToBytes(readSubsequence);
         int numNoCalls = 0;
         for (final byte b : readBytes) if (SequenceUtil.isNoCall(b)) ++numNoCalls;
 
+        final long [] packedRead = new long[2];
+        final boolean packed = this.packedBarcodes != null && readBytes.length >= this.barcodeLength
+                && packBases(readBytes, this.barcodeLength, packedRead);
 
-        for (final BarcodeMetric barcodeMetric : barcodeMetrics) {
-            
-            final int numMismatches = countMismatches(barcodeMetric.barcodeBytes, readBytes);
+        for (int i = 0; i < barcodeMetrics.size(); i++) {
+            final BarcodeMetric barcodeMetric = barcodeMetrics.get(i);
+            final int numMismatches = packed
+                    ? countMismatches(this.packedBarcodes[i], packedRead[0], packedRead[1])
+                    : countMismatches(barcodeMetric.barcodeBytes, readBytes);
             if (numMismatches < numMismatchesInBestBarcode) {
                 if (bestBarcodeMetric != null) {
                     numMismatchesInSecondBestBarcode = numMismatchesInBestBarcode;
                 }
                 numMismatchesInBestBarcode = numMismatches;
                 bestBarcodeMetric = barcodeMetric;
+                bestIndex = i;
             } else if (numMismatches < numMismatchesInSecondBestBarcode) {
                 numMismatchesInSecondBestBarcode = numMismatches;
             }
         }
 
-        final boolean matched = bestBarcodeMetric != null &&
-                numNoCalls <= this.maxNoCalls &&
-                numMismatchesInBestBarcode <= this.maxMismatches &&
-                numMismatchesInSecondBestBarcode - numMismatchesInBestBarcode >= this.minMismatchDelta;
+        return new MatchOutcome(bestBarcodeMetric, bestIndex, numMismatchesInBestBarcode, numMismatchesInSecondBestBarcode, numNoCalls);
+    }
 
-        final BarcodeMatch match = new BarcodeMatch();
+    /**
+     * Map every sequence within maxMismatches base changes and maxNoCalls Ns of a barcode
+     * to its result of scanning all barcodes, so reads near a barcode are decoded by one lookup.
+     * Not built if there would be more than maxNeighbourhoodSize sequences.
+     */
+    private void buildNeighbourhoodIndex() {
 
-        if (numNoCalls + numMismatchesInBestBarcode < readSubsequence.length()) {
-            match.mismatches = numMismatchesInBestBarcode;
-            match.mismatchesToSecondBest = numMismatchesInSecondBestBarcode;
-            match.barcode = bestBarcodeMetric.BARCODE.toLowerCase();
+        long size = 0;
+        for (final BarcodeMetric barcodeMetric : barcodeMetrics) {
+            size += neighbourhoodSize(barcodeMetric.barcodeBytes.length, this.maxMismatches, this.maxNoCalls);
         }
-        else {
-            match.mismatches = readSubsequence.length();
-            match.mismatchesToSecondBest = readSubsequence.length();
-            match.barcode = "";
+        if (size > this.maxNeighbourhoodSize) {
+            log.info("Barcode neighbourhood of " + size + " sequences too big to index, comparing reads with all barcodes");
+            return;
         }
 
-        if (matched) {
-            ++bestBarcodeMetric.READS;
-            if (passingFilter) {
-                ++bestBarcodeMetric.PF_READS;
+        this.neighbourhoodIndex = new HashMap<String, MatchOutcome>((int) (size * 4 / 3) + 1);
+        for (final BarcodeMetric barcodeMetric : barcodeMetrics) {
+            if (barcodeMetric.barcodeBytes.length == this.barcodeLength) {
+                this.addNeighbours(barcodeMetric.barcodeBytes.clone(), 0, this.maxMismatches, this.maxNoCalls);
             }
-            if (numMismatchesInBestBarcode == 0) {
-                ++bestBarcodeMetric.PERFECT_MATCHES;
-                if (passingFilter) {
-                    ++bestBarcodeMetric.PF_PERFECT_MATCHES;
-                }
-            } else if (numMismatchesInBestBarcode == 1) {
-                ++bestBarcodeMetric.ONE_MISMATCH_MATCHES;
-                if (passingFilter) {
-                    ++bestBarcodeMetric.PF_ONE_MISMATCH_MATCHES;
-                }
+        }
+        log.info("Barcode neighbourhood index of " + this.neighbourhoodIndex.size() + " sequences built");
+    }
+
+    private void addNeighbours(final byte [] sequence, final int position, final int mismatchesLeft, final int noCallsLeft) {
+
+        if (position == sequence.length) {
+            final String key = StringUtil.bytesToString(sequence);
+            if (!this.neighbourhoodIndex.containsKey(key)) {
+                this.neighbourhoodIndex.put(key, this.scanBarcodes(sequence));
             }
+            return;
+        }
 
-            match.matched = true;
-            match.barcode = bestBarcodeMetric.BARCODE;
+        final byte base = sequence[position];
+        this.addNeighbours(sequence, position + 1, mismatchesLeft, noCallsLeft);
+        if (mismatchesLeft > 0) {
+            for (final byte other : BASES) {
+                if (!SequenceUtil.basesEqual(other, base)) {
+                    sequence[position] = other;
+                    this.addNeighbours(sequence, position + 1, mismatchesLeft - 1, noCallsLeft);
+                }
+            }
+        }
+        if (noCallsLeft > 0 && !SequenceUtil.isNoCall(base)) {
+            sequence[position] = NO_CALL;
+            this.addNeighbours(sequence, position + 1, mismatchesLeft, noCallsLeft - 1);
         }
-        else {
-            ++noMatchBarcodeMetric.READS;
-            if (passingFilter) {
-                ++noMatchBarcodeMetric.PF_READS;
+        sequence[position] = base;
+    }
+
+    /**
+     * @return upper bound of number of sequences around one barcode
+     */
+    static long neighbourhoodSize(final int length, final int maxMismatches, final int maxNoCalls) {
+        long size = 0;
+        for (int m = 0; m <= maxMismatches && m <= length; m++) {
+            for (int n = 0; n <= maxNoCalls && m + n <= length; n++) {
+                size += binomial(length, m) * binomial(length - m, n) * (long) Math.pow(BASES.length - 1, m);
             }
-        
         }
-        return match;
+        return size;
     }
-    
+
+    private static long binomial(final int n, final int k) {
+        long result = 1;
+        for (int i = 1; i <= k; i++) {
+            result = result * (n - k + i) / i;
+        }
+        return result;
+    }    
     /**
      * Compare barcode sequence to bases from read
      * @return how many bases did not match
      */
-    private int countMismatches(final byte[] barcodeBytes, final byte[] readSubsequence) {
+    static int countMismatches(final byte[] barcodeBytes, final byte[] readSubsequence) {
         int numMismatches = 0;
         for (int i = 0; i < barcodeBytes.length; ++i) {
             if (!SequenceUtil.isNoCall(readSubsequence[i]) && !SequenceUtil.basesEqual(barcodeBytes[i], readSubsequence[i])) {
@@ -308,7 +830,61 @@ public class IndexDecoder {
         }
         return numMismatches;
     }
-   
+
+    /**
+     * Compare packed barcode to packed bases from read, no-call positions not counted
+     * @return how many bases did not match
+     */
+    static int countMismatches(final long packedBarcode, final long packedRead, final long noCallMask) {
+        final long diff = (packedBarcode ^ packedRead) & ~noCallMask;
+        return Long.bitCount((diff | (diff >>> 1)) & LOW_BITS);
+    }
+
+    /**
+     * Pack bases two bits each, A, C, G and T in either case as 0 to 3 from the lowest bits
+     * @param bases
+     * @param length number of bases to pack, at most 32
+     * @param packed set to packed bases and mask of no-call positions with both bits set
+     * @return false if any base is not A, C, G, T or a no-call
+     */
+    static boolean packBases(final byte[] bases, final int length, final long[] packed) {
+        long codes = 0;
+        long noCallMask = 0;
+        for (int i = 0; i < length; i++) {
+            final int code = BASE_CODES[bases[i] & 0xff];
+            if (code == NO_CALL_CODE) {
+                noCallMask |= 3L << (2 * i);
+            } else if (code < 0) {
+                return false;
+            } else {
+                codes |= (long) code << (2 * i);
+            }
+        }
+        packed[0] = codes;
+        packed[1] = noCallMask;
+        return true;
+    }
+
+    /**
+     * Pack all barcodes if they are short enough and only have A, C, G and T
+     */
+    private void packBarcodes() {
+
+        if (this.barcodeLength > MAX_PACKED_LENGTH) {
+            return;
+        }
+        final long [] packedBarcodesLocal = new long[barcodeMetrics.size()];
+        final long [] packed = new long[2];
+        for (int i = 0; i < barcodeMetrics.size(); i++) {
+            final byte [] barcodeBytes = barcodeMetrics.get(i).barcodeBytes;
+            if (barcodeBytes.length != this.barcodeLength
+                    || !packBases(barcodeBytes, barcodeBytes.length, packed) || packed[1] != 0) {
+                return;
+            }
+            packedBarcodesLocal[i] = packed[0];
+        }
+        this.packedBarcodes = packedBarcodesLocal;
+    }   
     /**
      * check the list of input bar codes.
      * 
@@ -414,6 +990,199 @@ public class IndexDecoder {
         this.maxNoCalls = maxNoCalls;
     }
 
+    /**
+     * set barcode metric counts to the sums of all worker counts,
+     * to be called after all workers finished
+     */
+    public synchronized void mergeWorkerCounts() {
+        IndexDecoder.setCounts(this.sumWorkerCounts(0), this.barcodeMetrics, this.noMatchBarcodeMetric);
+    }
+
+    /**
+     * @param setting 0 for the decoder thresholds, or a threshold setting added by addThresholdSetting
+     * @return counts of all workers
+     */
+    private synchronized long [] sumWorkerCounts(final int setting) {
+        final long [] sums = new long[(barcodeMetrics.size() + 1) * COUNTERS];
+        for (final Worker worker : this.workers) {
+            final long [] counts = worker.counts[setting];
+            for (int i = 0; i < sums.length; i++) {
+                sums[i] += counts[i];
+            }
+        }
+        return sums;
+    }
+
+    private static void setCounts(final long [] sums, final List<BarcodeMetric> barcodeMetrics, final BarcodeMetric noMatchBarcodeMetric) {
+        for (int i = 0; i <= barcodeMetrics.size(); i++) {
+            final BarcodeMetric barcodeMetric = i < barcodeMetrics.size() ? barcodeMetrics.get(i) : noMatchBarcodeMetric;
+            final int offset = i * COUNTERS;
+            barcodeMetric.READS = sums[offset + READS];
+            barcodeMetric.PF_READS = sums[offset + PF_READS];
+            barcodeMetric.PERFECT_MATCHES = sums[offset + PERFECT_MATCHES];
+            barcodeMetric.PF_PERFECT_MATCHES = sums[offset + PF_PERFECT_MATCHES];
+            barcodeMetric.ONE_MISMATCH_MATCHES = sums[offset + ONE_MISMATCH_MATCHES];
+            barcodeMetric.PF_ONE_MISMATCH_MATCHES = sums[offset + PF_ONE_MISMATCH_MATCHES];
+        }
+    }
+
+    /**
+     * log how reads were decoded and the hit rate of the match cache
+     */
+    public synchronized void logDecodeStatistics() {
+        if (this.firstIndexDecoder != null) {
+            this.firstIndexDecoder.logDecodeStatistics();
+            this.secondIndexDecoder.logDecodeStatistics();
+            return;
+        }
+        long neighbourhoodIndexHits = 0;
+        long cacheLookups = 0;
+        for (final Worker worker : this.workers) {
+            neighbourhoodIndexHits += worker.neighbourhoodIndexHits;
+            if (worker.matchCache != null) {
+                cacheLookups += worker.matchCacheHits + worker.barcodeScans;
+            }
+        }
+        final long matchCacheHits = this.getMatchCacheHits();
+        final long barcodeScans = this.getBarcodeScans();
+        log.info((neighbourhoodIndexHits + matchCacheHits + barcodeScans) + " " + this.indexName + " reads decoded with " + this.workers.size()
+                + (this.workers.size() == 1 ? " worker: " : " workers: ")
+                + neighbourhoodIndexHits + " found in neighbourhood index, "
+                + matchCacheHits + " found in match cache, "
+                + barcodeScans + " compared with all " + this.indexName + " sequences");
+        if (cacheLookups > 0) {
+            log.info(String.format("Match cache hit rate %.2f%% of %d lookups", 100.0 * matchCacheHits / cacheLookups, cacheLookups));
+        }
+    }
+
+    /**
+     * Decode barcodes as a first and a second index, to be set before prepareDecode.
+     * Thresholds set by setMaxMismatches and setMaxNoCalls apply to the first index.
+     *
+     * @param secondIndexLength length of the second index at the end of each barcode, 0 for single index
+     * @param secondIndexMaxMismatches maximum mismatches of the second index
+     * @param secondIndexMaxNoCalls maximum no-calls of the second index
+     */
+    public void setSecondIndex(int secondIndexLength, int secondIndexMaxMismatches, int secondIndexMaxNoCalls) {
+        this.secondIndexLength = secondIndexLength;
+        this.secondIndexMaxMismatches = secondIndexMaxMismatches;
+        this.secondIndexMaxNoCalls = secondIndexMaxNoCalls;
+    }
+
+    /**
+     * @return length of the first index, the barcode length for single index
+     */
+    public int getFirstIndexLength() {
+        return this.barcodeLength - this.secondIndexLength;
+    }
+
+    /**
+     * @return length of the second index, 0 for single index
+     */
+    public int getSecondIndexLength() {
+        return this.secondIndexLength;
+    }
+
+    /**
+     * count reads matched with other thresholds as well, in the same pass, to be called before decoding
+     *
+     * @param maxMismatches
+     * @param minMismatchDelta
+     * @return number of the setting to write its metrics
+     */
+    public synchronized int addThresholdSetting(int maxMismatches, int minMismatchDelta) {
+        if (!this.workers.isEmpty()) {
+            throw new IllegalStateException("Threshold settings must be added before decoding");
+        }
+        this.thresholdSettings.add(new int[]{maxMismatches, minMismatchDelta});
+        return this.thresholdSettings.size();
+    }
+
+    /**
+     * @param topUnmatchedBarcodes number of most frequent unmatched barcode reads written to the metrics file,
+     * 0 for none, to be set before decoding
+     */
+    public void setTopUnmatchedBarcodes(int topUnmatchedBarcodes) {
+        this.topUnmatchedBarcodes = topUnmatchedBarcodes;
+    }
+
+    /**
+     * @return most frequent unmatched barcode reads of all workers, highest count first
+     */
+    public List<SpaceSavingCounter.Entry> getTopUnmatchedBarcodes() {
+        final SpaceSavingCounter unmatched = this.mergeUnmatchedBarcodes();
+        if (unmatched == null) {
+            return new ArrayList<SpaceSavingCounter.Entry>();
+        }
+        return unmatched.getTop(this.topUnmatchedBarcodes);
+    }
+
+    /**
+     * @return counts of unmatched barcode reads of all workers, null if not counted
+     */
+    private synchronized SpaceSavingCounter mergeUnmatchedBarcodes() {
+        if (this.topUnmatchedBarcodes <= 0) {
+            return null;
+        }
+        final SpaceSavingCounter unmatched = new SpaceSavingCounter(this.topUnmatchedBarcodes * UNMATCHED_COUNTER_FACTOR);
+        for (final Worker worker : this.workers) {
+            if (worker.unmatchedBarcodes != null) {
+                unmatched.addAll(worker.unmatchedBarcodes);
+            }
+        }
+        return unmatched;
+    }
+
+    /**
+     * @param matchCacheSize maximum number of read sequences in the match cache of each worker, 0 for no cache,
+     * to be set before prepareDecode
+     */
+    public void setMatchCacheSize(int matchCacheSize) {
+        this.matchCacheSize = matchCacheSize;
+    }
+
+    /**
+     * @return number of reads decoded from the match caches of all workers
+     */
+    public synchronized long getMatchCacheHits() {
+        if (this.firstIndexDecoder != null) {
+            return this.firstIndexDecoder.getMatchCacheHits() + this.secondIndexDecoder.getMatchCacheHits();
+        }
+        long hits = 0;
+        for (final Worker worker : this.workers) {
+            hits += worker.matchCacheHits;
+        }
+        return hits;
+    }
+
+    /**
+     * @return number of reads compared with all barcodes by all workers
+     */
+    public synchronized long getBarcodeScans() {
+        if (this.firstIndexDecoder != null) {
+            return this.firstIndexDecoder.getBarcodeScans() + this.secondIndexDecoder.getBarcodeScans();
+        }
+        long scans = 0;
+        for (final Worker worker : this.workers) {
+            scans += worker.barcodeScans;
+        }
+        return scans;
+    }
+
+    /**
+     * @param maxNeighbourhoodSize maximum number of sequences in the barcode neighbourhood index, 0 to compare reads with all barcodes
+     */
+    public void setMaxNeighbourhoodSize(int maxNeighbourhoodSize) {
+        this.maxNeighbourhoodSize = maxNeighbourhoodSize;
+    }
+
+    /**
+     * @return number of sequences in the barcode neighbourhood index, 0 if not built
+     */
+    public int getNeighbourhoodIndexSize() {
+        return this.neighbourhoodIndex == null ? 0 : this.neighbourhoodIndex.size();
+    }
+
     /**
      * @return the barcodeLength
      */
@@ -438,6 +1207,45 @@ public class IndexDecoder {
         int mismatchesToSecondBest;
     }
 
+    /**
+     * best and second best barcode of a read sequence before thresholds applied
+     */
+    private static class MatchOutcome {
+        final BarcodeMetric bestBarcodeMetric;
+        final int bestIndex;
+        final int mismatches;
+        final int mismatchesToSecondBest;
+        final int noCalls;
+
+        MatchOutcome(BarcodeMetric bestBarcodeMetric, int bestIndex, int mismatches, int mismatchesToSecondBest, int noCalls) {
+            this.bestBarcodeMetric = bestBarcodeMetric;
+            this.bestIndex = bestIndex;
+            this.mismatches = mismatches;
+            this.mismatchesToSecondBest = mismatchesToSecondBest;
+            this.noCalls = noCalls;
+        }
+    }
+
+    /**
+     * least recently used read sequences removed when full
+     */
+    private static class MatchCache extends LinkedHashMap<String, MatchOutcome> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int maxSize;
+
+        MatchCache(int maxSize) {
+            super(16, 0.75f, true);
+            this.maxSize = maxSize;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, MatchOutcome> eldest) {
+            return this.size() > this.maxSize;
+        }
+    }
+
     /**
      * Barcode Class
      */
@@ -512,17 +1320,17 @@ public class IndexDecoder {
         public String DESCRIPTION = "";
         
         /** The total number of reads matching the barcode. */
-        public int READS = 0;
+        public long READS = 0;
         /** The number of PF reads matching this barcode (always less than or equal to READS). */
-        public int PF_READS = 0;
+        public long PF_READS = 0;
         /** The number of all reads matching this barcode that matched with 0 errors or no-calls. */
-        public int PERFECT_MATCHES = 0;
+        public long PERFECT_MATCHES = 0;
         /** The number of PF reads matching this barcode that matched with 0 errors or no-calls. */
-        public int PF_PERFECT_MATCHES = 0;
+        public long PF_PERFECT_MATCHES = 0;
         /** The number of all reads matching this barcode that matched with 1 error or no-call. */
-        public int ONE_MISMATCH_MATCHES = 0;
+        public long ONE_MISMATCH_MATCHES = 0;
         /** The number of PF reads matching this barcode that matched with 1 error or no-call. */
-        public int PF_ONE_MISMATCH_MATCHES = 0;
+        public long PF_ONE_MISMATCH_MATCHES = 0;
         /** The percentage of all reads in the lane that matched to this barcode. */
         public double PCT_MATCHES = 0d;
         /**
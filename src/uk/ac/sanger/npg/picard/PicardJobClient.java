@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2011 GRL
+ *
+ * This library is free software. You can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package uk.ac.sanger.npg.picard;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.Socket;
+
+/**
+ * Send one tool invocation to a PicardJobServer on the local machine,
+ * print its output and exit with its exit code.
+ *
+ * Usage: PicardJobClient PORT TOKEN_FILE TOOL [TOOL_ARGUMENTS]
+ *
+ * @author gq1@sanger.ac.uk
+ */
+public class PicardJobClient {
+
+    /**
+     *
+     * @param tokenFile token file written by the server
+     * @return the token
+     * @throws IOException
+     */
+    public static String readToken(File tokenFile) throws IOException {
+
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(tokenFile), PicardJobServer.CHARSET));
+        try {
+            String token = reader.readLine();
+            if (token == null) {
+                throw new IOException("No token in " + tokenFile);
+            }
+            return token;
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     *
+     * @param port local port of the server
+     * @param token secret token of the server
+     * @param tool simple or full class name of the tool, or SHUTDOWN
+     * @param args tool arguments
+     * @param out standard output of the job written to
+     * @param err standard error of the job written to
+     * @return exit code of the job
+     * @throws IOException
+     */
+    public static int run(int port, String token, String tool, String [] args, PrintStream out, PrintStream err) throws IOException {
+
+        for (String arg : args) {
+            if (arg.length() == 0 || arg.contains("\n")) {
+                throw new IllegalArgumentException("Tool arguments must not be empty or contain new lines");
+            }
+        }
+
+        Socket socket = new Socket(InetAddress.getByName(null), port);
+        try {
+            Writer writer = new OutputStreamWriter(socket.getOutputStream(), PicardJobServer.CHARSET);
+            writer.write(token + "\n");
+            writer.write(tool + "\n");
+            for (String arg : args) {
+                writer.write(arg + "\n");
+            }
+            writer.write("\n");
+            writer.flush();
+
+            BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), PicardJobServer.CHARSET));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith(PicardJobServer.OUT_PREFIX)) {
+                    out.println(line.substring(PicardJobServer.OUT_PREFIX.length()));
+                } else if (line.startsWith(PicardJobServer.ERR_PREFIX)) {
+                    err.println(line.substring(PicardJobServer.ERR_PREFIX.length()));
+                } else if (line.startsWith(PicardJobServer.EXIT_PREFIX)) {
+                    return Integer.parseInt(line.substring(PicardJobServer.EXIT_PREFIX.length()));
+                }
+            }
+        } finally {
+            socket.close();
+        }
+        throw new IOException("Connection closed by job server before exit code received");
+    }
+
+    /**
+     * example: 4567 server.token BamTagStripper I=in.bam O=out.bam
+     * @param args
+     */
+    public static void main(final String[] args) {
+
+        if (args.length < 3) {
+            System.err.println("Usage: PicardJobClient PORT TOKEN_FILE TOOL [TOOL_ARGUMENTS]");
+            System.exit(1);
+        }
+        String [] toolArgs = new String[args.length - 3];
+        System.arraycopy(args, 3, toolArgs, 0, toolArgs.length);
+        try {
+            System.exit(run(Integer.parseInt(args[0]), readToken(new File(args[1])), args[2], toolArgs, System.out, System.err));
+        } catch (IOException ex) {
+            System.err.println("Problems to run job on server: " + ex.getMessage());
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,548 @@
+/*
+ * Copyright (C) 2011 GRL
+ *
+ * This library is free software. You can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package uk.ac.sanger.npg.picard;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import net.sf.picard.cmdline.CommandLineParser;
+import net.sf.picard.cmdline.Option;
+import net.sf.picard.cmdline.Usage;
+import net.sf.picard.io.IoUtil;
+import net.sf.picard.util.Log;
+import net.sf.samtools.SAMFileReader;
+import net.sf.samtools.SAMFileWriterFactory;
+import net.sf.samtools.SAMFileWriterImpl;
+import net.sf.samtools.util.BlockCompressedOutputStream;
+
+/**
+ * Run PicardCommandLine tools of this package and the illumina package
+ * in one long running java virtual machine, so short jobs run on loaded and compiled code.
+ *
+ * A client connects to the local port and sends the secret token written to TOKEN_FILE,
+ * the tool name and then each argument on its own line, followed by an empty line.
+ * Standard output and error of the job are sent back line by line
+ * with OUT and ERR prefixes, followed by the exit code. The tool name SHUTDOWN stops the server
+ * after running jobs finish.
+ *
+ * Picard command line programs set some defaults globally, e.g. COMPRESSION_LEVEL and CREATE_INDEX,
+ * so only jobs with the same values of these options run at the same time, other jobs wait,
+ * and the values of the server are restored when no job is running.
+ *
+ * @author gq1@sanger.ac.uk
+ */
+public class PicardJobServer extends PicardCommandLine {
+
+    private final Log log = Log.getInstance(PicardJobServer.class);
+
+    private final String programDS = "Run command line tools sent to a local port in one java virtual machine";
+
+    public static final String SHUTDOWN = "SHUTDOWN";
+    public static final String OUT_PREFIX = "OUT ";
+    public static final String ERR_PREFIX = "ERR ";
+    public static final String EXIT_PREFIX = "EXIT ";
+    public static final String CHARSET = "UTF-8";
+
+    //packages searched for a tool given by simple class name
+    private static final String [] TOOL_PACKAGES = {"uk.ac.sanger.npg.picard.", "uk.ac.sanger.npg.illumina."};
+
+    @Usage(programVersion=version)
+    public final String USAGE = this.getStandardUsagePreamble() + this.programDS + ". ";
+
+    @Option(doc="Local port to listen on, a free port chosen if 0.")
+    public Integer PORT = 0;
+
+    @Option(doc="File to write the port number to once the server is listening.", optional=true)
+    public File PORT_FILE;
+
+    @Option(doc="File to write a secret token to, readable by the owner only, which clients must send with each job.")
+    public File TOKEN_FILE;
+
+    @Option(doc="Number of jobs running at the same time.")
+    public Integer NUM_THREADS = 2;
+
+    //milliseconds a client has to send its job
+    private static final int REQUEST_TIMEOUT = 60000;
+
+    private ServerSocket serverSocket;
+    private volatile boolean shuttingDown = false;
+    private byte [] token;
+    private final GlobalSettingsGate settingsGate = new GlobalSettingsGate();
+
+    @Override
+    protected int doWork() {
+
+        if (this.NUM_THREADS < 1) {
+            log.error("NUM_THREADS must be positive");
+            return 1;
+        }
+        if (this.PORT_FILE != null) {
+            IoUtil.assertFileIsWritable(this.PORT_FILE);
+        }
+        IoUtil.assertFileIsWritable(this.TOKEN_FILE);
+        this.settingsGate.saveServerSettings();
+
+        PrintStream stdout = System.out;
+        PrintStream stderr = System.err;
+        ExecutorService executor = Executors.newFixedThreadPool(this.NUM_THREADS);
+        try {
+            this.token = writeTokenFile(this.TOKEN_FILE).getBytes(CHARSET);
+            this.serverSocket = new ServerSocket(this.PORT, 50, InetAddress.getByName(null));
+            int port = this.serverSocket.getLocalPort();
+            if (this.PORT_FILE != null) {
+                writePortFile(this.PORT_FILE, port);
+            }
+
+            //loggers of tools capture System.err when created, so route it before any tool is loaded
+            System.setOut(new PrintStream(new ThreadRoutingOutputStream(stdout, 0), true));
+            System.setErr(new PrintStream(new ThreadRoutingOutputStream(stderr, 1), true));
+            log.info("Listening on local port " + port + " with " + this.NUM_THREADS + " job threads");
+
+            while (!this.shuttingDown) {
+                Socket socket;
+                try {
+                    socket = this.serverSocket.accept();
+                } catch (SocketException ex) {
+                    if (this.shuttingDown) {
+                        break;
+                    }
+                    throw ex;
+                }
+                executor.execute(new Job(socket));
+            }
+            log.info("Waiting for running jobs to finish");
+            executor.shutdown();
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.SECONDS);
+        } catch (IOException ex) {
+            log.error(ex, "Problems to run job server");
+            return 1;
+        } catch (InterruptedException ex) {
+            log.error(ex, "Interrupted waiting for running jobs");
+            Thread.currentThread().interrupt();
+            return 1;
+        } finally {
+            executor.shutdownNow();
+            this.closeServerSocket();
+            System.setOut(stdout);
+            System.setErr(stderr);
+            if (this.PORT_FILE != null) {
+                this.PORT_FILE.delete();
+            }
+            this.TOKEN_FILE.delete();
+        }
+        log.info("Job server stopped");
+        return 0;
+    }
+
+    private static void writePortFile(File portFile, int port) throws IOException {
+        File tmp = new File(portFile.getAbsoluteFile().getParentFile(), portFile.getName() + ".tmp");
+        PrintWriter writer = new PrintWriter(tmp, CHARSET);
+        writer.println(port);
+        writer.close();
+        if (!tmp.renameTo(portFile)) {
+            throw new IOException("Failed to rename " + tmp + " to " + portFile);
+        }
+    }
+
+    /**
+     * write a new random token to a file only the owner can read and write
+     *
+     * @param tokenFile
+     * @return the token
+     * @throws IOException
+     */
+    private static String writeTokenFile(File tokenFile) throws IOException {
+
+        byte [] secret = new byte[32];
+        new SecureRandom().nextBytes(secret);
+        StringBuilder token = new StringBuilder(secret.length * 2);
+        for (byte b : secret) {
+            token.append(String.format("%02x", b & 0xff));
+        }
+
+        Path path = tokenFile.toPath();
+        Files.deleteIfExists(path);
+        try {
+            Files.createFile(path, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+        } catch (UnsupportedOperationException ex) {
+            Files.createFile(path);
+            if (!(tokenFile.setReadable(false, false) && tokenFile.setReadable(true, true)
+                    && tokenFile.setWritable(false, false) && tokenFile.setWritable(true, true))) {
+                throw new IOException("Failed to restrict permissions of " + tokenFile);
+            }
+        }
+        Files.write(path, (token + "\n").getBytes(CHARSET));
+        return token.toString();
+    }
+
+    private void closeServerSocket() {
+        try {
+            if (this.serverSocket != null) {
+                this.serverSocket.close();
+            }
+        } catch (IOException ex) {
+            log.warn(ex, "Problems to close server socket");
+        }
+    }
+
+    /**
+     *
+     * @param name simple or full class name
+     * @return new instance of the tool, null if not a PicardCommandLine tool
+     */
+    public static PicardCommandLine newTool(String name) {
+
+        List<String> classNames = new ArrayList<String>();
+        if (name.contains(".")) {
+            classNames.add(name);
+        } else {
+            for (String toolPackage : TOOL_PACKAGES) {
+                classNames.add(toolPackage + name);
+            }
+        }
+        for (String className : classNames) {
+            try {
+                Class<?> toolClass = Class.forName(className);
+                if (!PicardCommandLine.class.isAssignableFrom(toolClass)
+                        || PicardJobServer.class.isAssignableFrom(toolClass)) {
+                    return null;
+                }
+                return (PicardCommandLine) toolClass.getDeclaredConstructor().newInstance();
+            } catch (ClassNotFoundException ex) {
+                //try next package
+            } catch (ReflectiveOperationException ex) {
+                return null;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * one client connection running one tool
+     */
+    private class Job implements Runnable {
+
+        private final Socket socket;
+
+        Job(Socket socket) {
+            this.socket = socket;
+        }
+
+        @Override
+        public void run() {
+            try {
+                BufferedReader reader = new BufferedReader(new InputStreamReader(this.socket.getInputStream(), CHARSET));
+                Writer writer = new OutputStreamWriter(this.socket.getOutputStream(), CHARSET);
+                this.socket.setSoTimeout(REQUEST_TIMEOUT);
+                String clientToken = reader.readLine();
+                String tool = reader.readLine();
+                List<String> args = new ArrayList<String>();
+                String line;
+                while ((line = reader.readLine()) != null && line.length() > 0) {
+                    args.add(line);
+                }
+                this.socket.setSoTimeout(0);
+
+                int exitCode;
+                if (clientToken == null || !MessageDigest.isEqual(token, clientToken.getBytes(CHARSET))) {
+                    log.warn("Job rejected, client sent a wrong token");
+                    synchronized (writer) {
+                        writer.write(ERR_PREFIX + "Wrong token\n");
+                    }
+                    exitCode = 1;
+                } else if (SHUTDOWN.equals(tool)) {
+                    log.info("Shutdown requested");
+                    shuttingDown = true;
+                    closeServerSocket();
+                    exitCode = 0;
+                } else {
+                    exitCode = this.runTool(tool, args.toArray(new String[args.size()]), writer);
+                }
+
+                synchronized (writer) {
+                    writer.write(EXIT_PREFIX + exitCode + "\n");
+                    writer.flush();
+                }
+            } catch (IOException ex) {
+                log.warn(ex, "Problems to talk to client");
+            } finally {
+                try {
+                    this.socket.close();
+                } catch (IOException ex) {
+                    log.warn(ex, "Problems to close client socket");
+                }
+            }
+        }
+
+        private int runTool(String tool, String [] args, Writer writer) throws IOException {
+
+            LinePrefixOutputStream out = new LinePrefixOutputStream(writer, OUT_PREFIX);
+            LinePrefixOutputStream err = new LinePrefixOutputStream(writer, ERR_PREFIX);
+            PrintStream errStream = new PrintStream(err, true, CHARSET);
+            ThreadRoutingOutputStream.setThreadStreams(out, err);
+            int exitCode;
+            try {
+                PicardCommandLine program = tool == null ? null : newTool(tool);
+                if (program == null) {
+                    errStream.println("Unknown tool: " + tool);
+                    exitCode = 1;
+                } else {
+                    settingsGate.enter(globalSettings(tool, args));
+                    try {
+                        log.info("Running " + tool + " with " + args.length + " arguments");
+                        exitCode = program.instanceMain(args);
+                        log.info(tool + " finished with exit code " + exitCode);
+                    } finally {
+                        settingsGate.exit();
+                    }
+                }
+            } catch (Throwable ex) {
+                ex.printStackTrace(errStream);
+                log.error(ex, "Problems to run " + tool);
+                exitCode = 1;
+            } finally {
+                ThreadRoutingOutputStream.setThreadStreams(null, null);
+                out.close();
+                err.close();
+            }
+            return exitCode;
+        }
+    }
+
+    /**
+     * parse the arguments of a job with another instance of the tool
+     *
+     * @param tool
+     * @param args
+     * @return values of the options picard sets globally, null if arguments not valid
+     */
+    private static String globalSettings(String tool, String [] args) {
+
+        PicardCommandLine program = newTool(tool);
+        PrintStream discard = new PrintStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+        });
+        if (!new CommandLineParser(program).parseOptions(discard, args)) {
+            return null;
+        }
+        return Arrays.asList(program.TMP_DIR, program.VERBOSITY, program.VALIDATION_STRINGENCY,
+                program.COMPRESSION_LEVEL, program.MAX_RECORDS_IN_RAM,
+                program.CREATE_INDEX, program.CREATE_MD5_FILE).toString();
+    }
+
+    /**
+     * lets jobs run at the same time only with the same values of options picard sets globally,
+     * and restores the values of the server whenever the last running job finishes
+     */
+    private class GlobalSettingsGate {
+
+        private String settings;
+        private int running = 0;
+        private int waiting = 0;
+
+        private SAMFileReader.ValidationStringency validationStringency;
+        private int compressionLevel;
+        private int maxRecordsInRam;
+        private String tmpDir;
+
+        /**
+         * keep the values set by the server itself, which has no getters for index, md5 and log level
+         */
+        synchronized void saveServerSettings() {
+            this.validationStringency = SAMFileReader.getDefaultValidationStringency();
+            this.compressionLevel = BlockCompressedOutputStream.getDefaultCompressionLevel();
+            this.maxRecordsInRam = SAMFileWriterImpl.getDefaultMaxRecordsInRam();
+            this.tmpDir = System.getProperty("java.io.tmpdir");
+        }
+
+        /**
+         * wait until the job can run, jobs waiting already go first
+         *
+         * @param jobSettings global settings of the job, null to run alone
+         * @throws InterruptedException
+         */
+        synchronized void enter(String jobSettings) throws InterruptedException {
+
+            while (this.running > 0
+                    && (jobSettings == null || !jobSettings.equals(this.settings) || this.waiting > 0)) {
+                this.waiting++;
+                try {
+                    this.wait();
+                } finally {
+                    this.waiting--;
+                }
+            }
+            this.settings = jobSettings;
+            this.running++;
+        }
+
+        synchronized void exit() {
+
+            this.running--;
+            if (this.running == 0) {
+                Log.setGlobalLogLevel(VERBOSITY);
+                SAMFileReader.setDefaultValidationStringency(this.validationStringency);
+                BlockCompressedOutputStream.setDefaultCompressionLevel(this.compressionLevel);
+                SAMFileWriterImpl.setDefaultMaxRecordsInRam(this.maxRecordsInRam);
+                SAMFileWriterFactory.setDefaultCreateIndexWhileWriting(CREATE_INDEX);
+                SAMFileWriterFactory.setDefaultCreateMd5File(CREATE_MD5_FILE);
+                System.setProperty("java.io.tmpdir", this.tmpDir);
+                this.settings = null;
+                this.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * stream writing to the stream of the current job thread and threads it started,
+     * or to the stream of the server outside jobs
+     */
+    private static class ThreadRoutingOutputStream extends OutputStream {
+
+        private static final InheritableThreadLocal<OutputStream []> THREAD_STREAMS = new InheritableThreadLocal<OutputStream []>();
+
+        private final OutputStream defaultStream;
+        private final int index;
+
+        /**
+         * @param defaultStream
+         * @param index 0 to route standard output, 1 for standard error
+         */
+        ThreadRoutingOutputStream(OutputStream defaultStream, int index) {
+            this.defaultStream = defaultStream;
+            this.index = index;
+        }
+
+        static void setThreadStreams(OutputStream out, OutputStream err) {
+            if (out == null) {
+                THREAD_STREAMS.remove();
+            } else {
+                THREAD_STREAMS.set(new OutputStream[]{out, err});
+            }
+        }
+
+        private OutputStream target() {
+            OutputStream [] streams = THREAD_STREAMS.get();
+            return streams == null ? this.defaultStream : streams[this.index];
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            this.target().write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            this.target().write(b, off, len);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            this.target().flush();
+        }
+    }
+
+    /**
+     * stream sending each complete line with a prefix to the client
+     */
+    private static class LinePrefixOutputStream extends OutputStream {
+
+        private final Writer writer;
+        private final String prefix;
+        private final ByteArrayOutputStream line = new ByteArrayOutputStream();
+
+        LinePrefixOutputStream(Writer writer, String prefix) {
+            this.writer = writer;
+            this.prefix = prefix;
+        }
+
+        @Override
+        public synchronized void write(int b) throws IOException {
+            if (b == '\n') {
+                this.sendLine();
+            } else {
+                this.line.write(b);
+            }
+        }
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) throws IOException {
+            for (int i = off; i < off + len; i++) {
+                this.write(b[i]);
+            }
+        }
+
+        private void sendLine() throws IOException {
+            String text = lineText(this.line);
+            this.line.reset();
+            synchronized (this.writer) {
+                this.writer.write(this.prefix + text + "\n");
+                this.writer.flush();
+            }
+        }
+
+        private static String lineText(ByteArrayOutputStream line) throws UnsupportedEncodingException {
+            String text = line.toString(CHARSET);
+            if (text.endsWith("\r")) {
+                text = text.substring(0, text.length() - 1);
+            }
+            return text;
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            if (this.line.size() > 0) {
+                this.sendLine();
+            }
+        }
+    }
+
+    /**
+     * example: PORT_FILE=server.port TOKEN_FILE=server.token NUM_THREADS=4
+     * @param args
+     */
+    public static void main(final String[] args) {
+
+        System.exit(new PicardJobServer().instanceMain(args));
+    }
+}
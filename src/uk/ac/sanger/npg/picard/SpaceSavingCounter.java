@@ -0,0 +1,240 @@
+/*
+ * Copyright (C) 2011 GRL
+ *
+ * This library is free software. You can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package uk.ac.sanger.npg.picard;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Count the most frequent items of a stream in fixed memory with the Space-Saving algorithm.
+ *
+ * At most capacity items are counted. A new item replaces the item with the lowest count
+ * and takes over its count as possible overcount, so the count of any item is at least its true count
+ * and at most its true count plus its error, and any item seen more than total/capacity times is kept.
+ *
+ * @author gq1@sanger.ac.uk
+ */
+public class SpaceSavingCounter {
+
+    private final int capacity;
+
+    //min heap of counted items by count, with the position of each item in the heap
+    private final String [] items;
+    private final long [] counts;
+    private final long [] errors;
+    private final Map<String, Integer> positions;
+    private int size = 0;
+
+    private long total = 0;
+
+    /**
+     *
+     * @param capacity maximum number of items counted
+     */
+    public SpaceSavingCounter(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+        }
+        this.capacity = capacity;
+        this.items = new String[capacity];
+        this.counts = new long[capacity];
+        this.errors = new long[capacity];
+        this.positions = new HashMap<String, Integer>(capacity * 4 / 3 + 1);
+    }
+
+    /**
+     * count one occurrence of an item
+     * @param item
+     */
+    public void add(String item) {
+        this.add(item, 1, 0);
+    }
+
+    /**
+     *
+     * @param item
+     * @param count number of occurrences
+     * @param error possible overcount included in count
+     */
+    public void add(String item, long count, long error) {
+
+        this.total += count;
+        Integer position = this.positions.get(item);
+        if (position != null) {
+            this.counts[position] += count;
+            this.errors[position] += error;
+            this.siftDown(position);
+        } else if (this.size < this.capacity) {
+            this.set(this.size, item, count, error);
+            this.siftUp(this.size++);
+        } else {
+            final long minCount = this.counts[0];
+            this.positions.remove(this.items[0]);
+            this.set(0, item, minCount + count, minCount + error);
+            this.siftDown(0);
+        }
+    }
+
+    /**
+     * add all counts of another counter, as a merge of two summaries:
+     * an item missing from a full counter may have occurred up to its minimum count,
+     * which is added to the count and error of the item, and the items with the highest counts are kept
+     * @param other
+     */
+    public void addAll(SpaceSavingCounter other) {
+
+        final long minCount = this.getMinCount();
+        final long otherMinCount = other.getMinCount();
+
+        final List<Entry> merged = new ArrayList<Entry>(this.size + other.size);
+        for (int i = 0; i < this.size; i++) {
+            final Integer otherPosition = other.positions.get(this.items[i]);
+            final long otherCount = otherPosition != null ? other.counts[otherPosition] : otherMinCount;
+            final long otherError = otherPosition != null ? other.errors[otherPosition] : otherMinCount;
+            merged.add(new Entry(this.items[i], this.counts[i] + otherCount, this.errors[i] + otherError));
+        }
+        for (int i = 0; i < other.size; i++) {
+            if (!this.positions.containsKey(other.items[i])) {
+                merged.add(new Entry(other.items[i], other.counts[i] + minCount, other.errors[i] + minCount));
+            }
+        }
+
+        this.positions.clear();
+        this.size = 0;
+        for (final Entry entry : sortByCount(merged)) {
+            if (this.size == this.capacity) {
+                break;
+            }
+            this.set(this.size, entry.item, entry.count, entry.error);
+            this.siftUp(this.size++);
+        }
+        this.total += other.total;
+    }
+
+    /**
+     *
+     * @param k
+     * @return at most k items with the highest counts, highest first
+     */
+    public List<Entry> getTop(int k) {
+        List<Entry> entries = new ArrayList<Entry>(this.size);
+        for (int i = 0; i < this.size; i++) {
+            entries.add(new Entry(this.items[i], this.counts[i], this.errors[i]));
+        }
+        sortByCount(entries);
+        return entries.size() > k ? entries.subList(0, k) : entries;
+    }
+
+    /**
+     * @return number of occurrences of all items added
+     */
+    public long getTotal() {
+        return this.total;
+    }
+
+    /**
+     * @return number of items counted
+     */
+    public int size() {
+        return this.size;
+    }
+
+    /**
+     * @return most occurrences an item not counted may have had, 0 unless full
+     */
+    private long getMinCount() {
+        return this.size == this.capacity ? this.counts[0] : 0;
+    }
+
+    /**
+     * sort entries by count, highest first, then by item
+     */
+    private static List<Entry> sortByCount(List<Entry> entries) {
+        Collections.sort(entries, new Comparator<Entry>() {
+            @Override
+            public int compare(Entry e1, Entry e2) {
+                if (e1.count != e2.count) {
+                    return e1.count > e2.count ? -1 : 1;
+                }
+                return e1.item.compareTo(e2.item);
+            }
+        });
+        return entries;
+    }
+
+    private void set(int position, String item, long count, long error) {
+        this.items[position] = item;
+        this.counts[position] = count;
+        this.errors[position] = error;
+        this.positions.put(item, position);
+    }
+
+    private void swap(int i, int j) {
+        final String item = this.items[i];
+        final long count = this.counts[i];
+        final long error = this.errors[i];
+        this.set(i, this.items[j], this.counts[j], this.errors[j]);
+        this.set(j, item, count, error);
+    }
+
+    private void siftUp(int position) {
+        while (position > 0) {
+            final int parent = (position - 1) / 2;
+            if (this.counts[parent] <= this.counts[position]) {
+                return;
+            }
+            this.swap(parent, position);
+            position = parent;
+        }
+    }
+
+    private void siftDown(int position) {
+        while (true) {
+            final int left = 2 * position + 1;
+            if (left >= this.size) {
+                return;
+            }
+            final int right = left + 1;
+            final int smallest = right < this.size && this.counts[right] < this.counts[left] ? right : left;
+            if (this.counts[position] <= this.counts[smallest]) {
+                return;
+            }
+            this.swap(position, smallest);
+            position = smallest;
+        }
+    }
+
+    /**
+     * an item with its count and possible overcount
+     */
+    public static class Entry {
+        public final String item;
+        public final long count;
+        public final long error;
+
+        Entry(String item, long count, long error) {
+            this.item = item;
+            this.count = count;
+            this.error = error;
+        }
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2011 GRL
+ *
+ * This library is free software. You can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package uk.ac.sanger.npg.bam.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import net.sf.samtools.*;
+import static org.junit.Assert.assertEquals;
+import org.junit.Test;
+
+/**
+ *
+ * @author gq1@sanger.ac.uk
+ */
+public class BamBlockConcatenatorTest {
+
+    private File writeBam(String name, SAMFileHeader header, int firstRead, int numberOfReads){
+
+        File bam = new File("testdata/" + name);
+        bam.deleteOnExit();
+        SAMFileWriter writer = new SAMFileWriterFactory().makeBAMWriter(header, true, bam);
+        for(int i = firstRead; i < firstRead + numberOfReads; i++){
+            SAMRecord record = new SAMRecord(header);
+            record.setReadName("read" + i);
+            record.setReadString("ACGTACGTACGTACGTACGTACGTACGTACGTACGTACGT");
+            record.setBaseQualityString("ABCDEFGHIJABCDEFGHIJABCDEFGHIJABCDEFGHIJ");
+            record.setReadUnmappedFlag(true);
+            record.setAttribute("RG", "1");
+            writer.addAlignment(record);
+        }
+        writer.close();
+        return bam;
+    }
+
+    /**
+     * Test of concatenate method, one small and one input with many blocks
+     */
+    @Test
+    public void testConcatenate() throws IOException {
+        System.out.println("concatenate");
+
+        SAMReadGroupRecord readGroup = new SAMReadGroupRecord("1");
+        readGroup.setSample("sample");
+        SAMFileHeader header = new SAMFileHeader();
+        header.addReadGroup(readGroup);
+
+        List<File> inputs = new ArrayList<File>(Arrays.asList(
+                writeBam("concatenate_part0.bam", header, 0, 10),
+                writeBam("concatenate_part1.bam", header, 10, 20000)));
+
+        SAMFileHeader outputHeader = new SAMFileHeader();
+        outputHeader.addReadGroup(readGroup);
+        outputHeader.addProgramRecord(new SAMProgramRecord("test"));
+        File output = new File("testdata/concatenate.bam");
+        output.deleteOnExit();
+        BamBlockConcatenator.concatenate(outputHeader, inputs, output, 5);
+
+        SAMFileReader reader = new SAMFileReader(output);
+        reader.setValidationStringency(SAMFileReader.ValidationStringency.STRICT);
+        assertEquals(1, reader.getFileHeader().getProgramRecords().size());
+        int count = 0;
+        for(SAMRecord record : reader){
+            assertEquals("read" + count, record.getReadName());
+            count++;
+        }
+        reader.close();
+        assertEquals(20010, count);
+    }
+}
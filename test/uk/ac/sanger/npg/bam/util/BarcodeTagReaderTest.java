@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2011 GRL
+ *
+ * This library is free software. You can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package uk.ac.sanger.npg.bam.util;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import net.sf.samtools.*;
+import net.sf.samtools.util.StringUtil;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ * This is the test class for BarcodeTagReader
+ *
+ * @author gq1@sanger.ac.uk
+ */
+public class BarcodeTagReaderTest {
+
+    private final SAMFileHeader header = new SAMFileHeader();
+
+    private SAMRecord makeRecord(String name, String barcode, String quality) {
+        SAMRecord record = new SAMRecord(this.header);
+        record.setReadName(name);
+        record.setReadString("ACGTACGTAC");
+        record.setBaseQualityString("ABCDEFGHIJ");
+        record.setReadUnmappedFlag(true);
+        record.setAttribute("XI", 12345);
+        record.setAttribute("XB", new short[]{1, 2, 3});
+        record.setAttribute("XZ", "other");
+        if (barcode != null) {
+            record.setAttribute("BC", barcode);
+        }
+        if (quality != null) {
+            record.setAttribute("QT", quality);
+        }
+        return record;
+    }
+
+    /**
+     * @return records written to and read back from a BAM file, with binary attributes
+     */
+    private List<SAMRecord> throughBam(List<SAMRecord> records) {
+        File bam = new File("testdata/barcode_tag_reader.bam");
+        bam.deleteOnExit();
+        SAMFileWriter writer = new SAMFileWriterFactory().makeBAMWriter(this.header, true, bam);
+        for (SAMRecord record : records) {
+            writer.addAlignment(record);
+        }
+        writer.close();
+        List<SAMRecord> bamRecords = new ArrayList<SAMRecord>();
+        SAMFileReader reader = new SAMFileReader(bam);
+        for (SAMRecord record : reader) {
+            bamRecords.add(record);
+        }
+        reader.close();
+        return bamRecords;
+    }
+
+    /**
+     * Test of reading barcode tags from binary attributes and from decoded attributes
+     */
+    @Test
+    public void testRead() {
+
+        System.out.println("checking barcode tag reader");
+
+        List<SAMRecord> records = new ArrayList<SAMRecord>();
+        records.add(makeRecord("1", "ACGTACGT", "IIII#III"));
+        records.add(makeRecord("2", "TTGGCCAA", null));
+        records.add(makeRecord("3", null, null));
+        List<SAMRecord> bamRecords = throughBam(records);
+        assertTrue(bamRecords.get(0) instanceof BAMRecord);
+        assertNotNull(bamRecords.get(0).getVariableBinaryRepresentation());
+
+        List<List<SAMRecord>> lists = new ArrayList<List<SAMRecord>>();
+        lists.add(records);
+        lists.add(bamRecords);
+        for (List<SAMRecord> list : lists) {
+            BarcodeTagReader reader = new BarcodeTagReader("BC", "QT", 15, 6);
+            byte [] buffer = reader.read(new SAMRecord[]{list.get(0)});
+            assertEquals("ACGTNC", StringUtil.bytesToString(buffer));
+            assertSame(buffer, reader.read(new SAMRecord[]{list.get(1)}));
+            assertEquals("TTGGCC", StringUtil.bytesToString(buffer));
+
+            //barcode read from the second read of a pair
+            assertEquals("TTGGCC", StringUtil.bytesToString(reader.read(new SAMRecord[]{list.get(2), list.get(1)})));
+
+            BarcodeTagReader noQuality = new BarcodeTagReader("BC", null, 15, 8);
+            assertEquals("ACGTACGT", StringUtil.bytesToString(noQuality.read(new SAMRecord[]{list.get(0)})));
+
+            try {
+                reader.read(new SAMRecord[]{list.get(0), list.get(1)});
+                fail("different barcode reads in a pair");
+            } catch (RuntimeException ex) {
+                assertEquals("barcode read bases are different in paired two reads: ACGTACGT TTGGCCAA", ex.getMessage());
+            }
+            try {
+                reader.read(new SAMRecord[]{list.get(2)});
+                fail("no barcode read");
+            } catch (RuntimeException ex) {
+                assertEquals("No barcode read found for record: 3", ex.getMessage());
+            }
+            try {
+                new BarcodeTagReader("BC", null, 15, 9).read(new SAMRecord[]{list.get(0)});
+                fail("barcode read too short");
+            } catch (RuntimeException ex) {
+                assertTrue(ex.getMessage().startsWith("The barcode read length is less than barcode"));
+            }
+        }
+
+        //changed records fall back to decoded attributes
+        SAMRecord changed = bamRecords.get(1);
+        changed.setAttribute("BC", "GGGGGGGG");
+        assertNull(changed.getVariableBinaryRepresentation());
+        assertEquals("GGGGGG", StringUtil.bytesToString(new BarcodeTagReader("BC", "QT", 15, 6).read(new SAMRecord[]{changed})));
+    }
+}
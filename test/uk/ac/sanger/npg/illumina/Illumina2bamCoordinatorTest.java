@@ -0,0 +1,76 @@
+/*
+ * Copyright (C) 2011 GRL
+ *
+ * This library is free software. You can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * This is the test class for Illumina2bamCoordinator
+ *
+ */
+package uk.ac.sanger.npg.illumina;
+
+import java.io.File;
+import net.sf.samtools.SAMFileReader;
+import net.sf.samtools.SAMRecord;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ *
+ * @author gq1@sanger.ac.uk
+ */
+public class Illumina2bamCoordinatorTest {
+
+    @Test
+    public void coordinatorTest() {
+
+        System.out.println("convert lane with worker processes");
+        File output = new File("testdata/coordinator_13349_1.bam");
+        output.deleteOnExit();
+        String[] args = {
+            "INTENSITY_DIR=testdata/140624_MS6_13349_A_MS2639979-300V2/Data/Intensities",
+            "LANE=1",
+            "OUTPUT=" + output.getPath(),
+            "FIRST_TILE=1101",
+            "TILE_LIMIT=1",
+            "NUM_WORKERS=2",
+            "WORKER_OPTION=PF_FILTER=false",
+            "WORKER_OPTION=RUN_START_DATE=2011-03-23T00:00:00+0000",
+        };
+        assertEquals(0, new Illumina2bamCoordinator().instanceMain(args));
+        assertFalse(new File(output.getPath() + ".part0.bam").exists());
+
+        SAMFileReader reader = new SAMFileReader(output);
+        reader.setValidationStringency(SAMFileReader.ValidationStringency.STRICT);
+        assertEquals("Illumina2bamCoordinator",
+                reader.getFileHeader().getProgramRecords().get(reader.getFileHeader().getProgramRecords().size() - 1).getId());
+        int count = 0;
+        for(SAMRecord record : reader){
+            count++;
+        }
+        reader.close();
+        assertEquals(20, count);
+    }
+
+    @Test
+    public void workerOptionTest() {
+
+        String[] args = {
+            "INTENSITY_DIR=testdata/140624_MS6_13349_A_MS2639979-300V2/Data/Intensities",
+            "LANE=1",
+            "OUTPUT=testdata/coordinator_13349_1.bam",
+            "WORKER_OPTION=TILE_LIMIT=2",
+        };
+        assertEquals(1, new Illumina2bamCoordinator().instanceMain(args));
+    }
+}
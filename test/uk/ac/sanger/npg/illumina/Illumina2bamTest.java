@@ -21,17 +21,25 @@ package uk.ac.sanger.npg.illumina;
 
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.FileReader;
 import java.io.IOException;
 import java.util.TimeZone;
+import java.util.ArrayList;
 import java.util.List;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import net.sf.picard.metrics.MetricsFile;
 import net.sf.samtools.SAMProgramRecord;
 import net.sf.samtools.SAMReadGroupRecord;
 import net.sf.samtools.SAMFileReader;
+import net.sf.samtools.SAMRecord;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 import org.junit.BeforeClass;
 import org.junit.Test;
 import uk.ac.sanger.npg.bam.util.CheckMd5;
+import uk.ac.sanger.npg.picard.IndexDecoder;
 
 /**
  *
@@ -96,6 +104,7 @@ public class Illumina2bamTest {
                 + " TMP_DIR=[testdata] VALIDATION_STRINGENCY=STRICT COMPRESSION_LEVEL=1"
                 + " CREATE_MD5_FILE=true    GENERATE_SECONDARY_BASE_CALLS=false PF_FILTER=true READ_GROUP_ID=1"
                 + " SEQUENCING_CENTER=SC PLATFORM=ILLUMINA BARCODE_SEQUENCE_TAG_NAME=BC BARCODE_QUALITY_TAG_NAME=QT"
+                + " UMI_SEQUENCE_TAG_NAME=RX UMI_QUALITY_TAG_NAME=QX MAX_MISMATCHES=1 MIN_MISMATCH_DELTA=1 MAX_NO_CALLS=2 NUM_THREADS=1 CLUSTERS_PER_CHUNK=200000 CHECK_BASECALL_FILES=true OUTPUT_SINK=BAM_FILE SAMPLE_SEED=1"
                 + " VERBOSITY=INFO QUIET=false MAX_RECORDS_IN_RAM=500000 CREATE_INDEX=false",
                 testData.illumina2bam.getCommandLine()
                );
@@ -144,6 +153,7 @@ public class Illumina2bamTest {
                 + " TMP_DIR=[testdata] VALIDATION_STRINGENCY=STRICT COMPRESSION_LEVEL=1"
                 + " CREATE_MD5_FILE=true    GENERATE_SECONDARY_BASE_CALLS=false PF_FILTER=true READ_GROUP_ID=1"
                 + " SEQUENCING_CENTER=SC PLATFORM=ILLUMINA BARCODE_SEQUENCE_TAG_NAME=BC BARCODE_QUALITY_TAG_NAME=QT"
+                + " UMI_SEQUENCE_TAG_NAME=RX UMI_QUALITY_TAG_NAME=QX MAX_MISMATCHES=1 MIN_MISMATCH_DELTA=1 MAX_NO_CALLS=2 NUM_THREADS=1 CLUSTERS_PER_CHUNK=200000 CHECK_BASECALL_FILES=true OUTPUT_SINK=BAM_FILE SAMPLE_SEED=1"
                 + " VERBOSITY=INFO QUIET=false MAX_RECORDS_IN_RAM=500000 CREATE_INDEX=false",
                 testData.illumina2bam.getCommandLine()
                );
@@ -186,6 +196,7 @@ public class Illumina2bamTest {
                 + " TMP_DIR=[testdata] VALIDATION_STRINGENCY=STRICT COMPRESSION_LEVEL=1"
                 + " CREATE_MD5_FILE=true    GENERATE_SECONDARY_BASE_CALLS=false PF_FILTER=true READ_GROUP_ID=1"
                 + " SEQUENCING_CENTER=SC PLATFORM=ILLUMINA BARCODE_SEQUENCE_TAG_NAME=BC BARCODE_QUALITY_TAG_NAME=QT"
+                + " UMI_SEQUENCE_TAG_NAME=RX UMI_QUALITY_TAG_NAME=QX MAX_MISMATCHES=1 MIN_MISMATCH_DELTA=1 MAX_NO_CALLS=2 NUM_THREADS=1 CLUSTERS_PER_CHUNK=200000 CHECK_BASECALL_FILES=true OUTPUT_SINK=BAM_FILE SAMPLE_SEED=1"
                 + " VERBOSITY=INFO QUIET=false MAX_RECORDS_IN_RAM=500000 CREATE_INDEX=false",
                 testData.illumina2bam.getCommandLine()
                );
@@ -233,6 +244,7 @@ public class Illumina2bamTest {
                 + " TMP_DIR=[testdata] VALIDATION_STRINGENCY=STRICT COMPRESSION_LEVEL=1"
                 + " CREATE_MD5_FILE=true    GENERATE_SECONDARY_BASE_CALLS=false PF_FILTER=true READ_GROUP_ID=1"
                 + " SEQUENCING_CENTER=SC PLATFORM=ILLUMINA BARCODE_SEQUENCE_TAG_NAME=BC BARCODE_QUALITY_TAG_NAME=QT"
+                + " UMI_SEQUENCE_TAG_NAME=RX UMI_QUALITY_TAG_NAME=QX MAX_MISMATCHES=1 MIN_MISMATCH_DELTA=1 MAX_NO_CALLS=2 NUM_THREADS=1 CLUSTERS_PER_CHUNK=200000 CHECK_BASECALL_FILES=true OUTPUT_SINK=BAM_FILE SAMPLE_SEED=1"
                 + " VERBOSITY=INFO QUIET=false MAX_RECORDS_IN_RAM=500000 CREATE_INDEX=false",
                 testData.illumina2bam.getCommandLine()
                );
@@ -292,4 +304,231 @@ public class Illumina2bamTest {
         testData.commonAsserts(args);        
         assertEquals("cc191980b6d85386ae003971b02a3cc9",CheckMd5.getBamMd5AfterRemovePGVersion(testData.tempBamFile, "Illumina2bam"));
     }
+
+    /**
+     * Test barcode census mode reading index reads only.
+     */
+    @Test
+    public void barcodeCensusTest() throws FileNotFoundException {
+        System.out.println("barcode census from index reads only");
+        File metricsFile = new File("testdata/test_census_13349.metrics");
+        metricsFile.deleteOnExit();
+        String[] args = {"INTENSITY_DIR=testdata/140624_MS6_13349_A_MS2639979-300V2/Data/Intensities",
+                "LANE=1",
+                "BARCODE_METRICS_FILE=" + metricsFile.getPath(),
+                "BARCODE=TAGGGTTAAGTTGGTTGGAC",
+                "BARCODE=TAGGGTTAAGTGCGATGTTT",
+                "FIRST_TILE=1101",
+                "TILE_LIMIT=1",
+                "PF_FILTER=false"
+               };
+        Illumina2bam illumina2bam = new Illumina2bam();
+        assertEquals(0, illumina2bam.instanceMain(args));
+
+        MetricsFile<IndexDecoder.BarcodeMetric, Integer> metrics = new MetricsFile<IndexDecoder.BarcodeMetric, Integer>();
+        metrics.read(new FileReader(metricsFile));
+        List<IndexDecoder.BarcodeMetric> barcodeMetrics = metrics.getMetrics();
+        assertEquals(3, barcodeMetrics.size());
+        assertEquals(1, barcodeMetrics.get(0).READS);
+        assertEquals(1, barcodeMetrics.get(1).PERFECT_MATCHES);
+        assertEquals(8, barcodeMetrics.get(2).READS);
+    }
+
+    /**
+     * Test barcode census mode only checks filter and index read files before counting.
+     */
+    @Test
+    public void barcodeCensusCheckTest() throws Exception {
+        System.out.println("barcode census not checking template read files");
+        File runFolder = new File("testdata/census_check_13349");
+        File metricsFile = new File("testdata/test_census_check_13349.metrics");
+        metricsFile.deleteOnExit();
+        try {
+            copyDirectory(new File("testdata/140624_MS6_13349_A_MS2639979-300V2"), runFolder);
+            //first template cycle missing
+            assertTrue(new File(runFolder, "Data/Intensities/BaseCalls/L001/C1.1/s_1_1101.bcl").delete());
+
+            String[] args = {"INTENSITY_DIR=" + runFolder.getPath() + "/Data/Intensities",
+                    "LANE=1",
+                    "BARCODE_METRICS_FILE=" + metricsFile.getPath(),
+                    "BARCODE=TAGGGTTAAGTTGGTTGGAC",
+                    "BARCODE=TAGGGTTAAGTGCGATGTTT",
+                    "FIRST_TILE=1101",
+                    "TILE_LIMIT=1",
+                    "PF_FILTER=false",
+                    "CHECK_BASECALL_FILES=true"
+                   };
+            assertEquals(0, new Illumina2bam().instanceMain(args));
+
+            Lane lane = new Lane(runFolder.getPath() + "/Data/Intensities", runFolder.getPath() + "/Data/Intensities/BaseCalls",
+                    runFolder.getPath(), 1, false, false, metricsFile, "BC", "QT");
+            lane.setTileList(new int[]{1101});
+            assertEquals(0, lane.checkBaseCallFiles(true).size());
+            assertEquals(1, lane.checkBaseCallFiles(false).size());
+        } finally {
+            deleteDirectory(runFolder);
+        }
+    }
+
+    private static void copyDirectory(File from, File to) throws IOException {
+        to.mkdirs();
+        for (File file : from.listFiles()) {
+            File target = new File(to, file.getName());
+            if (file.isDirectory()) {
+                copyDirectory(file, target);
+            } else {
+                java.nio.file.Files.copy(file.toPath(), target.toPath());
+            }
+        }
+    }
+
+    private static void deleteDirectory(File directory) {
+        File [] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.isDirectory()) {
+                    deleteDirectory(file);
+                } else {
+                    file.delete();
+                }
+            }
+        }
+        directory.delete();
+    }
+
+    /**
+     * Test random sample of clusters per tile.
+     */
+    @Test
+    public void sampleClustersTest() {
+        System.out.println("processing a random sample of clusters");
+        Data testData = new Data("testdata/test_sample_13349.sam");
+        String[] args = {"INTENSITY_DIR=testdata/140624_MS6_13349_A_MS2639979-300V2/Data/Intensities",
+                "LANE=1",
+                "OUTPUT=" + testData.tempBamFile.getPath(),
+                "RUN_START_DATE=2011-03-23T00:00:00+0000",
+                "FIRST_TILE=1101",
+                "TILE_LIMIT=1",
+                "TMP_DIR=testdata/",
+                "VALIDATION_STRINGENCY=STRICT",
+                "PF_FILTER=false",
+                "MAX_CLUSTERS_PER_TILE=4",
+                "SAMPLE_SEED=1"
+               };
+        testData.commonAsserts(args);
+
+        SAMFileReader samFileReader = new SAMFileReader(testData.tempBamFile);
+        int records = 0;
+        int lastClusterIndex = 0;
+        for (SAMRecord record : samFileReader) {
+            int clusterIndex = (Integer) record.getAttribute("ci");
+            assertTrue(clusterIndex >= lastClusterIndex);
+            lastClusterIndex = clusterIndex;
+            records++;
+        }
+        samFileReader.close();
+        assertEquals(8, records);
+    }
+
+    /**
+     * Test cluster ranges of different sizes converted in parallel come out in the serial order,
+     * also with a memory budget allowing one range at a time.
+     */
+    @Test
+    public void parallelClusterRangesTest() {
+        System.out.println("processing cluster ranges in parallel");
+        List<String> readsByThreads = new ArrayList<String>();
+        String[][] threadOptions = {{"NUM_THREADS=1", "MEMORY_BUDGET=1024"},
+                                    {"NUM_THREADS=3", "MEMORY_BUDGET=1024"},
+                                    {"NUM_THREADS=3", "MEMORY_BUDGET=1"}};
+        for (String[] threads : threadOptions) {
+            Data testData = new Data("testdata/test_parallel_13349.sam");
+            String[] args = {"INTENSITY_DIR=testdata/140624_MS6_13349_A_MS2639979-300V2/Data/Intensities",
+                    "LANE=1",
+                    "OUTPUT=" + testData.tempBamFile.getPath(),
+                    "RUN_START_DATE=2011-03-23T00:00:00+0000",
+                    "FIRST_TILE=1101",
+                    "TILE_LIMIT=1",
+                    "TMP_DIR=testdata/",
+                    "VALIDATION_STRINGENCY=STRICT",
+                    "PF_FILTER=false",
+                    "CLUSTERS_PER_CHUNK=3",
+                    threads[0],
+                    threads[1]
+                   };
+            testData.commonAsserts(args);
+
+            StringBuilder reads = new StringBuilder();
+            SAMFileReader samFileReader = new SAMFileReader(testData.tempBamFile);
+            for (SAMRecord record : samFileReader) {
+                reads.append(record.getSAMString());
+            }
+            samFileReader.close();
+            readsByThreads.add(reads.toString());
+        }
+        assertEquals(readsByThreads.get(0), readsByThreads.get(1));
+        assertEquals(readsByThreads.get(0), readsByThreads.get(2));
+    }
+
+    /**
+     * Test molecular barcodes from template and index reads into RX and QX tags.
+     */
+    @Test
+    public void umiTagsTest() {
+        System.out.println("processing with molecular barcodes");
+        Data testData = new Data("testdata/test_umi_13349.sam");
+        String[] args = {"INTENSITY_DIR=testdata/140624_MS6_13349_A_MS2639979-300V2/Data/Intensities",
+                "LANE=1",
+                "OUTPUT=" + testData.tempBamFile.getPath(),
+                "RUN_START_DATE=2011-03-23T00:00:00+0000",
+                "FIRST_TILE=1101",
+                "TILE_LIMIT=1",
+                "TMP_DIR=testdata/",
+                "VALIDATION_STRINGENCY=STRICT",
+                "PF_FILTER=false",
+                "READ_STRUCTURE=5M70T12B8B3M2S70T"
+               };
+        testData.commonAsserts(args);
+
+        SAMFileReader samFileReader = new SAMFileReader(testData.tempBamFile);
+        SAMRecord record = samFileReader.iterator().next();
+        assertEquals(70, record.getReadLength());
+        assertEquals("AAGCATCCACACTTTTCTATCTGGTAAAGGCATGCATTTACATTATGCCTCTCATTACTCTGGCTCTTCT", record.getReadString());
+        assertEquals("ACTAG-GAC", record.getStringAttribute("RX"));
+        assertEquals("ABCCC ABB", record.getStringAttribute("QX"));
+        assertEquals("TAGGGTTAAGTGCGATGTTT", record.getStringAttribute("BC"));
+        samFileReader.close();
+    }
+
+    /**
+     * Test per cycle metrics file.
+     */
+    @Test
+    public void cycleMetricsTest() throws IOException {
+        System.out.println("processing with per cycle metrics");
+        Data testData = new Data("testdata/test_cycle_metrics_13349.sam");
+        File metricsFile = new File("testdata/test_cycle_metrics_13349.json");
+        metricsFile.deleteOnExit();
+        String[] args = {"INTENSITY_DIR=testdata/140624_MS6_13349_A_MS2639979-300V2/Data/Intensities",
+                "LANE=1",
+                "OUTPUT=" + testData.tempBamFile.getPath(),
+                "RUN_START_DATE=2011-03-23T00:00:00+0000",
+                "FIRST_TILE=1101",
+                "TILE_LIMIT=1",
+                "TMP_DIR=testdata/",
+                "VALIDATION_STRINGENCY=STRICT",
+                "PF_FILTER=false",
+                "CYCLE_METRICS_FILE=" + metricsFile.getPath()
+               };
+        testData.commonAsserts(args);
+
+        JsonNode tiles = new ObjectMapper().readTree(metricsFile).get("tiles");
+        assertEquals(1, tiles.size());
+        assertEquals(1101, tiles.get(0).get("tile").asInt());
+        JsonNode read1 = tiles.get(0).get("reads").get(0);
+        assertEquals("read1", read1.get("read").asText());
+        assertEquals(10, read1.get("pfClusters").asInt());
+        assertEquals(75, read1.get("pfBaseCounts").size());
+        assertEquals("[5,1,2,2,0]", read1.get("pfBaseCounts").get(0).toString());
+    }
 }
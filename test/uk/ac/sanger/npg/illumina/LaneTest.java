@@ -32,6 +32,9 @@ import org.junit.AfterClass;
 import static org.junit.Assert.*;
 import org.junit.BeforeClass;
 import org.junit.Test;
+import uk.ac.sanger.npg.illumina.sink.CountingSink;
+import uk.ac.sanger.npg.illumina.sink.OutputSink;
+import uk.ac.sanger.npg.illumina.sink.TileSegmentSink;
 
 /**
  *
@@ -559,4 +562,47 @@ public class LaneTest {
 
     }
 
+    @Test
+    public void processTilesToSinksOK() throws Exception {
+
+        String intensityDir = "testdata/140624_MS6_13349_A_MS2639979-300V2/Data/Intensities";
+        String baseCallDir = "testdata/140624_MS6_13349_A_MS2639979-300V2/Data/Intensities/BaseCalls";
+        String runfolderDir = "testdata/140624_MS6_13349_A_MS2639979-300V2/";
+        File segmentOutput = new File("testdata/140624_MS6_13349_sink.bam");
+
+        Lane lane = new Lane(intensityDir, baseCallDir, runfolderDir, 1, false, false, segmentOutput, "BC", "QT");
+        lane.setTileList(new int[]{1101});
+        System.out.println("processTiles to counting sink");
+        CountingSink serial = (CountingSink) lane.generateOutputSink(OutputSink.Type.COUNT);
+        assertTrue(lane.processTiles(serial));
+        assertEquals(1, serial.getRecordsByTile().size());
+        assertTrue(serial.getRecords() > 0);
+        assertEquals(serial.getRecords(), (long) serial.getRecordsByTile().get(1101));
+
+        lane.setNumThreads(3);
+        lane.setClustersPerChunk(1000);
+        CountingSink parallel = new CountingSink(serial.getFileHeader());
+        assertTrue(lane.processTiles(parallel));
+        assertEquals(serial.getRecords(), parallel.getRecords());
+        assertEquals(serial.getBases(), parallel.getBases());
+        assertEquals(serial.getRecordsByTile(), parallel.getRecordsByTile());
+
+        System.out.println("processTiles to tile segment sink");
+        TileSegmentSink segments = (TileSegmentSink) lane.generateOutputSink(OutputSink.Type.TILE_SEGMENTS);
+        assertTrue(lane.processTiles(segments));
+        segments.close();
+        File segment = new File("testdata/140624_MS6_13349_sink_1101.bam");
+        segment.deleteOnExit();
+        assertEquals(1, segments.getSegments().size());
+        assertEquals(segment.getAbsoluteFile(), segments.getSegments().get(0));
+
+        SAMFileReader reader = new SAMFileReader(segment);
+        reader.setValidationStringency(SAMFileReader.ValidationStringency.SILENT);
+        long count = 0;
+        for (SAMRecord record : reader) {
+            count++;
+        }
+        reader.close();
+        assertEquals(serial.getRecords(), count);
+    }
 }
@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2011 GRL
+ *
+ * This library is free software. You can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * This is the test class for ReadStructure
+ *
+ */
+package uk.ac.sanger.npg.illumina;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.List;
+import net.sf.samtools.SAMFileReader;
+import net.sf.samtools.SAMRecord;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ *
+ * @author gq1@sanger.ac.uk
+ */
+public class ReadStructureTest {
+
+    @Test
+    public void parseTest() {
+
+        ReadStructure readStructure = new ReadStructure("8m143T8B8b5S146T");
+        assertEquals("8M143T8B8B5S146T", readStructure.toString());
+        assertEquals(318, readStructure.getTotalCycles());
+
+        List<ReadStructure.Segment> segments = readStructure.getSegments();
+        assertEquals(6, segments.size());
+        assertEquals("readUmi", segments.get(0).getName());
+        assertEquals("read1", segments.get(1).getName());
+        assertEquals(9, segments.get(1).getFirstCycle());
+        assertEquals(151, segments.get(1).getLastCycle());
+        assertEquals("readIndex2", segments.get(3).getName());
+        assertNull(segments.get(4).getName());
+        assertEquals(2, readStructure.getSegments(ReadStructure.BARCODE).size());
+
+        HashMap<String, int[]> cycleRangeByRead = readStructure.getCycleRangeByRead();
+        assertEquals(5, cycleRangeByRead.size());
+        assertArrayEquals(new int[]{173, 318}, cycleRangeByRead.get("read2"));
+        assertArrayEquals(new int[]{160, 167}, cycleRangeByRead.get("readIndex2"));
+    }
+
+    @Test
+    public void fromCycleRangeTest() {
+
+        HashMap<String, int[]> cycleRangeByRead = new HashMap<String, int[]>();
+        cycleRangeByRead.put("read1", new int[]{1, 75});
+        cycleRangeByRead.put("readIndex", new int[]{76, 83});
+        cycleRangeByRead.put("read2", new int[]{90, 164});
+
+        ReadStructure readStructure = new ReadStructure(cycleRangeByRead);
+        assertEquals("75T8B6S75T", readStructure.toString());
+    }
+
+    @Test (expected = IllegalArgumentException.class)
+    public void invalidSegmentTest() {
+        new ReadStructure("75T8X75T");
+    }
+
+    @Test (expected = IllegalArgumentException.class)
+    public void noTemplateTest() {
+        new ReadStructure("8B8B");
+    }
+
+    @Test
+    public void commandLineTest() {
+
+        File tempSamFile = new File("testdata/readStructureTest_13349_1.sam");
+        tempSamFile.deleteOnExit();
+        Illumina2bam illumina2bam = new Illumina2bam();
+        String[] args = {
+            "INTENSITY_DIR=testdata/140624_MS6_13349_A_MS2639979-300V2/Data/Intensities",
+            "LANE=1",
+            "OUTPUT=" + tempSamFile.getPath(),
+            "VALIDATION_STRINGENCY=STRICT",
+            "FIRST_TILE=1101",
+            "TILE_LIMIT=1",
+            "PF_FILTER=false",
+            "RUN_START_DATE=2011-03-23T00:00:00+0000",
+            "READ_STRUCTURE=5M70T12B8B5S70T",
+        };
+        assertEquals(0, illumina2bam.instanceMain(args));
+
+        SAMFileReader samFileReader = new SAMFileReader(tempSamFile);
+        SAMRecord record = samFileReader.iterator().next();
+        assertEquals(70, record.getReadLength());
+        assertEquals(20, record.getStringAttribute("BC").length());
+        samFileReader.close();
+
+        String[] badArgs = {
+            "INTENSITY_DIR=testdata/140624_MS6_13349_A_MS2639979-300V2/Data/Intensities",
+            "LANE=1",
+            "OUTPUT=" + tempSamFile.getPath(),
+            "READ_STRUCTURE=75T12B8B75T",
+            "FIRST=1",
+            "FINAL=75",
+        };
+        assertEquals(1, new Illumina2bam().instanceMain(badArgs));
+    }
+}
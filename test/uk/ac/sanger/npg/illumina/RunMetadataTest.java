@@ -0,0 +1,94 @@
+/*
+ * Copyright (C) 2011 GRL
+ *
+ * This library is free software. You can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * This is the test class for RunMetadata
+ *
+ */
+package uk.ac.sanger.npg.illumina;
+
+import java.io.File;
+import java.util.List;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ *
+ * @author gq1@sanger.ac.uk
+ */
+public class RunMetadataTest {
+
+    private static final String runFolder = "testdata/110405_HS17_06067_A_B035CABXX";
+    private static final File baseCallsConfig = new File(runFolder + "/Data/Intensities/BaseCalls/config.xml");
+    private static final File intensityConfig = new File(runFolder + "/Data/Intensities/config.xml");
+    private static final File runParameters = new File(runFolder + "/runParameters.xml");
+    private static final File runInfo = new File(runFolder + "/RunInfo.xml");
+
+    private void checkHiSeqRun(RunMetadata metadata) {
+
+        assertTrue(metadata.hasBaseCallsConfig());
+        assertTrue(metadata.hasIntensityConfig());
+        assertTrue(metadata.hasRunConfig());
+        assertTrue(metadata.hasRunParameters());
+        assertTrue(metadata.hasRunInfo());
+
+        assertEquals("RTA", metadata.getBaseCallSoftwareName());
+        assertEquals("1.10.36.0", metadata.getBaseCallSoftwareVersion());
+        assertEquals("HiSeq Control Software", metadata.getApplicationName());
+        assertEquals("HS17", metadata.getInstrument());
+        assertEquals("6067", metadata.getRunFolderId());
+        assertEquals(32, metadata.getTiles(1).length);
+        assertEquals(0, metadata.getTiles(9).length);
+        assertArrayEquals(new int[]{76, 77, 78, 79, 80, 81, 82, 83}, metadata.getBarcodeCycles());
+
+        List<int[]> reads = metadata.getRunInfoReads();
+        assertEquals(3, reads.size());
+        assertArrayEquals(new int[]{2, 8, 1}, reads.get(1));
+        assertArrayEquals(new int[]{1, 1, 12}, metadata.getFlowcellLayout());
+    }
+
+    @Test
+    public void readTest() {
+
+        RunMetadata metadata = RunMetadata.read(baseCallsConfig, intensityConfig, runParameters, runInfo);
+        checkHiSeqRun(metadata);
+
+        RunMetadata noFiles = RunMetadata.read(null, new File("testdata/no_such_config.xml"), null, null);
+        assertFalse(noFiles.hasIntensityConfig());
+        assertFalse(noFiles.hasRunConfig());
+        assertNull(noFiles.getFlowcellLayout());
+        assertNull(noFiles.getRunInfoReads());
+    }
+
+    @Test
+    public void cacheTest() throws Exception {
+
+        File cacheDir = File.createTempFile("runMetadataCache", "", new File("testdata/"));
+        cacheDir.delete();
+        cacheDir.mkdir();
+        cacheDir.deleteOnExit();
+
+        String checksum = RunMetadata.checksum(baseCallsConfig, intensityConfig, runParameters, runInfo);
+        assertFalse(checksum.equals(RunMetadata.checksum(baseCallsConfig, intensityConfig, null, runInfo)));
+        File cacheFile = new File(cacheDir, checksum + ".runmetadata");
+        cacheFile.deleteOnExit();
+
+        checkHiSeqRun(RunMetadata.read(baseCallsConfig, intensityConfig, runParameters, runInfo, cacheDir));
+        assertTrue(cacheFile.exists());
+        checkHiSeqRun(RunMetadata.readCache(cacheFile));
+        checkHiSeqRun(RunMetadata.read(baseCallsConfig, intensityConfig, runParameters, runInfo, cacheDir));
+        assertEquals(1, cacheDir.list().length);
+    }
+}
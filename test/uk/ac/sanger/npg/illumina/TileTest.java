@@ -24,6 +24,7 @@ import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
 import java.util.HashMap;
+import java.util.List;
 import net.sf.samtools.SAMFileHeader;
 import net.sf.samtools.SAMFileWriter;
 import net.sf.samtools.SAMFileWriterFactory;
@@ -33,6 +34,7 @@ import static org.junit.Assert.*;
 
 import org.junit.BeforeClass;
 import org.junit.Test;
+import uk.ac.sanger.npg.illumina.file.reader.SCLFileReader;
 
 /**
  *
@@ -74,6 +76,46 @@ public class TileTest {
         tile.closeBaseCallFiles();
     }
 
+    @Test
+    public void checkBaseCallFiles() {
+
+        System.out.println("checkBaseCallFiles");
+        //no position files for this tile in test data
+        List<String> problems = tile.checkBaseCallFiles();
+        assertEquals(1, problems.size());
+        assertEquals("clocs, locs and pos files are not available for tile 1101", problems.get(0));
+
+        HashMap<String, int[]> cycleRangeByRead = new HashMap<String, int[]>(2);
+        cycleRangeByRead.put("read1", cycleRangeRead1);
+        cycleRangeByRead.put("read2", new int[]{51, 54});
+        Tile tileMissingCycle = new Tile(intensityDir, baseCallDir, id, lane, tileNumber, cycleRangeByRead, true, true, barcodeSeqTagName, barcodeQualTagName);
+        problems = tileMissingCycle.checkBaseCallFiles();
+        assertEquals(3, problems.size());
+        assertTrue(problems.get(1).startsWith("BCL file " + baseCallDir + "/L001/C54.1/s_1_1101.bcl"));
+        assertTrue(problems.get(2).startsWith("SCL file " + baseCallDir + "/L001/C54.1/s_1_1101.scl"));
+    }
+
+    @Test
+    public void packedSecondBases() throws Exception {
+
+        System.out.println("getNextClusterPackedSecondBases");
+        HashMap<String, int[]> cycleRangeByRead = new HashMap<String, int[]>(2);
+        cycleRangeByRead.put("read1", cycleRangeRead1);
+        cycleRangeByRead.put("read2", new int[]{50, 52});
+        Tile charTile = new Tile(intensityDir, baseCallDir, id, lane, tileNumber, cycleRangeByRead, true, true, barcodeSeqTagName, barcodeQualTagName);
+        Tile packedTile = new Tile(intensityDir, baseCallDir, id, lane, tileNumber, cycleRangeByRead, true, true, barcodeSeqTagName, barcodeQualTagName);
+        charTile.openBaseCallFiles();
+        packedTile.openBaseCallFiles();
+        for (int i = 0; i < 100; i++) {
+            byte [] packed = packedTile.getNextClusterPackedSecondBases(packedTile.getSclFileReaderListByRead().get("read2"));
+            assertEquals(1, packed.length);
+            assertEquals(0, packed[0] & 3);
+            assertEquals(charTile.getNextClusterSecondBases("read2"), SCLFileReader.unpackBases(packed, 3));
+        }
+        charTile.closeBaseCallFiles();
+        packedTile.closeBaseCallFiles();
+    }
+
     @Test
     public void checkTileOK() throws Exception {
         
@@ -105,4 +105,29 @@ public class BCLFileReaderTest {
         assertEquals(totalCluster, 0);
         bclFileReaderCorrupt.close();
     }
+
+    @Test
+    public void checkSeekToCluster() throws Exception {
+        System.out.println("Seek to a cluster in bcl file");
+        BCLFileReader bclFileReaderSeek = new BCLFileReader(testBCLFile);
+
+        bclFileReaderSeek.seekToCluster(306);
+        assertEquals(bclFileReaderSeek.getCurrentCluster(), 306);
+        byte [] cluster = bclFileReaderSeek.next();
+        assertEquals((char)cluster[0], 'A');
+        assertEquals((char)(cluster[1] + 64 ), '^');
+        assertEquals(bclFileReaderSeek.getCurrentCluster(), 307);
+
+        bclFileReaderSeek.seekToCluster(0);
+        cluster = bclFileReaderSeek.next();
+        assertEquals((char) cluster[0], 'N');
+
+        bclFileReaderSeek.seekToCluster(2609911);
+        cluster = bclFileReaderSeek.next();
+        assertEquals((char)cluster[0], 'G');
+        assertEquals((char) (cluster[1] + 64), 'T');
+        assertFalse(bclFileReaderSeek.hasNext());
+
+        bclFileReaderSeek.close();
+    }
 }
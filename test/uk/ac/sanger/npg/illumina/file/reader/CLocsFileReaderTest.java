@@ -19,6 +19,10 @@
  */
 package uk.ac.sanger.npg.illumina.file.reader;
 
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.List;
 import static org.junit.Assert.*;
 import org.junit.Test;
 
@@ -123,4 +127,42 @@ public class CLocsFileReaderTest {
         assertEquals(cLocsFileReader2.getCurrentTotalClusters(), 3658339);
         cLocsFileReader2.close();
     }
+
+    @Test
+    public void testSeekToCluster() throws Exception {
+        System.out.println("Seek to clusters in a small clocs file with an empty block");
+        File smallCLocsFile = File.createTempFile("seek", ".clocs");
+        smallCLocsFile.deleteOnExit();
+        FileOutputStream out = new FileOutputStream(smallCLocsFile);
+        out.write(new byte[]{1, 4, 0, 0, 0,
+                             2, 1, 2, 3, 4,
+                             0,
+                             3, 5, 6, 7, 8, 9, 10,
+                             1, 11, 12});
+        out.close();
+
+        CLocsFileReader sequentialReader = new CLocsFileReader(smallCLocsFile.getPath());
+        List<String> positions = new ArrayList<String>();
+        while (sequentialReader.getCurrentTotalClusters() < 6) {
+            String[] cluster = sequentialReader.next().toArray();
+            positions.add(cluster[0] + ":" + cluster[1]);
+        }
+        sequentialReader.close();
+
+        CLocsFileReader seekReader = new CLocsFileReader(smallCLocsFile.getPath());
+        for (int i = 5; i >= 0; i--) {
+            seekReader.seekToCluster(i);
+            assertEquals(seekReader.getCurrentTotalClusters(), i);
+            String[] cluster = seekReader.next().toArray();
+            assertEquals(positions.get(i), cluster[0] + ":" + cluster[1]);
+        }
+        seekReader.seekToCluster(2);
+        for (int i = 2; i < 6; i++) {
+            String[] cluster = seekReader.next().toArray();
+            assertEquals(positions.get(i), cluster[0] + ":" + cluster[1]);
+        }
+        seekReader.seekToCluster(6);
+        assertFalse(seekReader.hasNext());
+        seekReader.close();
+    }
 }
@@ -87,4 +87,25 @@ public class LocsFileReaderTest {
         System.out.println("test no more next method");
         locsFileReader2.next();
     }
+
+    @Test
+    public void testSeekToCluster() throws Exception {
+        System.out.println("test seek to cluster method");
+        LocsFileReader locsFileReader3 = new LocsFileReader("testdata/111014_M00119_0028_AMS0001310-00300/Data/Intensities/L001/s_1_1.locs");
+
+        locsFileReader3.seekToCluster(235084);
+        assertEquals(locsFileReader3.getCurrentTotalClusters(), 235084);
+        String [] lastPos = locsFileReader3.next().toArray();
+        assertEquals(lastPos[0], "15605");
+        assertEquals(lastPos[1], "29408");
+        assertFalse(locsFileReader3.hasNext());
+
+        locsFileReader3.seekToCluster(0);
+        String [] firstPos = locsFileReader3.next().toArray();
+        assertEquals(firstPos[0], "16440");
+        assertEquals(firstPos[1], "1321");
+        assertEquals(locsFileReader3.getCurrentTotalClusters(), 1);
+
+        locsFileReader3.close();
+    }
 }
@@ -82,4 +82,59 @@ public class SCLFileReaderTest {
         assertFalse(sclFileReader.hasNext());
         assertNull(sclFileReader.next());
     }
+
+    @Test
+    public void checkPackedCodes() throws Exception {
+        System.out.println("Read the scl file as two bit codes");
+        SCLFileReader charReader = new SCLFileReader(testSCLFile);
+        SCLFileReader codeReader = new SCLFileReader(testSCLFile);
+
+        byte [] packed = new byte[3];
+        StringBuilder bases = new StringBuilder();
+        for (int i = 0; i < 10; i++) {
+            char base = charReader.next();
+            int code = codeReader.nextCode();
+            assertEquals(base, "ACGT".charAt(code));
+            packed[i >> 2] |= code << (6 - 2 * (i & 3));
+            bases.append(base);
+        }
+        assertEquals(bases.toString(), SCLFileReader.unpackBases(packed, 10));
+
+        codeReader.seekToCluster(306);
+        assertEquals(3, codeReader.nextCode());
+        charReader.close();
+        codeReader.close();
+    }
+
+    @Test
+    public void checkLoadClusters() throws Exception {
+        System.out.println("Load cluster ranges of the scl file");
+        SCLFileReader allReader = new SCLFileReader(testSCLFile);
+        SCLFileReader rangeReader = new SCLFileReader(testSCLFile, false);
+        assertEquals(rangeReader.getTotalClusters(), 2609912);
+        assertFalse(rangeReader.hasNext());
+
+        int [][] ranges = {{306, 10}, {1001, 7}, {5, 3}, {2609900, 12}};
+        for (int [] range : ranges) {
+            rangeReader.loadClusters(range[0], range[1]);
+            allReader.seekToCluster(range[0]);
+            assertEquals(rangeReader.getCurrentCluster(), range[0]);
+            for (int i = 0; i < range[1]; i++) {
+                assertTrue(rangeReader.hasNext());
+                assertEquals(allReader.nextCode(), rangeReader.nextCode());
+            }
+            assertFalse(rangeReader.hasNext());
+        }
+
+        rangeReader.seekToCluster(2609905);
+        allReader.seekToCluster(2609905);
+        assertEquals(allReader.next(), rangeReader.next());
+        try {
+            rangeReader.seekToCluster(306);
+            fail("cluster not loaded");
+        } catch (IllegalArgumentException ex) {
+        }
+        allReader.close();
+        rangeReader.close();
+    }
 }
@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2011 GRL
+ *
+ * This library is free software. You can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package uk.ac.sanger.npg.illumina.sink;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import net.sf.samtools.*;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ *
+ * @author gq1@sanger.ac.uk
+ */
+public class OutputSinkTest {
+
+    private SAMFileHeader header = new SAMFileHeader();
+
+    private SAMRecord makeRecord(int i){
+        SAMRecord record = new SAMRecord(header);
+        record.setReadName("read" + i);
+        record.setReadString("ACGTACGTAC");
+        record.setBaseQualityString("ABCDEFGHIJ");
+        record.setReadUnmappedFlag(true);
+        return record;
+    }
+
+    private void writeTiles(OutputSink sink){
+        int read = 0;
+        for (int tile = 1; tile <= 2; tile++) {
+            sink.startTile(tile);
+            for (int i = 0; i < 5 * tile; i++) {
+                sink.addAlignment(makeRecord(read++));
+            }
+            sink.endTile(tile);
+        }
+        sink.close();
+    }
+
+    /**
+     * Test of counting sink
+     */
+    @Test
+    public void countingSinkOK() {
+        System.out.println("countingSink");
+
+        CountingSink sink = new CountingSink(header);
+        writeTiles(sink);
+        assertEquals(15, sink.getRecords());
+        assertEquals(150, sink.getBases());
+        assertEquals(5L, (long) sink.getRecordsByTile().get(1));
+        assertEquals(10L, (long) sink.getRecordsByTile().get(2));
+    }
+
+    /**
+     * Test of record queue sink with a consumer thread
+     */
+    @Test
+    public void recordQueueSinkOK() throws Exception {
+        System.out.println("recordQueueSink");
+
+        final RecordQueueSink sink = new RecordQueueSink(header, 2);
+        final List<String> names = new ArrayList<String>();
+        Thread consumer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    SAMRecord record;
+                    while ((record = sink.take()) != null) {
+                        names.add(record.getReadName());
+                    }
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        consumer.start();
+        writeTiles(sink);
+        consumer.join();
+
+        assertEquals(15, names.size());
+        assertEquals("read0", names.get(0));
+        assertEquals("read14", names.get(14));
+        assertNull(sink.take());
+    }
+
+    /**
+     * Test of uncompressed BAM stream sink
+     */
+    @Test
+    public void uncompressedBamStreamOK() {
+        System.out.println("uncompressedBamStream");
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writeTiles(SAMFileWriterSink.uncompressedBamStream(header, out));
+
+        SAMFileReader reader = new SAMFileReader(new ByteArrayInputStream(out.toByteArray()));
+        int count = 0;
+        for (SAMRecord record : reader) {
+            assertEquals("read" + count, record.getReadName());
+            count++;
+        }
+        reader.close();
+        assertEquals(15, count);
+    }
+}
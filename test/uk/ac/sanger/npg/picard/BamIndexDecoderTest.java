@@ -18,14 +18,23 @@
 
 package uk.ac.sanger.npg.picard;
 
+import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileReader;
 import java.io.IOException;
 import java.util.TimeZone;
 import java.util.ArrayList;
+import java.util.List;
 import net.sf.samtools.SAMFileReader;
+import net.sf.samtools.SAMFileWriter;
+import net.sf.samtools.SAMFileWriterFactory;
+import net.sf.samtools.SAMFileWriterImpl;
 import net.sf.samtools.SAMProgramRecord;
 import net.sf.samtools.SAMReadGroupRecord;
+import net.sf.samtools.SAMRecord;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 import org.junit.Test;
 import uk.ac.sanger.npg.bam.util.CheckMd5;
 
@@ -80,7 +89,7 @@ public class BamIndexDecoderTest {
 
         decoder.instanceMain(args);
         System.out.println(decoder.getCommandLine());
-        assertEquals(decoder.getCommandLine(), "uk.ac.sanger.npg.picard.BamIndexDecoder INPUT=testdata/bam/6383_8.sam OUTPUT=testdata/6383_8/6383_8.sam BARCODE_TAG_NAME=RT BARCODE_FILE=testdata/decode/6383_8.tag METRICS_FILE=testdata/6383_8/6383_8.metrics TMP_DIR=[testdata] VALIDATION_STRINGENCY=SILENT CREATE_MD5_FILE=true    BARCODE_QUALITY_TAG_NAME=QT MAX_MISMATCHES=1 MIN_MISMATCH_DELTA=1 MAX_NO_CALLS=2 CONVERT_LOW_QUALITY_TO_NO_CALL=false MAX_LOW_QUALITY_TO_CONVERT=15 VERBOSITY=INFO QUIET=false COMPRESSION_LEVEL=5 MAX_RECORDS_IN_RAM=500000 CREATE_INDEX=false");
+        assertEquals(decoder.getCommandLine(), "uk.ac.sanger.npg.picard.BamIndexDecoder INPUT=testdata/bam/6383_8.sam OUTPUT=testdata/6383_8/6383_8.sam BARCODE_TAG_NAME=RT BARCODE_FILE=testdata/decode/6383_8.tag METRICS_FILE=testdata/6383_8/6383_8.metrics TMP_DIR=[testdata] VALIDATION_STRINGENCY=SILENT CREATE_MD5_FILE=true    BARCODE_QUALITY_TAG_NAME=QT MAX_MISMATCHES=1 MIN_MISMATCH_DELTA=1 MAX_NO_CALLS=2 CONVERT_LOW_QUALITY_TO_NO_CALL=false MAX_LOW_QUALITY_TO_CONVERT=15 NUM_THREADS=1 BATCH_SIZE=10000 METRICS_ONLY=false VERBOSITY=INFO QUIET=false COMPRESSION_LEVEL=5 MAX_RECORDS_IN_RAM=500000 CREATE_INDEX=false");
         File outputFile = new File(outputName + ".sam");
         File outputMetrics = new File(outputName + ".metrics");
         File outputMd5 = new File(outputName + ".sam.md5");
@@ -137,7 +146,7 @@ public class BamIndexDecoderTest {
 
         decoder.instanceMain(args);
         System.out.println(decoder.getCommandLine());
-        assertEquals(decoder.getCommandLine(), "uk.ac.sanger.npg.picard.BamIndexDecoder INPUT=testdata/bam/6383_8.sam OUTPUT_DIR=testdata/6383_8_split OUTPUT_PREFIX=6383_8 OUTPUT_FORMAT=bam BARCODE_TAG_NAME=RT BARCODE_QUALITY_TAG_NAME=QT BARCODE_FILE=testdata/decode/6383_8.tag METRICS_FILE=testdata/6383_8_split/6383_8.metrics CONVERT_LOW_QUALITY_TO_NO_CALL=true TMP_DIR=[testdata] VALIDATION_STRINGENCY=SILENT CREATE_MD5_FILE=true    MAX_MISMATCHES=1 MIN_MISMATCH_DELTA=1 MAX_NO_CALLS=2 MAX_LOW_QUALITY_TO_CONVERT=15 VERBOSITY=INFO QUIET=false COMPRESSION_LEVEL=5 MAX_RECORDS_IN_RAM=500000 CREATE_INDEX=false");
+        assertEquals(decoder.getCommandLine(), "uk.ac.sanger.npg.picard.BamIndexDecoder INPUT=testdata/bam/6383_8.sam OUTPUT_DIR=testdata/6383_8_split OUTPUT_PREFIX=6383_8 OUTPUT_FORMAT=bam BARCODE_TAG_NAME=RT BARCODE_QUALITY_TAG_NAME=QT BARCODE_FILE=testdata/decode/6383_8.tag METRICS_FILE=testdata/6383_8_split/6383_8.metrics CONVERT_LOW_QUALITY_TO_NO_CALL=true TMP_DIR=[testdata] VALIDATION_STRINGENCY=SILENT CREATE_MD5_FILE=true    MAX_MISMATCHES=1 MIN_MISMATCH_DELTA=1 MAX_NO_CALLS=2 MAX_LOW_QUALITY_TO_CONVERT=15 NUM_THREADS=1 BATCH_SIZE=10000 METRICS_ONLY=false VERBOSITY=INFO QUIET=false COMPRESSION_LEVEL=5 MAX_RECORDS_IN_RAM=500000 CREATE_INDEX=false");
          
         File outputMetrics = new File(outputName + "/6383_8.metrics");
         outputMetrics.delete();
@@ -152,4 +161,321 @@ public class BamIndexDecoderTest {
         
         outputDir.deleteOnExit();
     }
+
+    private List<String> readRecords(File samFile) {
+        List<String> records = new ArrayList<String>();
+        SAMFileReader samFileReader = new SAMFileReader(samFile);
+        for (SAMRecord record : samFileReader) {
+            records.add(record.getSAMString());
+        }
+        samFileReader.close();
+        return records;
+    }
+
+    private List<String> readMetrics(File metricsFile) throws IOException {
+        List<String> lines = new ArrayList<String>();
+        BufferedReader reader = new BufferedReader(new FileReader(metricsFile));
+        String line;
+        while ((line = reader.readLine()) != null) {
+            if (!line.startsWith("#")) {
+                lines.add(line);
+            }
+        }
+        reader.close();
+        return lines;
+    }
+
+    private void writeBam(File samFile, File bamFile) {
+        SAMFileReader reader = new SAMFileReader(samFile);
+        reader.setValidationStringency(SAMFileReader.ValidationStringency.SILENT);
+        SAMFileWriter writer = new SAMFileWriterFactory().makeBAMWriter(reader.getFileHeader(), true, bamFile);
+        for (SAMRecord record : reader) {
+            writer.addAlignment(record);
+        }
+        writer.close();
+        reader.close();
+    }
+
+    /**
+     * Test of decoding with several threads against one thread
+     */
+    @Test
+    public void testMainWithThreads() throws IOException {
+
+        System.out.println("instanceMain - decoding with several threads");
+
+        File outputDir = new File("testdata/6383_8_threads");
+        outputDir.mkdir();
+        outputDir.deleteOnExit();
+
+        String [] threads = {"1", "3"};
+        for (String numThreads : threads) {
+            String outputName = outputDir + "/6383_8_" + numThreads;
+            String[] args = {
+                "I=testdata/bam/6383_8.sam",
+                "O=" + outputName + ".sam",
+                "BARCODE_FILE=testdata/decode/6383_8.tag",
+                "METRICS_FILE=" + outputName + ".metrics",
+                "TMP_DIR=testdata/",
+                "VALIDATION_STRINGENCY=SILENT",
+                "BARCODE_TAG_NAME=RT",
+                "NUM_THREADS=" + numThreads,
+                "BATCH_SIZE=7"
+            };
+            assertEquals(0, new BamIndexDecoder().instanceMain(args));
+            new File(outputName + ".sam").deleteOnExit();
+            new File(outputName + ".metrics").deleteOnExit();
+        }
+
+        List<String> serialRecords = readRecords(new File(outputDir, "6383_8_1.sam"));
+        assertTrue(serialRecords.size() > 7 * 3);
+        assertEquals(serialRecords, readRecords(new File(outputDir, "6383_8_3.sam")));
+        assertEquals(readMetrics(new File(outputDir, "6383_8_1.metrics")), readMetrics(new File(outputDir, "6383_8_3.metrics")));
+    }
+
+    /**
+     * Test of split bam output with a pool of writers against one writer per barcode
+     */
+    @Test
+    public void testMainWithWriterPool() throws IOException {
+
+        System.out.println("instanceMain - split output with writer pool");
+
+        File outputDir = new File("testdata/6383_8_pool");
+        outputDir.mkdir();
+        outputDir.deleteOnExit();
+
+        String [][] poolArgs = {
+            {},
+            {"MAX_OPEN_FILES=1", "MAX_RECORDS_IN_RAM=5", "NUM_THREADS=2", "CREATE_MD5_FILE=true"}
+        };
+        for (int run = 0; run < poolArgs.length; run++) {
+            List<String> args = new ArrayList<String>();
+            args.add("I=testdata/bam/6383_8.sam");
+            args.add("OUTPUT_DIR=" + outputDir);
+            args.add("OUTPUT_PREFIX=6383_8_" + run);
+            args.add("OUTPUT_FORMAT=bam");
+            args.add("BARCODE_FILE=testdata/decode/6383_8.tag");
+            args.add("METRICS_FILE=" + outputDir + "/6383_8_" + run + ".metrics");
+            args.add("TMP_DIR=testdata/");
+            args.add("VALIDATION_STRINGENCY=SILENT");
+            args.add("BARCODE_TAG_NAME=RT");
+            for (String arg : poolArgs[run]) {
+                args.add(arg);
+            }
+            //MAX_RECORDS_IN_RAM and CREATE_MD5_FILE set picard defaults for the whole test JVM
+            int defaultMaxRecordsInRam = SAMFileWriterImpl.getDefaultMaxRecordsInRam();
+            try {
+                assertEquals(0, new BamIndexDecoder().instanceMain(args.toArray(new String[args.size()])));
+            } finally {
+                SAMFileWriterImpl.setDefaultMaxRecordsInRam(defaultMaxRecordsInRam);
+                SAMFileWriterFactory.setDefaultCreateMd5File(false);
+            }
+            new File(outputDir, "6383_8_" + run + ".metrics").deleteOnExit();
+        }
+
+        for (int i = 0; i < 3; i++) {
+            File splitFile = new File(outputDir, "6383_8_0#" + i + ".bam");
+            File pooledFile = new File(outputDir, "6383_8_1#" + i + ".bam");
+            File pooledMd5 = new File(outputDir, "6383_8_1#" + i + ".bam.md5");
+            splitFile.deleteOnExit();
+            pooledFile.deleteOnExit();
+            pooledMd5.deleteOnExit();
+
+            List<String> splitRecords = readRecords(splitFile);
+            assertFalse(splitRecords.isEmpty());
+            assertEquals(splitRecords, readRecords(pooledFile));
+            assertEquals(new SAMFileReader(splitFile).getFileHeader().getReadGroups(),
+                    new SAMFileReader(pooledFile).getFileHeader().getReadGroups());
+            assertTrue(pooledMd5.exists());
+        }
+
+        String[] badArgs = {
+            "I=testdata/bam/6383_8.sam",
+            "O=" + outputDir + "/6383_8.bam",
+            "BARCODE_FILE=testdata/decode/6383_8.tag",
+            "METRICS_FILE=" + outputDir + "/6383_8.metrics",
+            "MAX_OPEN_FILES=1"
+        };
+        assertEquals(1, new BamIndexDecoder().instanceMain(badArgs));
+    }
+
+    /**
+     * Test of dual index decoding with the second index in its own tag against the index in one tag
+     */
+    @Test
+    public void testMainWithSecondIndexTag() throws IOException {
+
+        System.out.println("instanceMain - dual index in two tags");
+
+        File outputDir = new File("testdata/6383_8_dual");
+        outputDir.mkdir();
+        outputDir.deleteOnExit();
+
+        File dualTagFile = new File(outputDir, "6383_8_dual_tags.sam");
+        dualTagFile.deleteOnExit();
+        SAMFileReader reader = new SAMFileReader(new File("testdata/bam/6383_8.sam"));
+        reader.setValidationStringency(SAMFileReader.ValidationStringency.SILENT);
+        SAMFileWriter writer = new SAMFileWriterFactory().makeSAMWriter(reader.getFileHeader(), true, dualTagFile);
+        for (SAMRecord record : reader) {
+            String index = record.getStringAttribute("RT");
+            if (index != null) {
+                record.setAttribute("RT", index.substring(0, 3));
+                record.setAttribute("B2", index.substring(3));
+            }
+            writer.addAlignment(record);
+        }
+        writer.close();
+        reader.close();
+
+        String [][] inputArgs = {
+            {"I=testdata/bam/6383_8.sam"},
+            {"I=" + dualTagFile, "SECOND_BARCODE_TAG_NAME=B2"}
+        };
+        List<List<String>> readGroups = new ArrayList<List<String>>();
+        for (int run = 0; run < inputArgs.length; run++) {
+            File output = new File(outputDir, "6383_8_" + run + ".sam");
+            File metrics = new File(outputDir, "6383_8_" + run + ".metrics");
+            output.deleteOnExit();
+            metrics.deleteOnExit();
+            List<String> args = new ArrayList<String>();
+            args.add("O=" + output);
+            args.add("BARCODE_FILE=testdata/decode/6383_8.tag");
+            args.add("METRICS_FILE=" + metrics);
+            args.add("TMP_DIR=testdata/");
+            args.add("VALIDATION_STRINGENCY=SILENT");
+            args.add("BARCODE_TAG_NAME=RT");
+            args.add("SECOND_INDEX_LENGTH=3");
+            args.add("MAX_MISMATCHES=0");
+            for (String arg : inputArgs[run]) {
+                args.add(arg);
+            }
+            assertEquals(0, new BamIndexDecoder().instanceMain(args.toArray(new String[args.size()])));
+
+            List<String> runReadGroups = new ArrayList<String>();
+            SAMFileReader outputReader = new SAMFileReader(output);
+            for (SAMRecord record : outputReader) {
+                runReadGroups.add(record.getReadName() + " " + record.getStringAttribute("RG"));
+            }
+            outputReader.close();
+            readGroups.add(runReadGroups);
+        }
+        assertEquals(96, readGroups.get(0).size());
+        assertTrue(readGroups.get(0).contains("HS19_6383:8:1101:1245:2140#ATCACG 1#ATCACG"));
+        assertEquals(readGroups.get(0), readGroups.get(1));
+    }
+
+    /**
+     * Test of decoding bam input, barcode tags read from binary attributes, against sam input
+     */
+    @Test
+    public void testMainWithBamInput() throws IOException {
+
+        System.out.println("instanceMain - bam input against sam input");
+
+        File outputDir = new File("testdata/6383_8_bam_input");
+        outputDir.mkdir();
+        outputDir.deleteOnExit();
+
+        File bamInput = new File(outputDir, "6383_8.bam");
+        bamInput.deleteOnExit();
+        writeBam(new File("testdata/bam/6383_8.sam"), bamInput);
+
+        String [] inputs = {"testdata/bam/6383_8.sam", bamInput.getPath()};
+        for (int run = 0; run < inputs.length; run++) {
+            String outputName = outputDir + "/6383_8_" + run;
+            String[] args = {
+                "I=" + inputs[run],
+                "O=" + outputName + ".sam",
+                "BARCODE_FILE=testdata/decode/6383_8.tag",
+                "METRICS_FILE=" + outputName + ".metrics",
+                "TMP_DIR=testdata/",
+                "VALIDATION_STRINGENCY=SILENT",
+                "BARCODE_TAG_NAME=RT",
+                "CONVERT_LOW_QUALITY_TO_NO_CALL=true"
+            };
+            assertEquals(0, new BamIndexDecoder().instanceMain(args));
+            new File(outputName + ".sam").deleteOnExit();
+            new File(outputName + ".metrics").deleteOnExit();
+        }
+
+        List<String> samInputRecords = readRecords(new File(outputDir, "6383_8_0.sam"));
+        assertEquals(96, samInputRecords.size());
+        assertEquals(samInputRecords, readRecords(new File(outputDir, "6383_8_1.sam")));
+        assertEquals(readMetrics(new File(outputDir, "6383_8_0.metrics")), readMetrics(new File(outputDir, "6383_8_1.metrics")));
+    }
+
+    /**
+     * Test of writing only metrics, with a grid of threshold settings, against decoding with output
+     */
+    @Test
+    public void testMetricsOnly() throws IOException {
+
+        System.out.println("instanceMain - metrics only");
+
+        File outputDir = new File("testdata/6383_8_metrics_only");
+        outputDir.mkdir();
+        outputDir.deleteOnExit();
+
+        File bamInput = new File(outputDir, "6383_8.bam");
+        bamInput.deleteOnExit();
+        writeBam(new File("testdata/bam/6383_8.sam"), bamInput);
+
+        File output = new File(outputDir, "6383_8.sam");
+        output.deleteOnExit();
+        File metrics = new File(outputDir, "6383_8.metrics");
+        metrics.deleteOnExit();
+        String[] args = {
+            "I=" + bamInput.getPath(),
+            "O=" + output.getPath(),
+            "BARCODE_FILE=testdata/decode/6383_8.tag",
+            "METRICS_FILE=" + metrics.getPath(),
+            "TMP_DIR=testdata/",
+            "VALIDATION_STRINGENCY=SILENT",
+            "BARCODE_TAG_NAME=RT",
+            "CONVERT_LOW_QUALITY_TO_NO_CALL=true"
+        };
+        assertEquals(0, new BamIndexDecoder().instanceMain(args));
+
+        File metricsOnly = new File(outputDir, "6383_8_metrics_only.metrics");
+        metricsOnly.deleteOnExit();
+        String[] metricsOnlyArgs = {
+            "I=" + bamInput.getPath(),
+            "BARCODE_FILE=testdata/decode/6383_8.tag",
+            "METRICS_FILE=" + metricsOnly.getPath(),
+            "TMP_DIR=testdata/",
+            "BARCODE_TAG_NAME=RT",
+            "CONVERT_LOW_QUALITY_TO_NO_CALL=true",
+            "METRICS_ONLY=true",
+            "MAX_MISMATCHES_GRID=1",
+            "MAX_MISMATCHES_GRID=3",
+            "NUM_THREADS=2",
+            "BATCH_SIZE=10"
+        };
+        int filesBefore = outputDir.list().length;
+        BamIndexDecoder decoder = new BamIndexDecoder();
+        assertEquals(0, decoder.instanceMain(metricsOnlyArgs));
+
+        File gridMetrics3 = decoder.getGridMetricsFile(3, 1);
+        File gridMetrics1 = decoder.getGridMetricsFile(1, 1);
+        gridMetrics3.deleteOnExit();
+        gridMetrics1.deleteOnExit();
+        assertEquals(new File(outputDir, "6383_8_metrics_only.metrics.max_mismatches_3.min_mismatch_delta_1"), gridMetrics3);
+        assertEquals(filesBefore + 3, outputDir.list().length);
+
+        assertEquals(readMetrics(metrics), readMetrics(metricsOnly));
+        assertEquals(readMetrics(metrics), readMetrics(gridMetrics1));
+        List<String> metricsWithThreeMismatches = readMetrics(gridMetrics3);
+        assertTrue(metricsWithThreeMismatches.get(3).startsWith("CGATGT\t2\ttestlib2\ttest_sample2\tstudy2\t15\t15\t14\t14\t0\t0\t"));
+        assertTrue(metricsWithThreeMismatches.get(4).startsWith("NNNNNN\t\t\t\t\t16\t16\t"));
+
+        String[] invalidArgs = {
+            "I=" + bamInput.getPath(),
+            "O=" + output.getPath(),
+            "BARCODE_FILE=testdata/decode/6383_8.tag",
+            "METRICS_FILE=" + metricsOnly.getPath(),
+            "METRICS_ONLY=true"
+        };
+        assertEquals(1, new BamIndexDecoder().instanceMain(invalidArgs));
+    }
 }
@@ -19,7 +19,13 @@
 package uk.ac.sanger.npg.picard;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import net.sf.picard.io.IoUtil;
+import net.sf.picard.metrics.MetricsFile;
+import net.sf.samtools.util.StringUtil;
 import static org.junit.Assert.*;
 import org.junit.Test;
 import uk.ac.sanger.npg.picard.IndexDecoder.NamedBarcode;
@@ -81,4 +87,254 @@ public class IndexDecoderTest {
         assertEquals(barcodeList.get(1).description, "study2");
     }
 
+    @Test
+    public void testNeighbourhoodIndexSameAsScan() throws Exception {
+
+        System.out.println("checking barcode neighbourhood index gives the same matches as comparing with all barcodes");
+
+        ArrayList<String> barcodes = new ArrayList<String>();
+        barcodes.add("ACGTAC");
+        barcodes.add("ACGTTC");
+        barcodes.add("TTGCAA");
+        barcodes.add("GGCCTA");
+
+        IndexDecoder indexed = new IndexDecoder(barcodes);
+        IndexDecoder scanned = new IndexDecoder(barcodes);
+        scanned.setMaxNeighbourhoodSize(0);
+        ArrayList<String> messages = new ArrayList<String>();
+        indexed.prepareDecode(messages);
+        scanned.prepareDecode(messages);
+        assertTrue(messages.isEmpty());
+        assertEquals(0, scanned.getNeighbourhoodIndexSize());
+        assertTrue(indexed.getNeighbourhoodIndexSize() > 0);
+        assertTrue(indexed.getNeighbourhoodIndexSize() <= 4 * IndexDecoder.neighbourhoodSize(6, 1, 2));
+
+        byte [] bases = {'A', 'C', 'G', 'T', 'N', 'a', '.'};
+        int total = 1;
+        for (int i = 0; i < 6; i++) {
+            total *= bases.length;
+        }
+        byte [] read = new byte[6];
+        for (int n = 0; n < total; n++) {
+            int code = n;
+            for (int i = 0; i < 6; i++) {
+                read[i] = bases[code % bases.length];
+                code /= bases.length;
+            }
+            boolean isPf = n % 3 != 0;
+            IndexDecoder.BarcodeMatch expected = scanned.extractBarcode(read.clone(), isPf);
+            IndexDecoder.BarcodeMatch result = indexed.extractBarcode(read.clone(), isPf);
+            assertEquals(expected.matched, result.matched);
+            assertEquals(expected.barcode, result.barcode);
+            assertEquals(expected.mismatches, result.mismatches);
+            assertEquals(expected.mismatchesToSecondBest, result.mismatchesToSecondBest);
+        }
+
+        File indexedMetrics = File.createTempFile("indexed", ".metrics", new File("testdata/"));
+        File scannedMetrics = File.createTempFile("scanned", ".metrics", new File("testdata/"));
+        indexedMetrics.deleteOnExit();
+        scannedMetrics.deleteOnExit();
+        indexed.writeMetrics(new MetricsFile<IndexDecoder.BarcodeMetric, Integer>(), indexedMetrics);
+        scanned.writeMetrics(new MetricsFile<IndexDecoder.BarcodeMetric, Integer>(), scannedMetrics);
+        assertEquals(IoUtil.readFully(new FileInputStream(scannedMetrics)), IoUtil.readFully(new FileInputStream(indexedMetrics)));
+    }
+
+    @Test
+    public void testPackedMismatchCount() {
+
+        System.out.println("checking packed barcode mismatch count");
+
+        byte [] barcodeBases = {'A', 'C', 'G', 'T'};
+        byte [] readBases = {'A', 'C', 'G', 'T', 'a', 'c', 'g', 't', 'N', 'n', '.'};
+        Random random = new Random(1);
+        long [] packedBarcode = new long[2];
+        long [] packedRead = new long[2];
+        for (int n = 0; n < 10000; n++) {
+            int length = 1 + random.nextInt(32);
+            byte [] barcode = new byte[length];
+            byte [] read = new byte[length];
+            for (int i = 0; i < length; i++) {
+                barcode[i] = barcodeBases[random.nextInt(barcodeBases.length)];
+                read[i] = random.nextBoolean() ? barcode[i] : readBases[random.nextInt(readBases.length)];
+            }
+            assertTrue(IndexDecoder.packBases(barcode, length, packedBarcode));
+            assertEquals(0, packedBarcode[1]);
+            assertTrue(IndexDecoder.packBases(read, length, packedRead));
+            assertEquals(IndexDecoder.countMismatches(barcode, read),
+                    IndexDecoder.countMismatches(packedBarcode[0], packedRead[0], packedRead[1]));
+        }
+
+        assertFalse(IndexDecoder.packBases(new byte[]{'A', 'R', 'G'}, 3, packedRead));
+    }
+
+    @Test
+    public void testMatchCache() throws Exception {
+
+        System.out.println("checking barcode match cache");
+
+        ArrayList<String> barcodes = new ArrayList<String>();
+        barcodes.add("ATCACGTT");
+        barcodes.add("CGATGTTT");
+
+        IndexDecoder cached = new IndexDecoder(barcodes);
+        cached.setMatchCacheSize(2);
+        IndexDecoder uncached = new IndexDecoder(barcodes);
+        uncached.setMatchCacheSize(0);
+        ArrayList<String> messages = new ArrayList<String>();
+        cached.prepareDecode(messages);
+        uncached.prepareDecode(messages);
+        assertTrue(messages.isEmpty());
+
+        String [] reads = {"ATCACGTT", "GGGGGGGG", "ATCAGGTA", "GGGGGGGG", "ATCAGGTA", "TTTTTTTT", "GGGGGGGG", "ATCAGGTA", "ATCACGTA"};
+        for (String read : reads) {
+            IndexDecoder.BarcodeMatch expected = uncached.extractBarcode(read, true);
+            IndexDecoder.BarcodeMatch result = cached.extractBarcode(read, true);
+            assertEquals(expected.matched, result.matched);
+            assertEquals(expected.barcode, result.barcode);
+            assertEquals(expected.mismatches, result.mismatches);
+            assertEquals(expected.mismatchesToSecondBest, result.mismatchesToSecondBest);
+        }
+        assertEquals(0, uncached.getMatchCacheHits());
+        assertEquals(7, uncached.getBarcodeScans());
+        //GGGGGGGG evicted by TTTTTTTT, then ATCAGGTA evicted by GGGGGGGG
+        assertEquals(2, cached.getMatchCacheHits());
+        assertEquals(5, cached.getBarcodeScans());
+
+        List<SpaceSavingCounter.Entry> unmatched = cached.getTopUnmatchedBarcodes();
+        assertEquals(3, unmatched.size());
+        assertEquals("ATCAGGTA", unmatched.get(0).item);
+        assertEquals(3, unmatched.get(0).count);
+        assertEquals("GGGGGGGG", unmatched.get(1).item);
+        assertEquals("TTTTTTTT", unmatched.get(2).item);
+        assertEquals(1, unmatched.get(2).count);
+
+        File metricsFile = File.createTempFile("unmatched", ".metrics", new File("testdata/"));
+        metricsFile.deleteOnExit();
+        cached.writeMetrics(new MetricsFile<IndexDecoder.BarcodeMetric, Integer>(), metricsFile);
+        assertTrue(IoUtil.readFully(new FileInputStream(metricsFile)).contains("UNMATCHED_BARCODE\tATCAGGTA\t3\t0"));
+    }
+
+    @Test
+    public void testWorkersInThreads() throws Exception {
+
+        System.out.println("checking decoding with workers in several threads");
+
+        ArrayList<String> barcodes = new ArrayList<String>();
+        barcodes.add("ATCACGTT");
+        barcodes.add("CGATGTTT");
+        barcodes.add("TTAGGCAT");
+
+        final IndexDecoder serial = new IndexDecoder(barcodes);
+        final IndexDecoder parallel = new IndexDecoder(barcodes);
+        ArrayList<String> messages = new ArrayList<String>();
+        serial.prepareDecode(messages);
+        parallel.prepareDecode(messages);
+        assertTrue(messages.isEmpty());
+
+        byte [] bases = {'A', 'C', 'G', 'T', 'N'};
+        Random random = new Random(2);
+        final byte [][] reads = new byte[20000][];
+        for (int n = 0; n < reads.length; n++) {
+            reads[n] = StringUtil.stringToBytes(barcodes.get(random.nextInt(barcodes.size())));
+            for (int m = random.nextInt(3); m > 0; m--) {
+                reads[n][random.nextInt(reads[n].length)] = bases[random.nextInt(bases.length)];
+            }
+            serial.extractBarcode(reads[n], n % 5 != 0);
+        }
+
+        final int numThreads = 4;
+        Thread [] threads = new Thread[numThreads];
+        for (int t = 0; t < numThreads; t++) {
+            final int first = t;
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    IndexDecoder.Worker worker = parallel.newWorker();
+                    for (int n = first; n < reads.length; n += numThreads) {
+                        worker.extractBarcode(reads[n], n % 5 != 0);
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        File serialMetrics = File.createTempFile("serial", ".metrics", new File("testdata/"));
+        File parallelMetrics = File.createTempFile("parallel", ".metrics", new File("testdata/"));
+        serialMetrics.deleteOnExit();
+        parallelMetrics.deleteOnExit();
+        serial.writeMetrics(new MetricsFile<IndexDecoder.BarcodeMetric, Integer>(), serialMetrics);
+        parallel.writeMetrics(new MetricsFile<IndexDecoder.BarcodeMetric, Integer>(), parallelMetrics);
+        assertEquals(IoUtil.readFully(new FileInputStream(serialMetrics)), IoUtil.readFully(new FileInputStream(parallelMetrics)));
+    }
+
+    @Test
+    public void testDualIndex() throws Exception {
+
+        System.out.println("checking dual index decoding");
+
+        ArrayList<String> barcodes = new ArrayList<String>();
+        barcodes.add("AAAAAACCCCCC");
+        barcodes.add("AAAAAAGGGGGG");
+        barcodes.add("TTTTTTCCCCCC");
+
+        IndexDecoder single = new IndexDecoder(barcodes);
+        IndexDecoder dual = new IndexDecoder(barcodes);
+        dual.setSecondIndex(6, 1, 2);
+        IndexDecoder exactSecond = new IndexDecoder(barcodes);
+        exactSecond.setSecondIndex(6, 0, 2);
+        ArrayList<String> messages = new ArrayList<String>();
+        single.prepareDecode(messages);
+        dual.prepareDecode(messages);
+        exactSecond.prepareDecode(messages);
+        assertTrue(messages.isEmpty());
+        assertEquals(6, dual.getFirstIndexLength());
+        assertEquals(6, dual.getSecondIndexLength());
+
+        IndexDecoder.BarcodeMatch match = dual.extractBarcode("AAAAAACCCCCC", true);
+        assertTrue(match.matched);
+        assertEquals("AAAAAACCCCCC", match.barcode);
+        assertEquals(0, match.mismatches);
+
+        //one mismatch in each index
+        assertFalse(single.extractBarcode("AAAAATCCCCCA", true).matched);
+        match = dual.extractBarcode("AAAAATCCCCCA", true);
+        assertTrue(match.matched);
+        assertEquals("AAAAAACCCCCC", match.barcode);
+        assertEquals(2, match.mismatches);
+
+        //both indexes match but not as a pair of a barcode
+        match = dual.extractBarcode("TTTTTTGGGGGG", true);
+        assertFalse(match.matched);
+        assertEquals("ttttttgggggg", match.barcode);
+
+        match = dual.extractBarcode("AAAAAA", "GGGGGA", false);
+        assertTrue(match.matched);
+        assertEquals("AAAAAAGGGGGG", match.barcode);
+        assertEquals(1, match.mismatches);
+
+        assertFalse(exactSecond.extractBarcode("AAAAAACCCCCA", true).matched);
+        assertTrue(exactSecond.extractBarcode("AAAAATCCCCCC", true).matched);
+
+        File metricsFile = File.createTempFile("dual", ".metrics", new File("testdata/"));
+        metricsFile.deleteOnExit();
+        MetricsFile<IndexDecoder.BarcodeMetric, Integer> metrics = new MetricsFile<IndexDecoder.BarcodeMetric, Integer>();
+        dual.writeMetrics(metrics, metricsFile);
+        List<IndexDecoder.BarcodeMetric> barcodeMetrics = metrics.getMetrics();
+        assertEquals(4, barcodeMetrics.size());
+        assertEquals(2, barcodeMetrics.get(0).READS);
+        assertEquals(1, barcodeMetrics.get(0).PERFECT_MATCHES);
+        assertEquals(1, barcodeMetrics.get(1).READS);
+        assertEquals(0, barcodeMetrics.get(1).PF_READS);
+        assertEquals(1, barcodeMetrics.get(1).ONE_MISMATCH_MATCHES);
+        assertEquals(0, barcodeMetrics.get(2).READS);
+        assertEquals(1, barcodeMetrics.get(3).READS);
+
+        IndexDecoder tooLong = new IndexDecoder(barcodes);
+        tooLong.setSecondIndex(12, 1, 2);
+        tooLong.prepareDecode(messages);
+        assertEquals(1, messages.size());
+    }
 }
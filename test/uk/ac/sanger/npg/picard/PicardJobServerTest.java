@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2011 GRL
+ *
+ * This library is free software. You can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package uk.ac.sanger.npg.picard;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileReader;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.TimeZone;
+import net.sf.samtools.SAMFileWriterImpl;
+import net.sf.samtools.util.BlockCompressedOutputStream;
+import static org.junit.Assert.*;
+import org.junit.Test;
+import uk.ac.sanger.npg.bam.util.CheckMd5;
+
+/**
+ * This is the test class for PicardJobServer and PicardJobClient
+ *
+ * @author gq1@sanger.ac.uk
+ */
+public class PicardJobServerTest {
+
+    public PicardJobServerTest() {
+        TimeZone.setDefault(TimeZone.getTimeZone("GMT"));
+    }
+
+    /**
+     * Test of running tools on the server from the client
+     */
+    @Test
+    public void testJobs() throws Exception {
+
+        System.out.println("job server");
+
+        final File portFile = new File("testdata/job_server.port");
+        final File tokenFile = new File("testdata/job_server.token");
+        portFile.delete();
+        final int [] serverExitCode = {-1};
+        Thread server = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                serverExitCode[0] = new PicardJobServer().instanceMain(new String[]{
+                    "PORT_FILE=" + portFile.getPath(), "TOKEN_FILE=" + tokenFile.getPath(), "NUM_THREADS=2"});
+            }
+        });
+        server.start();
+        for (int i = 0; i < 100 && !portFile.exists(); i++) {
+            Thread.sleep(100);
+        }
+        assertTrue(portFile.exists());
+        BufferedReader reader = new BufferedReader(new FileReader(portFile));
+        int port = Integer.parseInt(reader.readLine());
+        reader.close();
+        String token = PicardJobClient.readToken(tokenFile);
+        assertEquals(64, token.length());
+        assertEquals("rw-------", PosixFilePermissions.toString(Files.getPosixFilePermissions(tokenFile.toPath())));
+
+        File strippedBamFile = new File("testdata/7351_8#8_server_stripped.bam");
+        strippedBamFile.deleteOnExit();
+        String [] args = {
+            "I=testdata/bam/7351_8#8.sam",
+            "O=" + strippedBamFile.getPath(),
+            "TMP_DIR=testdata/",
+            "VALIDATION_STRINGENCY=SILENT"
+        };
+        assertEquals(0, new BamTagStripper().instanceMain(args));
+        String expectedMd5 = CheckMd5.getBamMd5AfterRemovePGVersion(strippedBamFile, "BamTagStripper");
+        strippedBamFile.delete();
+
+        for (int i = 0; i < 2; i++) {
+            ByteArrayOutputStream err = new ByteArrayOutputStream();
+            assertEquals(0, PicardJobClient.run(port, token, "BamTagStripper", args, System.out, new PrintStream(err, true)));
+            assertTrue(err.toString().contains("BamTagStripper"));
+            assertEquals(expectedMd5, CheckMd5.getBamMd5AfterRemovePGVersion(strippedBamFile, "BamTagStripper"));
+            strippedBamFile.delete();
+        }
+
+        ByteArrayOutputStream err = new ByteArrayOutputStream();
+        assertEquals(1, PicardJobClient.run(port, token, "NoSuchTool", new String[0], System.out, new PrintStream(err, true)));
+        assertTrue(err.toString().contains("Unknown tool: NoSuchTool"));
+        assertEquals(1, PicardJobClient.run(port, token, "PicardJobServer", new String[0], System.out, System.err));
+
+        err = new ByteArrayOutputStream();
+        assertEquals(1, PicardJobClient.run(port, "wrong", "BamTagStripper", args, System.out, new PrintStream(err, true)));
+        assertTrue(err.toString().contains("Wrong token"));
+        assertFalse(strippedBamFile.exists());
+        assertEquals(1, PicardJobClient.run(port, "wrong", PicardJobServer.SHUTDOWN, new String[0], System.out, System.err));
+
+        int compressionLevel = BlockCompressedOutputStream.getDefaultCompressionLevel();
+        int maxRecordsInRam = SAMFileWriterImpl.getDefaultMaxRecordsInRam();
+        String [] globalArgs = new String[args.length + 2];
+        System.arraycopy(args, 0, globalArgs, 0, args.length);
+        globalArgs[args.length] = "COMPRESSION_LEVEL=" + (compressionLevel == 1 ? 2 : 1);
+        globalArgs[args.length + 1] = "MAX_RECORDS_IN_RAM=" + (maxRecordsInRam + 1);
+        assertEquals(0, PicardJobClient.run(port, token, "BamTagStripper", globalArgs, System.out, System.err));
+        assertEquals(compressionLevel, BlockCompressedOutputStream.getDefaultCompressionLevel());
+        assertEquals(maxRecordsInRam, SAMFileWriterImpl.getDefaultMaxRecordsInRam());
+        strippedBamFile.delete();
+
+        assertEquals(0, PicardJobClient.run(port, token, PicardJobServer.SHUTDOWN, new String[0], System.out, System.err));
+        server.join(10000);
+        assertFalse(server.isAlive());
+        assertEquals(0, serverExitCode[0]);
+        assertFalse(portFile.exists());
+        assertFalse(tokenFile.exists());
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2011 GRL
+ *
+ * This library is free software. You can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package uk.ac.sanger.npg.picard;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ * This is the test class for SpaceSavingCounter
+ *
+ * @author gq1@sanger.ac.uk
+ */
+public class SpaceSavingCounterTest {
+
+    /**
+     * Test of exact counts when all items fit
+     */
+    @Test
+    public void testExactCounts() {
+
+        System.out.println("checking space saving counter without eviction");
+
+        SpaceSavingCounter counter = new SpaceSavingCounter(3);
+        String [] items = {"b", "a", "c", "a", "b", "a"};
+        for (String item : items) {
+            counter.add(item);
+        }
+        List<SpaceSavingCounter.Entry> top = counter.getTop(2);
+        assertEquals(2, top.size());
+        assertEquals("a", top.get(0).item);
+        assertEquals(3, top.get(0).count);
+        assertEquals("b", top.get(1).item);
+        assertEquals(2, top.get(1).count);
+        assertEquals(0, top.get(1).error);
+        assertEquals(6, counter.getTotal());
+    }
+
+    /**
+     * Test of heavy hitters kept in a noisy stream, also after merging two counters
+     */
+    @Test
+    public void testHeavyHitters() {
+
+        System.out.println("checking space saving counter with eviction");
+
+        Random random = new Random(3);
+        SpaceSavingCounter first = new SpaceSavingCounter(20);
+        SpaceSavingCounter second = new SpaceSavingCounter(20);
+        Map<String, Long> trueCounts = new HashMap<String, Long>();
+        for (int n = 0; n < 20000; n++) {
+            String item = n % 4 == 0 ? "heavy" : n % 10 == 1 ? "medium" : "noise" + random.nextInt(5000);
+            (n % 2 == 0 ? first : second).add(item);
+            Long count = trueCounts.get(item);
+            trueCounts.put(item, count == null ? 1 : count + 1);
+        }
+        first.addAll(second);
+        assertEquals(20000, first.getTotal());
+
+        List<SpaceSavingCounter.Entry> top = first.getTop(2);
+        assertEquals("heavy", top.get(0).item);
+        assertEquals("medium", top.get(1).item);
+        for (SpaceSavingCounter.Entry entry : first.getTop(20)) {
+            long trueCount = trueCounts.get(entry.item);
+            assertTrue(entry.count >= trueCount);
+            assertTrue(entry.count - entry.error <= trueCount);
+        }
+    }
+
+    /**
+     * Test of merging two full counters with disjoint tails, counts not below true counts
+     */
+    @Test
+    public void testMergeFullCounters() {
+
+        System.out.println("checking merge of full space saving counters");
+
+        //k evicted from the second counter by the tail of its stream
+        SpaceSavingCounter first = new SpaceSavingCounter(2);
+        SpaceSavingCounter second = new SpaceSavingCounter(2);
+        Map<String, Long> trueCounts = new HashMap<String, Long>();
+        String [][] streams = {
+            {"k", "k", "k", "k", "k", "a"},
+            {"k", "b", "b", "b", "c", "c", "c"}
+        };
+        for (int s = 0; s < streams.length; s++) {
+            for (String item : streams[s]) {
+                (s == 0 ? first : second).add(item);
+                Long count = trueCounts.get(item);
+                trueCounts.put(item, count == null ? 1 : count + 1);
+            }
+        }
+        first.addAll(second);
+        assertEquals(13, first.getTotal());
+        assertEquals(2, first.size());
+
+        List<SpaceSavingCounter.Entry> top = first.getTop(2);
+        for (SpaceSavingCounter.Entry entry : top) {
+            long trueCount = trueCounts.get(entry.item);
+            assertTrue(entry.item, entry.count >= trueCount);
+            assertTrue(entry.item, entry.count - entry.error <= trueCount);
+        }
+        assertEquals("k", top.get(0).item);
+        assertEquals(8, top.get(0).count);
+        assertEquals(3, top.get(0).error);
+        assertEquals("c", top.get(1).item);
+    }
+}